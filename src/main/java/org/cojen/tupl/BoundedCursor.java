@@ -437,6 +437,38 @@ final class BoundedCursor implements Cursor {
         return mSource.lock();
     }
 
+    @Override
+    public LockResult lockRange() throws IOException {
+        Cursor source = mSource;
+        if (!(source instanceof TreeCursor)) {
+            // Locking the whole source range is more restrictive, but still correct.
+            return source.lockRange();
+        }
+
+        BoundedView view = mView;
+
+        byte[] low = view.mStart;
+        if (low != null && (view.mMode & START_EXCLUSIVE) != 0) {
+            low = successor(low);
+        }
+
+        byte[] high = view.mEnd;
+        if (high != null && (view.mMode & END_EXCLUSIVE) == 0) {
+            high = successor(high);
+        }
+
+        return ((TreeCursor) source).lockRange(low, high);
+    }
+
+    /**
+     * Returns the lowest key which is higher than the given one.
+     */
+    private static byte[] successor(byte[] key) {
+        byte[] succ = new byte[key.length + 1];
+        System.arraycopy(key, 0, succ, 0, key.length);
+        return succ;
+    }
+
     @Override
     public LockResult load() throws IOException {
         return mSource.load();
@@ -18,6 +18,9 @@ package org.cojen.tupl;
 
 import java.io.IOException;
 
+import java.util.Map;
+import java.util.Spliterator;
+
 import static org.cojen.tupl.Utils.*;
 
 /**
@@ -101,6 +104,14 @@ final class BoundedView extends SubView {
         return mSource.count(adjustLowKey(lowKey), adjustHighKey(highKey));
     }
 
+    @Override
+    public Spliterator<Map.Entry<byte[], byte[]>> newSpliterator(LockMode lockMode) {
+        if (mSource instanceof Tree) {
+            return new ViewSpliterator(this, (Tree) mSource, mStart, mEnd, lockMode);
+        }
+        return super.newSpliterator(lockMode);
+    }
+
     @Override
     public View viewGe(byte[] key) {
         keyCheck(key);
@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+/**
+ * Cache priority of an {@link Index index}, which influences which of its nodes are chosen
+ * for eviction when the cache is full.
+ *
+ * @author Brian S O'Neill
+ * @see Index#cachePriority(CachePriority) Index.cachePriority
+ */
+public enum CachePriority {
+    /**
+     * Leaf nodes are recycled before all other nodes, and using them doesn't make them more
+     * likely to stay cached. A scan over a large index with low priority only churns its
+     * own nodes.
+     */
+    LOW,
+
+    /**
+     * Default priority, where nodes are evicted in least recently used order.
+     */
+    NORMAL,
+
+    /**
+     * Nodes are passed over when choosing nodes to evict, and internal nodes are pinned. High
+     * priority nodes are evicted only when the cache would otherwise be exhausted.
+     */
+    HIGH
+}
@@ -0,0 +1,39 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+/**
+ * Defines how cached nodes are chosen for eviction when the cache is full.
+ *
+ * @author Brian S O'Neill
+ * @see DatabaseConfig#cacheReplacementPolicy
+ */
+public enum CacheReplacementPolicy {
+    /**
+     * Policy which evicts the least recently used node. A large scan can evict the entire
+     * working set.
+     */
+    LRU,
+
+    /**
+     * Segmented LRU policy, which is scan resistant. Newly loaded nodes enter a probationary
+     * segment, and they're only promoted to the protected segment when used again. Nodes
+     * which are touched just once by a scan are evicted first, and so the working set remains
+     * cached.
+     */
+    SEGMENTED_LRU
+}
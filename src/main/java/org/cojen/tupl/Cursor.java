@@ -432,6 +432,31 @@ public interface Cursor {
         return load();
     }
 
+    /**
+     * Acquires a shared lock over the entire range of keys which this cursor can visit,
+     * within the linked transaction. The lock is held until the transaction scope exits or
+     * commits, like any other lock. While held, entries within the range can be read
+     * without acquiring and retaining individual shared key locks, although a read still
+     * waits for any exclusive key lock held by another transaction. Other transactions
+     * cannot insert, update or delete entries within the range, which prevents phantoms.
+     *
+     * <p>Range locks are most effective for scans under the {@link
+     * LockMode#REPEATABLE_READ REPEATABLE_READ} lock mode, which would otherwise retain a
+     * lock for every entry visited. Range locks don't affect acquisition of upgradable
+     * locks.
+     *
+     * <p>By default, this method does nothing and returns {@link LockResult#UNOWNED
+     * UNOWNED}, indicating that range locking isn't supported.
+     *
+     * @return {@link LockResult#UNOWNED UNOWNED} if no transaction is linked or if not
+     * supported, {@link LockResult#ACQUIRED ACQUIRED}, or {@link LockResult#OWNED_SHARED
+     * OWNED_SHARED}
+     * @throws LockFailureException if interrupted or timed out
+     */
+    public default LockResult lockRange() throws IOException {
+        return LockResult.UNOWNED;
+    }
+
     /**
      * Loads or reloads the value at the cursor's current position. Cursor value is set to null
      * if entry no longer exists, but the position remains unmodified.
@@ -24,6 +24,8 @@ import java.io.Serializable;
 
 import java.lang.reflect.Method;
 
+import java.util.concurrent.Executor;
+
 import org.cojen.tupl.io.CauseCloseable;
 
 import static org.cojen.tupl.Utils.*;
@@ -208,6 +210,62 @@ public interface Database extends CauseCloseable, Flushable {
      */
     public abstract Index newTemporaryIndex() throws IOException;
 
+    /**
+     * Fills an empty index with all the entries provided by the given source cursor, with
+     * leaf nodes fully packed. Equivalent to calling {@link #bulkLoad(Index, Cursor, double)
+     * bulkLoad} with a fill factor of 1.0.
+     *
+     * @param index non-null empty index
+     * @param source cursor positioned at the first entry to load
+     * @throws ClosedIndexException if index reference is closed
+     * @throws IllegalStateException if index isn't empty or has active cursors
+     * @throws IllegalArgumentException if index belongs to another database instance
+     * @throws UnsupportedOperationException if not supported by the database implementation
+     */
+    public default void bulkLoad(Index index, Cursor source) throws IOException {
+        bulkLoad(index, source, 1.0);
+    }
+
+    /**
+     * Fills an empty index with all the entries provided by the given source cursor, which is
+     * advanced by calling {@link Cursor#next next} until exhausted. The entries are built up
+     * in a temporary tree, without any locking, undo logging or redo logging, and then the
+     * completed tree is swapped into the index as a single atomic operation. A checkpoint is
+     * performed before returning, to make the loaded entries durable.
+     *
+     * <p>Source entries should be provided in ascending key order, which ensures that each
+     * leaf node is filled to the requested fill factor before moving on to the next. Entries
+     * provided out of order are still loaded correctly, but less efficiently. Because the load
+     * isn't redo logged, it isn't replicated.
+     *
+     * @param index non-null empty index
+     * @param source cursor positioned at the first entry to load
+     * @param fillFactor fraction of each leaf node to fill, in the range (0.0, 1.0]
+     * @throws ClosedIndexException if index reference is closed
+     * @throws IllegalStateException if index isn't empty or has active cursors
+     * @throws IllegalArgumentException if index belongs to another database instance, or if
+     * the fill factor is illegal
+     * @throws UnsupportedOperationException if not supported by the database implementation
+     */
+    public default void bulkLoad(Index index, Cursor source, double fillFactor)
+        throws IOException
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns a new Sorter instance, which sorts runs of entries in memory and spills them
+     * into temporary indexes. The runs are sorted by the given executor, and they're merged
+     * together when finished.
+     *
+     * @param executor optional executor for sorting runs in parallel; pass null to sort
+     * runs in the thread which adds entries
+     * @throws UnsupportedOperationException if not supported by the database implementation
+     */
+    public default Sorter newSorter(Executor executor) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
     /**
      * Returns an {@link UnmodifiableViewException unmodifiable} View which maps all available
      * index names to identifiers. Identifiers are long integers, {@link
@@ -280,6 +338,29 @@ public interface Database extends CauseCloseable, Flushable {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Change the maximum size of the node cache, without closing the database. Growing the
+     * cache allows more nodes to be allocated on demand. Shrinking the cache evicts the least
+     * recently used nodes, writing them first if dirty. Nodes which are in use cannot be
+     * evicted immediately, and so the cache can remain slightly larger than requested until
+     * this method is called again. Non-durable databases only shrink by evicting unused
+     * nodes.
+     *
+     * @param bytes new maximum cache size, in bytes; rounded up to a minimum if too small
+     */
+    public default void cacheSize(long bytes) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns the current maximum size of the node cache.
+     *
+     * @return maximum cache size, in bytes; is -1 if unknown
+     */
+    public default long cacheSize() {
+        return -1;
+    }
+
     /**
      * Support for capturing a snapshot (hot backup) of the database, while
      * still allowing concurrent modifications. The snapshot contains all data
@@ -350,7 +431,7 @@ public interface Database extends CauseCloseable, Flushable {
      * Collection of database {@link Database#stats statistics}.
      */
     public static class Stats implements Cloneable, Serializable {
-        private static final long serialVersionUID = 3L;
+        private static final long serialVersionUID = 5L;
 
         public int pageSize;
         public long freePages;
@@ -361,6 +442,10 @@ public interface Database extends CauseCloseable, Flushable {
         public long cursorCount;
         public long txnCount;
         public long txnsCreated;
+        public long redoSyncCount;
+        public long redoSyncCommitCount;
+        public long compressionInputBytes;
+        public long compressionOutputBytes;
 
         /**
          * Returns the allocation page size.
@@ -434,6 +519,51 @@ public interface Database extends CauseCloseable, Flushable {
             return txnsCreated;
         }
 
+        /**
+         * Returns the total amount of redo log syncs performed on behalf of {@link
+         * DurabilityMode#SYNC sync} committed transactions. With group commit, a single sync
+         * can cover several commits.
+         */
+        public long redoSyncCount() {
+            return redoSyncCount;
+        }
+
+        /**
+         * Returns the total amount of {@link DurabilityMode#SYNC sync} commits which waited
+         * for a redo log sync. The ratio of this value to the {@link #redoSyncCount sync
+         * count} is the average group commit size.
+         */
+        public long redoSyncCommitCount() {
+            return redoSyncCommitCount;
+        }
+
+        /**
+         * Returns the total size of all values which were {@link Index#valueCompression
+         * compressed} when stored, before compression. Values which weren't compressed
+         * aren't included.
+         */
+        public long compressionInputBytes() {
+            return compressionInputBytes;
+        }
+
+        /**
+         * Returns the total size of all values which were {@link Index#valueCompression
+         * compressed} when stored, after compression.
+         */
+        public long compressionOutputBytes() {
+            return compressionOutputBytes;
+        }
+
+        /**
+         * Returns the ratio of the {@link #compressionInputBytes input} to the {@link
+         * #compressionOutputBytes output} size of compressed values, which is 1.0 if no
+         * values have been compressed.
+         */
+        public double compressionRatio() {
+            long output = compressionOutputBytes;
+            return output == 0 ? 1.0 : (((double) compressionInputBytes) / output);
+        }
+
         @Override
         public Stats clone() {
             try {
@@ -465,7 +595,11 @@ public interface Database extends CauseCloseable, Flushable {
                     && lockCount == other.lockCount
                     && cursorCount == other.cursorCount
                     && txnCount == other.txnCount
-                    && txnsCreated == other.txnsCreated;
+                    && txnsCreated == other.txnsCreated
+                    && redoSyncCount == other.redoSyncCount
+                    && redoSyncCommitCount == other.redoSyncCommitCount
+                    && compressionInputBytes == other.compressionInputBytes
+                    && compressionOutputBytes == other.compressionOutputBytes;
             }
             return false;
         }
@@ -481,6 +615,10 @@ public interface Database extends CauseCloseable, Flushable {
                 + ", cursorCount=" + cursorCount
                 + ", transactionCount=" + txnCount
                 + ", transactionsCreated=" + txnsCreated
+                + ", redoSyncCount=" + redoSyncCount
+                + ", redoSyncCommitCount=" + redoSyncCommitCount
+                + ", compressionInputBytes=" + compressionInputBytes
+                + ", compressionOutputBytes=" + compressionOutputBytes
                 + '}';
         }
     }
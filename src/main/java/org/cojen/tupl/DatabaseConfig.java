@@ -62,18 +62,29 @@ public class DatabaseConfig implements Cloneable, Serializable {
     long mMinCachedBytes;
     long mMaxCachedBytes;
     long mSecondaryCacheSize;
+    CacheReplacementPolicy mCacheReplacementPolicy;
+    long mEvictionReserve;
     DurabilityMode mDurabilityMode;
     LockUpgradeRule mLockUpgradeRule;
     long mLockTimeoutNanos;
+    int mLockEscalationThreshold;
+    long mDeadlockDetectionDelayNanos;
     long mCheckpointRateNanos;
     long mCheckpointSizeThreshold;
     long mCheckpointDelayThresholdNanos;
+    long mGroupCommitDelayNanos;
+    int mCheckpointFlushThreads;
+    int mCheckpointFlushBatchSize;
+    int mRedoStripes;
+    int mRecoveryThreads;
     transient EventListener mEventListener;
     boolean mFileSync;
     boolean mReadOnly;
     int mPageSize;
     Boolean mDirectPageAccess;
     boolean mCachePriming;
+    boolean mKeyPrefixCompression;
+    boolean mSnapshotReads;
     transient ReplicationManager mReplManager;
     int mMaxReplicaThreads;
     transient Crypto mCrypto;
@@ -85,11 +96,16 @@ public class DatabaseConfig implements Cloneable, Serializable {
 
     public DatabaseConfig() {
         createFilePath(true);
+        cacheReplacementPolicy(null);
         durabilityMode(null);
         lockTimeout(1, TimeUnit.SECONDS);
+        deadlockDetectionDelay(-1, null);
         checkpointRate(1, TimeUnit.SECONDS);
         checkpointSizeThreshold(1024 * 1024);
         checkpointDelayThreshold(1, TimeUnit.MINUTES);
+        checkpointFlushThreads(1);
+        checkpointFlushBatchSize(64);
+        recoveryThreads(1);
     }
 
     /**
@@ -196,9 +212,11 @@ public class DatabaseConfig implements Cloneable, Serializable {
     }
 
     /**
-     * Set the maximum cache size, overriding the default.
+     * Set the maximum cache size, overriding the default. The size can be changed later,
+     * while the database is open.
      *
      * @param maxBytes cache size, in bytes
+     * @see Database#cacheSize(long) Database.cacheSize
      */
     public DatabaseConfig maxCacheSize(long maxBytes) {
         mMaxCachedBytes = maxBytes;
@@ -222,6 +240,37 @@ public class DatabaseConfig implements Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Set the policy for choosing which cached nodes to evict, which is {@link
+     * CacheReplacementPolicy#LRU LRU} if not overridden. The {@link
+     * CacheReplacementPolicy#SEGMENTED_LRU SEGMENTED_LRU} policy prevents large scans from
+     * evicting the working set.
+     */
+    public DatabaseConfig cacheReplacementPolicy(CacheReplacementPolicy policy) {
+        if (policy == null) {
+            policy = CacheReplacementPolicy.LRU;
+        }
+        mCacheReplacementPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Set the amount of cache which a background thread keeps free or clean, which is zero
+     * if not overridden. When the cache is full, allocating a new node requires evicting
+     * the least recently used node, and if it's dirty, it must be written first. With a
+     * reserve, the background thread writes the dirty nodes ahead of demand, and so
+     * allocations normally don't stall on writes.
+     *
+     * @param bytes eviction reserve size, in bytes; pass zero to disable
+     */
+    public DatabaseConfig evictionReserve(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException();
+        }
+        mEvictionReserve = bytes;
+        return this;
+    }
+
     /**
      * Set the default transaction durability mode, which is {@link
      * DurabilityMode#SYNC SYNC} if not overridden. If database itself is
@@ -258,6 +307,45 @@ public class DatabaseConfig implements Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Set the number of shared key locks which a transaction can hold for an index, within
+     * the current scope, before they're escalated into a single shared lock over the whole
+     * index. Escalation reduces memory usage for transactions which read many entries with
+     * the {@link LockMode#REPEATABLE_READ REPEATABLE_READ} lock mode, but other transactions
+     * cannot modify the index until the escalated lock is released. Escalation is only
+     * attempted when it doesn't need to wait. Default is zero, which disables escalation.
+     *
+     * <p>Only shared key locks are counted and escalated, and so escalation applies to the
+     * {@code REPEATABLE_READ} lock mode only. Upgradable and exclusive key locks are never
+     * escalated, including those acquired by the default {@link LockMode#UPGRADABLE_READ
+     * UPGRADABLE_READ} lock mode and by writes. Transactions which modify many entries
+     * still hold one lock per entry.
+     *
+     * @see Cursor#lockRange
+     */
+    public DatabaseConfig lockEscalationThreshold(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative threshold: " + count);
+        }
+        mLockEscalationThreshold = count;
+        return this;
+    }
+
+    /**
+     * Set the delay after which a waiting lock request checks for a deadlock. Normally,
+     * deadlocks are only detected when a lock request times out, and so the transactions
+     * involved hold their locks for the full timeout. When a deadlock is detected early, the
+     * transaction which holds the fewest locks is chosen as the victim, and its lock request
+     * fails with a {@link DeadlockException}. Default is negative, which disables early
+     * detection.
+     *
+     * @param unit required unit if delay is more than zero
+     */
+    public DatabaseConfig deadlockDetectionDelay(long delay, TimeUnit unit) {
+        mDeadlockDetectionDelayNanos = toNanos(delay, unit);
+        return this;
+    }
+
     /**
      * Set the rate at which {@link Database#checkpoint checkpoints} are
      * automatically performed. Default rate is 1 second. Pass a negative value
@@ -293,6 +381,74 @@ public class DatabaseConfig implements Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Specify the number of threads which write dirty nodes when a {@link Database#checkpoint
+     * checkpoint} is performed. Default is 1, which writes nodes in the order that they were
+     * dirtied. With more than one thread, nodes are written in page order, improving
+     * throughput for storage devices which support many concurrent writes. If a negative
+     * number is provided, the actual number applied is {@code (-num * availableProcessors)}.
+     */
+    public DatabaseConfig checkpointFlushThreads(int num) {
+        mCheckpointFlushThreads = num;
+        return this;
+    }
+
+    /**
+     * Specify the number of dirty nodes which are claimed at a time by each checkpoint flush
+     * thread. Default is 64. Nodes within a batch which have consecutive page ids are written
+     * together, up to 32 pages at a time. Larger batches produce longer runs of sequential
+     * writes, but the work might be spread less evenly among the threads. This option has no
+     * effect unless more than one {@link #checkpointFlushThreads flush thread} is used.
+     */
+    public DatabaseConfig checkpointFlushBatchSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + size);
+        }
+        mCheckpointFlushBatchSize = size;
+        return this;
+    }
+
+    /**
+     * Specify the number of stripes used for encoding transactional redo log operations.
+     * Default is 0, in which case all operations are encoded into a single buffer, while
+     * holding a lock which all writing transactions contend for. With stripes, transactions
+     * encode their operations concurrently, and the operations are sequenced into the redo log
+     * when the transaction commits or rolls back. If a negative number is provided, the
+     * actual number applied is {@code (-num * availableProcessors)}. Option has no effect
+     * when replication is enabled.
+     */
+    public DatabaseConfig redoStripes(int num) {
+        mRedoStripes = num;
+        return this;
+    }
+
+    /**
+     * Specify the number of threads which apply redo log operations when the database is
+     * recovering. Default is 1, which applies all operations in order. With more than one
+     * thread, operations against independent transactions and keys are applied concurrently.
+     * If a negative number is provided, the actual number applied is {@code (-num *
+     * availableProcessors)}. Option has no effect when replication is enabled; see {@link
+     * #maxReplicaThreads maxReplicaThreads}.
+     */
+    public DatabaseConfig recoveryThreads(int num) {
+        mRecoveryThreads = num;
+        return this;
+    }
+
+    /**
+     * Set the amount of time to wait for additional {@link DurabilityMode#SYNC sync} commits
+     * to join a group commit, before the redo log is synced on their behalf. Default is zero,
+     * in which case only the commits which arrive while a sync is already in progress are
+     * grouped together. A small delay can improve throughput when many threads are
+     * committing concurrently, at the expense of commit latency.
+     *
+     * @param unit required unit if delay is more than zero
+     */
+    public DatabaseConfig groupCommitDelay(long delay, TimeUnit unit) {
+        mGroupCommitDelayNanos = toNanos(delay, unit);
+        return this;
+    }
+
     /**
      * Set a listener which receives notifications of actions being performed
      * by the database.
@@ -357,6 +513,31 @@ public class DatabaseConfig implements Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Set true to store leaf node keys without the prefix which is shared by all keys in the
+     * node. This can significantly increase the number of entries per node when keys have
+     * long common prefixes, at the cost of slightly more work when nodes split and merge.
+     * Nodes which store key prefixes remain readable when the option is disabled, and the
+     * option can be changed when the database is opened again. Default is false.
+     */
+    public DatabaseConfig keyPrefixCompression(boolean enabled) {
+        mKeyPrefixCompression = enabled;
+        return this;
+    }
+
+    /**
+     * Set true to support transactions which read from a consistent snapshot without
+     * acquiring any read locks. When enabled, all transactional and auto-commit
+     * modifications retain the prior version of each entry in memory, for as long as an
+     * active snapshot might need it. Default is false.
+     *
+     * @see LockMode#SNAPSHOT
+     */
+    public DatabaseConfig snapshotReads(boolean enabled) {
+        mSnapshotReads = enabled;
+        return this;
+    }
+
     /**
      * Enable replication by providing a {@link ReplicationManager} instance.
      */
@@ -433,6 +614,20 @@ public class DatabaseConfig implements Cloneable, Serializable {
         // lingering cache entries are explicitly removed.
     }
 
+    /**
+     * Returns the actual number of redo stripes to use.
+     */
+    int redoStripes() {
+        int num = mRedoStripes;
+        if (num < 0) {
+            num = -num * Runtime.getRuntime().availableProcessors();
+            if (num <= 0) {
+                num = Integer.MAX_VALUE;
+            }
+        }
+        return num;
+    }
+
     /**
      * Performs configuration check and returns the applicable data files. Null is returned
      * when base file is null or if a custom PageArray should be used.
@@ -534,15 +729,26 @@ public class DatabaseConfig implements Cloneable, Serializable {
         set(props, "minCacheSize", mMinCachedBytes);
         set(props, "maxCacheSize", mMaxCachedBytes);
         set(props, "secondaryCacheSize", mSecondaryCacheSize);
+        set(props, "cacheReplacementPolicy", mCacheReplacementPolicy);
+        set(props, "evictionReserve", mEvictionReserve);
         set(props, "durabilityMode", mDurabilityMode);
         set(props, "lockTimeoutNanos", mLockTimeoutNanos);
+        set(props, "lockEscalationThreshold", mLockEscalationThreshold);
+        set(props, "deadlockDetectionDelayNanos", mDeadlockDetectionDelayNanos);
         set(props, "checkpointRateNanos", mCheckpointRateNanos);
         set(props, "checkpointSizeThreshold", mCheckpointSizeThreshold);
         set(props, "checkpointDelayThresholdNanos", mCheckpointDelayThresholdNanos);
+        set(props, "groupCommitDelayNanos", mGroupCommitDelayNanos);
+        set(props, "checkpointFlushThreads", mCheckpointFlushThreads);
+        set(props, "checkpointFlushBatchSize", mCheckpointFlushBatchSize);
+        set(props, "redoStripes", mRedoStripes);
+        set(props, "recoveryThreads", mRecoveryThreads);
         set(props, "syncWrites", mFileSync);
         set(props, "pageSize", mPageSize);
         set(props, "directPageAccess", mDirectPageAccess);
         set(props, "cachePriming", mCachePriming);
+        set(props, "keyPrefixCompression", mKeyPrefixCompression);
+        set(props, "snapshotReads", mSnapshotReads);
 
         w.write('#');
         w.write(Database.class.getName());
@@ -16,7 +16,9 @@
 
 package org.cojen.tupl;
 
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -85,6 +87,79 @@ final class DeadlockDetector {
         return new DeadlockSet(infoSet);
     }
 
+    /**
+     * Searches for a deadlock cycle which passes through the original locker, and chooses
+     * the locker within it which holds the fewest locks. Ties favor the original locker.
+     * Unlike a full scan, the search stops at the first cycle found.
+     *
+     * @return victim, or null if no cycle passes through the original locker
+     */
+    Locker findVictim() {
+        List<LockOwner> path = new ArrayList<>();
+        if (!findCycle(mOrigin, path)) {
+            return null;
+        }
+
+        Locker victim = null;
+        int victimCost = Integer.MAX_VALUE;
+        for (LockOwner owner : path) {
+            if (owner instanceof Locker) {
+                Locker locker = (Locker) owner;
+                int cost = locker.estimateLockCount();
+                if (victim == null || cost < victimCost) {
+                    victim = locker;
+                    victimCost = cost;
+                }
+            }
+        }
+
+        return victim;
+    }
+
+    /**
+     * @param path lockers visited so far, which is extended with the cycle if found
+     * @return true if a cycle back to the original locker was found
+     */
+    private boolean findCycle(LockOwner locker, List<LockOwner> path) {
+        if (locker == mOrigin && !path.isEmpty()) {
+            return true;
+        }
+
+        // Lockers already visited cannot reach the original locker.
+        Lock lock;
+        if (!mLockers.add(locker) || (lock = locker.mWaitingFor) == null) {
+            return false;
+        }
+
+        path.add(locker);
+
+        // If the owner is the locker, then it is trying to upgrade. It's waiting for
+        // another locker to release the shared lock.
+        LockOwner owner = lock.mOwner;
+        if (owner != null && owner != locker && findCycle(owner, path)) {
+            return true;
+        }
+
+        Object shared = lock.mSharedLockOwnersObj;
+        if (shared instanceof LockOwner) {
+            if (shared != locker && findCycle((LockOwner) shared, path)) {
+                return true;
+            }
+        } else if (shared instanceof Lock.LockOwnerHTEntry[]) {
+            Lock.LockOwnerHTEntry[] entries = (Lock.LockOwnerHTEntry[]) shared;
+            for (int i=entries.length; --i>=0; ) {
+                for (Lock.LockOwnerHTEntry e = entries[i]; e != null; e = e.mNext) {
+                    if (e.mOwner != locker && findCycle(e.mOwner, path)) {
+                        return true;
+                    }
+                }
+            }
+        }
+
+        path.remove(path.size() - 1);
+        return false;
+    }
+
     /**
      * @return true if deadlock was found
      */
@@ -701,16 +701,64 @@ final class DirectPageOps {
         }
     }
 
+    /**
+     * Returns the number of leading bytes which match between a page key and an array key,
+     * comparing 8 bytes at a time when possible.
+     *
+     * @param len maximum number of bytes to compare
+     * @return index of the first mismatched byte, or len if all bytes match
+     */
+    static int p_mismatch(final long apage, int aoff, byte[] b, int boff, int len) {
+        if (CHECK_BOUNDS && len > 0 && (boff < 0 || boff + len > b.length)) {
+            throw new ArrayIndexOutOfBoundsException(boff);
+        }
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            long av = p_longGetBE(apage, aoff + i);
+            long bv = Long.reverseBytes(UNSAFE.getLong(b, BYTE_ARRAY_OFFSET + boff + i));
+            if (av != bv) {
+                return i + (Long.numberOfLeadingZeros(av ^ bv) >> 3);
+            }
+        }
+        for (; i < len; i++) {
+            if (p_byteGet(apage, aoff + i) != b[boff + i]) {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Returns the number of leading bytes which match between two page keys, comparing 8
+     * bytes at a time when possible.
+     *
+     * @param len maximum number of bytes to compare
+     * @return index of the first mismatched byte, or len if all bytes match
+     */
+    static int p_mismatch(final long apage, int aoff, final long bpage, int boff, int len) {
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            long av = p_longGetBE(apage, aoff + i);
+            long bv = p_longGetBE(bpage, boff + i);
+            if (av != bv) {
+                return i + (Long.numberOfLeadingZeros(av ^ bv) >> 3);
+            }
+        }
+        for (; i < len; i++) {
+            if (p_byteGet(apage, aoff + i) != p_byteGet(bpage, boff + i)) {
+                break;
+            }
+        }
+        return i;
+    }
+
     static int p_compareKeysPageToArray(final long apage, int aoff, int alen,
                                         byte[] b, int boff, int blen)
     {
         int minLen = Math.min(alen, blen);
-        for (int i=0; i<minLen; i++) {
-            byte ab = p_byteGet(apage, aoff++);
-            byte bb = b[boff + i];
-            if (ab != bb) {
-                return (ab & 0xff) - (bb & 0xff);
-            }
+        int i = p_mismatch(apage, aoff, b, boff, minLen);
+        if (i < minLen) {
+            return p_ubyteGet(apage, aoff + i) - (b[boff + i] & 0xff);
         }
         return alen - blen;
     }
@@ -719,12 +767,9 @@ final class DirectPageOps {
                                        final long bpage, int boff, int blen)
     {
         int minLen = Math.min(alen, blen);
-        for (int i=0; i<minLen; i++) {
-            byte ab = p_byteGet(apage, aoff++);
-            byte bb = p_byteGet(bpage, boff++);
-            if (ab != bb) {
-                return (ab & 0xff) - (bb & 0xff);
-            }
+        int i = p_mismatch(apage, aoff, bpage, boff, minLen);
+        if (i < minLen) {
+            return p_ubyteGet(apage, aoff + i) - p_ubyteGet(bpage, boff + i);
         }
         return alen - blen;
     }
@@ -400,6 +400,12 @@ final class DurablePageDb extends PageDb {
         mPageArray.writePage(id, page, 0);
     }
 
+    @Override
+    public void writePages(long id, /*P*/ byte[] pages, int count) throws IOException {
+        checkId(id);
+        mPageArray.writePages(id, pages, 0, count);
+    }
+
     @Override
     public /*P*/ byte[] evictPage(long id, /*P*/ byte[] page) throws IOException {
         checkId(id);
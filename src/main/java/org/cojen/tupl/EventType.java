@@ -70,6 +70,9 @@ public enum EventType {
     /** Signals the end of a checkpoint, reporting the duration. */
     CHECKPOINT_COMPLETE(Category.CHECKPOINT, Level.INFO),
 
+    /** Signals that the background evictor failed to write a dirty node. */
+    EVICTION_FAILED(Category.EVICTION, Level.WARNING),
+
     /** Signals that an unhandled exception has occurred, and the database must be shutdown. */
     PANIC_UNHANDLED_EXCEPTION(Category.PANIC, Level.SEVERE);
 
@@ -102,6 +105,9 @@ public enum EventType {
         /** Checkpoints commit transactional and non-transactional changes to the main database. */
         CHECKPOINT,
 
+        /** Background eviction writes dirty cached nodes before they're needed. */
+        EVICTION,
+
         /** A panic indicates that something is wrong with the database and it must be shutdown. */
         PANIC;
     }
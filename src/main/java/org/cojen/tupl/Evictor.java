@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.lang.ref.WeakReference;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background task which writes out dirty nodes which are close to being evicted. Nodes can
+ * then be recycled by allocating threads without first having to wait for a write.
+ *
+ * @author Brian S O'Neill
+ * @see DatabaseConfig#evictionReserve
+ */
+/*P*/
+final class Evictor implements Runnable {
+    // Maximum time to wait between passes, unless signaled sooner.
+    private static final long MAX_WAIT_NANOS = 100_000_000L;
+
+    private final WeakReference<LocalDatabase> mDatabaseRef;
+    private final int mReserve;
+    private volatile Thread mThread;
+    private volatile boolean mSignaled;
+    private volatile boolean mClosed;
+
+    /**
+     * @param reserve desired amount of free or clean nodes in each usage list
+     */
+    Evictor(LocalDatabase db, int reserve) {
+        mDatabaseRef = new WeakReference<>(db);
+        mReserve = reserve;
+    }
+
+    void start() {
+        Thread t = new Thread(this);
+        t.setDaemon(true);
+        t.setName("Evictor-" + Long.toUnsignedString(t.getId()));
+        mThread = t;
+        t.start();
+    }
+
+    /**
+     * Called by allocating threads when a dirty node had to be evicted, which indicates that
+     * the reserve has been exhausted.
+     */
+    void signal() {
+        if (!mSignaled) {
+            mSignaled = true;
+            Thread t = mThread;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!mClosed) {
+            if (!mSignaled) {
+                LockSupport.parkNanos(this, MAX_WAIT_NANOS);
+            }
+            mSignaled = false;
+
+            LocalDatabase db = mDatabaseRef.get();
+            if (db == null || db.mClosed) {
+                return;
+            }
+
+            try {
+                db.cleanUsageLists(mReserve);
+            } catch (Throwable e) {
+                if (mClosed || db.mClosed) {
+                    return;
+                }
+                EventListener listener = db.eventListener();
+                if (listener != null) {
+                    listener.notify(EventType.EVICTION_FAILED, "Eviction failed: %1$s", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return thread to join
+     */
+    Thread close() {
+        mClosed = true;
+        Thread t = mThread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+        return t;
+    }
+}
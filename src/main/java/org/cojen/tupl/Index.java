@@ -256,6 +256,138 @@ public interface Index extends View, Closeable {
         }
     }
 
+    /**
+     * Changes the cache priority of this index, which influences which of its nodes are
+     * chosen for eviction when the cache is full. The priority applies to all nodes which are
+     * currently cached, and to nodes which are subsequently loaded. It isn't persisted, and
+     * so it must be set again when the database is re-opened.
+     *
+     * @throws IllegalArgumentException if priority is null
+     * @throws ClosedIndexException if this index reference is closed
+     * @throws UnsupportedOperationException if priority isn't {@link CachePriority#NORMAL
+     * NORMAL} and cache priorities aren't supported by the index implementation
+     */
+    public default void cachePriority(CachePriority priority) throws IOException {
+        if (priority == null) {
+            throw new IllegalArgumentException("Cache priority is null");
+        }
+        if (priority != CachePriority.NORMAL) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Returns the current cache priority of this index, which is {@link CachePriority#NORMAL
+     * NORMAL} by default.
+     */
+    public default CachePriority cachePriority() {
+        return CachePriority.NORMAL;
+    }
+
+    /**
+     * Changes how the values of this index are compressed. Compression applies to values
+     * which are subsequently stored, and existing values are unaffected. Values are always
+     * decompressed when loaded, even after compression is disabled. The setting is
+     * persisted, and so it remains in effect when the database is re-opened.
+     *
+     * @param compression compression to apply, or null to disable
+     * @throws ClosedIndexException if this index reference is closed
+     * @throws UnsupportedOperationException if compression is non-null and value
+     * compression isn't supported by the index implementation
+     */
+    public default void valueCompression(ValueCompression compression) throws IOException {
+        if (compression != null) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Returns the current value compression of this index, or null if disabled, which is
+     * the default.
+     */
+    public default ValueCompression valueCompression() {
+        return null;
+    }
+
+    /**
+     * Counts the nodes of this index which are currently in the cache. The counts are exact
+     * only if the index isn't being concurrently modified or evicted.
+     *
+     * @throws ClosedIndexException if this index reference is closed
+     * @throws UnsupportedOperationException if not supported by the index implementation
+     */
+    public default CacheStats cacheStats() throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Collection of stats from the {@link Index#cacheStats cacheStats} method.
+     */
+    public static class CacheStats implements Cloneable, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public long internalPages;
+        public long leafPages;
+
+        public CacheStats(long internalPages, long leafPages) {
+            this.internalPages = internalPages;
+            this.leafPages = leafPages;
+        }
+
+        /**
+         * Returns the amount of internal node pages which are cached.
+         */
+        public long internalPages() {
+            return internalPages;
+        }
+
+        /**
+         * Returns the amount of leaf node pages which are cached.
+         */
+        public long leafPages() {
+            return leafPages;
+        }
+
+        /**
+         * Returns the total amount of node pages which are cached.
+         */
+        public long totalPages() {
+            return internalPages + leafPages;
+        }
+
+        @Override
+        public CacheStats clone() {
+            try {
+                return (CacheStats) super.clone();
+            } catch (CloneNotSupportedException e) {
+                throw Utils.rethrow(e);
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) Utils.scramble(internalPages * 31 + leafPages);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj != null && obj.getClass() == CacheStats.class) {
+                CacheStats other = (CacheStats) obj;
+                return internalPages == other.internalPages && leafPages == other.leafPages;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "Index.CacheStats {internalPages=" + internalPages +
+                ", leafPages=" + leafPages + '}';
+        }
+    }
+
     /**
      * Verifies the integrity of the index.
      *
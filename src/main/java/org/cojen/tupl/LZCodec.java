@@ -0,0 +1,439 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static org.cojen.tupl.Utils.*;
+
+/**
+ * Pure-Java LZ77 codec, with a block format much like LZ4. Compressed data consists of a
+ * series of sequences, each of which starts with a token byte. The high 4 bits of the token
+ * define the literal length, and the low 4 bits define the match length, minus the minimum
+ * match length of 4. When either length is 15, additional length bytes follow, each of which
+ * is added to the length until a byte other than 255 is encountered.
+ *
+ * <pre>
+ * +-------+------------------+----------+--------+----------------+
+ * | token | extra lit length | literals | offset | extra mlength  |
+ * +-------+------------------+----------+--------+----------------+
+ * </pre>
+ *
+ * The offset is 2 bytes, little-endian, and the last sequence consists only of literals.
+ *
+ * <p>A dictionary acts as history which precedes the data, and so matches can refer to
+ * it. Only the last 65535 bytes of a dictionary can be referenced.
+ *
+ * @author Brian S O'Neill
+ */
+final class LZCodec {
+    static final int MAX_OFFSET = 65535;
+
+    private static final int MIN_MATCH = 4;
+
+    // Last 5 bytes are always literals, and the last match must start at least 12 bytes
+    // before the end. This allows the match search to read ahead without bounds checks.
+    private static final int LAST_LITERALS = 5, MF_LIMIT = 12;
+
+    private static final int MAX_HASH_LOG = 12, MIN_HASH_LOG = 8;
+
+    /**
+     * Returns the maximum length of compressed data.
+     */
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * @param dict optional dictionary
+     * @param dst destination with at least maxCompressedLength bytes available
+     * @return length of compressed data written to the destination
+     */
+    static int compress(byte[] dict, byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        final byte[] buf;
+        final int base, start;
+
+        if (dict == null || dict.length == 0) {
+            buf = src;
+            base = srcOff;
+            start = srcOff;
+        } else {
+            int dictLen = Math.min(dict.length, MAX_OFFSET);
+            buf = new byte[dictLen + srcLen];
+            System.arraycopy(dict, dict.length - dictLen, buf, 0, dictLen);
+            System.arraycopy(src, srcOff, buf, dictLen, srcLen);
+            base = 0;
+            start = dictLen;
+        }
+
+        final int end = start + srcLen;
+
+        int hashLog = 32 - Integer.numberOfLeadingZeros(end - base);
+        hashLog = Math.max(MIN_HASH_LOG, Math.min(MAX_HASH_LOG, hashLog));
+        final int hashShift = 32 - hashLog;
+        final int[] table = new int[1 << hashLog];
+
+        // Prime the table with the dictionary.
+        for (int i = base; i + MIN_MATCH <= start; i++) {
+            table[hash4(buf, i, hashShift)] = i;
+        }
+
+        final int mfLimit = end - MF_LIMIT;
+        final int matchLimit = end - LAST_LITERALS;
+
+        int anchor = start;
+        int pos = start;
+        int dp = dstOff;
+
+        while (pos < mfLimit) {
+            int h = hash4(buf, pos, hashShift);
+            int ref = table[h];
+            table[h] = pos;
+
+            if (ref < base || ref >= pos || pos - ref > MAX_OFFSET
+                || decodeIntLE(buf, ref) != decodeIntLE(buf, pos))
+            {
+                // Skip ahead faster when nothing is found.
+                pos += 1 + ((pos - anchor) >> 6);
+                continue;
+            }
+
+            // Extend the match backwards.
+            while (pos > anchor && ref > base && buf[pos - 1] == buf[ref - 1]) {
+                pos--;
+                ref--;
+            }
+
+            int len = MIN_MATCH;
+            while (pos + len < matchLimit && buf[ref + len] == buf[pos + len]) {
+                len++;
+            }
+
+            dp = encodeSequence(buf, anchor, pos - anchor, pos - ref, len, dst, dp);
+
+            pos += len;
+            anchor = pos;
+
+            if (pos < mfLimit) {
+                table[hash4(buf, pos - 2, hashShift)] = pos - 2;
+            }
+        }
+
+        // Encode the last literals.
+
+        int litLen = end - anchor;
+        if (litLen >= 15) {
+            dst[dp++] = (byte) 0xf0;
+            dp = encodeLength(dst, dp, litLen - 15);
+        } else {
+            dst[dp++] = (byte) (litLen << 4);
+        }
+        System.arraycopy(buf, anchor, dst, dp, litLen);
+
+        return dp + litLen - dstOff;
+    }
+
+    /**
+     * @return updated dp
+     */
+    private static int encodeSequence(byte[] buf, int litOff, int litLen, int offset, int len,
+                                      byte[] dst, int dp)
+    {
+        int tokenPos = dp++;
+        int token;
+
+        if (litLen >= 15) {
+            token = 0xf0;
+            dp = encodeLength(dst, dp, litLen - 15);
+        } else {
+            token = litLen << 4;
+        }
+
+        System.arraycopy(buf, litOff, dst, dp, litLen);
+        dp += litLen;
+
+        dst[dp++] = (byte) offset;
+        dst[dp++] = (byte) (offset >> 8);
+
+        len -= MIN_MATCH;
+        if (len >= 15) {
+            token |= 0x0f;
+            dp = encodeLength(dst, dp, len - 15);
+        } else {
+            token |= len;
+        }
+
+        dst[tokenPos] = (byte) token;
+        return dp;
+    }
+
+    /**
+     * @return updated dp
+     */
+    private static int encodeLength(byte[] dst, int dp, int len) {
+        while (len >= 255) {
+            dst[dp++] = (byte) 255;
+            len -= 255;
+        }
+        dst[dp++] = (byte) len;
+        return dp;
+    }
+
+    /**
+     * @param dict dictionary which was used for compression, or null if none
+     * @param dst destination for exactly dstLen decompressed bytes
+     * @throws CorruptDatabaseException if compressed data is malformed
+     */
+    static void decompress(byte[] dict, byte[] src, int srcOff, int srcLen,
+                           byte[] dst, int dstOff, int dstLen)
+        throws CorruptDatabaseException
+    {
+        final int dictLen = dict == null ? 0 : Math.min(dict.length, MAX_OFFSET);
+        final int srcEnd = srcOff + srcLen;
+        final int dstEnd = dstOff + dstLen;
+
+        int sp = srcOff;
+        int dp = dstOff;
+
+        try {
+            while (true) {
+                int token = src[sp++] & 0xff;
+
+                int litLen = token >>> 4;
+                if (litLen == 15) {
+                    int b;
+                    do {
+                        litLen += (b = src[sp++] & 0xff);
+                    } while (b == 255);
+                }
+
+                if (litLen > srcEnd - sp || litLen > dstEnd - dp) {
+                    throw corrupt();
+                }
+
+                System.arraycopy(src, sp, dst, dp, litLen);
+                sp += litLen;
+                dp += litLen;
+
+                if (sp >= srcEnd) {
+                    if (dp != dstEnd) {
+                        throw corrupt();
+                    }
+                    return;
+                }
+
+                int offset = (src[sp++] & 0xff) | ((src[sp++] & 0xff) << 8);
+
+                int len = token & 0x0f;
+                if (len == 15) {
+                    int b;
+                    do {
+                        len += (b = src[sp++] & 0xff);
+                    } while (b == 255);
+                }
+                len += MIN_MATCH;
+
+                if (offset == 0 || len > dstEnd - dp) {
+                    throw corrupt();
+                }
+
+                int ref = dp - offset;
+
+                if (ref < dstOff) {
+                    // Copy from the dictionary first.
+                    int back = dstOff - ref;
+                    if (back > dictLen) {
+                        throw corrupt();
+                    }
+                    int amt = Math.min(back, len);
+                    System.arraycopy(dict, dict.length - back, dst, dp, amt);
+                    dp += amt;
+                    len -= amt;
+                    ref = dstOff;
+                }
+
+                if (dp - ref >= len) {
+                    System.arraycopy(dst, ref, dst, dp, len);
+                    dp += len;
+                } else {
+                    // Overlapping copy, which repeats the preceding bytes.
+                    while (--len >= 0) {
+                        dst[dp++] = dst[ref++];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw corrupt();
+        }
+    }
+
+    /**
+     * Trains a dictionary by selecting segments of the samples which contain the most
+     * common substrings. The segments which are expected to be the most useful are placed
+     * at the end of the dictionary.
+     *
+     * @param maxSize maximum dictionary size, which is limited to 65535
+     * @return dictionary, which is empty if no common substrings were found
+     */
+    static byte[] trainDictionary(byte[][] samples, int maxSize) {
+        maxSize = Math.min(maxSize, MAX_OFFSET);
+
+        // Substring length for counting.
+        final int k = 8;
+
+        final int tableLog = 20;
+        final int tableShift = 64 - tableLog;
+
+        // Count the number of samples each substring appears in. Collisions are tolerated,
+        // since this only skews the scores.
+        final int[] counts = new int[1 << tableLog];
+        final int[] marks = new int[1 << tableLog];
+
+        long totalLen = 0;
+        for (int s=0; s<samples.length; s++) {
+            byte[] sample = samples[s];
+            totalLen += sample.length;
+            for (int i = 0; i + k <= sample.length; i++) {
+                int h = hash8(sample, i, tableShift);
+                if (marks[h] != s + 1) {
+                    marks[h] = s + 1;
+                    counts[h]++;
+                }
+            }
+        }
+
+        if (totalLen == 0 || maxSize <= 0) {
+            return EMPTY_BYTES;
+        }
+
+        // Segment length is a fraction of the average sample length, within bounds.
+        int segLen = (int) (totalLen / samples.length / 8);
+        segLen = Math.max(16, Math.min(256, segLen));
+
+        final PriorityQueue<Segment> queue = new PriorityQueue<>();
+        int mark = samples.length;
+
+        for (int s=0; s<samples.length; s++) {
+            byte[] sample = samples[s];
+            for (int off = 0; off + k <= sample.length; off += segLen >> 1) {
+                Segment seg = new Segment(s, off, Math.min(segLen, sample.length - off));
+                seg.mScore = score(samples, seg, counts, marks, ++mark, tableShift);
+                if (seg.mScore > 0) {
+                    queue.add(seg);
+                }
+            }
+        }
+
+        List<Segment> selected = new ArrayList<>();
+        int size = 0;
+
+        while (size < maxSize) {
+            Segment seg = queue.poll();
+            if (seg == null) {
+                break;
+            }
+
+            // Scores only decrease as substrings are consumed, so a stale score is an upper
+            // bound. Select the segment if its current score is still the best.
+            long score = score(samples, seg, counts, marks, ++mark, tableShift);
+            if (score <= 0) {
+                continue;
+            }
+            Segment next = queue.peek();
+            if (next != null && score < next.mScore) {
+                seg.mScore = score;
+                queue.add(seg);
+                continue;
+            }
+
+            seg.mLength = Math.min(seg.mLength, maxSize - size);
+            selected.add(seg);
+            size += seg.mLength;
+
+            // Consume the substrings, to favor segments which contain different ones.
+            byte[] sample = samples[seg.mSample];
+            for (int i = seg.mOffset; i + k <= seg.mOffset + seg.mLength; i++) {
+                counts[hash8(sample, i, tableShift)] = 0;
+            }
+        }
+
+        byte[] dict = new byte[size];
+        int pos = size;
+        for (Segment seg : selected) {
+            pos -= seg.mLength;
+            System.arraycopy(samples[seg.mSample], seg.mOffset, dict, pos, seg.mLength);
+        }
+
+        return dict;
+    }
+
+    /**
+     * Sum of the sample counts of the distinct substrings in a segment, ignoring those which
+     * are found in only one sample.
+     */
+    private static long score(byte[][] samples, Segment seg,
+                              int[] counts, int[] marks, int mark, int tableShift)
+    {
+        byte[] sample = samples[seg.mSample];
+        int end = seg.mOffset + seg.mLength;
+        long score = 0;
+        for (int i = seg.mOffset; i + 8 <= end; i++) {
+            int h = hash8(sample, i, tableShift);
+            if (marks[h] != mark) {
+                marks[h] = mark;
+                int count = counts[h];
+                if (count > 1) {
+                    score += count;
+                }
+            }
+        }
+        return score;
+    }
+
+    private static final class Segment implements Comparable<Segment> {
+        final int mSample;
+        final int mOffset;
+        int mLength;
+        long mScore;
+
+        Segment(int sample, int offset, int length) {
+            mSample = sample;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override
+        public int compareTo(Segment other) {
+            // Highest score first.
+            return Long.compare(other.mScore, mScore);
+        }
+    }
+
+    private static int hash4(byte[] b, int off, int shift) {
+        return (decodeIntLE(b, off) * 0x9e3779b1) >>> shift;
+    }
+
+    private static int hash8(byte[] b, int off, int shift) {
+        return (int) ((decodeLongLE(b, off) * 0x9e3779b97f4a7c15L) >>> shift);
+    }
+
+    private static CorruptDatabaseException corrupt() {
+        return new CorruptDatabaseException("Malformed compressed value");
+    }
+}
@@ -47,10 +47,12 @@ import java.util.Map;
 import java.util.Set;
 
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -174,6 +176,8 @@ final class LocalDatabase extends AbstractDatabase {
     static final byte KEY_TYPE_TREE_ID_MASK = 2; // full key for random tree id mask
     static final byte KEY_TYPE_NEXT_TREE_ID = 3; // full key for tree id sequence
     static final byte KEY_TYPE_TRASH_ID     = 4; // prefix for id to name mapping of trash
+    static final byte KEY_TYPE_COMPRESSION  = 5; // prefix for id to value compression mapping
+    static final byte KEY_TYPE_DICTIONARY   = 6; // prefix for compression dictionaries
 
     // Various mappings, defined by KEY_TYPE_ fields.
     private final Tree mRegistryKeyMap;
@@ -187,14 +191,34 @@ final class LocalDatabase extends AbstractDatabase {
 
     private final NodeDirtyList mDirtyList;
 
-    // Map of all loaded nodes.
-    private final Node[] mNodeMapTable;
+    // Map of all loaded nodes, partitioned by latch. Each partition has its own hash table,
+    // which is resized independently of the others. The low hash bits select the partition,
+    // and the bits above the shift select the table slot.
+    private final Node[][] mNodeMapTables;
     private final Latch[] mNodeMapLatches;
+    private final int mNodeMapShift;
+
+    // Guards changes to the cache size.
+    private final ReentrantLock mCacheSizeLock = new ReentrantLock();
+
+    // Value compression dictionaries, indexed by id, and loaded on demand. Id 0 is unused.
+    private volatile byte[][] mDictionaries = new byte[1][];
+    private final ReentrantLock mDictionaryLock = new ReentrantLock();
+
+    // Total size of values before and after compression.
+    private final LongAdder mCompressionInput = new LongAdder();
+    private final LongAdder mCompressionOutput = new LongAdder();
 
     final int mMaxKeySize;
     final int mMaxEntrySize;
     final int mMaxFragmentedEntrySize;
 
+    // Maximum key prefix length which leaf nodes can elide, or 0 if disabled.
+    final int mMaxKeyPrefix;
+
+    // Retains prior versions for snapshot reads, or null if disabled.
+    final VersionStore mVersions;
+
     // Fragmented values which are transactionally deleted go here.
     private volatile FragmentedTrash mFragmentedTrash;
 
@@ -212,6 +236,8 @@ final class LocalDatabase extends AbstractDatabase {
 
     private volatile Checkpointer mCheckpointer;
 
+    private volatile Evictor mEvictor;
+
     final TempFileManager mTempFileManager;
 
     /*P*/ // [|
@@ -325,21 +351,22 @@ final class LocalDatabase extends AbstractDatabase {
 
         mDurabilityMode = config.mDurabilityMode;
         mDefaultLockTimeoutNanos = config.mLockTimeoutNanos;
-        mLockManager = new LockManager(this, config.mLockUpgradeRule, mDefaultLockTimeoutNanos);
+        mLockManager = new LockManager(this, config.mLockUpgradeRule, mDefaultLockTimeoutNanos,
+                                       config.mLockEscalationThreshold,
+                                       config.mDeadlockDetectionDelayNanos);
 
         // Initialize NodeMap, the primary cache of Nodes.
         final int procCount = Runtime.getRuntime().availableProcessors();
         {
             int latches = Utils.roundUpPower2(procCount * 16);
-            int capacity = Utils.roundUpPower2(maxCache);
-            if (capacity < 0) {
-                capacity = 0x40000000;
-            }
-            mNodeMapTable = new Node[capacity];
+            int capacity = nodeMapPartitionCapacity(maxCache, latches);
+            mNodeMapTables = new Node[latches][];
             mNodeMapLatches = new Latch[latches];
             for (int i=0; i<latches; i++) {
+                mNodeMapTables[i] = new Node[capacity];
                 mNodeMapLatches[i] = new Latch();
             }
+            mNodeMapShift = Integer.numberOfTrailingZeros(latches);
         }
 
         if (mBaseFile != null && !config.mReadOnly && config.mMkdirs) {
@@ -513,6 +540,9 @@ final class LocalDatabase extends AbstractDatabase {
 
                 int rem = maxCache % stripes;
 
+                boolean segmented =
+                    config.mCacheReplacementPolicy == CacheReplacementPolicy.SEGMENTED_LRU;
+
                 usageLists = new NodeUsageList[stripes];
 
                 for (int i=0; i<stripes; i++) {
@@ -521,7 +551,7 @@ final class LocalDatabase extends AbstractDatabase {
                         size++;
                         rem--;
                     }
-                    usageLists[i] = new NodeUsageList(this, usedRate, size);
+                    usageLists[i] = new NodeUsageList(this, usedRate, size, segmented);
                 }
 
                 stripeSize = minCache / stripes;
@@ -553,10 +583,17 @@ final class LocalDatabase extends AbstractDatabase {
                                       duration, TimeUnit.SECONDS);
             }
 
-            mTxnContexts = new TransactionContext[procCount * 4];
-            for (int i=0; i<mTxnContexts.length; i++) {
-                mTxnContexts[i] = new TransactionContext(procCount);
-            };
+            {
+                // Stride must match the number of contexts, or else vended transaction
+                // identifiers can collide.
+                int txnContextCount = procCount * 4;
+                mTxnContexts = new TransactionContext[txnContextCount];
+                for (int i=0; i<txnContextCount; i++) {
+                    mTxnContexts[i] = new TransactionContext(txnContextCount);
+                }
+            }
+
+            mVersions = config.mSnapshotReads ? new VersionStore(this) : null;
 
             mSparePagePool = new PagePool(mPageSize, procCount);
 
@@ -603,7 +640,14 @@ final class LocalDatabase extends AbstractDatabase {
                 mRegistryKeyMap = openInternalTree(Tree.REGISTRY_KEY_MAP_ID, true, config);
             }
 
-            mDirtyList = new NodeDirtyList();
+            int flushThreads = config.mCheckpointFlushThreads;
+            if (flushThreads < 0) {
+                flushThreads = -flushThreads * procCount;
+                if (flushThreads <= 0) {
+                    flushThreads = Integer.MAX_VALUE;
+                }
+            }
+            mDirtyList = new NodeDirtyList(flushThreads, config.mCheckpointFlushBatchSize);
 
             if (openMode != OPEN_TEMP) {
                 Tree tree = openInternalTree(Tree.FRAGMENTED_TRASH_ID, false, config);
@@ -629,6 +673,10 @@ final class LocalDatabase extends AbstractDatabase {
             // requires 2 bytes for pointer and up to 3 bytes for value length field.
             mMaxFragmentedEntrySize = (pageSize - Node.TN_HEADER_SIZE - (2 + 3 + 2 + 3)) >> 1;
 
+            // Limit key prefix such that it doesn't take much space from leaf nodes.
+            mMaxKeyPrefix = config.mKeyPrefixCompression
+                ? Math.min(Node.MAX_KEY_PREFIX, pageSize >> 4) : 0;
+
             mFragmentInodeLevelCaps = calculateInodeLevelCaps(mPageSize);
 
             long recoveryStart = 0;
@@ -686,18 +734,52 @@ final class LocalDatabase extends AbstractDatabase {
                         RedoLog.deleteOldFile(config.mBaseFile, logId - i);
                     }
 
-                    RedoLogApplier applier = new RedoLogApplier(this, txns);
                     RedoLog replayLog = new RedoLog(config, logId, redoPos);
 
-                    // As a side-effect, log id is set one higher than last file scanned.
-                    Set<File> redoFiles = replayLog.replay
-                        (applier, mEventListener, EventType.RECOVERY_APPLY_REDO_LOG,
-                         "Applying redo log: %1$d");
+                    int recoveryThreads = config.mRecoveryThreads;
+                    if (recoveryThreads < 0) {
+                        recoveryThreads = -recoveryThreads * procCount;
+                        if (recoveryThreads <= 0) {
+                            recoveryThreads = Integer.MAX_VALUE;
+                        }
+                    }
+
+                    Set<File> redoFiles;
+
+                    if (recoveryThreads <= 1) {
+                        RedoLogApplier applier = new RedoLogApplier(this, txns);
+
+                        // As a side-effect, log id is set one higher than last file scanned.
+                        redoFiles = replayLog.replay
+                            (applier, mEventListener, EventType.RECOVERY_APPLY_REDO_LOG,
+                             "Applying redo log: %1$d");
+
+                        redoTxnId = applier.mHighestTxnId;
+                    } else {
+                        ParallelRedoLogApplier applier =
+                            new ParallelRedoLogApplier(this, txns, recoveryThreads);
+
+                        try {
+                            redoFiles = replayLog.replay
+                                (applier, mEventListener, EventType.RECOVERY_APPLY_REDO_LOG,
+                                 "Applying redo log: %1$d");
+                        } catch (Throwable e) {
+                            try {
+                                applier.finish();
+                            } catch (Throwable e2) {
+                                e.addSuppressed(e2);
+                            }
+                            throw e;
+                        }
+
+                        applier.finish();
+
+                        redoTxnId = applier.mHighestTxnId;
+                    }
 
                     boolean doCheckpoint = !redoFiles.isEmpty();
 
                     // Avoid re-using transaction ids used by recovery.
-                    redoTxnId = applier.mHighestTxnId;
                     if (redoTxnId != 0) {
                         // Subtract for modulo comparison.
                         if (txnId == 0 || (redoTxnId - txnId) > 0) {
@@ -815,6 +897,15 @@ final class LocalDatabase extends AbstractDatabase {
         }
 
         c.start(initialCheckpoint);
+
+        if (config.mEvictionReserve > 0 && mPageDb.isDurable()) {
+            NodeUsageList[] usageLists = mUsageLists;
+            long reserve = config.mEvictionReserve / (pageSize() * (long) usageLists.length);
+            reserve = Math.max(1, Math.min(reserve, Integer.MAX_VALUE));
+            Evictor e = new Evictor(this, (int) reserve);
+            mEvictor = e;
+            e.start();
+        }
     }
 
     private void applyCachePrimer(DatabaseConfig config) {
@@ -1416,6 +1507,171 @@ final class LocalDatabase extends AbstractDatabase {
         return tree;
     }
 
+    @Override
+    public void bulkLoad(Index index, Cursor source, double fillFactor) throws IOException {
+        // Design note: This is a Database method instead of an Index method because it offers
+        // an extra degree of safety. See notes in renameIndex.
+
+        if (!(fillFactor > 0.0 && fillFactor <= 1.0)) {
+            throw new IllegalArgumentException("Illegal fill factor: " + fillFactor);
+        }
+
+        // Fail fast, although the check is performed again when the roots are swapped.
+        final Tree tree = bulkLoadTarget(index);
+
+        final int reserve = (int) (pageSize() * (1.0 - fillFactor));
+
+        Tree temp = newTemporaryIndex();
+        try {
+            TreeCursor c = temp.newCursor(Transaction.BOGUS);
+            try {
+                c.autoload(false);
+                for (byte[] key; (key = source.key()) != null; source.next()) {
+                    byte[] value = source.value();
+                    if (value == Cursor.NOT_LOADED) {
+                        source.load();
+                        value = source.value();
+                    }
+                    if (value != null) {
+                        c.appendEntry(key, value, reserve);
+                    }
+                }
+            } finally {
+                c.reset();
+            }
+        } catch (Throwable e) {
+            deleteQuietly(e, temp);
+            throw e;
+        }
+
+        bulkLoad(tree, temp);
+    }
+
+    @Override
+    public Sorter newSorter(Executor executor) throws IOException {
+        checkClosed();
+        return new ParallelSorter(this, executor);
+    }
+
+    /**
+     * Moves all the entries of a loaded temporary tree into an empty tree, and then deletes
+     * the temporary tree. The temporary tree is deleted even if an exception is thrown.
+     */
+    void bulkLoad(Tree tree, Tree temp) throws IOException {
+        try {
+            swapTreeRoots(tree, temp);
+        } catch (Throwable e) {
+            deleteQuietly(e, temp);
+            throw e;
+        }
+
+        // Temporary tree now has the original empty root.
+        deleteIndex(temp).run();
+
+        checkpoint();
+    }
+
+    /**
+     * Deletes a temporary tree after a failure, adding any exception as suppressed.
+     */
+    void deleteQuietly(Throwable cause, Tree temp) {
+        try {
+            deleteIndex(temp).run();
+        } catch (Throwable e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Checks that the given index can be bulk loaded, and returns it as a tree.
+     *
+     * @throws IllegalStateException if tree cannot be bulk loaded
+     */
+    Tree bulkLoadTarget(Index index) throws IOException {
+        Tree tree = accessTree(index);
+        if (Tree.isInternal(tree.mId)) {
+            throw new IllegalStateException("Cannot bulk load an internal index");
+        }
+        checkBulkLoadTarget(tree);
+        return tree;
+    }
+
+    /**
+     * @throws IllegalStateException if tree cannot be bulk loaded
+     */
+    private static void checkBulkLoadTarget(Tree tree) throws IOException {
+        Node root = tree.mRoot;
+        root.acquireShared();
+        try {
+            if (root.mPage == p_closedTreePage()) {
+                throw new ClosedIndexException();
+            }
+            if (!root.isLeaf() || root.hasKeys()) {
+                throw new IllegalStateException("Index isn't empty");
+            }
+            if (root.mLastCursorFrame != null) {
+                throw new IllegalStateException("Index has active cursors");
+            }
+        } finally {
+            root.releaseShared();
+        }
+    }
+
+    /**
+     * Swaps the root of an empty tree with the root of a freshly loaded temporary tree. Both
+     * registry entries are updated while the shared commit lock is held, and so the swap is
+     * atomic with respect to checkpoints.
+     */
+    private void swapTreeRoots(Tree tree, Tree temp) throws IOException {
+        CommitLock.Shared shared = mCommitLock.acquireShared();
+        try {
+            Node root = tree.mRoot;
+            root.acquireExclusive();
+            try {
+                if (root.mPage == p_closedTreePage()) {
+                    throw new ClosedIndexException();
+                }
+                if (!root.isLeaf() || root.hasKeys() || root.mSplit != null) {
+                    throw new IllegalStateException("Index isn't empty");
+                }
+                if (root.mLastCursorFrame != null) {
+                    throw new IllegalStateException("Index has active cursors");
+                }
+
+                Node tempRoot = temp.mRoot;
+                tempRoot.acquireExclusive();
+                try {
+                    // Both roots must be dirty in the same commit state, allowing the nodes
+                    // to be exchanged without touching the dirty list.
+                    markDirty(tree, root);
+                    markDirty(temp, tempRoot);
+
+                    nodeMapRemove(root);
+                    nodeMapRemove(tempRoot);
+
+                    root.exchangeRoot(tempRoot);
+
+                    nodeMapPut(root);
+                    nodeMapPut(tempRoot);
+
+                    try {
+                        storeTreeRootId(tree, root.mId);
+                        storeTreeRootId(temp, tempRoot.mId);
+                    } catch (Throwable e) {
+                        // Panic.
+                        throw closeOnFailure(this, e);
+                    }
+                } finally {
+                    tempRoot.releaseExclusive();
+                }
+            } finally {
+                root.releaseExclusive();
+            }
+        } finally {
+            shared.release();
+        }
+    }
+
     @Override
     public View indexRegistryByName() throws IOException {
         return mRegistryKeyMap.viewPrefix(new byte[] {KEY_TYPE_INDEX_NAME}, 1).viewUnmodifiable();
@@ -1523,6 +1779,58 @@ final class LocalDatabase extends AbstractDatabase {
         mPageDb.pageLimitOverride(bytes < 0 ? -1 : (bytes / mPageSize));
     }
 
+    @Override
+    public void cacheSize(long bytes) throws IOException {
+        mCacheSizeLock.lock();
+        try {
+            checkClosed();
+
+            NodeUsageList[] usageLists = mUsageLists;
+
+            // Each usage list needs at least two nodes to function correctly.
+            int maxCache = Math.max(nodeCountFromBytes(bytes, mPageSize),
+                                    Math.max(MIN_CACHED_NODES, usageLists.length * 2));
+
+            int oldMaxCache = 0;
+            for (NodeUsageList usageList : usageLists) {
+                oldMaxCache += usageList.maxSize();
+            }
+
+            if (maxCache > oldMaxCache) {
+                // Grow the map first, to avoid long collision chains.
+                nodeMapResize(maxCache);
+            }
+
+            // Rebalance the usage lists evenly, just like when the cache was initialized.
+            int stripeSize = maxCache / usageLists.length;
+            int rem = maxCache % usageLists.length;
+
+            for (NodeUsageList usageList : usageLists) {
+                int size = stripeSize;
+                if (rem > 0) {
+                    size++;
+                    rem--;
+                }
+                usageList.maxSize(size);
+            }
+
+            if (maxCache < oldMaxCache) {
+                nodeMapResize(maxCache);
+            }
+        } finally {
+            mCacheSizeLock.unlock();
+        }
+    }
+
+    @Override
+    public long cacheSize() {
+        int maxCache = 0;
+        for (NodeUsageList usageList : mUsageLists) {
+            maxCache += usageList.maxSize();
+        }
+        return byteCountFromNodes(maxCache, mPageSize);
+    }
+
     @Override
     public Snapshot beginSnapshot() throws IOException {
         if (!(mPageDb.isDurable())) {
@@ -1698,6 +2006,14 @@ final class LocalDatabase extends AbstractDatabase {
             stats.cachedPages += usageList.size();
         }
 
+        RedoWriter redo = mRedoWriter;
+        if (redo != null) {
+            redo.addStats(stats);
+        }
+
+        stats.compressionInputBytes = mCompressionInput.sum();
+        stats.compressionOutputBytes = mCompressionOutput.sum();
+
         return stats;
     }
 
@@ -2006,6 +2322,20 @@ final class LocalDatabase extends AbstractDatabase {
         try {
             mCheckpointer = null;
 
+            Evictor e = mEvictor;
+            if (e != null) {
+                mEvictor = null;
+                Thread et = e.close();
+                if (et != null && et != Thread.currentThread()) {
+                    // Wait for evictor to finish, since it's accessing cached nodes.
+                    try {
+                        et.join();
+                    } catch (InterruptedException ie) {
+                        // Ignore.
+                    }
+                }
+            }
+
             CommitLock lock = mCommitLock;
 
             if (mOpenTrees != null) {
@@ -2219,6 +2549,8 @@ final class LocalDatabase extends AbstractDatabase {
                 deleteNode(root);
             }
             mRegistryKeyMap.delete(Transaction.BOGUS, trashIdKey);
+            mRegistryKeyMap.delete
+                (Transaction.BOGUS, newKey(KEY_TYPE_COMPRESSION, tree.mIdBytes));
             mRegistry.delete(Transaction.BOGUS, tree.mIdBytes);
         } catch (Throwable e) {
             throw closeOnFailure(this, e);
@@ -2521,6 +2853,7 @@ final class LocalDatabase extends AbstractDatabase {
             Node root = loadTreeRoot(treeId, rootId);
 
             tree = newTreeInstance(treeId, treeIdBytes, name, root);
+            tree.mCompressor = loadValueCompressor(txn, treeIdBytes);
             TreeRef treeRef = new TreeRef(tree, mOpenTreesRefQueue);
 
             mOpenTreesLatch.acquireExclusive();
@@ -2549,6 +2882,56 @@ final class LocalDatabase extends AbstractDatabase {
         }
     }
 
+    /**
+     * Changes the value compression of an index, and stores the setting in the registry.
+     *
+     * @param compression null to disable
+     */
+    void valueCompression(Tree tree, ValueCompression compression) throws IOException {
+        if (Tree.isInternal(tree.mId) || mRegistryKeyMap == null) {
+            throw new IllegalStateException("Cannot compress an internal index");
+        }
+
+        ValueCompressor compressor;
+        byte[] encoded;
+        if (compression == null) {
+            compressor = null;
+            encoded = null;
+        } else {
+            byte[] dict = compression.mDictionary;
+            compressor = new ValueCompressor(compression, dict == null ? 0 : dictionaryId(dict));
+            encoded = compressor.encode();
+        }
+
+        byte[] key = newKey(KEY_TYPE_COMPRESSION, tree.mIdBytes);
+
+        Transaction txn = newAlwaysRedoTransaction();
+        try {
+            mRegistryKeyMap.store(txn, key, encoded);
+            txn.commit();
+        } finally {
+            txn.reset();
+        }
+
+        tree.mCompressor = compressor;
+    }
+
+    /**
+     * @return null if index values aren't compressed
+     */
+    private ValueCompressor loadValueCompressor(Transaction txn, byte[] treeIdBytes)
+        throws IOException
+    {
+        byte[] encoded = mRegistryKeyMap.load(txn, newKey(KEY_TYPE_COMPRESSION, treeIdBytes));
+        if (encoded == null) {
+            return null;
+        }
+        int dictId = ValueCompressor.decodeDictionaryId(encoded);
+        ValueCompression compression = dictId == 0 ? ValueCompression.lz()
+            : new ValueCompression(dictionary(dictId));
+        return new ValueCompressor(compression, dictId);
+    }
+
     private Tree newTreeInstance(long id, byte[] idBytes, byte[] name, Node root) {
         Tree tree;
         if (mRedoWriter instanceof ReplRedoWriter) {
@@ -2745,10 +3128,15 @@ final class LocalDatabase extends AbstractDatabase {
      * matches, in case an eviction snuck in.
      */
     Node nodeMapGet(final long nodeId, final int hash) {
-        // Quick check without acquiring a partition latch.
+        // Quick check without acquiring a partition latch. Table might be stale if the
+        // partition is being resized, but the latched check below sees the current one.
+
+        final Latch[] latches = mNodeMapLatches;
+        final int partition = hash & (latches.length - 1);
+        final int slotHash = hash >>> mNodeMapShift;
 
-        final Node[] table = mNodeMapTable;
-        Node node = table[hash & (table.length - 1)];
+        Node[] table = mNodeMapTables[partition];
+        Node node = table[slotHash & (table.length - 1)];
         if (node != null) {
             // Limit scan of collision chain in case a temporary infinite loop is observed.
             int limit = 100;
@@ -2761,11 +3149,11 @@ final class LocalDatabase extends AbstractDatabase {
 
         // Again with shared partition latch held.
 
-        final Latch[] latches = mNodeMapLatches;
-        final Latch latch = latches[hash & (latches.length - 1)];
+        final Latch latch = latches[partition];
         latch.acquireShared();
 
-        node = table[hash & (table.length - 1)];
+        table = mNodeMapTables[partition];
+        node = table[slotHash & (table.length - 1)];
         while (node != null) {
             if (node.mId == nodeId) {
                 latch.releaseShared();
@@ -2790,11 +3178,12 @@ final class LocalDatabase extends AbstractDatabase {
      */
     void nodeMapPut(final Node node, final int hash) {
         final Latch[] latches = mNodeMapLatches;
-        final Latch latch = latches[hash & (latches.length - 1)];
+        final int partition = hash & (latches.length - 1);
+        final Latch latch = latches[partition];
         latch.acquireExclusive();
 
-        final Node[] table = mNodeMapTable;
-        final int index = hash & (table.length - 1);
+        final Node[] table = mNodeMapTables[partition];
+        final int index = (hash >>> mNodeMapShift) & (table.length - 1);
         Node e = table[index];
         while (e != null) {
             if (e == node) {
@@ -2823,11 +3212,12 @@ final class LocalDatabase extends AbstractDatabase {
     Node nodeMapPutIfAbsent(final Node node) {
         final int hash = Long.hashCode(node.mId);
         final Latch[] latches = mNodeMapLatches;
-        final Latch latch = latches[hash & (latches.length - 1)];
+        final int partition = hash & (latches.length - 1);
+        final Latch latch = latches[partition];
         latch.acquireExclusive();
 
-        final Node[] table = mNodeMapTable;
-        final int index = hash & (table.length - 1);
+        final Node[] table = mNodeMapTables[partition];
+        final int index = (hash >>> mNodeMapShift) & (table.length - 1);
         Node e = table[index];
         while (e != null) {
             if (e.mId == node.mId) {
@@ -2850,13 +3240,14 @@ final class LocalDatabase extends AbstractDatabase {
     void nodeMapReplace(final Node oldNode, final Node newNode) {
         final int hash = Long.hashCode(oldNode.mId);
         final Latch[] latches = mNodeMapLatches;
-        final Latch latch = latches[hash & (latches.length - 1)];
+        final int partition = hash & (latches.length - 1);
+        final Latch latch = latches[partition];
         latch.acquireExclusive();
 
         newNode.mNodeMapNext = oldNode.mNodeMapNext;
 
-        final Node[] table = mNodeMapTable;
-        final int index = hash & (table.length - 1);
+        final Node[] table = mNodeMapTables[partition];
+        final int index = (hash >>> mNodeMapShift) & (table.length - 1);
         Node e = table[index];
         if (e == oldNode) {
             table[index] = newNode;
@@ -2880,11 +3271,12 @@ final class LocalDatabase extends AbstractDatabase {
 
     void nodeMapRemove(final Node node, final int hash) {
         final Latch[] latches = mNodeMapLatches;
-        final Latch latch = latches[hash & (latches.length - 1)];
+        final int partition = hash & (latches.length - 1);
+        final Latch latch = latches[partition];
         latch.acquireExclusive();
 
-        final Node[] table = mNodeMapTable;
-        final int index = hash & (table.length - 1);
+        final Node[] table = mNodeMapTables[partition];
+        final int index = (hash >>> mNodeMapShift) & (table.length - 1);
         Node e = table[index];
         if (e == node) {
             table[index] = e.mNodeMapNext;
@@ -3052,24 +3444,26 @@ final class LocalDatabase extends AbstractDatabase {
             }
 
             try {
-                for (int i=mNodeMapTable.length; --i>=0; ) {
-                    Node e = mNodeMapTable[i];
-                    if (e != null) {
-                        if (!e.tryAcquireExclusive()) {
-                            // Deadlock prevention.
-                            continue start;
-                        }
-                        try {
-                            e.doDelete(this);
-                        } finally {
-                            e.releaseExclusive();
-                        }
-                        Node next;
-                        while ((next = e.mNodeMapNext) != null) {
-                            e.mNodeMapNext = null;
-                            e = next;
+                for (Node[] table : mNodeMapTables) {
+                    for (int i=table.length; --i>=0; ) {
+                        Node e = table[i];
+                        if (e != null) {
+                            if (!e.tryAcquireExclusive()) {
+                                // Deadlock prevention.
+                                continue start;
+                            }
+                            try {
+                                e.doDelete(this);
+                            } finally {
+                                e.releaseExclusive();
+                            }
+                            Node next;
+                            while ((next = e.mNodeMapNext) != null) {
+                                e.mNodeMapNext = null;
+                                e = next;
+                            }
+                            table[i] = null;
                         }
-                        mNodeMapTable[i] = null;
                     }
                 }
             } finally {
@@ -3082,6 +3476,58 @@ final class LocalDatabase extends AbstractDatabase {
         }
     }
 
+    /**
+     * Resize all node map partitions to suit the given cache size. Partitions are resized
+     * one at a time, and so only lookups in the partition being resized are blocked.
+     *
+     * @param maxCache maximum amount of cached nodes
+     */
+    private void nodeMapResize(int maxCache) {
+        final Latch[] latches = mNodeMapLatches;
+        final int capacity = nodeMapPartitionCapacity(maxCache, latches.length);
+        final int shift = mNodeMapShift;
+
+        for (int i=0; i<latches.length; i++) {
+            Latch latch = latches[i];
+            latch.acquireExclusive();
+            try {
+                Node[] table = mNodeMapTables[i];
+                if (table.length == capacity) {
+                    continue;
+                }
+
+                // Node ids don't change while in the map, and so the hash is stable.
+                Node[] newTable = new Node[capacity];
+                for (Node e : table) {
+                    while (e != null) {
+                        Node next = e.mNodeMapNext;
+                        int index = (Long.hashCode(e.mId) >>> shift) & (capacity - 1);
+                        e.mNodeMapNext = newTable[index];
+                        newTable[index] = e;
+                        e = next;
+                    }
+                }
+
+                mNodeMapTables[i] = newTable;
+            } finally {
+                latch.releaseExclusive();
+            }
+        }
+    }
+
+    /**
+     * @param maxCache maximum amount of cached nodes
+     * @param partitions amount of node map partitions, which is a power of 2
+     * @return hash table capacity for each node map partition, which is a power of 2
+     */
+    private static int nodeMapPartitionCapacity(int maxCache, int partitions) {
+        int capacity = Utils.roundUpPower2(maxCache);
+        if (capacity < 0) {
+            capacity = 0x40000000;
+        }
+        return Math.max(1, capacity / partitions);
+    }
+
     /**
      * Returns a new or recycled Node instance, latched exclusively, with an undefined id and a
      * clean state.
@@ -3143,6 +3589,30 @@ final class LocalDatabase extends AbstractDatabase {
         }
     }
 
+    /**
+     * Called when a dirty node had to be evicted, waking up the background evictor.
+     */
+    void evictorSignal() {
+        Evictor e = mEvictor;
+        if (e != null) {
+            e.signal();
+        }
+    }
+
+    /**
+     * Called by the background evictor.
+     *
+     * @param reserve desired amount of free or clean nodes in each usage list
+     */
+    void cleanUsageLists(int reserve) throws IOException {
+        for (NodeUsageList usageList : mUsageLists) {
+            if (mClosed) {
+                return;
+            }
+            usageList.cleanReserve(reserve);
+        }
+    }
+
     /**
      * Returns a new or recycled Node instance, latched exclusively and marked
      * dirty. Caller must hold commit lock.
@@ -3464,18 +3934,34 @@ final class LocalDatabase extends AbstractDatabase {
         return fragment(key, key.length, mMaxKeySize);
     }
 
+    /**
+     * Same as the fragment method, except the value is compressed, as produced by
+     * ValueCompressor. Caller must hold commit lock.
+     *
+     * @return null if max is too small
+     */
+    byte[] fragmentCompressed(final byte[] value, int max) throws IOException {
+        byte[] newValue = fragment(value, value.length, max);
+        if (newValue != null) {
+            newValue[0] |= 0x10; // c=1
+        }
+        return newValue;
+    }
+
     /**
      * Breakup a large value into separate pages, returning a new value which
      * encodes the page references. Caller must hold commit lock.
      *
      * Returned value begins with a one byte header:
      *
-     * 0b0000_ffip
+     * 0b000c_ffip
      *
-     * The leading 4 bits define the encoding type, which must be 0. The 'f' bits define the
-     * full value length field size: 2, 4, 6, or 8 bytes. The 'i' bit defines the inline
-     * content length field size: 0 or 2 bytes. The 'p' bit is clear if direct pointers are
-     * used, and set for indirect pointers. Pointers are always 6 bytes.
+     * The leading 3 bits define the encoding type, which must be 0. The 'c' bit is set by the
+     * fragmentCompressed method, and it indicates that the value must be decompressed when
+     * reconstructed. The 'f' bits define the full value length field size: 2, 4, 6, or 8
+     * bytes. The 'i' bit defines the inline content length field size: 0 or 2 bytes. The 'p'
+     * bit is clear if direct pointers are used, and set for indirect pointers. Pointers are
+     * always 6 bytes.
      *
      * @param value can be null if value is all zeros
      * @param max maximum allowed size for returned byte array; must not be
@@ -3774,6 +4260,203 @@ final class LocalDatabase extends AbstractDatabase {
         }
     }
 
+    /**
+     * Compares a fragmented key to a regular key, without reconstructing the fragmented
+     * key. Fragment nodes are loaded only as needed, and the comparison stops at the first
+     * mismatch. The result encodes the number of matching bytes, which binary searches use
+     * to skip over bytes already known to match.
+     *
+     * @param start key offset to start comparing at; all prior bytes must match
+     * @return zero if equal, or else one more than the number of matching bytes, negated
+     * if the fragmented key is lower
+     */
+    int compareFragmentedKey(/*P*/ byte[] fragmented, int off, int len, byte[] key, int start)
+        throws IOException
+    {
+        int header = p_byteGet(fragmented, off++);
+        len--;
+
+        if ((header & 0x10) != 0) {
+            // Keys aren't compressed, but handle it anyhow.
+            byte[] full = reconstructKey(fragmented, off - 1, len + 1);
+            int minLen = Math.min(full.length, key.length);
+            int i = start;
+            while (i < minLen && full[i] == key[i]) {
+                i++;
+            }
+            if (i < minLen) {
+                return (full[i] & 0xff) < (key[i] & 0xff) ? ~i : (i + 1);
+            }
+            return full.length < key.length ? ~i : full.length > key.length ? (i + 1) : 0;
+        }
+
+        final long vLen = decodeFullFragmentedValueLength(header, fragmented, off);
+
+        {
+            int vLenFieldSize = 2 + ((header >> 1) & 0x06);
+            off += vLenFieldSize;
+            len -= vLenFieldSize;
+        }
+
+        final int minLen = (int) Math.min(vLen, key.length);
+
+        long pos = 0;
+        int result;
+
+        compare: {
+            if ((header & 0x02) != 0) {
+                // Inline content.
+                int inLen = p_ushortGetLE(fragmented, off);
+                off += 2;
+                len -= 2;
+                if ((result = compareFragment(fragmented, off, pos, inLen,
+                                              key, start, minLen)) != 0)
+                {
+                    break compare;
+                }
+                off += inLen;
+                len -= inLen;
+                pos += inLen;
+            }
+
+            if ((header & 0x01) == 0) {
+                // Direct pointers.
+                for (; len >= 6 && pos < minLen; off += 6, len -= 6) {
+                    int pLen = (int) Math.min(vLen - pos, mPageSize);
+                    if (pos + pLen > start) {
+                        result = compareFragmentNode(p_uint48GetLE(fragmented, off),
+                                                     pos, pLen, key, start, minLen);
+                        if (result != 0) {
+                            break compare;
+                        }
+                    }
+                    pos += pLen;
+                }
+            } else if (pos < minLen) {
+                // Indirect pointers.
+                long inodeId = p_uint48GetLE(fragmented, off);
+                long remaining = vLen - pos;
+                if (inodeId == 0) {
+                    result = compareSparseFragment(pos, minLen, key, start, minLen);
+                } else {
+                    result = compareMultilevelFragments
+                        (calculateInodeLevels(remaining), nodeMapLoadFragment(inodeId),
+                         pos, remaining, key, start, minLen);
+                }
+                if (result != 0) {
+                    break compare;
+                }
+            }
+
+            return vLen < key.length ? ~minLen : vLen > key.length ? (minLen + 1) : 0;
+        }
+
+        return result;
+    }
+
+    /**
+     * @param level inode level; at least 1
+     * @param inode shared latched parent inode; always released by this method
+     * @param pos position of the inode content within the fragmented key
+     * @return mismatch result as defined by compareFragmentedKey, or zero if no mismatch
+     */
+    private int compareMultilevelFragments(int level, Node inode, long pos, long vlength,
+                                           byte[] key, int start, int minLen)
+        throws IOException
+    {
+        try {
+            /*P*/ byte[] page = inode.mPage;
+            level--;
+            long levelCap = levelCap(level);
+
+            // Skip over the children which only contain matching bytes.
+            int i = (int) (Math.max(0, start - pos) / levelCap);
+            long skipped = i * levelCap;
+            pos += skipped;
+            vlength -= skipped;
+
+            for (int poffset = i * 6; vlength > 0 && pos < minLen; poffset += 6) {
+                long childNodeId = p_uint48GetLE(page, poffset);
+                int len = (int) Math.min(levelCap, vlength);
+
+                int result;
+                if (level <= 0 || childNodeId == 0) {
+                    result = compareFragmentNode(childNodeId, pos, len, key, start, minLen);
+                } else {
+                    result = compareMultilevelFragments
+                        (level, nodeMapLoadFragment(childNodeId), pos, len, key, start, minLen);
+                }
+                if (result != 0) {
+                    return result;
+                }
+
+                vlength -= len;
+                pos += len;
+            }
+
+            return 0;
+        } finally {
+            inode.releaseShared();
+        }
+    }
+
+    /**
+     * @param nodeId fragment node id, which is zero if sparse
+     * @param pos position of the fragment within the fragmented key
+     * @return mismatch result as defined by compareFragmentedKey, or zero if no mismatch
+     */
+    private int compareFragmentNode(long nodeId, long pos, int len,
+                                    byte[] key, int start, int minLen)
+        throws IOException
+    {
+        if (nodeId == 0) {
+            return compareSparseFragment(pos, len, key, start, minLen);
+        }
+        Node node = nodeMapLoadFragment(nodeId);
+        try {
+            return compareFragment(node.mPage, 0, pos, len, key, start, minLen);
+        } finally {
+            node.releaseShared();
+        }
+    }
+
+    /**
+     * Compares the portion of a fragment which overlaps the range [start, minLen) of the key.
+     *
+     * @param off location of the fragment in the page
+     * @param pos position of the fragment within the fragmented key
+     * @return mismatch result as defined by compareFragmentedKey, or zero if no mismatch
+     */
+    private static int compareFragment(/*P*/ byte[] page, int off, long pos, int len,
+                                       byte[] key, int start, int minLen)
+    {
+        int from = (int) Math.max(start, pos);
+        int to = (int) Math.min(minLen, pos + len);
+        if (from >= to) {
+            return 0;
+        }
+        int loc = off - (int) pos;
+        int i = from + p_mismatch(page, loc + from, key, from, to - from);
+        return i >= to ? 0 : p_ubyteGet(page, loc + i) < (key[i] & 0xff) ? ~i : (i + 1);
+    }
+
+    /**
+     * Same as compareFragment, except the fragment is sparse, consisting of all zeros.
+     */
+    private static int compareSparseFragment(long pos, int len,
+                                             byte[] key, int start, int minLen)
+    {
+        int i = (int) Math.max(start, pos);
+        int to = (int) Math.min(minLen, pos + len);
+        for (; i < to; i++) {
+            if (key[i] != 0) {
+                // Key byte is higher.
+                return ~i;
+            }
+        }
+        return 0;
+    }
+
     /**
      * Reconstruct a fragmented value.
      */
@@ -3793,6 +4476,9 @@ final class LocalDatabase extends AbstractDatabase {
         int header = p_byteGet(fragmented, off++);
         len--;
 
+        // Compressed value must be fully reconstructed, even for stats.
+        final boolean compressed = (header & 0x10) != 0;
+
         long vLen;
         switch ((header >> 2) & 0x03) {
         default:
@@ -3831,7 +4517,7 @@ final class LocalDatabase extends AbstractDatabase {
         }
 
         byte[] value;
-        if (stats != null) {
+        if (stats != null && !compressed) {
             stats[0] = vLen;
             value = null;
         } else {
@@ -3896,6 +4582,14 @@ final class LocalDatabase extends AbstractDatabase {
             }
         }
 
+        if (compressed) {
+            if (stats == null) {
+                return decompress(value);
+            }
+            stats[0] = ValueCompressor.decompressedLength(value);
+            value = null;
+        }
+
         if (stats != null) {
             stats[1] = pagesRead;
         }
@@ -3903,6 +4597,117 @@ final class LocalDatabase extends AbstractDatabase {
         return value;
     }
 
+    /**
+     * Decompress a value which was compressed by ValueCompressor.
+     */
+    byte[] decompress(byte[] compressed) throws IOException {
+        int dictId = ValueCompressor.dictionaryId(compressed);
+        byte[] dict = dictId == 0 ? null : dictionary(dictId);
+        try {
+            return ValueCompressor.decompress(compressed, dict);
+        } catch (OutOfMemoryError e) {
+            throw new LargeValueException(ValueCompressor.decompressedLength(compressed), e);
+        }
+    }
+
+    /**
+     * Returns a value compression dictionary, loading it from the registry if necessary.
+     */
+    private byte[] dictionary(int id) throws IOException {
+        byte[][] dicts = mDictionaries;
+        byte[] dict;
+        if (id < dicts.length && (dict = dicts[id]) != null) {
+            return dict;
+        }
+
+        mDictionaryLock.lock();
+        try {
+            dicts = mDictionaries;
+            if (id < dicts.length && (dict = dicts[id]) != null) {
+                return dict;
+            }
+            if (mRegistryKeyMap == null || id <= 0
+                || (dict = mRegistryKeyMap.load(Transaction.BOGUS, dictionaryKey(id))) == null)
+            {
+                throw new CorruptDatabaseException("Compression dictionary not found: " + id);
+            }
+            cacheDictionary(id, dict);
+            return dict;
+        } finally {
+            mDictionaryLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the id of a value compression dictionary, storing it into the registry if
+     * necessary. Dictionaries are never deleted, because old values might refer to them.
+     */
+    private int dictionaryId(byte[] dict) throws IOException {
+        mDictionaryLock.lock();
+        try {
+            // Dictionaries aren't expected to be numerous, so just search through them.
+            int maxId = 0;
+            View view = mRegistryKeyMap.viewPrefix(new byte[] {KEY_TYPE_DICTIONARY}, 1);
+            Cursor c = view.newCursor(Transaction.BOGUS);
+            try {
+                for (c.first(); c.key() != null; c.next()) {
+                    int id = decodeIntBE(c.key(), 0);
+                    if (Arrays.equals(dict, c.value())) {
+                        cacheDictionary(id, c.value());
+                        return id;
+                    }
+                    maxId = Math.max(maxId, id);
+                }
+            } finally {
+                c.reset();
+            }
+
+            int id = maxId + 1;
+
+            Transaction txn = newAlwaysRedoTransaction();
+            try {
+                mRegistryKeyMap.store(txn, dictionaryKey(id), dict);
+                txn.commit();
+            } finally {
+                txn.reset();
+            }
+
+            cacheDictionary(id, dict);
+            return id;
+        } finally {
+            mDictionaryLock.unlock();
+        }
+    }
+
+    /**
+     * Caller must hold mDictionaryLock.
+     */
+    private void cacheDictionary(int id, byte[] dict) {
+        byte[][] dicts = mDictionaries;
+        if (id >= dicts.length) {
+            dicts = Arrays.copyOf(dicts, Math.max(id + 1, dicts.length << 1));
+        } else {
+            dicts = dicts.clone();
+        }
+        dicts[id] = dict;
+        mDictionaries = dicts;
+    }
+
+    private static byte[] dictionaryKey(int id) {
+        byte[] key = new byte[1 + 4];
+        key[0] = KEY_TYPE_DICTIONARY;
+        encodeIntBE(key, 1, id);
+        return key;
+    }
+
+    /**
+     * Called by Tree when a value is compressed.
+     */
+    void compressed(int inputLength, int outputLength) {
+        mCompressionInput.add(inputLength);
+        mCompressionOutput.add(outputLength);
+    }
+
     /**
      * @param level inode level; at least 1
      * @param inode shared latched parent inode; always released by this method
@@ -47,6 +47,12 @@ final class LocalTransaction extends Locker implements Transaction {
 
     private UndoLog mUndoLog;
 
+    // Newest version recorded for snapshot reads, linking to older ones.
+    VersionStore.Version mVersion;
+
+    // Snapshot number, or zero if no snapshot is active.
+    private long mSnapshot;
+
     private Object mAttachment;
 
     // Is an exception if transaction is borked, BOGUS if bogus.
@@ -123,6 +129,9 @@ final class LocalTransaction extends Locker implements Transaction {
             throw new IllegalArgumentException("Lock mode is null");
         } else {
             bogusCheck();
+            if (mode == LockMode.SNAPSHOT && mDatabase.mVersions == null) {
+                throw new IllegalStateException("Snapshot reads aren't enabled");
+            }
             mLockMode = mode;
         }
     }
@@ -197,6 +206,7 @@ final class LocalTransaction extends Locker implements Transaction {
             if (parentScope == null) {
                 UndoLog undo = mUndoLog;
                 if (undo == null) {
+                    commitVersions();
                     int hasState = mHasState;
                     if ((hasState & HAS_COMMIT) != 0) {
                         RedoWriter redo = mRedoWriter;
@@ -233,6 +243,9 @@ final class LocalTransaction extends Locker implements Transaction {
                         shared.release();
                     }
 
+                    // Versions must be committed before releasing the locks.
+                    commitVersions();
+
                     if (commitPos != 0) {
                         // Durably sync the redo log after releasing the commit lock,
                         // preventing additional blocking.
@@ -266,6 +279,7 @@ final class LocalTransaction extends Locker implements Transaction {
                 }
 
                 mTxnId = 0;
+                closeSnapshot();
             } else {
                 int hasState = mHasState;
                 if ((hasState & HAS_COMMIT) != 0) {
@@ -301,6 +315,62 @@ final class LocalTransaction extends Locker implements Transaction {
         }
         mTxnId = 0;
         mRedoWriter.txnCommitPending(pending);
+        closeSnapshot();
+    }
+
+    /**
+     * Must be called before reading values in SNAPSHOT mode, to ensure that a snapshot
+     * exists.
+     */
+    final void snapshotCheck() {
+        if (mSnapshot == 0) {
+            mSnapshot = mDatabase.mVersions.openSnapshot();
+        }
+    }
+
+    /**
+     * Returns the value which is visible to the snapshot, given the current value.
+     *
+     * @param value current value, which can be null or NOT_LOADED
+     */
+    final byte[] snapshotValue(long indexId, byte[] key, byte[] value) {
+        return mDatabase.mVersions.read(this, mSnapshot, indexId, key, value);
+    }
+
+    private void commitVersions() {
+        VersionStore.Version version = mVersion;
+        if (version != null) {
+            mVersion = null;
+            mDatabase.mVersions.commit(version);
+        }
+    }
+
+    /**
+     * Must be called after the undo log has rolled back the changes.
+     *
+     * @param stop version to stop at; pass null to discard all
+     */
+    private void rollbackVersions(VersionStore.Version stop) {
+        VersionStore.Version version = mVersion;
+        if (version != stop) {
+            mVersion = stop;
+            mDatabase.mVersions.rollback(version, stop);
+        }
+    }
+
+    /**
+     * Called when the top-level scope is finished, after the locks have been released.
+     */
+    private void closeSnapshot() {
+        VersionStore versions = mDatabase.mVersions;
+        if (versions != null) {
+            long snapshot = mSnapshot;
+            if (snapshot != 0) {
+                mSnapshot = 0;
+                versions.closeSnapshot(snapshot);
+            }
+            versions.collect();
+        }
     }
 
     /**
@@ -308,7 +378,8 @@ final class LocalTransaction extends Locker implements Transaction {
      */
     final void storeCommit(TreeCursor cursor, byte[] value) throws IOException {
         RedoWriter redo = mRedoWriter;
-        if (redo == null) {
+        // Versions are only recorded by the regular store operation.
+        if (redo == null || mDatabase.mVersions != null) {
             cursor.store(this, cursor.leafExclusive(), value);
             commit();
             return;
@@ -467,6 +538,7 @@ final class LocalTransaction extends Locker implements Transaction {
             parentScope.mLockMode = mLockMode;
             parentScope.mLockTimeoutNanos = mLockTimeoutNanos;
             parentScope.mHasState = mHasState;
+            parentScope.mVersion = mVersion;
 
             UndoLog undo = mUndoLog;
             if (undo != null) {
@@ -505,6 +577,7 @@ final class LocalTransaction extends Locker implements Transaction {
                 if (undo != null) {
                     undo.rollback();
                 }
+                rollbackVersions(null);
 
                 // Exit and release all locks obtained in this scope.
                 super.scopeExit();
@@ -516,6 +589,7 @@ final class LocalTransaction extends Locker implements Transaction {
                 }
 
                 mTxnId = 0;
+                closeSnapshot();
             } else {
                 try {
                     int hasState = mHasState;
@@ -531,6 +605,7 @@ final class LocalTransaction extends Locker implements Transaction {
                 if (undo != null) {
                     undo.scopeRollback(mSavepoint);
                 }
+                rollbackVersions(parentScope.mVersion);
 
                 // Exit and release all locks obtained in this scope.
                 super.scopeExit();
@@ -576,6 +651,7 @@ final class LocalTransaction extends Locker implements Transaction {
             if (undo != null) {
                 undo.rollback();
             }
+            rollbackVersions(null);
 
             // Exit and release all locks.
             super.scopeExitAll();
@@ -587,6 +663,7 @@ final class LocalTransaction extends Locker implements Transaction {
             }
 
             mTxnId = 0;
+            closeSnapshot();
         } catch (Throwable e) {
             borked(e, true, false);
         }
@@ -958,11 +1035,13 @@ final class LocalTransaction extends Locker implements Transaction {
                     if (undo != null) {
                         undo.rollback();
                     }
+                    rollbackVersions(null);
                     super.scopeExitAll();
                     if (undo != null) {
                         mTxnContext.unregister(undo);
                         mUndoLog = null;
                     }
+                    closeSnapshot();
                 } catch (Throwable undoFailed) {
                     // Undo failed. Locks cannot be released, ensuring other transactions
                     // cannot see the partial changes made by this transaction. A restart is
@@ -40,20 +40,42 @@ final class LockManager {
     final LockUpgradeRule mDefaultLockUpgradeRule;
     final long mDefaultTimeoutNanos;
 
+    // Zero if lock escalation is disabled.
+    private final int mEscalationThreshold;
+
+    // Negative if deadlocks are only detected when a lock request times out.
+    private final long mDeadlockDelayNanos;
+
     private final LockHT[] mHashTables;
     private final int mHashTableShift;
 
+    final RangeTable mRangeTable;
+
     private final ThreadLocal<SoftReference<Locker>> mLocalLockerRef;
 
     /**
      * @param db optional; used by DeadlockDetector to resolve index names
      */
     LockManager(LocalDatabase db, LockUpgradeRule lockUpgradeRule, long timeoutNanos) {
-        this(db, lockUpgradeRule, timeoutNanos, Runtime.getRuntime().availableProcessors() * 16);
+        this(db, lockUpgradeRule, timeoutNanos, 0, -1);
+    }
+
+    /**
+     * @param db optional; used by DeadlockDetector to resolve index names
+     * @param escalationThreshold shared key locks per index before escalating; zero to
+     * disable
+     * @param deadlockDelayNanos time to wait for a lock before checking for a deadlock;
+     * negative to only check when the request times out
+     */
+    LockManager(LocalDatabase db, LockUpgradeRule lockUpgradeRule, long timeoutNanos,
+                int escalationThreshold, long deadlockDelayNanos)
+    {
+        this(db, lockUpgradeRule, timeoutNanos, escalationThreshold, deadlockDelayNanos,
+             Runtime.getRuntime().availableProcessors() * 16);
     }
 
     private LockManager(LocalDatabase db, LockUpgradeRule lockUpgradeRule, long timeoutNanos,
-                        int numHashTables)
+                        int escalationThreshold, long deadlockDelayNanos, int numHashTables)
     {
         mDatabaseRef = db == null ? null : new WeakReference<>(db);
 
@@ -62,6 +84,8 @@ final class LockManager {
         }
         mDefaultLockUpgradeRule = lockUpgradeRule;
         mDefaultTimeoutNanos = timeoutNanos;
+        mEscalationThreshold = escalationThreshold;
+        mDeadlockDelayNanos = deadlockDelayNanos;
 
         numHashTables = Utils.roundUpPower2(Math.max(2, numHashTables));
         mHashTables = new LockHT[numHashTables];
@@ -70,6 +94,8 @@ final class LockManager {
         }
         mHashTableShift = Integer.numberOfLeadingZeros(numHashTables - 1);
 
+        mRangeTable = new RangeTable();
+
         mLocalLockerRef = new ThreadLocal<>();
     }
 
@@ -95,7 +121,7 @@ final class LockManager {
         for (LockHT ht : mHashTables) {
             count += ht.size();
         }
-        return count;
+        return count + mRangeTable.size();
     }
 
     /**
@@ -118,13 +144,213 @@ final class LockManager {
         ht.acquireShared();
         try {
             Lock lock = ht.lockFor(indexId, key, hash);
-            return lock == null ? LockResult.UNOWNED : lock.check(locker);
+            if (lock != null) {
+                LockResult result = lock.check(locker);
+                if (result != LockResult.UNOWNED) {
+                    return result;
+                }
+            }
         } finally {
             ht.releaseShared();
         }
+        return mRangeTable.isEmpty() || !mRangeTable.isCovered(locker, indexId, key)
+            ? LockResult.UNOWNED : LockResult.OWNED_SHARED;
+    }
+
+    /**
+     * Acquires a key lock, honoring any range locks which cover the key.
+     *
+     * @param type TYPE_SHARED, TYPE_UPGRADABLE, or TYPE_EXCLUSIVE
+     */
+    final LockResult tryLock(int type,
+                             Locker locker, long indexId, byte[] key, int hash,
+                             long nanosTimeout)
+    {
+        if (type == TYPE_SHARED) {
+            int threshold = mEscalationThreshold;
+            if (threshold != 0 && ++locker.mEscalationCount >= threshold) {
+                locker.mEscalationCount = 0;
+                escalate(locker, threshold);
+            }
+        }
+
+        long delay = mDeadlockDelayNanos;
+        if (delay < 0 || nanosTimeout == 0) {
+            return doTryLock(type, locker, indexId, key, hash, nanosTimeout);
+        }
+
+        // Wait briefly, and then check for a deadlock before waiting any longer. If the
+        // locker is chosen as the victim, the caller detects the deadlock again and throws
+        // an exception. If another locker is chosen, it gets woken up and does the same.
+
+        long nanosEnd = nanosTimeout < 0 ? 0 : (System.nanoTime() + nanosTimeout);
+        long wait = nanosTimeout < 0 ? delay : Math.min(delay, nanosTimeout);
+
+        while (true) {
+            LockResult result = doTryLock(type, locker, indexId, key, hash, wait);
+            if (result != TIMED_OUT_LOCK || locker.mWaitingFor == null) {
+                return result;
+            }
+            if (nanosTimeout >= 0 && (wait = nanosEnd - System.nanoTime()) <= 0) {
+                return result;
+            }
+            if (resolveDeadlock(locker)) {
+                return result;
+            }
+            if (nanosTimeout < 0) {
+                wait = -1;
+            }
+        }
+    }
+
+    /**
+     * @param type TYPE_SHARED, TYPE_UPGRADABLE, or TYPE_EXCLUSIVE
+     */
+    private LockResult doTryLock(int type,
+                                 Locker locker, long indexId, byte[] key, int hash,
+                                 long nanosTimeout)
+    {
+        LockHT ht = getLockHT(hash);
+
+        RangeTable table = mRangeTable;
+        if (table.isEmpty() || type == TYPE_UPGRADABLE) {
+            return ht.tryLock(type, locker, indexId, key, hash, nanosTimeout);
+        }
+
+        if (type == TYPE_SHARED) {
+            if (!table.isCovered(locker, indexId, key)) {
+                return ht.tryLock(type, locker, indexId, key, hash, nanosTimeout);
+            }
+
+            // The range lock is sufficient, and so no key lock is retained. Only need to
+            // wait for an exclusive lock held by another locker to be released.
+
+            ht.acquireShared();
+            try {
+                Lock lock = ht.lockFor(indexId, key, hash);
+                if (lock == null) {
+                    return OWNED_SHARED;
+                }
+                LockResult result = lock.check(locker);
+                if (result != UNOWNED) {
+                    return result;
+                }
+                if (lock.isAvailable(locker)) {
+                    return OWNED_SHARED;
+                }
+            } finally {
+                ht.releaseShared();
+            }
+
+            LockResult result = ht.tryLock(type, locker, indexId, key, hash, nanosTimeout);
+            if (result == ACQUIRED) {
+                locker.unlock();
+                result = OWNED_SHARED;
+            }
+            return result;
+        }
+
+        // Exclusive lock must wait for range locks held by other lockers. Wait before
+        // acquiring the key lock, to avoid blocking the range lock owners while waiting.
+        // Check again after acquiring the key lock, in case a range lock was acquired
+        // concurrently. The range lock owner is then obligated to wait for the key lock.
+
+        ht.acquireShared();
+        try {
+            Lock lock = ht.lockFor(indexId, key, hash);
+            if (lock != null && lock.check(locker) == OWNED_EXCLUSIVE) {
+                // Already owned, and so any range lock owner is waiting for it.
+                return OWNED_EXCLUSIVE;
+            }
+        } finally {
+            ht.releaseShared();
+        }
+
+        long nanosEnd = nanosTimeout <= 0 ? 0 : (System.nanoTime() + nanosTimeout);
+
+        while (true) {
+            LockResult result = table.await(locker, indexId, key, nanosTimeout);
+            if (result != null) {
+                return result;
+            }
+            if (nanosTimeout > 0) {
+                // Only wait for the key lock with the time remaining.
+                nanosTimeout = Math.max(0, nanosEnd - System.nanoTime());
+            }
+            result = ht.tryLock(type, locker, indexId, key, hash, nanosTimeout);
+            if (!result.isHeld() || result == OWNED_EXCLUSIVE
+                || !table.isConflict(locker, indexId, key))
+            {
+                return result;
+            }
+            if (result == ACQUIRED) {
+                locker.unlock();
+            } else {
+                locker.unlockToUpgradable();
+            }
+        }
+    }
+
+    /**
+     * Checks if the given waiting locker is part of a deadlock, and if so, chooses the
+     * locker within the cycle which holds the fewest locks as the victim. If another locker
+     * is chosen, it's woken up, and it then checks for the deadlock itself.
+     *
+     * @return true if the given locker is the victim
+     */
+    private boolean resolveDeadlock(Locker locker) {
+        Locker victim = new DeadlockDetector(locker).findVictim();
+        if (victim == null) {
+            return false;
+        }
+        if (victim == locker) {
+            return true;
+        }
+
+        Lock lock = victim.mWaitingFor;
+        if (lock != null) {
+            Latch latch = lock instanceof RangeLock ? mRangeTable : getLockHT(lock.mHashCode);
+            latch.acquireExclusive();
+            try {
+                // Check again, in case the victim stopped waiting.
+                if (victim.mWaitingFor == lock) {
+                    victim.mDeadlockVictim = true;
+                    lock.signalAllWaiters();
+                }
+            } finally {
+                latch.releaseExclusive();
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * For each index which has reached the threshold, converts the shared key locks held by
+     * the locker, within the current scope, into a single shared lock over the whole index.
+     * Escalation is skipped if the index lock isn't immediately available.
+     */
+    private void escalate(Locker locker, int threshold) {
+        long[] indexIds = locker.scopeSharedIndexes(threshold);
+        if (indexIds == null) {
+            return;
+        }
+        for (long indexId : indexIds) {
+            LockResult result = mRangeTable.tryLockShared(locker, indexId, null, null, 0);
+            if (result.isHeld()) {
+                locker.scopeUnlockShared(indexId);
+            } else {
+                // Try again later.
+                locker.mWaitingFor = null;
+            }
+        }
     }
 
     final void unlock(LockOwner locker, Lock lock) {
+        if (lock instanceof RangeLock) {
+            mRangeTable.unlock(locker, (RangeLock) lock);
+            return;
+        }
         LockHT ht = getLockHT(lock.mHashCode);
         ht.acquireExclusive();
         try {
@@ -137,6 +363,10 @@ final class LockManager {
     }
 
     final void unlockToShared(LockOwner locker, Lock lock) {
+        if (lock instanceof RangeLock) {
+            // Range locks are only held as shared.
+            return;
+        }
         LockHT ht = getLockHT(lock.mHashCode);
         ht.acquireExclusive();
         try {
@@ -147,6 +377,9 @@ final class LockManager {
     }
 
     final void unlockToUpgradable(LockOwner locker, Lock lock) {
+        if (lock instanceof RangeLock) {
+            throw new IllegalStateException("Cannot unlock a range lock to upgradable");
+        }
         LockHT ht = getLockHT(lock.mHashCode);
         ht.acquireExclusive();
         try {
@@ -157,6 +390,10 @@ final class LockManager {
     }
 
     final PendingTxn transferExclusive(LockOwner locker, Lock lock, PendingTxn pending) {
+        if (lock instanceof RangeLock) {
+            mRangeTable.unlock(locker, (RangeLock) lock);
+            return pending;
+        }
         LockHT ht = getLockHT(lock.mHashCode);
         ht.acquireExclusive();
         try {
@@ -184,8 +421,8 @@ final class LockManager {
 
     final Locker lockSharedLocal(long indexId, byte[] key, int hash) throws LockFailureException {
         Locker locker = localLocker();
-        LockResult result = getLockHT(hash)
-            .tryLock(TYPE_SHARED, locker, indexId, key, hash, mDefaultTimeoutNanos);
+        LockResult result = tryLock
+            (TYPE_SHARED, locker, indexId, key, hash, mDefaultTimeoutNanos);
         if (result.isHeld()) {
             return locker;
         }
@@ -196,8 +433,8 @@ final class LockManager {
         throws LockFailureException
     {
         Locker locker = localLocker();
-        LockResult result = getLockHT(hash)
-            .tryLock(TYPE_EXCLUSIVE, locker, indexId, key, hash, mDefaultTimeoutNanos);
+        LockResult result = tryLock
+            (TYPE_EXCLUSIVE, locker, indexId, key, hash, mDefaultTimeoutNanos);
         if (result.isHeld()) {
             return locker;
         }
@@ -222,6 +459,7 @@ final class LockManager {
         for (LockHT ht : mHashTables) {
             ht.close(locker);
         }
+        mRangeTable.close();
     }
 
     final static int hash(long indexId, byte[] key) {
@@ -507,4 +745,226 @@ final class LockManager {
             }
         }
     }
+
+    /**
+     * Table of all the range locks which are held, guarded by its latch. Range locks are
+     * expected to be few, and so a simple list suffices.
+     */
+    @SuppressWarnings("serial")
+    static final class RangeTable extends Latch {
+        private RangeLock mFirst;
+        private volatile int mSize;
+
+        /**
+         * Can be called without the latch held.
+         */
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * @param low inclusive low bound; null if unbounded
+         * @param high exclusive high bound; null if unbounded
+         */
+        LockResult tryLockShared(Locker locker, long indexId, byte[] low, byte[] high,
+                                 long nanosTimeout)
+        {
+            RangeLock lock;
+            LockResult result;
+
+            acquireExclusive();
+            try {
+                for (lock = mFirst; lock != null; lock = lock.mRangeNext) {
+                    if (lock.matches(indexId, low, high)) {
+                        break;
+                    }
+                }
+
+                if (lock == null) {
+                    lock = new RangeLock(indexId, low, high);
+                    lock.mLockCount = TYPE_SHARED;
+                    lock.mSharedLockOwnersObj = locker;
+                    lock.mRangeNext = mFirst;
+                    mFirst = lock;
+                    mSize++;
+                    result = ACQUIRED;
+                } else {
+                    result = lock.tryLockShared(this, locker, nanosTimeout);
+                }
+            } finally {
+                releaseExclusive();
+            }
+
+            if (result == ACQUIRED) {
+                locker.push(lock, 0);
+            }
+
+            return result;
+        }
+
+        void unlock(LockOwner locker, RangeLock lock) {
+            acquireExclusive();
+            try {
+                if (lock.unlock(locker, this)) {
+                    remove(lock);
+                }
+            } finally {
+                releaseExclusive();
+            }
+        }
+
+        /**
+         * @return true if the given locker holds a range lock which covers the key
+         */
+        boolean isCovered(LockOwner locker, long indexId, byte[] key) {
+            acquireShared();
+            try {
+                for (RangeLock lock = mFirst; lock != null; lock = lock.mRangeNext) {
+                    if (lock.covers(indexId, key) && lock.check(locker) == OWNED_SHARED) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                releaseShared();
+            }
+        }
+
+        /**
+         * @return true if another locker holds a range lock which covers the key
+         */
+        boolean isConflict(LockOwner locker, long indexId, byte[] key) {
+            acquireShared();
+            try {
+                return findConflict(locker, indexId, key) != null;
+            } finally {
+                releaseShared();
+            }
+        }
+
+        /**
+         * Waits for all range locks held by other lockers which cover the key to be
+         * released. If return value is TIMED_OUT_LOCK and timeout was non-zero, the
+         * locker's mWaitingFor field is set to the range lock as a side-effect.
+         *
+         * @return null if none, or else ILLEGAL, INTERRUPTED, or TIMED_OUT_LOCK
+         */
+        LockResult await(Locker locker, long indexId, byte[] key, long nanosTimeout) {
+            long nanosEnd = nanosTimeout <= 0 ? 0 : (System.nanoTime() + nanosTimeout);
+
+            while (true) {
+                // Conflicts are expected to be rare, so check without blocking other
+                // lock requests first.
+                acquireShared();
+                try {
+                    if (findConflict(locker, indexId, key) == null) {
+                        return null;
+                    }
+                } finally {
+                    releaseShared();
+                }
+
+                acquireExclusive();
+                try {
+                    RangeLock lock = findConflict(locker, indexId, key);
+                    if (lock == null) {
+                        return null;
+                    }
+
+                    if (lock.check(locker) != UNOWNED) {
+                        // Like a key lock, a shared range lock cannot be upgraded when
+                        // other lockers hold it too.
+                        return ILLEGAL;
+                    }
+
+                    // Acquire the range lock exclusively, but only to wait for it. Waiting
+                    // is fair, and so new range lock requests cannot starve the locker.
+                    LockResult result = lock.tryLockExclusive(this, locker, nanosTimeout);
+                    if (result != ACQUIRED) {
+                        return result;
+                    }
+
+                    if (lock.unlock(locker, this)) {
+                        remove(lock);
+                    }
+                } finally {
+                    releaseExclusive();
+                }
+
+                if (nanosTimeout > 0) {
+                    nanosTimeout = Math.max(0, nanosEnd - System.nanoTime());
+                }
+            }
+        }
+
+        /**
+         * Caller must hold latch.
+         */
+        private RangeLock findConflict(LockOwner locker, long indexId, byte[] key) {
+            for (RangeLock lock = mFirst; lock != null; lock = lock.mRangeNext) {
+                if (lock.covers(indexId, key) && lock.isHeldByOther(locker)) {
+                    return lock;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Caller must hold exclusive latch.
+         */
+        private void remove(RangeLock lock) {
+            for (RangeLock e = mFirst, prev = null; e != null; prev = e, e = e.mRangeNext) {
+                if (e == lock) {
+                    if (prev == null) {
+                        mFirst = e.mRangeNext;
+                    } else {
+                        prev.mRangeNext = e.mRangeNext;
+                    }
+                    e.mRangeNext = null;
+                    mSize--;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Releases all range locks and interrupts all waiters.
+         */
+        void close() {
+            acquireExclusive();
+            try {
+                for (RangeLock e = mFirst; e != null; ) {
+                    RangeLock next = e.mRangeNext;
+
+                    e.mLockCount = 0;
+                    e.mOwner = null;
+                    e.mSharedLockOwnersObj = null;
+                    e.mRangeNext = null;
+
+                    LatchCondition q = e.mQueueU;
+                    if (q != null) {
+                        q.clear();
+                        e.mQueueU = null;
+                    }
+
+                    q = e.mQueueSX;
+                    if (q != null) {
+                        q.clear();
+                        e.mQueueSX = null;
+                    }
+
+                    e = next;
+                }
+
+                mFirst = null;
+                mSize = 0;
+            } finally {
+                releaseExclusive();
+            }
+        }
+    }
 }
@@ -30,6 +30,7 @@ package org.cojen.tupl;
  * <ul>
  * <li>{@link #UPGRADABLE_READ} (default)
  * <li>{@link #REPEATABLE_READ}
+ * <li>{@link #SNAPSHOT}
  * <li>{@link #READ_COMMITTED}
  * <li>{@link #READ_UNCOMMITTED}
  * <li>{@link #UNSAFE}
@@ -57,6 +58,21 @@ public enum LockMode {
      */
     REPEATABLE_READ(LockManager.TYPE_SHARED, false),
 
+    /**
+     * Lock mode which never acquires locks when reading entries, and instead reads from a
+     * consistent snapshot. The snapshot begins with the first read in the transaction, and
+     * it ends when the transaction commits or exits the top-level scope. Modifications made
+     * by the transaction itself are visible, but modifications committed by concurrent
+     * transactions after the snapshot began are not. Modifications made in {@link #UNSAFE}
+     * mode aren't tracked by the snapshot.
+     *
+     * <p>Prior versions of modified entries are retained in memory for as long as an
+     * active snapshot might need them, and so long-running snapshots increase memory
+     * usage. This mode can only be used if {@link DatabaseConfig#snapshotReads snapshot
+     * reads} are enabled.
+     */
+    SNAPSHOT(0, true),
+
     /**
      * Lock mode which acquires shared locks when reading entries and releases
      * them as soon as possible.
@@ -30,6 +30,10 @@ abstract class LockOwner implements DatabaseAccess { // weak access to database
     // LockOwner is currently waiting to acquire this lock. Used for deadlock detection.
     Lock mWaitingFor;
 
+    // Set by another locker which chose this one to break a deadlock. Guarded by the latch
+    // of the lock being waited for.
+    boolean mDeadlockVictim;
+
     LockOwner() {
         mHash = ThreadLocalRandom.current().nextInt();
     }
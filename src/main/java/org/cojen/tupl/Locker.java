@@ -16,6 +16,11 @@
 
 package org.cojen.tupl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
 import static org.cojen.tupl.LockManager.*;
 
 /**
@@ -36,6 +41,9 @@ class Locker extends LockOwner {
     // Is null if empty; Lock instance if one; Block if more.
     Object mTailBlock;
 
+    // Shared lock requests since the last lock escalation check.
+    int mEscalationCount;
+
     /**
      * @param manager null for Transaction.BOGUS or when closing down LockManager
      */
@@ -93,7 +101,7 @@ class Locker extends LockOwner {
     final LockResult tryLock(int lockType, long indexId, byte[] key, int hash, long nanosTimeout)
         throws DeadlockException
     {
-        LockResult result = manager().getLockHT(hash)
+        LockResult result = manager()
             .tryLock(lockType, this, indexId, key, hash, nanosTimeout);
 
         if (result == LockResult.TIMED_OUT_LOCK) {
@@ -119,7 +127,7 @@ class Locker extends LockOwner {
     final LockResult lock(int lockType, long indexId, byte[] key, int hash, long nanosTimeout)
         throws LockFailureException
     {
-        LockResult result = manager().getLockHT(hash)
+        LockResult result = manager()
             .tryLock(lockType, this, indexId, key, hash, nanosTimeout);
         if (result.isHeld()) {
             return result;
@@ -140,7 +148,7 @@ class Locker extends LockOwner {
     final LockResult lockNT(int lockType, long indexId, byte[] key, int hash, long nanosTimeout)
         throws LockFailureException
     {
-        LockResult result = manager().getLockHT(hash)
+        LockResult result = manager()
             .tryLock(lockType, this, indexId, key, hash, nanosTimeout);
         if (!result.isHeld()) {
             switch (result) {
@@ -357,6 +365,27 @@ class Locker extends LockOwner {
         return lock(TYPE_EXCLUSIVE, indexId, key, hash, nanosTimeout);
     }
 
+    /**
+     * Acquires a shared lock over a range of keys, including keys which don't exist yet.
+     * While held, shared key locks within the range aren't retained, and other lockers
+     * cannot acquire exclusive key locks within the range.
+     *
+     * @param low inclusive low bound; null if unbounded
+     * @param high exclusive high bound; null if unbounded
+     * @return {@link LockResult#ACQUIRED ACQUIRED} or {@link LockResult#OWNED_SHARED
+     * OWNED_SHARED}
+     */
+    final LockResult lockRangeShared(long indexId, byte[] low, byte[] high, long nanosTimeout)
+        throws LockFailureException
+    {
+        LockResult result = manager().mRangeTable
+            .tryLockShared(this, indexId, low, high, nanosTimeout);
+        if (result.isHeld()) {
+            return result;
+        }
+        throw failed(TYPE_SHARED, result, nanosTimeout, 0);
+    }
+
     /**
      * Lock acquisition used by recovery.
      *
@@ -649,6 +678,180 @@ class Locker extends LockOwner {
         }
     }
 
+    /**
+     * Returns the ids of all the indexes for which at least the given number of shared key
+     * locks are held, within the current scope.
+     *
+     * @return null if none
+     */
+    final long[] scopeSharedIndexes(int threshold) {
+        Object tailObj = mTailBlock;
+        if (!(tailObj instanceof Block)) {
+            // Not worth counting.
+            return null;
+        }
+
+        Block first = scopeFirstBlock();
+        int start = scopeFirstBlockStart(first);
+
+        HashMap<Long, int[]> counts = new HashMap<>(4);
+        long[] ids = null;
+
+        for (Block block = (Block) tailObj; ; block = block.mPrev) {
+            for (int i = block == first ? start : 0; i < block.mSize; i++) {
+                Lock lock = block.mLocks[i];
+                if (isShared(block, i, lock.mIndexId)) {
+                    int[] count = counts.computeIfAbsent(lock.mIndexId, k -> new int[1]);
+                    if (++count[0] == threshold) {
+                        if (ids == null) {
+                            ids = new long[] {lock.mIndexId};
+                        } else {
+                            ids = Arrays.copyOf(ids, ids.length + 1);
+                            ids[ids.length - 1] = lock.mIndexId;
+                        }
+                    }
+                }
+            }
+            if (block == first) {
+                return ids;
+            }
+        }
+    }
+
+    /**
+     * Releases all the shared key locks held for the given index, within the current scope.
+     * Caller must hold a range lock which covers the whole index.
+     */
+    final void scopeUnlockShared(long indexId) {
+        Object tailObj = mTailBlock;
+        if (!(tailObj instanceof Block)) {
+            return;
+        }
+
+        Block first = scopeFirstBlock();
+
+        // Gather the blocks in order, which are linked in reverse.
+        ArrayList<Block> blocks = new ArrayList<>();
+        for (Block block = (Block) tailObj; ; block = block.mPrev) {
+            blocks.add(block);
+            if (block == first) {
+                break;
+            }
+        }
+        Collections.reverse(blocks);
+
+        // Compact the remaining locks in place, preserving the order and upgrade flags.
+
+        final int start = scopeFirstBlockStart(first);
+        int writeIndex = 0;
+        Block wblock = first;
+        int wpos = start;
+
+        for (int bi = 0; bi < blocks.size(); bi++) {
+            Block block = blocks.get(bi);
+            for (int i = bi == 0 ? start : 0; i < block.mSize; i++) {
+                Lock lock = block.mLocks[i];
+                if (isShared(block, i, indexId)) {
+                    mManager.unlock(this, lock);
+                    continue;
+                }
+                long upgrade = (block.mUpgrades >>> i) & 1;
+                if (wpos >= wblock.mLocks.length) {
+                    wblock = blocks.get(++writeIndex);
+                    wpos = 0;
+                }
+                wblock.mLocks[wpos] = lock;
+                wblock.mUpgrades = (wblock.mUpgrades & ~(1L << wpos)) | (upgrade << wpos);
+                wpos++;
+            }
+        }
+
+        if (wpos == 0) {
+            if (writeIndex == 0) {
+                // Everything was released, and so the first block is the entire stack.
+                mTailBlock = null;
+                return;
+            }
+            // Last written block is empty, so discard it.
+            wblock = blocks.get(--writeIndex);
+            wpos = wblock.mSize;
+        }
+
+        if (wpos < wblock.mLocks.length) {
+            Arrays.fill(wblock.mLocks, wpos, wblock.mLocks.length, null);
+            wblock.mUpgrades &= ~(~0L << wpos);
+        }
+        wblock.mSize = wpos;
+
+        for (int bi = writeIndex + 1; bi < blocks.size(); bi++) {
+            blocks.get(bi).discard();
+        }
+
+        mTailBlock = wblock;
+    }
+
+    /**
+     * Returns the number of locks held by this locker, over all scopes. Can be called by any
+     * thread, but the result is only an estimate unless called by the owning thread.
+     */
+    final int estimateLockCount() {
+        Object tailObj = mTailBlock;
+        if (tailObj == null) {
+            return 0;
+        }
+        if (tailObj instanceof Lock) {
+            return 1;
+        }
+        int count = 0;
+        for (Block block = (Block) tailObj; block != null; block = block.mPrev) {
+            count += block.mSize;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the block which contains the first lock within the current scope. Caller
+     * must ensure that the tail is a Block.
+     */
+    private Block scopeFirstBlock() {
+        ParentScope parent = mParentScope;
+        Object parentTailObj;
+        if (parent == null || (parentTailObj = parent.mTailBlock) == null
+            || parentTailObj instanceof Lock)
+        {
+            Block block = (Block) mTailBlock;
+            Block prev;
+            while ((prev = block.mPrev) != null) {
+                block = prev;
+            }
+            return block;
+        }
+        return (Block) parentTailObj;
+    }
+
+    private int scopeFirstBlockStart(Block first) {
+        ParentScope parent = mParentScope;
+        Object parentTailObj;
+        if (parent == null || (parentTailObj = parent.mTailBlock) == null) {
+            return 0;
+        }
+        return parentTailObj instanceof Lock ? 1 : parent.mTailBlockSize;
+    }
+
+    /**
+     * @return true if the lock at the given block position is a shared key lock for the
+     * given index, which was not pushed as an upgrade
+     */
+    private boolean isShared(Block block, int pos, long indexId) {
+        if (((block.mUpgrades >>> pos) & 1) != 0) {
+            return false;
+        }
+        Lock lock = block.mLocks[pos];
+        // Unlatched check of the owner is safe, because only this locker can set itself as
+        // the owner. A lock which is held but not owned must be held as shared.
+        return lock.mIndexId == indexId && lock.mOwner != this && !(lock instanceof RangeLock);
+    }
+
     /**
      * Transfers all exclusive locks held by this Locker, for the top scope only. All other
      * locks are released.
@@ -929,5 +1132,6 @@ class Locker extends LockOwner {
         long mLockTimeoutNanos;
         int mHasState;
         long mSavepoint;
+        VersionStore.Version mVersion;
     }
 }
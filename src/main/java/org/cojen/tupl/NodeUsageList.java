@@ -24,10 +24,18 @@ import org.cojen.tupl.util.Latch;
 
 import static org.cojen.tupl.Node.*;
 import static org.cojen.tupl.PageOps.*;
+import static org.cojen.tupl.Utils.*;
 
 /**
  * List of Nodes, ordered from least to most recently used.
  *
+ * <p>When segmented, the least recently used portion of the list is a probationary segment,
+ * and the remainder is a protected segment. Newly allocated nodes enter at the head of the
+ * probationary segment, and they're promoted to the most recently used position only when
+ * used again. The protected segment is limited in size, and its least recently used nodes
+ * are demoted into the probationary segment. A scan which touches many nodes just once
+ * only churns the probationary segment, and so the working set remains cached.
+ *
  * @author Brian S O'Neill
  */
 @SuppressWarnings("serial")
@@ -41,11 +49,18 @@ final class NodeUsageList extends Latch {
     final transient LocalDatabase mDatabase;
     private final int mPageSize;
     private final long mUsedRate;
+    private final boolean mSegmented;
     private int mMaxSize;
     private int mSize;
     private Node mMostRecentlyUsed;
     private Node mLeastRecentlyUsed;
 
+    // Segmented state: the most recently used probationary node, or null if none, and the
+    // amount of nodes in the protected segment.
+    private Node mProbationHead;
+    private int mProtectedSize;
+    private int mProtectedMaxSize;
+
     // Padding to prevent cache line sharing.
     private long a0, a1, a2, a3;
 
@@ -56,16 +71,20 @@ final class NodeUsageList extends Latch {
      * value should be proportional to the total cache size. For larger caches, exact MRU
      * ordering is less critical, and the cost of updating the ordering is also higher. Hence,
      * a larger used rate value is recommended.
+     * @param segmented pass true for a scan resistant list with a probationary segment
      */
-    NodeUsageList(LocalDatabase db, long usedRate, int maxSize) {
+    NodeUsageList(LocalDatabase db, long usedRate, int maxSize, boolean segmented) {
         if (maxSize <= 0) {
             throw new IllegalArgumentException();
         }
         mDatabase = db;
         mPageSize = db.pageSize();
         mUsedRate = usedRate;
+        mSegmented = segmented;
         acquireExclusive();
         mMaxSize = maxSize;
+        // Protected segment is limited to 80% of the list.
+        mProtectedMaxSize = maxSize - Math.max(1, maxSize / 5);
         releaseExclusive();
     }
 
@@ -96,6 +115,108 @@ final class NodeUsageList extends Latch {
         return size;
     }
 
+    int maxSize() {
+        acquireShared();
+        int maxSize = mMaxSize;
+        releaseShared();
+        return maxSize;
+    }
+
+    /**
+     * Change the maximum amount of nodes in this list. When shrinking, the least recently
+     * used nodes are evicted and deleted until the list fits. Nodes which are latched or
+     * cannot be evicted are moved to the most recently used position instead, and so the
+     * list can remain larger than the maximum. Calling this method again tries to evict them.
+     */
+    void maxSize(int maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        acquireExclusive();
+
+        if (mMaxSize == 0) {
+            // Closed.
+            releaseExclusive();
+            return;
+        }
+
+        mMaxSize = maxSize;
+        mProtectedMaxSize = maxSize - Math.max(1, maxSize / 5);
+
+        if (mSegmented) {
+            while (mProtectedSize > mProtectedMaxSize) {
+                Node head = mProbationHead;
+                demote(head == null ? mLeastRecentlyUsed : head.mMoreUsed);
+            }
+        }
+
+        // Non-durable database only has a copy of the dirty nodes.
+        final boolean durable = mDatabase.mPageDb.isDurable();
+
+        for (int limit = mSize; mSize > mMaxSize && --limit >= 0; ) {
+            Node node = mLeastRecentlyUsed;
+            if (node == null) {
+                break;
+            }
+
+            unlink(node);
+
+            if (!node.tryAcquireExclusive()) {
+                linkMostUsed(node);
+                continue;
+            }
+
+            if (!durable && node.mCachedState != CACHED_CLEAN) {
+                node.releaseExclusive();
+                linkMostUsed(node);
+                continue;
+            }
+
+            // Release the latch while evicting, which might write the node.
+            mSize--;
+            releaseExclusive();
+
+            Throwable failure = null;
+            try {
+                if (node.evict(mDatabase)) {
+                    // Free memory and make node appear to be evicted.
+                    node.doDelete(mDatabase);
+                    node.releaseExclusive();
+                    acquireExclusive();
+                    continue;
+                }
+            } catch (Throwable e) {
+                failure = e;
+            }
+
+            // Node is still in use, so put it back.
+
+            acquireExclusive();
+
+            if (mMaxSize == 0) {
+                // Closed concurrently, and so all other nodes have been deleted.
+                releaseExclusive();
+                node.delete(mDatabase);
+            } else {
+                mSize++;
+                linkMostUsed(node);
+                if (failure == null) {
+                    continue;
+                }
+                releaseExclusive();
+            }
+
+            if (failure != null) {
+                throw rethrow(failure);
+            }
+
+            return;
+        }
+
+        releaseExclusive();
+    }
+
     /**
      * Returns a new or recycled Node instance, latched exclusively, with an undefined id and a
      * clean state.
@@ -118,6 +239,19 @@ final class NodeUsageList extends Latch {
                 } else if (node == null) {
                     break;
                 }
+            } else if (mSegmented) {
+                // Move node to the head of the probationary segment, since if it's recycled,
+                // the node will be used for something new.
+                if (node.mProtectedUsage) {
+                    // Probationary segment is empty.
+                    demote(node);
+                }
+                if (node == mProbationHead) {
+                    // Node is the only probationary node, so make room behind it.
+                    demote(moreUsed);
+                }
+                unlink(node);
+                linkProbationary(node);
             } else {
                 // Move node to the most recently used position.
                 moreUsed.mLessUsed = null;
@@ -131,6 +265,15 @@ final class NodeUsageList extends Latch {
                 continue;
             }
 
+            if (node.mCachePriority == PRIORITY_HIGH && trial < 3
+                && (trial == 1 || node.isInternal()) && node.mId > 0)
+            {
+                // Pass over high priority nodes, unless the cache would otherwise be
+                // exhausted. Internal nodes are only evicted by the last trial.
+                node.releaseExclusive();
+                continue;
+            }
+
             if (trial == 1) {
                 if (node.mCachedState != CACHED_CLEAN) {
                     if (mSize < mMaxSize) {
@@ -141,6 +284,8 @@ final class NodeUsageList extends Latch {
                         node.releaseExclusive();
                         break;
                     }
+                    // Dirty node must be written, so the reserve of clean nodes is exhausted.
+                    mDatabase.evictorSignal();
                 }
 
                 // For first attempt, release the latch early to prevent blocking other
@@ -217,6 +362,10 @@ final class NodeUsageList extends Latch {
             mSize++;
 
             if ((mode & MODE_UNEVICTABLE) == 0) {
+                if (mSegmented) {
+                    linkProbationary(node);
+                    return node;
+                }
                 Node most = mMostRecentlyUsed;
                 node.mLessUsed = most;
                 if (most == null) {
@@ -248,12 +397,25 @@ final class NodeUsageList extends Latch {
         // is popular, it will get more chances to be identified as most recently used. This
         // strategy works well enough because cache eviction is always a best-guess approach.
 
-        if ((rnd.nextLong() & mUsedRate) == 0 && tryAcquireExclusive()) {
+        if ((rnd.nextLong() & mUsedRate) == 0
+            && (node.mCachePriority != PRIORITY_LOW || !node.isLeaf())
+            && tryAcquireExclusive())
+        {
             doUsed(node);
         }
     }
 
     private void doUsed(final Node node) {
+        if (mSegmented && !node.mProtectedUsage) {
+            if (isLinked(node)) {
+                // Promote out of the probationary segment.
+                unlink(node);
+                linkProtected(node);
+            }
+            releaseExclusive();
+            return;
+        }
+
         Node moreUsed = node.mMoreUsed;
         if (moreUsed != null) {
             Node lessUsed = node.mLessUsed;
@@ -288,6 +450,16 @@ final class NodeUsageList extends Latch {
         }
 
         try {
+            if (mSegmented) {
+                if (isLinked(node)) {
+                    unlink(node);
+                    linkLeastUsed(node);
+                } else if (mMaxSize != 0) {
+                    linkLeastUsed(node);
+                }
+                return;
+            }
+
             Node lessUsed = node.mLessUsed;
             if (lessUsed != null) {
                 Node moreUsed = node.mMoreUsed;
@@ -313,6 +485,26 @@ final class NodeUsageList extends Latch {
         }
     }
 
+    /**
+     * Indicate that a node which was just loaded is least recently used, allowing it to be
+     * recycled before all other nodes. Caller must hold any latch on node, which is retained.
+     */
+    void leastUsed(final Node node) {
+        acquireExclusive();
+        try {
+            if (mMaxSize != 0 && node != mLeastRecentlyUsed && isLinked(node)) {
+                unlink(node);
+                if (mSegmented) {
+                    linkLeastUsed(node);
+                } else {
+                    doMakeEvictableNow(node);
+                }
+            }
+        } finally {
+            releaseExclusive();
+        }
+    }
+
     /**
      * Allow a Node which was allocated as unevictable to be evictable, starting off as the
      * most recently used.
@@ -323,6 +515,12 @@ final class NodeUsageList extends Latch {
             // Only insert if not closed and if not already in the list. The node latch doesn't
             // need to be held, and so a concurrent call to the unused method might insert the
             // node sooner.
+            if (mSegmented) {
+                if (mMaxSize != 0 && !isLinked(node)) {
+                    linkProtected(node);
+                }
+                return;
+            }
             if (mMaxSize != 0 && node.mMoreUsed == null) {
                 Node most = mMostRecentlyUsed;
                 if (node != most) {
@@ -348,6 +546,12 @@ final class NodeUsageList extends Latch {
         acquireExclusive();
         try {
             // See comment in the makeEvictable method.
+            if (mSegmented) {
+                if (mMaxSize != 0 && !isLinked(node)) {
+                    linkLeastUsed(node);
+                }
+                return;
+            }
             if (mMaxSize != 0 && node.mLessUsed == null) {
                 doMakeEvictableNow(node);
             }
@@ -391,6 +595,13 @@ final class NodeUsageList extends Latch {
      * Caller must hold latch.
      */
     private void doMakeUnevictable(final Node node) {
+        if (mSegmented) {
+            if (isLinked(node)) {
+                unlink(node);
+            }
+            return;
+        }
+
         final Node lessUsed = node.mLessUsed;
         final Node moreUsed = node.mMoreUsed;
 
@@ -415,6 +626,205 @@ final class NodeUsageList extends Latch {
         }
     }
 
+    /**
+     * Writes out dirty nodes which are close to being evicted, such that the given amount
+     * of nodes can be allocated without first having to write anything. Nodes which are
+     * latched are skipped, since they're in use.
+     *
+     * @param reserve desired amount of free or clean nodes
+     * @return amount of nodes written
+     */
+    int cleanReserve(int reserve) throws IOException {
+        Node[] dirty = null;
+        int count = 0;
+
+        acquireShared();
+        try {
+            int remaining = reserve - (mMaxSize - mSize);
+            for (Node node = mLeastRecentlyUsed; node != null && remaining > 0;
+                 node = node.mMoreUsed, remaining--)
+            {
+                // Checking the state without the node latch is a harmless race.
+                if (node.mCachedState != CACHED_CLEAN) {
+                    if (dirty == null) {
+                        dirty = new Node[remaining];
+                    }
+                    dirty[count++] = node;
+                }
+            }
+        } finally {
+            releaseShared();
+        }
+
+        PageDb pageDb = mDatabase.mPageDb;
+        int written = 0;
+
+        for (int i=0; i<count; i++) {
+            Node node = dirty[i];
+
+            // Node might have been recycled since it was collected, possibly as an
+            // unevictable node which must not be touched. Latch it only if still evictable.
+            acquireShared();
+            try {
+                if (!isLinked(node) || !node.tryAcquireExclusive()) {
+                    continue;
+                }
+            } finally {
+                releaseShared();
+            }
+
+            // Only write nodes which could be evicted right now. A node bound to a cursor
+            // is expected to stay dirty while the commit lock is held, and a bound node is
+            // also the only kind which can be in a split state.
+            if (node.mId <= 0 || node.mCachedState == CACHED_CLEAN
+                || node.mLastCursorFrame != null)
+            {
+                node.releaseExclusive();
+                continue;
+            }
+            // Write with a shared latch, just like a checkpoint does. The node stays in the
+            // dirty list, but the checkpoint skips over clean nodes.
+            node.downgrade();
+            try {
+                node.write(pageDb);
+                node.mCachedState = CACHED_CLEAN;
+            } finally {
+                node.releaseShared();
+            }
+            written++;
+        }
+
+        return written;
+    }
+
+    /**
+     * Returns true if node is in this list. Caller must hold latch.
+     */
+    private boolean isLinked(final Node node) {
+        return node.mLessUsed != null || node.mMoreUsed != null || node == mLeastRecentlyUsed;
+    }
+
+    /**
+     * Removes a node from the list. Caller must hold latch.
+     */
+    private void unlink(final Node node) {
+        final Node lessUsed = node.mLessUsed;
+        final Node moreUsed = node.mMoreUsed;
+
+        if (lessUsed == null) {
+            mLeastRecentlyUsed = moreUsed;
+        } else {
+            lessUsed.mMoreUsed = moreUsed;
+        }
+
+        if (moreUsed == null) {
+            mMostRecentlyUsed = lessUsed;
+        } else {
+            moreUsed.mLessUsed = lessUsed;
+        }
+
+        node.mLessUsed = null;
+        node.mMoreUsed = null;
+
+        if (node.mProtectedUsage) {
+            node.mProtectedUsage = false;
+            mProtectedSize--;
+        } else if (node == mProbationHead) {
+            mProbationHead = lessUsed;
+        }
+    }
+
+    /**
+     * Inserts an unlinked node as the most recently used, or at the head of the
+     * probationary segment if segmented. Caller must hold latch.
+     */
+    private void linkMostUsed(final Node node) {
+        if (mSegmented) {
+            linkProbationary(node);
+        } else {
+            final Node most = mMostRecentlyUsed;
+            node.mLessUsed = most;
+            if (most == null) {
+                mLeastRecentlyUsed = node;
+            } else {
+                most.mMoreUsed = node;
+            }
+            mMostRecentlyUsed = node;
+        }
+    }
+
+    /**
+     * Inserts an unlinked node into a segmented list, at the head of the probationary
+     * segment. Caller must hold latch.
+     */
+    private void linkProbationary(final Node node) {
+        final Node lessUsed = mProbationHead;
+        if (lessUsed == null) {
+            linkLeastUsed(node);
+            return;
+        }
+        final Node moreUsed = lessUsed.mMoreUsed;
+        node.mLessUsed = lessUsed;
+        node.mMoreUsed = moreUsed;
+        lessUsed.mMoreUsed = node;
+        if (moreUsed == null) {
+            mMostRecentlyUsed = node;
+        } else {
+            moreUsed.mLessUsed = node;
+        }
+        mProbationHead = node;
+    }
+
+    /**
+     * Inserts an unlinked node into a segmented list, as the least recently used
+     * probationary node. Caller must hold latch.
+     */
+    private void linkLeastUsed(final Node node) {
+        final Node least = mLeastRecentlyUsed;
+        node.mMoreUsed = least;
+        if (least == null) {
+            mMostRecentlyUsed = node;
+        } else {
+            least.mLessUsed = node;
+        }
+        mLeastRecentlyUsed = node;
+        if (mProbationHead == null) {
+            mProbationHead = node;
+        }
+    }
+
+    /**
+     * Inserts an unlinked node into a segmented list, as the most recently used protected
+     * node, demoting the least recently used protected node if the segment is full. Caller
+     * must hold latch.
+     */
+    private void linkProtected(final Node node) {
+        final Node most = mMostRecentlyUsed;
+        node.mLessUsed = most;
+        if (most == null) {
+            mLeastRecentlyUsed = node;
+        } else {
+            most.mMoreUsed = node;
+        }
+        mMostRecentlyUsed = node;
+        node.mProtectedUsage = true;
+
+        if (++mProtectedSize > mProtectedMaxSize) {
+            Node head = mProbationHead;
+            demote(head == null ? mLeastRecentlyUsed : head.mMoreUsed);
+        }
+    }
+
+    /**
+     * Moves the least recently used protected node into the probationary segment, which
+     * only requires adjusting the segment boundary. Caller must hold latch.
+     */
+    private void demote(final Node node) {
+        node.mProtectedUsage = false;
+        mProtectedSize--;
+        mProbationHead = node;
+    }
+
     /**
      * Must be called when object is no longer referenced.
      */
@@ -427,11 +837,14 @@ final class NodeUsageList extends Latch {
             Node node = mLeastRecentlyUsed;
             mLeastRecentlyUsed = null;
             mMostRecentlyUsed = null;
+            mProbationHead = null;
+            mProtectedSize = 0;
 
             while (node != null) {
                 Node next = node.mMoreUsed;
                 node.mLessUsed = null;
                 node.mMoreUsed = null;
+                node.mProtectedUsage = false;
 
                 // Free memory and make node appear to be evicted.
                 node.delete(mDatabase);
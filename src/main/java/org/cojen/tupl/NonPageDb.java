@@ -144,6 +144,17 @@ final class NonPageDb extends PageDb {
         }
     }
 
+    @Override
+    public void writePages(long id, /*P*/ byte[] pages, int count) throws IOException {
+        int pageSize = pageSize();
+        for (int i=0; i<count; i++) {
+            PageCache cache = mCache;
+            if (cache == null || !cache.add(id + i, pages, i * pageSize, false)) {
+                fail(true);
+            }
+        }
+    }
+
     @Override
     public /*P*/ byte[] evictPage(long id, /*P*/ byte[] page) throws IOException {
         writePage(id, page);
@@ -22,6 +22,8 @@ import java.nio.ByteBuffer;
 
 import java.util.zip.CRC32;
 
+import sun.misc.Unsafe;
+
 import static org.cojen.tupl.Utils.*;
 
 /**
@@ -48,6 +50,12 @@ final class PageOps {
     private static final byte[] CLOSED_TREE_PAGE;
     private static final byte[] STUB_TREE_PAGE;
 
+    // Only available on little-endian platforms. Used for reading longs directly out of
+    // byte arrays, avoiding the shifting transformation.
+    private static final Unsafe UNSAFE = Hasher.getUnsafe();
+    private static final long BYTE_ARRAY_OFFSET =
+        UNSAFE == null ? 0 : UNSAFE.arrayBaseOffset(byte[].class);
+
     static {
         CLOSED_TREE_PAGE = newEmptyTreeLeafPage();
         STUB_TREE_PAGE = newEmptyTreePage(Node.TN_HEADER_SIZE + 8, Node.TYPE_TN_IN);
@@ -326,6 +334,34 @@ final class PageOps {
         return compareUnsigned(apage, aoff, alen, b, boff, blen);
     }
 
+    /**
+     * Returns the number of leading bytes which match between a page key and an array key,
+     * comparing 8 bytes at a time when possible.
+     *
+     * @param len maximum number of bytes to compare
+     * @return index of the first mismatched byte, or len if all bytes match
+     */
+    static int p_mismatch(/*P*/ byte[] apage, int aoff, byte[] b, int boff, int len) {
+        int i = 0;
+        if (UNSAFE != null) {
+            for (; i + 8 <= len; i += 8) {
+                long av = UNSAFE.getLong(apage, BYTE_ARRAY_OFFSET + aoff + i);
+                long bv = UNSAFE.getLong(b, BYTE_ARRAY_OFFSET + boff + i);
+                if (av != bv) {
+                    // Longs were read as little-endian, so the first mismatched byte is the
+                    // lowest one.
+                    return i + (Long.numberOfTrailingZeros(av ^ bv) >> 3);
+                }
+            }
+        }
+        for (; i < len; i++) {
+            if (apage[aoff + i] != b[boff + i]) {
+                break;
+            }
+        }
+        return i;
+    }
+
     static int p_compareKeysPageToPage(/*P*/ byte[] apage, int aoff, int alen,
                                        /*P*/ byte[] bpage, int boff, int blen)
     {
@@ -0,0 +1,569 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.io.IOException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cojen.tupl.ext.TransactionHandler;
+
+import org.cojen.tupl.util.Latch;
+import org.cojen.tupl.util.LatchCondition;
+
+import static org.cojen.tupl.Utils.*;
+
+/**
+ * Applies redo log operations during recovery using multiple threads. Operations are decoded
+ * by a single thread, which acquires locks in the original order, and then they're
+ * dispatched to worker threads. Transactional operations are partitioned by transaction id,
+ * and non-transactional operations are partitioned by key. Operations which cannot be safely
+ * partitioned wait for all workers to finish, and then they're applied by the decoding
+ * thread.
+ *
+ * @author Brian S O'Neill
+ * @see RedoLogApplier
+ */
+/*P*/
+final class ParallelRedoLogApplier implements RedoVisitor {
+    private static final int QUEUE_SIZE = 1024;
+
+    // Maximum time to wait for a lock before waiting for all workers to finish. A lock held
+    // by a transaction which hasn't been explicitly released in the log cannot be acquired.
+    private static final long LOCK_TIMEOUT_NANOS = 1_000_000_000L;
+
+    private final LocalDatabase mDatabase;
+    private final LHashTable.Obj<LocalTransaction> mRecovered;
+    private final TxnTable mTransactions;
+    private final LHashTable.Obj<Index> mIndexes;
+
+    private final Worker[] mWorkers;
+
+    // Count of operations which have been dispatched but not yet applied.
+    private final AtomicInteger mPending;
+
+    // Decoding thread waits on this condition for pending counts to reach zero.
+    private final Latch mIdleLatch;
+    private final LatchCondition mIdleCondition;
+    private volatile AtomicInteger mAwaiting;
+
+    private volatile Throwable mFailure;
+
+    long mHighestTxnId;
+
+    /**
+     * @param txns recovered transactions; cleared as a side-effect, and filled again with
+     * all remaining transactions when finished
+     */
+    ParallelRedoLogApplier(LocalDatabase db, LHashTable.Obj<LocalTransaction> txns,
+                           int threads)
+    {
+        mDatabase = db;
+        mRecovered = txns;
+
+        final TxnTable txnTable = new TxnTable(Math.max(16, txns.size()));
+        txns.traverse((entry) -> {
+            txnTable.insert(entry.key).mTxn = entry.value;
+            // Delete entry.
+            return true;
+        });
+        mTransactions = txnTable;
+
+        mIndexes = new LHashTable.Obj<>(16);
+
+        mPending = new AtomicInteger();
+        mIdleLatch = new Latch();
+        mIdleCondition = new LatchCondition();
+
+        mWorkers = new Worker[Math.max(1, threads)];
+        for (int i=0; i<mWorkers.length; i++) {
+            mWorkers[i] = new Worker(i);
+        }
+        for (Worker w : mWorkers) {
+            w.start();
+        }
+    }
+
+    /**
+     * Waits for all dispatched operations to be applied, and stops the worker threads. Must
+     * be called even if replay failed.
+     */
+    void finish() throws IOException {
+        try {
+            awaitIdle(mPending);
+        } finally {
+            for (Worker w : mWorkers) {
+                w.shutdown();
+            }
+            boolean interrupted = false;
+            for (Worker w : mWorkers) {
+                while (true) {
+                    try {
+                        w.join();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            mTransactions.traverse((entry) -> {
+                mRecovered.insert(entry.key).value = entry.mTxn;
+                return true;
+            });
+        }
+
+        checkFailure();
+    }
+
+    @Override
+    public boolean timestamp(long timestamp) {
+        return true;
+    }
+
+    @Override
+    public boolean shutdown(long timestamp) {
+        return true;
+    }
+
+    @Override
+    public boolean close(long timestamp) {
+        return true;
+    }
+
+    @Override
+    public boolean endFile(long timestamp) {
+        return true;
+    }
+
+    @Override
+    public boolean reset() {
+        return true;
+    }
+
+    @Override
+    public boolean store(long indexId, byte[] key, byte[] value) throws IOException {
+        // No need to actually acquire a lock for log based recovery, except to ensure that
+        // operations against the same key are applied in order.
+        Index ix = openIndex(indexId);
+        if (ix != null) {
+            int hash = LockManager.hash(indexId, key);
+            Locker locker = new Locker(mDatabase.mLockManager);
+            lockExclusive(locker, indexId, key, hash);
+            dispatch(hash, null, () -> {
+                try {
+                    ix.store(Transaction.BOGUS, key, value);
+                } finally {
+                    locker.scopeUnlockAll();
+                }
+            });
+        }
+        return true;
+    }
+
+    @Override
+    public boolean storeNoLock(long indexId, byte[] key, byte[] value) throws IOException {
+        // The key might be locked by a transaction which is still open, and so acquiring
+        // the lock could fail. Without the lock, nothing orders this store against pending
+        // transactional operations on the same key, which are partitioned by transaction
+        // id. Wait for all of them to finish, and then apply the store directly.
+        Index ix = openIndex(indexId);
+        if (ix != null) {
+            awaitIdle(mPending);
+            ix.store(Transaction.BOGUS, key, value);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean renameIndex(long txnId, long indexId, byte[] newName) throws IOException {
+        checkHighest(txnId);
+        Index ix = openIndex(indexId);
+        if (ix != null) {
+            awaitIdle(mPending);
+            mDatabase.renameIndex(ix, newName, txnId);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean deleteIndex(long txnId, long indexId) throws IOException {
+        TxnEntry te = txn(txnId);
+
+        awaitIdle(mPending);
+
+        // Close the index for now. After recovery is complete, trashed indexes are deleted in
+        // a separate thread.
+
+        Index ix;
+        {
+            LHashTable.ObjEntry<Index> entry = mIndexes.remove(indexId);
+            if (entry == null) {
+                ix = mDatabase.anyIndexById(te == null ? null : te.mTxn, indexId);
+            } else {
+                ix = entry.value;
+            }
+        }
+
+        if (ix != null) {
+            ix.close();
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean txnEnter(long txnId) throws IOException {
+        TxnEntry te = txn(txnId);
+        if (te == null) {
+            mTransactions.insert(txnId).mTxn =
+                new LocalTransaction(mDatabase, txnId, LockMode.UPGRADABLE_READ, 0L);
+        } else {
+            LocalTransaction txn = te.mTxn;
+            dispatch(txnId, te, () -> txn.enter());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean txnRollback(long txnId) throws IOException {
+        TxnEntry te = txn(txnId);
+        if (te != null) {
+            LocalTransaction txn = te.mTxn;
+            dispatch(txnId, te, () -> txn.exit());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean txnRollbackFinal(long txnId) throws IOException {
+        checkHighest(txnId);
+        TxnEntry te = mTransactions.remove(txnId);
+        if (te != null) {
+            LocalTransaction txn = te.mTxn;
+            dispatch(txnId, te, () -> txn.reset());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean txnCommit(long txnId) throws IOException {
+        TxnEntry te = txn(txnId);
+        if (te != null) {
+            LocalTransaction txn = te.mTxn;
+            dispatch(txnId, te, () -> {
+                txn.commit();
+                txn.exit();
+            });
+        }
+        return true;
+    }
+
+    @Override
+    public boolean txnCommitFinal(long txnId) throws IOException {
+        checkHighest(txnId);
+        TxnEntry te = mTransactions.remove(txnId);
+        if (te != null) {
+            LocalTransaction txn = te.mTxn;
+            dispatch(txnId, te, () -> txn.commitAll());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean txnStore(long txnId, long indexId, byte[] key, byte[] value)
+        throws IOException
+    {
+        TxnEntry te = txn(txnId);
+        if (te != null) {
+            Index ix = openIndex(indexId);
+            if (ix != null) {
+                LocalTransaction txn = te.mTxn;
+                // Transaction cannot be accessed by the worker while acquiring the lock.
+                awaitIdle(te.mPending);
+                lockExclusive(txn, indexId, key, LockManager.hash(indexId, key));
+                dispatch(txnId, te, () -> ix.store(txn, key, value));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean txnStoreCommitFinal(long txnId, long indexId, byte[] key, byte[] value)
+        throws IOException
+    {
+        txnStore(txnId, indexId, key, value);
+        return txnCommitFinal(txnId);
+    }
+
+    @Override
+    public boolean txnCustom(long txnId, byte[] message) throws IOException {
+        TxnEntry te = txn(txnId);
+        if (te != null) {
+            LocalDatabase db = mDatabase;
+            TransactionHandler handler = db.mCustomTxnHandler;
+            if (handler == null) {
+                throw new DatabaseException("Custom transaction handler is not installed");
+            }
+            // Handler can do anything, so run it in isolation.
+            awaitIdle(mPending);
+            handler.redo(db, te.mTxn, message);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean txnCustomLock(long txnId, byte[] message, long indexId, byte[] key)
+        throws IOException
+    {
+        TxnEntry te = txn(txnId);
+        if (te != null) {
+            LocalDatabase db = mDatabase;
+            TransactionHandler handler = db.mCustomTxnHandler;
+            if (handler == null) {
+                throw new DatabaseException("Custom transaction handler is not installed");
+            }
+            awaitIdle(mPending);
+            LocalTransaction txn = te.mTxn;
+            txn.lockExclusive(indexId, key);
+            handler.redo(db, txn, message, indexId, key);
+        }
+        return true;
+    }
+
+    private TxnEntry txn(long txnId) {
+        checkHighest(txnId);
+        return mTransactions.get(txnId);
+    }
+
+    private void checkHighest(long txnId) {
+        if (txnId > mHighestTxnId) {
+            mHighestTxnId = txnId;
+        }
+    }
+
+    private Index openIndex(long indexId) throws IOException {
+        LHashTable.ObjEntry<Index> entry = mIndexes.get(indexId);
+        if (entry != null) {
+            return entry.value;
+        }
+        Index ix = mDatabase.anyIndexById(indexId);
+        if (ix != null) {
+            // Maintain a strong reference to the index.
+            mIndexes.insert(indexId).value = ix;
+        }
+        return ix;
+    }
+
+    /**
+     * Acquires a lock in the same order as the original operation. A conflicting lock is
+     * released by an operation which was already dispatched, and so waiting cannot deadlock.
+     * If the lock cannot be acquired in a reasonable amount of time, all workers are allowed
+     * to finish and the lock is then tried again without waiting.
+     */
+    private void lockExclusive(Locker locker, long indexId, byte[] key, int hash)
+        throws IOException
+    {
+        try {
+            locker.lockExclusive(indexId, key, hash, LOCK_TIMEOUT_NANOS);
+        } catch (LockFailureException e) {
+            awaitIdle(mPending);
+            locker.lockExclusive(indexId, key, hash, 0);
+        }
+    }
+
+    /**
+     * @param partition transaction id or key hash
+     * @param te optional transaction entry to track pending operations for
+     */
+    private void dispatch(long partition, TxnEntry te, Task task) throws IOException {
+        checkFailure();
+        mPending.incrementAndGet();
+        if (te != null) {
+            te.mPending.incrementAndGet();
+        }
+        Worker[] workers = mWorkers;
+        int slot = (int) ((scramble(partition) & 0x7fffffffL) % workers.length);
+        workers[slot].enqueue(task, te);
+    }
+
+    /**
+     * Waits for the given pending count to reach zero.
+     */
+    private void awaitIdle(AtomicInteger pending) throws IOException {
+        if (pending.get() != 0) {
+            mIdleLatch.acquireExclusive();
+            try {
+                mAwaiting = pending;
+                while (pending.get() != 0) {
+                    mIdleCondition.await(mIdleLatch, -1, 0);
+                }
+            } finally {
+                mAwaiting = null;
+                mIdleLatch.releaseExclusive();
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Called by worker after applying an operation.
+     */
+    private void applied(TxnEntry te) {
+        boolean signal = false;
+        AtomicInteger awaiting;
+        if (te != null && te.mPending.decrementAndGet() == 0) {
+            awaiting = mAwaiting;
+            signal = awaiting == te.mPending;
+        }
+        if (mPending.decrementAndGet() == 0) {
+            awaiting = mAwaiting;
+            signal |= awaiting == mPending;
+        }
+        if (signal) {
+            mIdleLatch.acquireExclusive();
+            mIdleCondition.signalAll();
+            mIdleLatch.releaseExclusive();
+        }
+    }
+
+    private void failed(Throwable e) {
+        synchronized (this) {
+            if (mFailure == null) {
+                mFailure = e;
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable e = mFailure;
+        if (e != null) {
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw rethrow(e);
+        }
+    }
+
+    @FunctionalInterface
+    static interface Task {
+        void run() throws IOException;
+    }
+
+    final class Worker extends Thread {
+        private final Latch mQueueLatch;
+        private final LatchCondition mNotEmpty;
+        private final LatchCondition mNotFull;
+
+        private final Task[] mTasks;
+        private final TxnEntry[] mEntries;
+        private int mHead;
+        private int mSize;
+        private boolean mStopped;
+
+        Worker(int num) {
+            super("RecoveryApplier-" + num);
+            setDaemon(true);
+            mQueueLatch = new Latch();
+            mNotEmpty = new LatchCondition();
+            mNotFull = new LatchCondition();
+            mTasks = new Task[QUEUE_SIZE];
+            mEntries = new TxnEntry[QUEUE_SIZE];
+        }
+
+        void enqueue(Task task, TxnEntry te) {
+            mQueueLatch.acquireExclusive();
+            try {
+                while (mSize >= QUEUE_SIZE) {
+                    mNotFull.await(mQueueLatch, -1, 0);
+                }
+                int tail = (mHead + mSize) % QUEUE_SIZE;
+                mTasks[tail] = task;
+                mEntries[tail] = te;
+                mSize++;
+                mNotEmpty.signal();
+            } finally {
+                mQueueLatch.releaseExclusive();
+            }
+        }
+
+        void shutdown() {
+            mQueueLatch.acquireExclusive();
+            mStopped = true;
+            mNotEmpty.signal();
+            mQueueLatch.releaseExclusive();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Task task;
+                TxnEntry te;
+
+                mQueueLatch.acquireExclusive();
+                try {
+                    while (mSize == 0) {
+                        if (mStopped) {
+                            return;
+                        }
+                        mNotEmpty.await(mQueueLatch, -1, 0);
+                    }
+                    int head = mHead;
+                    task = mTasks[head];
+                    te = mEntries[head];
+                    mTasks[head] = null;
+                    mEntries[head] = null;
+                    mHead = (head + 1) % QUEUE_SIZE;
+                    mSize--;
+                    mNotFull.signal();
+                } finally {
+                    mQueueLatch.releaseExclusive();
+                }
+
+                try {
+                    if (mFailure == null) {
+                        task.run();
+                    }
+                } catch (Throwable e) {
+                    failed(e);
+                } finally {
+                    applied(te);
+                }
+            }
+        }
+    }
+
+    static final class TxnEntry extends LHashTable.Entry<TxnEntry> {
+        LocalTransaction mTxn;
+
+        // Count of dispatched operations which haven't been applied yet.
+        final AtomicInteger mPending = new AtomicInteger();
+    }
+
+    static final class TxnTable extends LHashTable<TxnEntry> {
+        TxnTable(int capacity) {
+            super(capacity);
+        }
+
+        protected TxnEntry newEntry() {
+            return new TxnEntry();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.Arrays;
+
+import static org.cojen.tupl.Utils.*;
+
+/**
+ * Lock which guards all keys within a range, including keys which don't exist yet. Range
+ * locks are only held in shared mode, and they're tracked by the LockManager in a separate
+ * table, which is consulted when key locks are acquired. The owner of a range lock doesn't
+ * need to retain shared key locks within the range, and exclusive key locks requested by
+ * other lockers must wait for the range lock to be released.
+ *
+ * @author Brian S O'Neill
+ * @see LockManager.RangeTable
+ */
+/*P*/
+final class RangeLock extends Lock {
+    // Inclusive low bound, or null if unbounded.
+    final byte[] mLow;
+    // Exclusive high bound, or null if unbounded.
+    final byte[] mHigh;
+
+    // Next entry in the RangeTable, guarded by its latch.
+    RangeLock mRangeNext;
+
+    RangeLock(long indexId, byte[] low, byte[] high) {
+        mIndexId = indexId;
+        // Only used for reporting the lock in exceptions.
+        mKey = low;
+        mLow = low;
+        mHigh = high;
+    }
+
+    /**
+     * @return true if given range is exactly the same as this one
+     */
+    boolean matches(long indexId, byte[] low, byte[] high) {
+        return mIndexId == indexId && Arrays.equals(mLow, low) && Arrays.equals(mHigh, high);
+    }
+
+    /**
+     * @return true if given key is within this range
+     */
+    boolean covers(long indexId, byte[] key) {
+        if (mIndexId != indexId) {
+            return false;
+        }
+        byte[] low = mLow;
+        if (low != null && compareUnsigned(key, low) < 0) {
+            return false;
+        }
+        byte[] high = mHigh;
+        return high == null || compareUnsigned(key, high) < 0;
+    }
+
+    /**
+     * Called with any latch held, which is retained.
+     *
+     * @return true if any locker other than the given one holds this range lock
+     */
+    boolean isHeldByOther(LockOwner locker) {
+        int count = mLockCount;
+        if (count == ~0) {
+            // Briefly held by a locker which was waiting for the range to be released.
+            return mOwner != locker;
+        }
+        count &= 0x7fffffff;
+        return count > 1 || (count == 1 && check(locker) == LockResult.UNOWNED);
+    }
+
+    @Override
+    Object findOwnerAttachment(Locker locker, int lockType, int hash) {
+        LockManager manager;
+        if (locker == null || (manager = locker.mManager) == null) {
+            return super.findOwnerAttachment(locker, lockType, hash);
+        }
+        // Need the table latch to safely check the shared lock owner hashtable.
+        LockManager.RangeTable table = manager.mRangeTable;
+        table.acquireShared();
+        try {
+            return super.findOwnerAttachment(null, lockType, hash);
+        } finally {
+            table.releaseShared();
+        }
+    }
+}
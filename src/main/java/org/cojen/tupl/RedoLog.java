@@ -33,9 +33,14 @@ import java.nio.channels.FileChannel;
 
 import java.security.GeneralSecurityException;
 
+import java.util.concurrent.locks.LockSupport;
+
 import org.cojen.tupl.io.FileFactory;
 import org.cojen.tupl.io.FileIO;
 
+import org.cojen.tupl.util.Latch;
+import org.cojen.tupl.util.LatchCondition;
+
 /**
  * 
  *
@@ -70,6 +75,15 @@ final class RedoLog extends RedoWriter {
 
     private long mDeleteLogId;
 
+    // Group commit state, guarded by mSyncLatch.
+    private final long mGroupCommitDelayNanos;
+    private final Latch mSyncLatch;
+    private final LatchCondition mSyncQueue;
+    private boolean mSyncActive;
+    private long mSyncedPosition;
+    private long mGroupSyncCount;
+    private long mGroupCommitCount;
+
     /**
      * Open for replay.
      *
@@ -86,7 +100,8 @@ final class RedoLog extends RedoWriter {
      */
     RedoLog(DatabaseConfig config, RedoLog replayed) throws IOException {
         this(config.mCrypto, config.mBaseFile, config.mFileFactory,
-             replayed.mLogId, replayed.mPosition, false);
+             replayed.mLogId, replayed.mPosition, false,
+             config.mGroupCommitDelayNanos, config.redoStripes());
     }
 
     /**
@@ -98,13 +113,31 @@ final class RedoLog extends RedoWriter {
             long logId, long redoPos, boolean replay)
         throws IOException
     {
-        super(65536, 0);
+        this(crypto, baseFile, factory, logId, redoPos, replay, 0, 0);
+    }
+
+    /**
+     * @param crypto optional
+     * @param factory optional
+     * @param logId first log id to open
+     * @param groupCommitDelayNanos time for a group commit leader to wait before syncing
+     * @param stripes number of stripes for encoding transactional operations
+     */
+    RedoLog(Crypto crypto, File baseFile, FileFactory factory,
+            long logId, long redoPos, boolean replay, long groupCommitDelayNanos, int stripes)
+        throws IOException
+    {
+        super(65536, 0, stripes);
 
         mCrypto = crypto;
         mBaseFile = baseFile;
         mFileFactory = factory;
         mReplayMode = replay;
 
+        mGroupCommitDelayNanos = groupCommitDelayNanos;
+        mSyncLatch = new Latch();
+        mSyncQueue = new LatchCondition();
+
         synchronized (this) {
             mLogId = logId;
             mPosition = redoPos;
@@ -160,7 +193,7 @@ final class RedoLog extends RedoWriter {
                     files.add(file);
 
                     DataIn din = new DataIn.Stream(mPosition, in);
-                    finished = replay(din, visitor, listener);
+                    finished = replay(din, file.length(), visitor, listener);
                     mPosition = din.mPos;
                 } finally {
                     Utils.closeQuietly(null, in);
@@ -290,6 +323,77 @@ final class RedoLog extends RedoWriter {
         return this;
     }
 
+    /**
+     * Group commit implementation. The first committer to arrive becomes the leader, which
+     * syncs the log on behalf of all the committers which arrived while a sync was in
+     * progress. Followers wait for a sync which covers their commit position, or else they
+     * take over as the next leader.
+     */
+    @Override
+    public void txnCommitSync(LocalTransaction txn, long commitPos) throws IOException {
+        final Latch latch = mSyncLatch;
+        boolean interrupted = false;
+
+        latch.acquireExclusive();
+        try {
+            while (true) {
+                if (commitPos <= mSyncedPosition) {
+                    mGroupCommitCount++;
+                    return;
+                }
+                if (!mSyncActive) {
+                    break;
+                }
+                if (mSyncQueue.await(latch, -1, 0) < 0) {
+                    // Sync must still complete, but preserve the interrupt.
+                    interrupted = true;
+                }
+            }
+            mSyncActive = true;
+            mGroupCommitCount++;
+        } finally {
+            latch.releaseExclusive();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Leader of a new group.
+
+        long syncPos = 0;
+        try {
+            long delay = mGroupCommitDelayNanos;
+            if (delay > 0) {
+                // Allow more committers to join the group.
+                LockSupport.parkNanos(this, delay);
+            }
+            long pos;
+            synchronized (this) {
+                pos = mPosition;
+            }
+            super.txnCommitSync(txn, commitPos);
+            // Only advance the synced position if the sync succeeded.
+            syncPos = pos;
+        } finally {
+            latch.acquireExclusive();
+            if (syncPos > mSyncedPosition) {
+                mSyncedPosition = syncPos;
+                mGroupSyncCount++;
+            }
+            mSyncActive = false;
+            mSyncQueue.signalAll();
+            latch.releaseExclusive();
+        }
+    }
+
+    @Override
+    void addStats(Database.Stats stats) {
+        mSyncLatch.acquireExclusive();
+        stats.redoSyncCount = mGroupSyncCount;
+        stats.redoSyncCommitCount = mGroupCommitCount;
+        mSyncLatch.releaseExclusive();
+    }
+
     @Override
     boolean isOpen() {
         FileChannel channel = mChannel;
@@ -321,6 +425,8 @@ final class RedoLog extends RedoWriter {
 
     @Override
     void checkpointSwitch() throws IOException {
+        // Operations which were encoded before the switch belong in the old file.
+        drainStripes();
         applyNextFile();
     }
 
@@ -459,7 +565,10 @@ final class RedoLog extends RedoWriter {
         return mTermRndSeed = Utils.nextRandom(mTermRndSeed);
     }
 
-    private boolean replay(DataIn in, RedoVisitor visitor, EventListener listener)
+    /**
+     * @param length file length, for reporting progress
+     */
+    private boolean replay(DataIn in, long length, RedoVisitor visitor, EventListener listener)
         throws IOException
     {
         try {
@@ -490,7 +599,7 @@ final class RedoLog extends RedoWriter {
         mTermRndSeed = in.readIntLE();
 
         try {
-            return new RedoLogDecoder(this, in, listener).run(visitor);
+            return new RedoLogDecoder(this, in, length, listener).run(visitor);
         } catch (EOFException e) {
             if (listener != null) {
                 listener.notify(EventType.RECOVERY_REDO_LOG_CORRUPTION, "Unexpected end of file");
@@ -185,6 +185,11 @@ final class ReverseCursor implements Cursor {
         return mSource.lock();
     }
 
+    @Override
+    public LockResult lockRange() throws IOException {
+        return mSource.lockRange();
+    }
+
     @Override
     public LockResult load() throws IOException {
         return mSource.load();
@@ -55,6 +55,16 @@ final class ReverseView implements View {
         return mSource.load(txn, key);
     }
 
+    @Override
+    public byte[][] loadAll(Transaction txn, byte[][] keys) throws IOException {
+        return mSource.loadAll(txn, keys);
+    }
+
+    @Override
+    public void storeAll(Transaction txn, byte[][] keys, byte[][] values) throws IOException {
+        mSource.storeAll(txn, keys, values);
+    }
+
     @Override
     public void store(Transaction txn, byte[] key, byte[] value) throws IOException {
         mSource.store(txn, key, value);
@@ -0,0 +1,61 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.io.IOException;
+
+/**
+ * Sorts a large amount of unordered entries, spilling to temporary indexes as necessary.
+ * Sorters aren't thread-safe, and a single thread is expected to add all the entries.
+ *
+ * @author Brian S O'Neill
+ * @see Database#newSorter Database.newSorter
+ */
+public interface Sorter {
+    /**
+     * Add an entry into the sorter. If multiple entries are added with matching keys, only
+     * the last one added is kept. The key and value arrays aren't cloned, and so they must
+     * not be modified after being added.
+     *
+     * @param key non-null key
+     * @param value non-null value
+     */
+    public void add(byte[] key, byte[] value) throws IOException;
+
+    /**
+     * Finish sorting the entries, and return a temporary index with the results. The sorter
+     * is reset and can be used again.
+     */
+    public Index finish() throws IOException;
+
+    /**
+     * Finish sorting the entries, and {@link Database#bulkLoad bulk load} them into the
+     * given empty index. The sorter is reset and can be used again, even if an exception is
+     * thrown.
+     *
+     * @param index non-null empty index
+     * @throws ClosedIndexException if index reference is closed
+     * @throws IllegalStateException if index isn't empty or has active cursors
+     * @throws IllegalArgumentException if index belongs to another database instance
+     */
+    public void finish(Index index) throws IOException;
+
+    /**
+     * Discards all the entries which have been added, and resets the sorter.
+     */
+    public void reset() throws IOException;
+}
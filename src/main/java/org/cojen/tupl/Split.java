@@ -50,6 +50,13 @@ final class Split {
         mActualKey = actualKey;
     }
 
+    /**
+     * @return full split key, which is never fragmented
+     */
+    final byte[] fullKey() {
+        return mFullKey;
+    }
+
     /**
      * @return null if key is not fragmented
      */
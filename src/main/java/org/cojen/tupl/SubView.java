@@ -35,6 +35,28 @@ abstract class SubView implements View {
         return inRange(key) ? mSource.load(txn, key) : null;
     }
 
+    @Override
+    public byte[][] loadAll(Transaction txn, byte[][] keys) throws IOException {
+        byte[][] inRange = new byte[keys.length][];
+        for (int i=0; i<keys.length; i++) {
+            byte[] key = keys[i];
+            if (inRange(key)) {
+                inRange[i] = key;
+            }
+        }
+        return ViewUtils.loadAllPresent(mSource, txn, inRange);
+    }
+
+    @Override
+    public void storeAll(Transaction txn, byte[][] keys, byte[][] values) throws IOException {
+        for (byte[] key : keys) {
+            if (!inRange(key)) {
+                throw fail();
+            }
+        }
+        mSource.storeAll(txn, keys, values);
+    }
+
     @Override
     public void store(Transaction txn, byte[] key, byte[] value) throws IOException {
         if (inRange(key)) {
@@ -454,6 +454,11 @@ final class TransformedCursor implements Cursor {
         return mSource.lock();
     }
 
+    @Override
+    public LockResult lockRange() throws IOException {
+        return mSource.lockRange();
+    }
+
     @Override
     public LockResult load() throws IOException {
         final byte[] tkey = mKey;
@@ -86,6 +86,60 @@ final class TransformedView implements View {
         }
     }
 
+    @Override
+    public byte[][] loadAll(final Transaction txn, final byte[][] tkeys) throws IOException {
+        if (txn != null && txn.lockMode().isRepeatable()) {
+            // Locks of filtered out entries must be released, which requires a separate
+            // scope for each load.
+            byte[][] tvalues = new byte[tkeys.length][];
+            for (int i=0; i<tkeys.length; i++) {
+                tvalues[i] = load(txn, tkeys[i]);
+            }
+            return tvalues;
+        }
+
+        final byte[][] keys = new byte[tkeys.length][];
+        for (int i=0; i<tkeys.length; i++) {
+            keys[i] = inverseTransformKey(tkeys[i]);
+        }
+
+        final byte[][] values = ViewUtils.loadAllPresent(mSource, txn, keys);
+
+        for (int i=0; i<values.length; i++) {
+            byte[] key = keys[i];
+            if (key != null) {
+                values[i] = mTransformer.transformValue(values[i], key, tkeys[i]);
+            }
+        }
+
+        return values;
+    }
+
+    @Override
+    public void storeAll(final Transaction txn, final byte[][] tkeys, final byte[][] tvalues)
+        throws IOException
+    {
+        if (tkeys.length != tvalues.length) {
+            throw new IllegalArgumentException
+                ("Mismatched key and value counts: " + tkeys.length + " != " + tvalues.length);
+        }
+
+        final byte[][] keys = new byte[tkeys.length][];
+        final byte[][] values = new byte[tkeys.length][];
+
+        for (int i=0; i<tkeys.length; i++) {
+            final byte[] tkey = tkeys[i];
+            final byte[] key = inverseTransformKey(tkey);
+            if (key == null) {
+                throw fail();
+            }
+            keys[i] = key;
+            values[i] = mTransformer.inverseTransformValue(tvalues[i], key, tkey);
+        }
+
+        mSource.storeAll(txn, keys, values);
+    }
+
     @Override
     public void store(final Transaction txn, final byte[] tkey, final byte[] tvalue)
         throws IOException
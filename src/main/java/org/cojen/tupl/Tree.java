@@ -21,6 +21,10 @@ import java.io.DataOutput;
 import java.io.InterruptedIOException;
 import java.io.IOException;
 
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Spliterator;
+
 import java.util.concurrent.ThreadLocalRandom;
 
 import static org.cojen.tupl.PageOps.*;
@@ -61,6 +65,9 @@ class Tree implements View, Index {
     // Name is null for all internal trees.
     volatile byte[] mName;
 
+    // Compresses values, or null if values aren't compressed.
+    volatile ValueCompressor mCompressor;
+
     // Linked list of stubs, which are created when the root node is deleted. They need to
     // stick around indefinitely, to ensure that any bound cursors still function normally.
     // When tree height increases again, the stub is replaced with a real node. Root node must
@@ -151,13 +158,31 @@ class Tree implements View, Index {
 
         // If lock must be acquired and retained, acquire now and skip the quick check later.
         if (local != null) {
-            int lockType = local.lockMode().repeatable;
+            LockMode mode = local.lockMode();
+            if (mode == LockMode.SNAPSHOT) {
+                local.snapshotCheck();
+                return local.snapshotValue(mId, key, doLoad(local, key));
+            }
+            int lockType = mode.repeatable;
             if (lockType != 0) {
                 int hash = LockManager.hash(mId, key);
                 local.lock(lockType, mId, key, hash, local.mLockTimeoutNanos);
             }
         }
 
+        return doLoad(local, key);
+    }
+
+    private byte[] doLoad(LocalTransaction local, byte[] key) throws IOException {
+        /*P*/ // [
+        {
+            byte[] value = loadOptimistic(local, key);
+            if (value != Node.OPTIMISTIC_FAIL_VALUE) {
+                return value;
+            }
+        }
+        /*P*/ // ]
+
         Node node = mRoot;
         node.acquireShared();
 
@@ -220,6 +245,20 @@ class Tree implements View, Index {
             int lowMatch = 0;
             int highMatch = 0;
 
+            final int plen = node.keyPrefixLength();
+            if (plen != 0) {
+                int cmp = Node.compareKeyPrefix(page, plen, key);
+                if (cmp > 0) {
+                    // Key is lower than all keys in the node.
+                    highPos = lowPos - 2;
+                } else if (cmp < 0) {
+                    // Key is higher than all keys in the node.
+                    lowPos = highPos + 2;
+                }
+                lowMatch = plen;
+                highMatch = plen;
+            }
+
             outer: while (lowPos <= highPos) {
                 int midPos = ((lowPos + highPos) >> 1) & ~1;
 
@@ -234,39 +273,34 @@ class Tree implements View, Index {
                         compareLen = ((compareLen & 0x3f) << 8) | p_ubyteGet(page, compareLoc++);
 
                         if ((header & Node.ENTRY_FRAGMENTED) != 0) {
-                            // Note: An optimized version wouldn't need to copy the whole key.
-                            byte[] compareKey = mDatabase.reconstructKey
-                                (page, compareLoc, compareLen);
-
-                            int fullCompareLen = compareKey.length;
-
-                            int minLen = Math.min(fullCompareLen, keyLen);
-                            i = Math.min(lowMatch, highMatch);
-                            for (; i<minLen; i++) {
-                                byte cb = compareKey[i];
-                                byte kb = key[i];
-                                if (cb != kb) {
-                                    if ((cb & 0xff) < (kb & 0xff)) {
-                                        lowPos = midPos + 2;
-                                        lowMatch = i;
-                                    } else {
-                                        highPos = midPos - 2;
-                                        highMatch = i;
-                                    }
-                                    continue outer;
-                                }
+                            int cmp = mDatabase.compareFragmentedKey
+                                (page, compareLoc, compareLen, key,
+                                 Math.min(lowMatch, highMatch));
+                            if (cmp < 0) {
+                                lowPos = midPos + 2;
+                                lowMatch = ~cmp;
+                                continue outer;
+                            } else if (cmp > 0) {
+                                highPos = midPos - 2;
+                                highMatch = cmp - 1;
+                                continue outer;
                             }
 
                             // Update compareLen and compareLoc for use by the code after the
                             // current scope. The compareLoc is completely bogus at this point,
                             // but is corrected when the value is retrieved below.
-                            compareLoc += compareLen - fullCompareLen;
-                            compareLen = fullCompareLen;
+                            compareLoc += compareLen - keyLen;
+                            compareLen = keyLen;
+                            i = keyLen;
 
                             break compare;
                         }
                     }
 
+                    // Skip over the elided key prefix, which always matches.
+                    compareLoc -= plen;
+                    compareLen += plen;
+
                     int minLen = Math.min(compareLen, keyLen);
                     i = Math.min(lowMatch, highMatch);
                     for (; i<minLen; i++) {
@@ -364,6 +398,77 @@ class Tree implements View, Index {
         }
     }
 
+    /*P*/ // [
+    /**
+     * Attempts to load a value without acquiring any node latches. Each node is read
+     * optimistically, and it's validated after the child node has been found. Loads which
+     * need to load nodes, reconstruct fragmented entries, or wait for a lock must be
+     * performed with latches held. Pages which are directly accessed aren't safe to read
+     * while they're being modified, and so this method isn't used for them at all.
+     *
+     * @return OPTIMISTIC_FAIL_VALUE if the load must be performed with latches held
+     */
+    private byte[] loadOptimistic(LocalTransaction local, byte[] key) {
+        try {
+            Node node = mRoot;
+            int stamp = node.tryOptimisticRead();
+            if (stamp == 0) {
+                return Node.OPTIMISTIC_FAIL_VALUE;
+            }
+
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+
+            while (!node.isLeaf()) {
+                int childPos = node.optimisticBinarySearch(key);
+                if (childPos == Node.OPTIMISTIC_FAIL) {
+                    return Node.OPTIMISTIC_FAIL_VALUE;
+                }
+
+                long childId = node.retrieveChildRefId(Node.internalPos(childPos));
+                Node childNode = mDatabase.nodeMapGet(childId);
+                if (childNode == null) {
+                    return Node.OPTIMISTIC_FAIL_VALUE;
+                }
+
+                int childStamp = childNode.tryOptimisticRead();
+
+                // Parent must be validated after the child stamp is obtained, ensuring that
+                // the child was still referenced by the parent at that time.
+                if (childStamp == 0 || childId != childNode.mId || childNode.mSplit != null
+                    || !node.validate(stamp))
+                {
+                    return Node.OPTIMISTIC_FAIL_VALUE;
+                }
+
+                node = childNode;
+                stamp = childStamp;
+
+                // Node isn't latched, but the usage list only moves nodes which are still
+                // in it. At worst, a node which was just evicted is treated as used.
+                node.used(rnd);
+            }
+
+            int pos = node.optimisticBinarySearch(key);
+            if (pos == Node.OPTIMISTIC_FAIL) {
+                return Node.OPTIMISTIC_FAIL_VALUE;
+            }
+
+            if ((local == null || local.lockMode() == LockMode.READ_COMMITTED) &&
+                !mLockManager.isAvailable(local, mId, key, LockManager.hash(mId, key)))
+            {
+                return Node.OPTIMISTIC_FAIL_VALUE;
+            }
+
+            byte[] value = pos < 0 ? null : node.optimisticRetrieveLeafValue(pos);
+
+            return node.validate(stamp) ? value : Node.OPTIMISTIC_FAIL_VALUE;
+        } catch (Throwable e) {
+            // Inconsistent state was observed.
+            return Node.OPTIMISTIC_FAIL_VALUE;
+        }
+    }
+    /*P*/ // ]
+
     @Override
     public void store(Transaction txn, byte[] key, byte[] value) throws IOException {
         keyCheck(key);
@@ -565,6 +670,11 @@ class Tree implements View, Index {
         return length;
     }
 
+    @Override
+    public Spliterator<Map.Entry<byte[], byte[]>> newSpliterator(LockMode lockMode) {
+        return new ViewSpliterator(this, this, null, null, lockMode);
+    }
+
     @Override
     public Stats analyze(byte[] lowKey, byte[] highKey) throws IOException {
         TreeCursor cursor = new TreeCursor(this, Transaction.BOGUS);
@@ -578,6 +688,213 @@ class Tree implements View, Index {
         }
     }
 
+    @Override
+    public final void cachePriority(CachePriority priority) throws IOException {
+        if (priority == null) {
+            throw new IllegalArgumentException("Cache priority is null");
+        }
+        byte p;
+        switch (priority) {
+        case LOW:
+            p = Node.PRIORITY_LOW;
+            break;
+        case HIGH:
+            p = Node.PRIORITY_HIGH;
+            break;
+        default:
+            p = Node.PRIORITY_NORMAL;
+            break;
+        }
+        cachedNodes(p);
+    }
+
+    @Override
+    public final CachePriority cachePriority() {
+        switch (mRoot.mCachePriority) {
+        case Node.PRIORITY_LOW:
+            return CachePriority.LOW;
+        case Node.PRIORITY_HIGH:
+            return CachePriority.HIGH;
+        default:
+            return CachePriority.NORMAL;
+        }
+    }
+
+    @Override
+    public final void valueCompression(ValueCompression compression) throws IOException {
+        if (mRoot.mPage == p_closedTreePage()) {
+            throw new ClosedIndexException();
+        }
+        mDatabase.valueCompression(this, compression);
+    }
+
+    @Override
+    public final ValueCompression valueCompression() {
+        ValueCompressor compressor = mCompressor;
+        return compressor == null ? null : compressor.mSpec;
+    }
+
+    /**
+     * Called by Node when encoding a leaf value.
+     *
+     * @return compressed value, or null if not compressed
+     */
+    final byte[] compressValue(byte[] value) {
+        ValueCompressor compressor = mCompressor;
+        byte[] compressed;
+        if (compressor == null || (compressed = compressor.compress(value)) == null) {
+            return null;
+        }
+        mDatabase.compressed(value.length, compressed.length);
+        return compressed;
+    }
+
+    @Override
+    public final CacheStats cacheStats() throws IOException {
+        long[] counts = cachedNodes((byte) -1);
+        return new CacheStats(counts[0], counts[1]);
+    }
+
+    /**
+     * Visits all cached nodes, starting from the root, with shared latches. Only one node
+     * latch is held at a time.
+     *
+     * @param priority new priority, or -1 to leave unchanged
+     * @return internal node count at index 0, and leaf node count at index 1
+     */
+    private long[] cachedNodes(byte priority) throws IOException {
+        Node root = mRoot;
+        root.acquireShared();
+        if (root.mPage == p_closedTreePage()) {
+            root.releaseShared();
+            throw new ClosedIndexException();
+        }
+        long[] counts = new long[2];
+        root.cachedNodes(priority, counts);
+        return counts;
+    }
+
+    /**
+     * Selects a key which divides the given range into two balanced parts, by descending to
+     * the highest internal node which separates the range. Child entry counts are used for
+     * balancing at the bottom internal level, when known. Higher levels are balanced by
+     * number of children.
+     *
+     * @param lowKey inclusive lowest key of the range; pass null for open range
+     * @param highKey exclusive highest key of the range; pass null for open range
+     * @param fraction optional array to receive the estimated fraction of entries which are
+     * lower than the split key
+     * @return split key, or null if range is too small to split
+     */
+    final byte[] splitKey(byte[] lowKey, byte[] highKey, double[] fraction) throws IOException {
+        Node node = mRoot;
+        node.acquireShared();
+
+        while (true) {
+            if (node.isLeaf()) {
+                node.releaseShared();
+                return null;
+            }
+
+            int lowPos, highPos;
+            try {
+                lowPos = lowKey == null ? 0 : Node.internalPos(node.binarySearch(lowKey));
+                if (highKey == null) {
+                    highPos = node.highestInternalPos();
+                } else {
+                    highPos = node.binarySearch(highKey);
+                    // Child at the found position only has keys at or above the high key.
+                    highPos = highPos < 0 ? ~highPos : highPos;
+                }
+
+                if (lowPos < highPos) {
+                    int splitPos = splitPos(node, lowPos, highPos, fraction);
+                    byte[] key = node.retrieveKey(splitPos - 2);
+                    node.releaseShared();
+                    return key;
+                }
+            } catch (Throwable e) {
+                node.releaseShared();
+                throw e;
+            }
+
+            long childId = node.retrieveChildRefId(lowPos);
+            Node childNode = mDatabase.nodeMapGet(childId);
+
+            load: {
+                if (childNode != null) {
+                    childNode.acquireShared();
+                    // Need to check again in case evict snuck in.
+                    if (childId == childNode.mId) {
+                        node.releaseShared();
+                        break load;
+                    }
+                    childNode.releaseShared();
+                }
+                childNode = node.loadChild(mDatabase, childId, Node.OPTION_PARENT_RELEASE_SHARED);
+            }
+
+            if (childNode.mSplit != null) {
+                // Range might straddle the split, so don't bother.
+                childNode.releaseShared();
+                return null;
+            }
+
+            node = childNode;
+        }
+    }
+
+    /**
+     * @param node internal node, latched shared
+     * @param lowPos lowest child position of the range
+     * @param highPos highest child position of the range, which must be more than lowPos
+     * @return child position which starts the upper half of the range
+     */
+    private static int splitPos(Node node, int lowPos, int highPos, double[] fraction) {
+        long[] weights = new long[((highPos - lowPos) >> 1) + 1];
+
+        if (node.isBottomInternal()) {
+            long knownTotal = 0;
+            int known = 0;
+            for (int i=0; i<weights.length; i++) {
+                int count = node.retrieveChildEntryCount(lowPos + (i << 1));
+                weights[i] = count;
+                if (count >= 0) {
+                    knownTotal += count;
+                    known++;
+                }
+            }
+            // Assume that children with unknown counts have an average amount of entries.
+            long average = known == 0 ? 1 : Math.max(1, knownTotal / known);
+            for (int i=0; i<weights.length; i++) {
+                if (weights[i] < 0) {
+                    weights[i] = average;
+                }
+            }
+        } else {
+            Arrays.fill(weights, 1);
+        }
+
+        long total = 0;
+        for (long weight : weights) {
+            total += weight;
+        }
+
+        // Choose the split which gives the lower half a weight closest to the upper half,
+        // always leaving at least one child on each side.
+        int i = 1;
+        long lowWeight = weights[0];
+        while (i < weights.length - 1 && (lowWeight + weights[i]) * 2 <= total) {
+            lowWeight += weights[i++];
+        }
+
+        if (fraction != null) {
+            fraction[0] = total == 0 ? 0.5 : ((double) lowWeight) / total;
+        }
+
+        return lowPos + (i << 1);
+    }
+
     /**
      * Returns a view which can be passed to an observer. Internal trees are returned as
      * unmodifiable.
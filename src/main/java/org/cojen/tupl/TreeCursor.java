@@ -1523,7 +1523,13 @@ class TreeCursor implements CauseCloseable, Cursor {
             } else {
                 LockMode mode = txn.lockMode();
                 if (mode.noReadLock) {
-                    node.retrieveLeafEntry(pos, this);
+                    if (mode == LockMode.SNAPSHOT) {
+                        txn.snapshotCheck();
+                        node.retrieveLeafEntry(pos, this);
+                        mValue = snapshotValue(txn, mValue, mKeyOnly);
+                    } else {
+                        node.retrieveLeafEntry(pos, this);
+                    }
                     return LockResult.UNOWNED;
                 } else {
                     lockType = mode.repeatable;
@@ -1627,7 +1633,10 @@ class TreeCursor implements CauseCloseable, Cursor {
             } else {
                 LockMode mode = txn.lockMode();
                 if (mode.noReadLock) {
-                    mValue = mKeyOnly ? node.hasLeafValue(pos) : node.retrieveLeafValue(pos);
+                    if (mode == LockMode.SNAPSHOT) {
+                        txn.snapshotCheck();
+                    }
+                    mValue = retrieveLeafValue(txn, node, pos);
                     result = LockResult.UNOWNED;
                     break obtainResult;
                 } else {
@@ -1743,7 +1752,9 @@ class TreeCursor implements CauseCloseable, Cursor {
         selectHash: {
             if (txn != null) {
                 LockMode mode = txn.lockMode();
-                if (mode == LockMode.READ_UNCOMMITTED || mode == LockMode.UNSAFE) {
+                if (mode == LockMode.READ_UNCOMMITTED || mode == LockMode.UNSAFE ||
+                    mode == LockMode.SNAPSHOT)
+                {
                     hash = 0;
                     break selectHash;
                 }
@@ -1858,8 +1869,7 @@ class TreeCursor implements CauseCloseable, Cursor {
                         mValue = NOT_LOADED;
                     } else {
                         try {
-                            mValue = mKeyOnly ? node.hasLeafValue(pos)
-                                : node.retrieveLeafValue(pos);
+                            mValue = retrieveLeafValue(txn, node, pos);
                             return result;
                         } catch (Throwable e) {
                             mValue = NOT_LOADED;
@@ -2007,7 +2017,7 @@ class TreeCursor implements CauseCloseable, Cursor {
                     return result;
                 } else {
                     try {
-                        mValue = mKeyOnly ? node.hasLeafValue(pos) : node.retrieveLeafValue(pos);
+                        mValue = retrieveLeafValue(txn, node, pos);
                     } catch (Throwable e) {
                         mValue = NOT_LOADED;
                         node.releaseShared();
@@ -2101,6 +2111,9 @@ class TreeCursor implements CauseCloseable, Cursor {
 
         try {
             if (mode.noReadLock) {
+                if (mode == LockMode.SNAPSHOT) {
+                    txn.snapshotCheck();
+                }
                 return LockResult.UNOWNED;
             }
 
@@ -2113,6 +2126,34 @@ class TreeCursor implements CauseCloseable, Cursor {
         }
     }
 
+    /**
+     * With node latched, retrieve the value at the given position, as visible to the
+     * transaction. If the transaction is in SNAPSHOT mode, a snapshot must already exist.
+     *
+     * @param txn can be null
+     * @param pos position as provided by binarySearch; must be positive
+     */
+    private byte[] retrieveLeafValue(LocalTransaction txn, Node node, int pos)
+        throws IOException
+    {
+        byte[] value = mKeyOnly ? node.hasLeafValue(pos) : node.retrieveLeafValue(pos);
+        if (txn != null && txn.lockMode() == LockMode.SNAPSHOT) {
+            value = snapshotValue(txn, value, mKeyOnly);
+        }
+        return value;
+    }
+
+    /**
+     * @param value current value, which can be null or NOT_LOADED
+     */
+    private byte[] snapshotValue(LocalTransaction txn, byte[] value, boolean keyOnly) {
+        byte[] snapshotValue = txn.snapshotValue(mTree.mId, mKey, value);
+        if (snapshotValue != value && snapshotValue != null && keyOnly) {
+            snapshotValue = NOT_LOADED;
+        }
+        return snapshotValue;
+    }
+
     @Override
     public final LockResult random(byte[] lowKey, byte[] highKey) throws IOException {
         if (lowKey != null && highKey != null && compareUnsigned(lowKey, highKey) >= 0) {
@@ -2176,8 +2217,7 @@ class TreeCursor implements CauseCloseable, Cursor {
                         result = doLoad(txn, VARIANT_REGULAR, mKeyOnly);
                     } else {
                         try {
-                            mValue = mKeyOnly ? node.hasLeafValue(pos)
-                                : node.retrieveLeafValue(pos);
+                            mValue = retrieveLeafValue(txn, node, pos);
                         } catch (Throwable e) {
                             mValue = NOT_LOADED;
                             node.releaseShared();
@@ -2325,8 +2365,7 @@ class TreeCursor implements CauseCloseable, Cursor {
                         result = doLoad(txn, VARIANT_REGULAR, mKeyOnly);
                     } else {
                         try {
-                            mValue = mKeyOnly ? node.hasLeafValue(pos)
-                                : node.retrieveLeafValue(pos);
+                            mValue = retrieveLeafValue(txn, node, pos);
                         } catch (Throwable e) {
                             mValue = NOT_LOADED;
                             node.releaseShared();
@@ -2498,6 +2537,23 @@ class TreeCursor implements CauseCloseable, Cursor {
         return new Index.Stats(entryCount, keyBytes, valueBytes, freeBytes, totalBytes);
     }
 
+    @Override
+    public final LockResult lockRange() throws IOException {
+        return lockRange(null, null);
+    }
+
+    /**
+     * @param low inclusive low bound; null if unbounded
+     * @param high exclusive high bound; null if unbounded
+     */
+    final LockResult lockRange(byte[] low, byte[] high) throws LockFailureException {
+        LocalTransaction txn = mTxn;
+        if (txn == null || txn == LocalTransaction.BOGUS) {
+            return LockResult.UNOWNED;
+        }
+        return txn.lockRangeShared(mTree.mId, low, high, txn.mLockTimeoutNanos);
+    }
+
     @Override
     public final LockResult lock() throws IOException {
         try {
@@ -2594,6 +2650,9 @@ class TreeCursor implements CauseCloseable, Cursor {
         } else {
             LockMode mode = txn.lockMode();
             if (mode.noReadLock) {
+                if (mode == LockMode.SNAPSHOT) {
+                    txn.snapshotCheck();
+                }
                 result = LockResult.UNOWNED;
                 locker = null;
             } else {
@@ -2619,8 +2678,12 @@ class TreeCursor implements CauseCloseable, Cursor {
             Node node = frame.mNode;
             try {
                 int pos = frame.mNodePos;
-                mValue = pos < 0 ? null
+                byte[] value = pos < 0 ? null
                     : keyOnly ? node.hasLeafValue(pos) : node.retrieveLeafValue(pos);
+                if (txn != null && txn.lockMode() == LockMode.SNAPSHOT) {
+                    value = snapshotValue(txn, value, keyOnly);
+                }
+                mValue = value;
             } catch (Throwable e) {
                 node.releaseShared();
                 throw e;
@@ -2976,8 +3039,15 @@ class TreeCursor implements CauseCloseable, Cursor {
 
                 dd: try {
                     if (txn == null) {
+                        boolean ghost = recordVersion(txn, node, pos, null);
                         commitPos = mTree.redoStore(key, null);
+                        if (ghost) {
+                            // Snapshots might need to find the entry, so leave a ghost.
+                            node.ghostLeafEntry(mTree, key, keyHash(), pos);
+                            break dd;
+                        }
                     } else if (txn.lockMode() != LockMode.UNSAFE) {
+                        recordVersion(txn, node, pos, null);
                         node.txnDeleteLeafEntry(txn, mTree, key, keyHash(), pos);
                         // Above operation leaves a ghost, so no cursors to fix. Break out of
                         // this section and attempt to merge, since the ghost delete operation
@@ -3016,6 +3086,7 @@ class TreeCursor implements CauseCloseable, Cursor {
                     // Update entry...
 
                     try {
+                        recordVersion(txn, node, pos, value);
                         if (txn == null) {
                             commitPos = mTree.redoStore(key, value);
                         } else if (txn.lockMode() != LockMode.UNSAFE) {
@@ -3047,6 +3118,7 @@ class TreeCursor implements CauseCloseable, Cursor {
                     // Insert entry...
 
                     try {
+                        recordVersion(txn, node, pos, value);
                         if (txn == null) {
                             commitPos = mTree.redoStore(key, value);
                         } else if (txn.lockMode() != LockMode.UNSAFE) {
@@ -3083,6 +3155,61 @@ class TreeCursor implements CauseCloseable, Cursor {
         }
     }
 
+    /**
+     * Records the current value of an entry which is about to be modified, when snapshot
+     * reads are enabled. Modifications made in UNSAFE mode aren't recorded. Caller must hold
+     * commit lock and exclusive latch on node.
+     *
+     * @param txn can be null for auto-commit
+     * @param pos position as provided by binarySearch; is a complement if not found
+     * @param value new value; is null for delete
+     * @return true if a version was recorded
+     */
+    private boolean recordVersion(LocalTransaction txn, Node node, int pos, byte[] value)
+        throws IOException
+    {
+        VersionStore versions = mTree.mDatabase.mVersions;
+        if (versions == null) {
+            return false;
+        }
+        if (txn == null) {
+            if (!versions.hasSnapshots()) {
+                // No snapshot can observe the prior value, so don't bother loading it.
+                return false;
+            }
+        } else if (txn.lockMode() == LockMode.UNSAFE) {
+            return false;
+        }
+        byte[] prior = pos < 0 ? null : node.retrieveLeafValue(pos);
+        if (prior == null && value == null) {
+            return false;
+        }
+        return versions.record(txn, mTree.mId, mKey, prior);
+    }
+
+    /**
+     * Records the value of the current entry before it's modified by a value stream. The
+     * value is only recorded by the first modification within a transaction.
+     *
+     * @param leaf latched exclusive leaf frame; released if an exception is thrown
+     */
+    final void recordStreamVersion(CursorFrame leaf) throws IOException {
+        LocalTransaction txn = mTxn;
+        if (txn != null) {
+            VersionStore versions = mTree.mDatabase.mVersions;
+            if (versions != null && versions.isRecorded(txn, mTree.mId, mKey)) {
+                return;
+            }
+        }
+        try {
+            // Stream always leaves a value behind, even when writing nothing.
+            recordVersion(txn, leaf.mNode, leaf.mNodePos, EMPTY_BYTES);
+        } catch (Throwable e) {
+            leaf.mNode.releaseExclusive();
+            throw e;
+        }
+    }
+
     /**
      * Fixes this and all bound cursors after an insert.
      *
@@ -3137,6 +3264,52 @@ class TreeCursor implements CauseCloseable, Cursor {
         return node;
     }
 
+    /**
+     * Non-transactional store used by bulk loading, which performs no locking, undo logging
+     * or redo logging. When the key is higher than all others in its leaf node, the node is
+     * split early to leave the reserved amount of bytes available.
+     *
+     * @param reserve amount of bytes to leave available in leaf nodes
+     */
+    final void appendEntry(byte[] key, byte[] value, int reserve) throws IOException {
+        findNearby(key);
+
+        CursorFrame leaf = leafExclusive();
+        Node node;
+
+        final CommitLock.Shared shared = commitLock(leaf);
+        try {
+            // Releases latch if an exception is thrown.
+            node = notSplitDirty(leaf);
+            final int pos = leaf.mNodePos;
+
+            try {
+                if (pos >= 0) {
+                    node.updateLeafValue(leaf, mTree, pos, 0, value);
+                    if (node.mSplit != null) {
+                        // Releases latch if an exception is thrown.
+                        node = mTree.finishSplit(leaf, node);
+                    }
+                } else {
+                    node.insertLeafEntry(leaf, mTree, ~pos, key, value, reserve);
+                }
+            } catch (Throwable e) {
+                node.releaseExclusive();
+                throw e;
+            }
+
+            if (pos < 0) {
+                // Releases latch if an exception is thrown.
+                node = postInsert(leaf, node, key);
+            }
+        } finally {
+            shared.release();
+        }
+
+        node.releaseExclusive();
+        mValue = value;
+    }
+
     /**
      * Non-transactional store of a fragmented value as an undo action. Cursor value is
      * NOT_LOADED as a side-effect.
@@ -4204,6 +4377,11 @@ class TreeCursor implements CauseCloseable, Cursor {
 
         int remaining = leftAvail + rightAvail - pageSize(node.mPage) + Node.TN_HEADER_SIZE;
 
+        if (remaining >= 0) {
+            // Keys might need to be expanded if the nodes have different key prefixes.
+            remaining -= Node.leafMergeGrowth(leftNode, rightNode);
+        }
+
         if (remaining < 0) {
             if (rightNode != null) {
                 rightNode.releaseExclusive();
@@ -205,6 +205,11 @@ final class TrimmedCursor implements Cursor {
         return mSource.lock();
     }
 
+    @Override
+    public LockResult lockRange() throws IOException {
+        return mSource.lockRange();
+    }
+
     @Override
     public LockResult load() throws IOException {
         return mSource.load();
@@ -59,6 +59,24 @@ final class TrimmedView implements View {
         return mSource.load(txn, applyPrefix(key));
     }
 
+    @Override
+    public byte[][] loadAll(Transaction txn, byte[][] keys) throws IOException {
+        byte[][] fullKeys = new byte[keys.length][];
+        for (int i=0; i<keys.length; i++) {
+            fullKeys[i] = applyPrefix(keys[i]);
+        }
+        return mSource.loadAll(txn, fullKeys);
+    }
+
+    @Override
+    public void storeAll(Transaction txn, byte[][] keys, byte[][] values) throws IOException {
+        byte[][] fullKeys = new byte[keys.length][];
+        for (int i=0; i<keys.length; i++) {
+            fullKeys[i] = applyPrefix(keys[i]);
+        }
+        mSource.storeAll(txn, fullKeys, values);
+    }
+
     @Override
     public void store(Transaction txn, byte[] key, byte[] value) throws IOException {
         mSource.store(txn, applyPrefix(key), value);
@@ -91,6 +91,16 @@ final class UnmodifiableView implements Index {
         return mSource.load(txn, key);
     }
 
+    @Override
+    public byte[][] loadAll(Transaction txn, byte[][] keys) throws IOException {
+        return mSource.loadAll(txn, keys);
+    }
+
+    @Override
+    public void storeAll(Transaction txn, byte[][] keys, byte[][] values) throws IOException {
+        throw new UnmodifiableViewException();
+    }
+
     @Override
     public void store(Transaction txn, byte[] key, byte[] value) throws IOException {
         throw new UnmodifiableViewException();
@@ -243,6 +253,40 @@ final class UnmodifiableView implements Index {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public void cachePriority(CachePriority priority) throws IOException {
+        throw new UnmodifiableViewException();
+    }
+
+    @Override
+    public CachePriority cachePriority() {
+        if (mSource instanceof Index) {
+            return ((Index) mSource).cachePriority();
+        }
+        return CachePriority.NORMAL;
+    }
+
+    @Override
+    public void valueCompression(ValueCompression compression) throws IOException {
+        throw new UnmodifiableViewException();
+    }
+
+    @Override
+    public ValueCompression valueCompression() {
+        if (mSource instanceof Index) {
+            return ((Index) mSource).valueCompression();
+        }
+        return null;
+    }
+
+    @Override
+    public CacheStats cacheStats() throws IOException {
+        if (mSource instanceof Index) {
+            return ((Index) mSource).cacheStats();
+        }
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public boolean verify(VerificationObserver observer) throws IOException {
         if (mSource instanceof Index) {
@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Defines how the values of an {@link Index index} are compressed. Compression is applied
+ * when values are stored, including large values which are fragmented, and values are
+ * decompressed transparently when loaded. Small values, and values which don't compress
+ * well, are stored uncompressed.
+ *
+ * <p>Values are compressed individually, and so small values which share common content
+ * compress better with a dictionary. A dictionary can be trained from samples of typical
+ * values, and it's stored in the database when compression is enabled.
+ *
+ * @author Brian S O'Neill
+ * @see Index#valueCompression(ValueCompression) Index.valueCompression
+ */
+public final class ValueCompression {
+    private static final ValueCompression LZ = new ValueCompression(null);
+
+    /**
+     * Returns a pure-Java LZ codec, without a dictionary. The codec favors speed over
+     * compression ratio.
+     */
+    public static ValueCompression lz() {
+        return LZ;
+    }
+
+    /**
+     * Returns a pure-Java LZ codec which uses the given dictionary. Only the last 65535
+     * bytes of the dictionary are used, and so the most useful content should be at the end.
+     *
+     * @param dictionary dictionary to use; pass null or empty for none
+     * @see #trainDictionary trainDictionary
+     */
+    public static ValueCompression lz(byte[] dictionary) {
+        if (dictionary == null || dictionary.length == 0) {
+            return LZ;
+        }
+        int len = Math.min(dictionary.length, LZCodec.MAX_OFFSET);
+        return new ValueCompression
+            (Arrays.copyOfRange(dictionary, dictionary.length - len, dictionary.length));
+    }
+
+    /**
+     * Trains a dictionary from samples of typical values. The dictionary consists of the
+     * segments of the samples which contain the most common substrings.
+     *
+     * @param samples sample values; a few hundred is usually enough
+     * @param maxSize maximum dictionary size; limited to 65535
+     * @return dictionary, which is empty if the samples have nothing in common
+     */
+    public static byte[] trainDictionary(Collection<byte[]> samples, int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Illegal dictionary size: " + maxSize);
+        }
+        return LZCodec.trainDictionary(samples.toArray(new byte[samples.size()][]), maxSize);
+    }
+
+    final byte[] mDictionary;
+
+    ValueCompression(byte[] dictionary) {
+        mDictionary = dictionary;
+    }
+
+    /**
+     * Returns a copy of the dictionary, or null if none.
+     */
+    public byte[] dictionary() {
+        byte[] dict = mDictionary;
+        return dict == null ? null : dict.clone();
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mDictionary) ^ 0x5a1c6e3b;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof ValueCompression) {
+            return Arrays.equals(mDictionary, ((ValueCompression) obj).mDictionary);
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        byte[] dict = mDictionary;
+        return dict == null ? "ValueCompression.lz()"
+            : ("ValueCompression.lz(dictionary=" + dict.length + " bytes)");
+    }
+}
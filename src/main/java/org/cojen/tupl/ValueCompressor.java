@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.Arrays;
+
+import static org.cojen.tupl.Utils.*;
+
+/**
+ * Compresses the values of an index, as defined by a {@link ValueCompression}. Compressed
+ * values are self-describing, and so they can be decompressed without knowing which index
+ * they belong to:
+ *
+ * <pre>
+ * +---------------------------+----------------------+-----------------+
+ * | varint dictionary id or 0 | varint value length  | compressed data |
+ * +---------------------------+----------------------+-----------------+
+ * </pre>
+ *
+ * @author Brian S O'Neill
+ */
+final class ValueCompressor {
+    // Values smaller than this aren't compressed.
+    static final int MIN_LENGTH = 64;
+
+    // Format of the encoded index setting, stored in the registry.
+    private static final byte FORMAT_LZ = 1;
+
+    final ValueCompression mSpec;
+    final int mDictionaryId;
+
+    /**
+     * @param dictionaryId 0 if spec has no dictionary
+     */
+    ValueCompressor(ValueCompression spec, int dictionaryId) {
+        mSpec = spec;
+        mDictionaryId = dictionaryId;
+    }
+
+    /**
+     * @return compressed value, or null if compression isn't beneficial
+     */
+    byte[] compress(byte[] value) {
+        final int len = value.length;
+        if (len < MIN_LENGTH) {
+            return null;
+        }
+
+        int off = calcUnsignedVarIntLength(mDictionaryId) + calcUnsignedVarIntLength(len);
+        byte[] buf = new byte[off + LZCodec.maxCompressedLength(len)];
+        encodeUnsignedVarInt(buf, encodeUnsignedVarInt(buf, 0, mDictionaryId), len);
+
+        int total = off + LZCodec.compress(mSpec.mDictionary, value, 0, len, buf, off);
+
+        // Require a saving of at least 1/16, to make decompression worth it.
+        if (total > len - (len >> 4)) {
+            return null;
+        }
+
+        return Arrays.copyOf(buf, total);
+    }
+
+    /**
+     * Encodes the setting which is stored in the registry.
+     */
+    byte[] encode() {
+        byte[] encoded = new byte[1 + calcUnsignedVarIntLength(mDictionaryId)];
+        encoded[0] = FORMAT_LZ;
+        encodeUnsignedVarInt(encoded, 1, mDictionaryId);
+        return encoded;
+    }
+
+    /**
+     * Returns the dictionary id of an encoded setting.
+     */
+    static int decodeDictionaryId(byte[] encoded) throws CorruptDatabaseException {
+        if (encoded.length < 2 || encoded[0] != FORMAT_LZ) {
+            throw new CorruptDatabaseException("Unknown value compression format");
+        }
+        return decodeUnsignedVarInt(encoded, 1);
+    }
+
+    /**
+     * Returns the dictionary id of a compressed value, which is 0 if none.
+     */
+    static int dictionaryId(byte[] compressed) {
+        return decodeUnsignedVarInt(compressed, 0);
+    }
+
+    /**
+     * Returns the decompressed length of a compressed value.
+     *
+     * @param compressed compressed value; only the first 10 bytes are examined
+     */
+    static int decompressedLength(byte[] compressed) {
+        return decodeUnsignedVarInt
+            (compressed, calcUnsignedVarIntLength(decodeUnsignedVarInt(compressed, 0)));
+    }
+
+    /**
+     * @param dict dictionary which was used for compression, or null if none
+     */
+    static byte[] decompress(byte[] compressed, byte[] dict) throws CorruptDatabaseException {
+        int off = calcUnsignedVarIntLength(decodeUnsignedVarInt(compressed, 0));
+        int len = decodeUnsignedVarInt(compressed, off);
+        if (len < 0) {
+            throw new CorruptDatabaseException("Malformed compressed value");
+        }
+        off += calcUnsignedVarIntLength(len);
+        byte[] value = new byte[len];
+        LZCodec.decompress(dict, compressed, off, compressed.length - off, value, 0, len);
+        return value;
+    }
+}
@@ -19,6 +19,10 @@ package org.cojen.tupl;
 import java.io.IOException;
 
 import java.util.Arrays;
+import java.util.Map;
+import java.util.Spliterator;
+
+import java.util.stream.StreamSupport;
 
 /**
  * Mapping of keys to values, in no particular order. Subclasses and
@@ -85,6 +89,25 @@ public interface View {
         }
     }
 
+    /**
+     * Returns copies of the values for all the given keys, in the same order as the keys.
+     * Keys are visited in sorted order, allowing tree traversals to be shared, and locks are
+     * acquired in that order too.
+     *
+     * <p>If the entries must be locked, ownership of the key instances is transferred. The
+     * keys must not be modified after calling this method.
+     *
+     * @param txn optional transaction; pass null for {@link
+     * LockMode#READ_COMMITTED READ_COMMITTED} locking behavior
+     * @param keys non-null array of non-null keys
+     * @return array of values, each of which is null if entry doesn't exist
+     * @throws NullPointerException if any key is null
+     * @throws IllegalArgumentException if transaction belongs to another database instance
+     */
+    public default byte[][] loadAll(Transaction txn, byte[][] keys) throws IOException {
+        return ViewUtils.loadAll(this, txn, keys);
+    }
+
     /**
      * Unconditionally associates a value with the given key.
      *
@@ -135,6 +158,32 @@ public interface View {
         }
     }
 
+    /**
+     * Unconditionally associates values with all the given keys. Entries are visited in
+     * sorted key order, allowing tree traversals to be shared, and locks are acquired in that
+     * order too. If any keys are duplicated, the last corresponding value is stored.
+     *
+     * <p>If no transaction is provided, all the entries are stored by a new transaction,
+     * which commits them together. Each entry is otherwise stored just as if by calling the
+     * {@link #store store} method, with its own redo log record.
+     *
+     * <p>If the entries must be locked, ownership of the key instances is transferred. The
+     * keys must not be modified after calling this method.
+     *
+     * @param txn optional transaction; pass null to store all entries atomically
+     * @param keys non-null array of non-null keys
+     * @param values non-null array of values, matching the keys; null values delete
+     * @throws NullPointerException if any key is null
+     * @throws IllegalArgumentException if transaction belongs to another database instance,
+     * or if the key and value counts don't match
+     * @throws ViewConstraintException if any entry is not permitted
+     */
+    public default void storeAll(Transaction txn, byte[][] keys, byte[][] values)
+        throws IOException
+    {
+        ViewUtils.storeAll(this, txn, keys, values);
+    }
+
     /**
      * Associates a value with the given key, unless a corresponding value already
      * exists. Equivalent to: <code>update(txn, key, null, value)</code>
@@ -391,6 +440,41 @@ public interface View {
      */
     public LockResult lockCheck(Transaction txn, byte[] key) throws ViewConstraintException;
 
+    /**
+     * Returns a spliterator over all the entries in this view, which can be split for
+     * scanning in parallel. Views which are backed directly by an ordered index are split
+     * into balanced key ranges along internal node boundaries; other views aren't split.
+     *
+     * <p>Each split scans with its own cursor, and it acquires locks with the given mode
+     * using its own transaction. No cursor or lock is retained between calls to {@code
+     * tryAdvance}, and so an abandoned spliterator doesn't need to be closed. For this
+     * reason, lock modes which retain locks or a snapshot aren't supported.
+     *
+     * @param lockMode lock mode for each split; pass null for {@link
+     * LockMode#READ_COMMITTED READ_COMMITTED}
+     * @throws IllegalArgumentException if lock mode is {@link LockMode#isRepeatable
+     * repeatable} or {@link LockMode#SNAPSHOT SNAPSHOT}
+     */
+    public default Spliterator<Map.Entry<byte[], byte[]>> newSpliterator(LockMode lockMode) {
+        return new ViewSpliterator(this, null, null, null, lockMode);
+    }
+
+    /**
+     * Returns a stream over all the entries in this view, as provided by {@link
+     * #newSpliterator newSpliterator}.
+     *
+     * @param lockMode lock mode for each split; pass null for {@link
+     * LockMode#READ_COMMITTED READ_COMMITTED}
+     * @param parallel pass true for a parallel stream
+     * @throws IllegalArgumentException if lock mode is {@link LockMode#isRepeatable
+     * repeatable} or {@link LockMode#SNAPSHOT SNAPSHOT}
+     */
+    public default java.util.stream.Stream<Map.Entry<byte[], byte[]>> newEntryStream
+        (LockMode lockMode, boolean parallel)
+    {
+        return StreamSupport.stream(newSpliterator(lockMode), parallel);
+    }
+
     /**
      * Returns an unopened stream for accessing values in this view.
      */
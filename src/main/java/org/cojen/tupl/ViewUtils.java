@@ -18,6 +18,8 @@ package org.cojen.tupl;
 
 import java.io.IOException;
 
+import java.util.Arrays;
+
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -35,6 +37,156 @@ class ViewUtils {
         }
     }
 
+    /**
+     * Loads all the given keys using a single cursor, visiting them in view order.
+     */
+    static byte[][] loadAll(View view, Transaction txn, byte[][] keys) throws IOException {
+        byte[][] values = new byte[keys.length][];
+
+        if (keys.length <= 1) {
+            if (keys.length != 0) {
+                values[0] = view.load(txn, keys[0]);
+            }
+            return values;
+        }
+
+        Integer[] order = sortedOrder(view, keys);
+
+        Cursor c = view.newCursor(txn);
+        try {
+            for (int i : order) {
+                c.findNearby(keys[i]);
+                values[i] = c.value();
+            }
+        } finally {
+            c.reset();
+        }
+
+        return values;
+    }
+
+    /**
+     * Stores all the given entries using a single cursor, visiting them in view order. If
+     * no transaction is provided, all entries are stored by a new transaction, which commits
+     * them together.
+     */
+    static void storeAll(View view, Transaction txn, byte[][] keys, byte[][] values)
+        throws IOException
+    {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException
+                ("Mismatched key and value counts: " + keys.length + " != " + values.length);
+        }
+
+        if (keys.length <= 1) {
+            if (keys.length != 0) {
+                view.store(txn, keys[0], values[0]);
+            }
+            return;
+        }
+
+        Integer[] order = sortedOrder(view, keys);
+
+        if (txn != null) {
+            storeAll(view, txn, keys, values, order);
+            return;
+        }
+
+        try {
+            txn = view.newTransaction(null);
+        } catch (UnsupportedOperationException e) {
+            // Store each entry in auto-commit mode.
+            storeAll(view, null, keys, values, order);
+            return;
+        }
+
+        try {
+            storeAll(view, txn, keys, values, order);
+            txn.commit();
+        } finally {
+            txn.reset();
+        }
+    }
+
+    private static void storeAll(View view, Transaction txn,
+                                 byte[][] keys, byte[][] values, Integer[] order)
+        throws IOException
+    {
+        Cursor c = view.newCursor(txn);
+        try {
+            c.autoload(false);
+            for (int i : order) {
+                c.findNearby(keys[i]);
+                c.store(values[i]);
+            }
+        } finally {
+            c.reset();
+        }
+    }
+
+    /**
+     * Returns the positions of the given keys, sorted in view order. The sort is stable, and
+     * so the positions of duplicate keys remain in their original order.
+     *
+     * @throws NullPointerException if any key is null
+     */
+    private static Integer[] sortedOrder(View view, byte[][] keys) {
+        Integer[] order = new Integer[keys.length];
+        for (int i=0; i<order.length; i++) {
+            Utils.keyCheck(keys[i]);
+            order[i] = i;
+        }
+
+        if (view.getOrdering() == Ordering.DESCENDING) {
+            Arrays.sort(order, (a, b) -> Utils.compareUnsigned(keys[b], keys[a]));
+        } else {
+            Arrays.sort(order, (a, b) -> Utils.compareUnsigned(keys[a], keys[b]));
+        }
+
+        return order;
+    }
+
+    /**
+     * Loads all the given keys from a source view, skipping over null keys. Used by views
+     * which map keys before passing them to the source, and which filter some of them out.
+     *
+     * @param keys mapped keys, which can contain nulls
+     * @return array of values, which are null for null keys
+     */
+    static byte[][] loadAllPresent(View source, Transaction txn, byte[][] keys)
+        throws IOException
+    {
+        int count = 0;
+        for (byte[] key : keys) {
+            if (key != null) {
+                count++;
+            }
+        }
+
+        if (count == keys.length) {
+            return source.loadAll(txn, keys);
+        }
+
+        byte[][] present = new byte[count][];
+        for (int i=0, j=0; i<keys.length; i++) {
+            byte[] key = keys[i];
+            if (key != null) {
+                present[j++] = key;
+            }
+        }
+
+        byte[][] presentValues = source.loadAll(txn, present);
+
+        byte[][] values = new byte[keys.length][];
+        for (int i=0, j=0; i<keys.length; i++) {
+            if (keys[i] != null) {
+                values[i] = presentValues[j++];
+            }
+        }
+
+        return values;
+    }
+
     static long count(View view, boolean autoload, byte[] lowKey, byte[] highKey)
         throws IOException
     {
@@ -247,6 +247,14 @@ public abstract class WrappedCursor<C extends Cursor> implements Cursor {
         return source.lock();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LockResult lockRange() throws IOException {
+        return source.lockRange();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -16,7 +16,9 @@
 
 package org.cojen.tupl;
 
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -85,6 +87,79 @@ final class _DeadlockDetector {
         return new DeadlockSet(infoSet);
     }
 
+    /**
+     * Searches for a deadlock cycle which passes through the original locker, and chooses
+     * the locker within it which holds the fewest locks. Ties favor the original locker.
+     * Unlike a full scan, the search stops at the first cycle found.
+     *
+     * @return victim, or null if no cycle passes through the original locker
+     */
+    _Locker findVictim() {
+        List<_LockOwner> path = new ArrayList<>();
+        if (!findCycle(mOrigin, path)) {
+            return null;
+        }
+
+        _Locker victim = null;
+        int victimCost = Integer.MAX_VALUE;
+        for (_LockOwner owner : path) {
+            if (owner instanceof _Locker) {
+                _Locker locker = (_Locker) owner;
+                int cost = locker.estimateLockCount();
+                if (victim == null || cost < victimCost) {
+                    victim = locker;
+                    victimCost = cost;
+                }
+            }
+        }
+
+        return victim;
+    }
+
+    /**
+     * @param path lockers visited so far, which is extended with the cycle if found
+     * @return true if a cycle back to the original locker was found
+     */
+    private boolean findCycle(_LockOwner locker, List<_LockOwner> path) {
+        if (locker == mOrigin && !path.isEmpty()) {
+            return true;
+        }
+
+        // Lockers already visited cannot reach the original locker.
+        _Lock lock;
+        if (!mLockers.add(locker) || (lock = locker.mWaitingFor) == null) {
+            return false;
+        }
+
+        path.add(locker);
+
+        // If the owner is the locker, then it is trying to upgrade. It's waiting for
+        // another locker to release the shared lock.
+        _LockOwner owner = lock.mOwner;
+        if (owner != null && owner != locker && findCycle(owner, path)) {
+            return true;
+        }
+
+        Object shared = lock.mSharedLockOwnersObj;
+        if (shared instanceof _LockOwner) {
+            if (shared != locker && findCycle((_LockOwner) shared, path)) {
+                return true;
+            }
+        } else if (shared instanceof _Lock.LockOwnerHTEntry[]) {
+            _Lock.LockOwnerHTEntry[] entries = (_Lock.LockOwnerHTEntry[]) shared;
+            for (int i=entries.length; --i>=0; ) {
+                for (_Lock.LockOwnerHTEntry e = entries[i]; e != null; e = e.mNext) {
+                    if (e.mOwner != locker && findCycle(e.mOwner, path)) {
+                        return true;
+                    }
+                }
+            }
+        }
+
+        path.remove(path.size() - 1);
+        return false;
+    }
+
     /**
      * @return true if deadlock was found
      */
@@ -400,6 +400,12 @@ final class _DurablePageDb extends _PageDb {
         mPageArray.writePage(id, page, 0);
     }
 
+    @Override
+    public void writePages(long id, long pages, int count) throws IOException {
+        checkId(id);
+        mPageArray.writePages(id, pages, 0, count);
+    }
+
     @Override
     public long evictPage(long id, long page) throws IOException {
         checkId(id);
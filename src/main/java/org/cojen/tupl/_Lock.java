@@ -33,7 +33,7 @@ import static org.cojen.tupl.LockResult.*;
  * @see _LockManager
  */
 /*P*/
-final class _Lock {
+class _Lock {
     long mIndexId;
     byte[] mKey;
     int mHashCode;
@@ -113,6 +113,7 @@ final class _Lock {
         }
 
         locker.mWaitingFor = this;
+        locker.mDeadlockVictim = false;
         long nanosEnd = nanosTimeout < 0 ? 0 : (System.nanoTime() + nanosTimeout);
 
         while (true) {
@@ -151,6 +152,11 @@ final class _Lock {
 
             // Signal was bogus or lock was grabbed by another thread, so retry.
 
+            if (locker.mDeadlockVictim) {
+                // Woken up by another locker, which detected a deadlock.
+                return TIMED_OUT_LOCK;
+            }
+
             if (nanosTimeout >= 0 && (nanosTimeout = nanosEnd - System.nanoTime()) <= 0) {
                 return TIMED_OUT_LOCK;
             }
@@ -208,6 +214,7 @@ final class _Lock {
         }
 
         locker.mWaitingFor = this;
+        locker.mDeadlockVictim = false;
         long nanosEnd = nanosTimeout < 0 ? 0 : (System.nanoTime() + nanosTimeout);
 
         while (true) {
@@ -265,6 +272,11 @@ final class _Lock {
 
             // Signal was bogus or lock was grabbed by another thread, so retry.
 
+            if (locker.mDeadlockVictim) {
+                // Woken up by another locker, which detected a deadlock.
+                return TIMED_OUT_LOCK;
+            }
+
             if (nanosTimeout >= 0 && (nanosTimeout = nanosEnd - System.nanoTime()) <= 0) {
                 return TIMED_OUT_LOCK;
             }
@@ -314,6 +326,7 @@ final class _Lock {
         }
 
         locker.mWaitingFor = this;
+        locker.mDeadlockVictim = false;
         long nanosEnd = nanosTimeout < 0 ? 0 : (System.nanoTime() + nanosTimeout);
 
         while (true) {
@@ -354,6 +367,14 @@ final class _Lock {
 
             // Signal was bogus or lock was grabbed by another thread, so retry.
 
+            if (locker.mDeadlockVictim) {
+                // Woken up by another locker, which detected a deadlock.
+                if (ur == ACQUIRED) {
+                    unlockUpgradable();
+                }
+                return TIMED_OUT_LOCK;
+            }
+
             if (nanosTimeout >= 0 && (nanosTimeout = nanosEnd - System.nanoTime()) <= 0) {
                 return TIMED_OUT_LOCK;
             }
@@ -364,6 +385,21 @@ final class _Lock {
         }
     }
 
+    /**
+     * Called with exclusive latch held, which is retained. Wakes up all waiters, which then
+     * check if they were chosen as a deadlock victim.
+     */
+    void signalAllWaiters() {
+        LatchCondition queue = mQueueU;
+        if (queue != null) {
+            queue.signalAll();
+        }
+        queue = mQueueSX;
+        if (queue != null) {
+            queue.signalAll();
+        }
+    }
+
     /**
      * Called internally to unlock an upgradable lock which was just
      * acquired. Implementation is a just a smaller version of the regular
@@ -541,6 +577,14 @@ final class _Lock {
         final _CursorFrame.Ghost frame = (_CursorFrame.Ghost) obj;
         mSharedLockOwnersObj = null;
         byte[] key = mKey;
+
+        _VersionStore versions = db.mVersions;
+        if (versions != null && versions.deferGhost(mIndexId, key)) {
+            // Active snapshots might still observe the deleted entry, and so the version
+            // store deletes the ghost later.
+            _CursorFrame.popAll(frame);
+            return;
+        }
         boolean unlatched = false;
 
         CommitLock.Shared shared = db.commitLock().tryAcquireShared();
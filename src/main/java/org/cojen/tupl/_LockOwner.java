@@ -30,6 +30,10 @@ abstract class _LockOwner implements _DatabaseAccess { // weak access to databas
     // _LockOwner is currently waiting to acquire this lock. Used for deadlock detection.
     _Lock mWaitingFor;
 
+    // Set by another locker which chose this one to break a deadlock. Guarded by the latch
+    // of the lock being waited for.
+    boolean mDeadlockVictim;
+
     _LockOwner() {
         mHash = ThreadLocalRandom.current().nextInt();
     }
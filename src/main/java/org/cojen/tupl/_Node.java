@@ -48,7 +48,7 @@ final class _Node extends Latch implements _DatabaseAccess {
 
       bits 7..4: major type   0010 (fragment), 0100 (undo log),
                               0110 (internal), 0111 (bottom internal), 1000 (leaf)
-      bits 3..1: sub type     for leaf: x0x (normal)
+      bits 3..1: sub type     for leaf: x0x (normal), x1x (keys share a prefix)
                               for internal: x1x (6 byte child pointer + 2 byte count), x0x (unused)
                               for both: bit 1 is set if low extremity, bit 3 for high extremity
       bit  0:    endianness   0 (little), 1 (big)
@@ -68,24 +68,36 @@ final class _Node extends Latch implements _DatabaseAccess {
         TYPE_UNDO_LOG = (byte) 0x40, // 0b0100_000_0
         TYPE_TN_IN    = (byte) 0x64, // 0b0110_010_0
         TYPE_TN_BIN   = (byte) 0x74, // 0b0111_010_0
-        TYPE_TN_LEAF  = (byte) 0x80; // 0b1000_000_0
+        TYPE_TN_LEAF  = (byte) 0x80, // 0b1000_000_0
+        TYPE_TN_PLEAF = (byte) 0x84; // 0b1000_010_0
 
     static final byte LOW_EXTREMITY = 0x02, HIGH_EXTREMITY = 0x08;
 
+    // Cache priority, as defined by the CachePriority enum.
+    static final byte PRIORITY_NORMAL = 0, PRIORITY_LOW = 1, PRIORITY_HIGH = 2;
+
     // _Tree node header size.
     static final int TN_HEADER_SIZE = 12;
 
+    // Maximum length of the key prefix shared by all entries of a leaf node.
+    static final int MAX_KEY_PREFIX = 255;
+
     // Negative id indicates that node is not in use, and 1 is a reserved page id.
     private static final int CLOSED_ID = -1;
 
     static final int ENTRY_FRAGMENTED = 0x40;
 
+    // Set in the header of a compressed leaf value, which always uses the 3-byte header
+    // form. Fragmented values are instead marked as compressed in the fragment header.
+    static final int ENTRY_COMPRESSED = 0x10;
+
     // Usage list this node belongs to.
     final _NodeUsageList mUsageList;
 
     // Links within usage list, guarded by _NodeUsageList.
     _Node mMoreUsed; // points to more recently used node
     _Node mLessUsed; // points to less recently used node
+    boolean mProtectedUsage; // is in the protected segment of a segmented usage list
 
     // Links within dirty list, guarded by _NodeDirtyList.
     _Node mNextDirty;
@@ -192,6 +204,24 @@ final class _Node extends Latch implements _DatabaseAccess {
       entries, the length is ((((h0 & 0x0f) << 16) | (h1 << 8) | h2) + 1).
       _Node limit is currently 65536 bytes, which limits maximum entry length.
 
+      When enabled, leaf nodes which aren't at an extremity can elide the key prefix which
+      is shared by all of the entries. The prefix is derived from the keys which bound the
+      node in the parent, and so any key which can be inserted into the node has the same
+      prefix. Such a node has its own type, and the prefix immediately follows the header:
+
+      +----------------------------------------+
+      | byte:   prefix length (1..255)         |
+      | bytes:  prefix                         |
+      | byte:   padding, if prefix length even |
+      +----------------------------------------+
+      | left segment                           |
+      -                                        -
+
+      Normal keys are stored without the prefix, and the key length refers to the remaining
+      suffix, which can be empty. The padding keeps the search vector aligned. Fragmented
+      keys are stored in full. _Split nodes inherit
+      the prefix, and merged nodes use the prefix shared by both nodes.
+
       The "values" for internal nodes are actually identifiers for child nodes. The number
       of child nodes is always one more than the number of keys. For this reason, the
       key-value format used by leaf nodes cannot be applied to internal nodes. Also, the
@@ -254,6 +284,10 @@ final class _Node extends Latch implements _DatabaseAccess {
 
     byte mCachedState;
 
+    // Cache priority, inherited from the parent node when loaded or split. It's advisory,
+    // and so it can be changed without an exclusive latch.
+    byte mCachePriority;
+
     /*P*/ // [
     // // Entries from header, available as fields for quick access.
     // private byte mType;
@@ -382,6 +416,48 @@ final class _Node extends Latch implements _DatabaseAccess {
         return newNode;
     }
 
+    /**
+     * Exchanges the contents and identity of this root node with another root node, as part
+     * of swapping tree roots. Caller must hold exclusive latches on both nodes, and both must
+     * be dirty in the current commit state and removed from the node map.
+     */
+    void exchangeRoot(_Node other) {
+        long page = mPage;
+        mPage = other.mPage;
+        other.mPage = page;
+
+        long id = mId;
+        mId = other.mId;
+        other.mId = id;
+
+        byte state = mCachedState;
+        mCachedState = other.mCachedState;
+        other.mCachedState = state;
+
+        /*P*/ // [
+        // byte type = type();
+        // int garbage = garbage();
+        // int leftSegTail = leftSegTail();
+        // int rightSegTail = rightSegTail();
+        // int searchVecStart = searchVecStart();
+        // int searchVecEnd = searchVecEnd();
+
+        // type(other.type());
+        // garbage(other.garbage());
+        // leftSegTail(other.leftSegTail());
+        // rightSegTail(other.rightSegTail());
+        // searchVecStart(other.searchVecStart());
+        // searchVecEnd(other.searchVecEnd());
+
+        // other.type(type);
+        // other.garbage(garbage);
+        // other.leftSegTail(leftSegTail);
+        // other.rightSegTail(rightSegTail);
+        // other.searchVecStart(searchVecStart);
+        // other.searchVecEnd(searchVecEnd);
+        /*P*/ // ]
+    }
+
     private void clearEntries() {
         garbage(0);
         leftSegTail(TN_HEADER_SIZE);
@@ -452,6 +528,7 @@ final class _Node extends Latch implements _DatabaseAccess {
         // Insert a "lock", which is a temporary node latched exclusively. All other threads
         // attempting to load the child node will block trying to acquire the exclusive latch.
         _Node lock;
+        final byte priority = mCachePriority;
         try {
             lock = new _Node(childId);
 
@@ -499,6 +576,7 @@ final class _Node extends Latch implements _DatabaseAccess {
             try {
                 childNode = db.allocLatchedNode(childId);
                 childNode.mId = childId;
+                childNode.mCachePriority = priority;
             } catch (Throwable e) {
                 db.nodeMapRemove(lock);
                 throw e;
@@ -520,6 +598,11 @@ final class _Node extends Latch implements _DatabaseAccess {
                 throw e;
             }
 
+            if (priority == PRIORITY_LOW && childNode.isLeaf()) {
+                // Recycle before all other nodes, keeping scans from pushing them out.
+                childNode.mUsageList.leastUsed(childNode);
+            }
+
             if ((options & OPTION_CHILD_ACQUIRE_EXCLUSIVE) == 0){
                 childNode.downgrade();
             }
@@ -591,6 +674,7 @@ final class _Node extends Latch implements _DatabaseAccess {
         /*P*/ // [
         // newRootPage = child.mPage;
         // child.mPage = mPage;
+        // child.mCachePriority = mCachePriority;
         // child.type(type());
         // child.garbage(garbage());
         // child.leftSegTail(leftSegTail());
@@ -606,6 +690,7 @@ final class _Node extends Latch implements _DatabaseAccess {
             newRootPage = child.mPage;
             child.mPage = mPage;
         }
+        child.mCachePriority = mCachePriority;
         /*P*/ // ]
 
         final _Split split = mSplit;
@@ -744,6 +829,26 @@ final class _Node extends Latch implements _DatabaseAccess {
         }
     }
 
+    /**
+     * Writes nodes which have consecutive ids in a single operation. Caller must hold any
+     * latch on all the nodes, which are not released, even if an exception is thrown.
+     *
+     * @param buffer temporary buffer which is at least count pages long
+     */
+    static void write(_PageDb db, _Node[] nodes, int count, long buffer)
+        throws WriteFailureException
+    {
+        int pageSize = db.pageSize();
+        for (int i=0; i<count; i++) {
+            p_copy(nodes[i].prepareWrite(), 0, buffer, i * pageSize, pageSize);
+        }
+        try {
+            db.writePages(nodes[0].mId, buffer, count);
+        } catch (IOException e) {
+            throw new WriteFailureException(e);
+        }
+    }
+
     private long prepareWrite() {
         if (mSplit != null) {
             throw new AssertionError("Cannot write partially split node");
@@ -830,6 +935,7 @@ final class _Node extends Latch implements _DatabaseAccess {
                 //type(TYPE_NONE);
             }
 
+            mCachePriority = PRIORITY_NORMAL;
             return true;
         } catch (Throwable e) {
             releaseExclusive();
@@ -886,6 +992,55 @@ final class _Node extends Latch implements _DatabaseAccess {
         }
     }
 
+    /**
+     * Visits this node and all of its cached descendants, counting them and optionally
+     * changing their cache priority. Caller must hold a shared latch on this node, which is
+     * always released. The latch is released before visiting the children, and so splits
+     * and evictions aren't stalled for the duration of the visit.
+     *
+     * @param priority new priority, or -1 to leave unchanged
+     * @param counts internal node count at index 0, and leaf node count at index 1
+     */
+    void cachedNodes(byte priority, long[] counts) {
+        if (priority >= 0) {
+            mCachePriority = priority;
+        }
+
+        if (!isInternal()) {
+            counts[1]++;
+            releaseShared();
+            return;
+        }
+
+        counts[0]++;
+
+        _LocalDatabase db = mUsageList.mDatabase;
+
+        long[] childIds;
+        try {
+            int childPtr = searchVecEnd() + 2;
+            final int highestPtr = childPtr + (highestInternalPos() << 2);
+            childIds = new long[((highestPtr - childPtr) >> 3) + 1];
+            for (int i=0; childPtr <= highestPtr; childPtr += 8) {
+                childIds[i++] = p_uint48GetLE(mPage, childPtr);
+            }
+        } finally {
+            releaseShared();
+        }
+
+        for (long childId : childIds) {
+            _Node child = db.nodeMapGet(childId);
+            if (child != null) {
+                child.acquireShared();
+                if (childId == child.mId) {
+                    child.cachedNodes(priority, counts);
+                } else {
+                    child.releaseShared();
+                }
+            }
+        }
+    }
+
     private static _Node createClosedNode() {
         _Node closed = new _Node(null, p_closedTreePage());
         closed.mId = CLOSED_ID;
@@ -1084,6 +1239,41 @@ final class _Node extends Latch implements _DatabaseAccess {
         return (type() & 0xf0) == 0x60;
     }
 
+    /**
+     * Caller must hold any latch. Returns true if node is a leaf which elides the key prefix
+     * shared by all entries.
+     */
+    boolean isPrefixLeaf() {
+        return (type() & ~(LOW_EXTREMITY | HIGH_EXTREMITY)) == TYPE_TN_PLEAF;
+    }
+
+    /**
+     * Caller must hold any latch. Returns the length of the key prefix elided from all
+     * normal keys, which is zero if not a prefix leaf.
+     */
+    int keyPrefixLength() {
+        return isPrefixLeaf() ? p_ubyteGet(mPage, TN_HEADER_SIZE) : 0;
+    }
+
+    /**
+     * Caller must hold any latch. Returns the start of the left segment, which follows the
+     * key prefix.
+     */
+    private int leafSegmentStart() {
+        return TN_HEADER_SIZE + keyPrefixArea(keyPrefixLength());
+    }
+
+    /**
+     * Caller must hold any latch. Returns a copy of the key prefix, which is empty if not a
+     * prefix leaf.
+     */
+    byte[] keyPrefix() {
+        int plen = keyPrefixLength();
+        byte[] prefix = new byte[plen];
+        p_copyToArray(mPage, TN_HEADER_SIZE + 1, prefix, 0, plen);
+        return prefix;
+    }
+
     /**
      * Caller must hold any latch.
      *
@@ -1223,6 +1413,16 @@ final class _Node extends Latch implements _DatabaseAccess {
         int lowMatch = 0;
         int highMatch = 0;
 
+        final int plen = keyPrefixLength();
+        if (plen != 0) {
+            int cmp = compareKeyPrefix(page, plen, key);
+            if (cmp != 0) {
+                return cmp > 0 ? ~0 : ~(highPos + 2 - lowPos);
+            }
+            lowMatch = plen;
+            highMatch = plen;
+        }
+
         outer: while (lowPos <= highPos) {
             int midPos = ((lowPos + highPos) >> 1) & ~1;
 
@@ -1237,39 +1437,37 @@ final class _Node extends Latch implements _DatabaseAccess {
                     compareLen = ((compareLen & 0x3f) << 8) | p_ubyteGet(page, compareLoc++);
 
                     if ((header & ENTRY_FRAGMENTED) != 0) {
-                        // Note: An optimized version wouldn't need to copy the whole key.
-                        byte[] compareKey = getDatabase()
-                            .reconstructKey(page, compareLoc, compareLen);
-                        compareLen = compareKey.length;
-
-                        int minLen = Math.min(compareLen, keyLen);
-                        i = Math.min(lowMatch, highMatch);
-                        for (; i<minLen; i++) {
-                            byte cb = compareKey[i];
-                            byte kb = key[i];
-                            if (cb != kb) {
-                                if ((cb & 0xff) < (kb & 0xff)) {
-                                    lowPos = midPos + 2;
-                                    lowMatch = i;
-                                } else {
-                                    highPos = midPos - 2;
-                                    highMatch = i;
-                                }
-                                continue outer;
-                            }
+                        int cmp = getDatabase().compareFragmentedKey
+                            (page, compareLoc, compareLen, key, Math.min(lowMatch, highMatch));
+                        if (cmp < 0) {
+                            lowPos = midPos + 2;
+                            lowMatch = ~cmp;
+                        } else if (cmp > 0) {
+                            highPos = midPos - 2;
+                            highMatch = cmp - 1;
+                        } else {
+                            return midPos - searchVecStart();
                         }
-
-                        break compare;
+                        continue outer;
                     }
                 }
 
+                // Match position is never less than the prefix length, and so the elided
+                // prefix bytes aren't examined.
+                compareLoc -= plen;
+                compareLen += plen;
+
+                if (compareLoc < 0 || compareLoc + compareLen > pageSize(page)) {
+                    // Mismatch check doesn't check bounds.
+                    throw new CorruptDatabaseException("Key location out of bounds: " + mId);
+                }
+
                 int minLen = Math.min(compareLen, keyLen);
                 i = Math.min(lowMatch, highMatch);
-                for (; i<minLen; i++) {
-                    byte cb = p_byteGet(page, compareLoc + i);
-                    byte kb = key[i];
-                    if (cb != kb) {
-                        if ((cb & 0xff) < (kb & 0xff)) {
+                if (i < minLen) {
+                    i += p_mismatch(page, compareLoc + i, key, i, minLen - i);
+                    if (i < minLen) {
+                        if (p_ubyteGet(page, compareLoc + i) < (key[i] & 0xff)) {
                             lowPos = midPos + 2;
                             lowMatch = i;
                         } else {
@@ -1295,6 +1493,145 @@ final class _Node extends Latch implements _DatabaseAccess {
         return ~(lowPos - searchVecStart());
     }
 
+    /*P*/ // [
+    // // Returned by optimisticBinarySearch when the search must be performed with a latch held.
+    // static final int OPTIMISTIC_FAIL = Integer.MIN_VALUE;
+
+    // // Returned by optimisticRetrieveLeafValue when the value must be retrieved with a latch
+    // // held. Compared by identity.
+    // static final byte[] OPTIMISTIC_FAIL_VALUE = new byte[0];
+
+    // /**
+     // * Same as binarySearch, except it can be called without a latch held, as part of an
+     // * optimistic read. The node contents might be changing, and so the result must be
+     // * discarded unless the latch stamp is validated afterwards. An exception must also be
+     // * treated as a validation failure.
+     // *
+     // * @return 2-based insertion pos, which is negative if key not found, or OPTIMISTIC_FAIL
+     // * if a fragmented key was encountered
+     // */
+    // int optimisticBinarySearch(byte[] key) {
+        // final byte[] page = mPage;
+        // final int keyLen = key.length;
+        // int lowPos = searchVecStart();
+        // int highPos = searchVecEnd();
+
+        // int lowMatch = 0;
+        // int highMatch = 0;
+
+        // final int plen = keyPrefixLength();
+        // if (plen != 0) {
+            // int cmp = compareKeyPrefix(page, plen, key);
+            // if (cmp != 0) {
+                // return cmp > 0 ? ~0 : ~(highPos + 2 - lowPos);
+            // }
+            // lowMatch = plen;
+            // highMatch = plen;
+        // }
+
+        // while (lowPos <= highPos) {
+            // int midPos = ((lowPos + highPos) >> 1) & ~1;
+
+            // int compareLoc = p_ushortGetLE(page, midPos);
+            // int compareLen = p_byteGet(page, compareLoc++);
+            // if (compareLen >= 0) {
+                // compareLen++;
+            // } else {
+                // if ((compareLen & ENTRY_FRAGMENTED) != 0) {
+                    // // Reconstructing the key requires loading other nodes.
+                    // return OPTIMISTIC_FAIL;
+                // }
+                // compareLen = ((compareLen & 0x3f) << 8) | p_ubyteGet(page, compareLoc++);
+            // }
+
+            // compareLoc -= plen;
+            // compareLen += plen;
+
+            // if (compareLoc < 0 || compareLoc + compareLen > page.length) {
+                // // Mismatch check doesn't check bounds.
+                // return OPTIMISTIC_FAIL;
+            // }
+
+            // int minLen = Math.min(compareLen, keyLen);
+            // int i = Math.min(lowMatch, highMatch);
+            // if (i < minLen) {
+                // i += p_mismatch(page, compareLoc + i, key, i, minLen - i);
+                // if (i < minLen) {
+                    // if (p_ubyteGet(page, compareLoc + i) < (key[i] & 0xff)) {
+                        // lowPos = midPos + 2;
+                        // lowMatch = i;
+                    // } else {
+                        // highPos = midPos - 2;
+                        // highMatch = i;
+                    // }
+                    // continue;
+                // }
+            // }
+
+            // if (compareLen < keyLen) {
+                // lowPos = midPos + 2;
+                // lowMatch = i;
+            // } else if (compareLen > keyLen) {
+                // highPos = midPos - 2;
+                // highMatch = i;
+            // } else {
+                // return midPos - searchVecStart();
+            // }
+        // }
+
+        // return ~(lowPos - searchVecStart());
+    // }
+
+    // /**
+     // * Same as retrieveLeafValue, except it can be called without a latch held, as part of an
+     // * optimistic read. See optimisticBinarySearch.
+     // *
+     // * @param pos position as provided by optimisticBinarySearch; must be positive
+     // * @return value, null if ghost, or OPTIMISTIC_FAIL_VALUE if value is fragmented or
+     // * compressed
+     // */
+    // byte[] optimisticRetrieveLeafValue(int pos) {
+        // final byte[] page = mPage;
+        // int loc = p_ushortGetLE(page, searchVecStart() + pos);
+        // loc += keyLengthAtLoc(page, loc);
+
+        // final int header = p_byteGet(page, loc++);
+        // if (header == 0) {
+            // return EMPTY_BYTES;
+        // }
+
+        // int len;
+        // if (header >= 0) {
+            // len = header;
+        // } else {
+            // if ((header & 0x20) == 0) {
+                // len = 1 + (((header & 0x1f) << 8) | p_ubyteGet(page, loc++));
+            // } else if (header != -1) {
+                // len = 1 + (((header & 0x0f) << 16)
+                           // | (p_ubyteGet(page, loc++) << 8) | p_ubyteGet(page, loc++));
+            // } else {
+                // // ghost
+                // return null;
+            // }
+            // if ((header & ENTRY_FRAGMENTED) != 0
+                // || ((header & 0x20) != 0 && (header & ENTRY_COMPRESSED) != 0))
+            // {
+                // // Reconstructing the value requires loading other nodes, and decompressing
+                // // requires a dictionary.
+                // return OPTIMISTIC_FAIL_VALUE;
+            // }
+        // }
+
+        // if (loc + len > page.length) {
+            // return OPTIMISTIC_FAIL_VALUE;
+        // }
+
+        // byte[] value = new byte[len];
+        // p_copyToArray(page, loc, value, 0, len);
+        // return value;
+    // }
+    /*P*/ // ]
+
     /**
      * @param midPos 2-based starting position
      * @return 2-based insertion pos, which is negative if key not found
@@ -1316,6 +1653,16 @@ final class _Node extends Latch implements _DatabaseAccess {
         int lowMatch = 0;
         int highMatch = 0;
 
+        final int plen = keyPrefixLength();
+        if (plen != 0) {
+            int cmp = compareKeyPrefix(page, plen, key);
+            if (cmp != 0) {
+                return cmp > 0 ? ~0 : ~(highPos + 2 - lowPos);
+            }
+            lowMatch = plen;
+            highMatch = plen;
+        }
+
         while (true) {
             compare: {
                 int compareLen, i;
@@ -1329,39 +1676,37 @@ final class _Node extends Latch implements _DatabaseAccess {
                         compareLen = ((compareLen & 0x3f) << 8) | p_ubyteGet(page, compareLoc++);
 
                         if ((header & ENTRY_FRAGMENTED) != 0) {
-                            // Note: An optimized version wouldn't need to copy the whole key.
-                            byte[] compareKey = getDatabase()
-                                .reconstructKey(page, compareLoc, compareLen);
-                            compareLen = compareKey.length;
-
-                            int minLen = Math.min(compareLen, keyLen);
-                            i = Math.min(lowMatch, highMatch);
-                            for (; i<minLen; i++) {
-                                byte cb = compareKey[i];
-                                byte kb = key[i];
-                                if (cb != kb) {
-                                    if ((cb & 0xff) < (kb & 0xff)) {
-                                        lowPos = midPos + 2;
-                                        lowMatch = i;
-                                    } else {
-                                        highPos = midPos - 2;
-                                        highMatch = i;
-                                    }
-                                    break compare;
-                                }
+                            int cmp = getDatabase().compareFragmentedKey
+                                (page, compareLoc, compareLen, key,
+                                 Math.min(lowMatch, highMatch));
+                            if (cmp < 0) {
+                                lowPos = midPos + 2;
+                                lowMatch = ~cmp;
+                            } else if (cmp > 0) {
+                                highPos = midPos - 2;
+                                highMatch = cmp - 1;
+                            } else {
+                                return midPos - searchVecStart();
                             }
-
-                            break c2;
+                            break compare;
                         }
                     }
 
+                    compareLoc -= plen;
+                    compareLen += plen;
+
+                    if (compareLoc < 0 || compareLoc + compareLen > pageSize(page)) {
+                        // Mismatch check doesn't check bounds.
+                        throw new CorruptDatabaseException
+                            ("Key location out of bounds: " + mId);
+                    }
+
                     int minLen = Math.min(compareLen, keyLen);
                     i = Math.min(lowMatch, highMatch);
-                    for (; i<minLen; i++) {
-                        byte cb = p_byteGet(page, compareLoc + i);
-                        byte kb = key[i];
-                        if (cb != kb) {
-                            if ((cb & 0xff) < (kb & 0xff)) {
+                    if (i < minLen) {
+                        i += p_mismatch(page, compareLoc + i, key, i, minLen - i);
+                        if (i < minLen) {
+                            if (p_ubyteGet(page, compareLoc + i) < (key[i] & 0xff)) {
                                 lowPos = midPos + 2;
                                 lowMatch = i;
                             } else {
@@ -1394,6 +1739,18 @@ final class _Node extends Latch implements _DatabaseAccess {
         return ~(lowPos - searchVecStart());
     }
 
+    /**
+     * Compares the key prefix of a prefix leaf to the leading bytes of the given key.
+     *
+     * @param plen non-zero prefix length
+     * @return zero if key starts with the prefix, positive if key is lower, or negative if
+     * key is higher
+     */
+    static int compareKeyPrefix(final long page, int plen, byte[] key) {
+        return p_compareKeysPageToArray
+            (page, TN_HEADER_SIZE + 1, plen, key, 0, Math.min(plen, key.length));
+    }
+
     /**
      * Ensure binary search position is positive, for internal node.
      */
@@ -1414,12 +1771,17 @@ final class _Node extends Latch implements _DatabaseAccess {
             int header = keyLen;
             keyLen = ((keyLen & 0x3f) << 8) | p_ubyteGet(page, loc++);
             if ((header & ENTRY_FRAGMENTED) != 0) {
-                // Note: An optimized version wouldn't need to copy the whole key.
-                byte[] leftKey = getDatabase().reconstructKey(page, loc, keyLen);
-                return compareUnsigned(leftKey, 0, leftKey.length, rightKey, 0, rightKey.length);
+                return getDatabase().compareFragmentedKey(page, loc, keyLen, rightKey, 0);
+            }
+        }
+        int plen = keyPrefixLength();
+        if (plen != 0) {
+            int cmp = compareKeyPrefix(page, plen, rightKey);
+            if (cmp != 0) {
+                return cmp;
             }
         }
-        return p_compareKeysPageToArray(page, loc, keyLen, rightKey, 0, rightKey.length);
+        return p_compareKeysPageToArray(page, loc, keyLen, rightKey, plen, rightKey.length - plen);
     }
 
     /**
@@ -1432,6 +1794,11 @@ final class _Node extends Latch implements _DatabaseAccess {
         final long leftPage = left.mPage;
         final long rightPage = right.mPage;
 
+        if (left.isPrefixLeaf() || right.isPrefixLeaf()) {
+            return compareUnsigned(left.retrieveKeyAtLoc(leftPage, leftLoc),
+                                   right.retrieveKeyAtLoc(rightPage, rightLoc));
+        }
+
         int leftLen = p_byteGet(leftPage, leftLoc++);
         int rightLen = p_byteGet(rightPage, rightLoc++);
 
@@ -1517,7 +1884,7 @@ final class _Node extends Latch implements _DatabaseAccess {
             }
         }
 
-        stats[0] = keyLen;
+        stats[0] = keyLen + keyPrefixLength();
         stats[1] = 0;
     }
 
@@ -1526,14 +1893,34 @@ final class _Node extends Latch implements _DatabaseAccess {
      */
     byte[] retrieveKey(int pos) throws IOException {
         final long page = mPage;
-        return retrieveKeyAtLoc(this, page, p_ushortGetLE(page, searchVecStart() + pos));
+        return retrieveKeyAtLoc(page, p_ushortGetLE(page, searchVecStart() + pos));
     }
 
     /**
+     * Retrieves the full key, including the key prefix if this is a prefix leaf.
+     *
+     * @param page page of this node
      * @param loc absolute location of entry
      */
     byte[] retrieveKeyAtLoc(final long page, int loc) throws IOException {
-        return retrieveKeyAtLoc(this, page, loc);
+        int plen = keyPrefixLength();
+        if (plen == 0) {
+            return retrieveKeyAtLoc(this, page, loc);
+        }
+        int keyLen = p_byteGet(page, loc++);
+        if (keyLen >= 0) {
+            keyLen++;
+        } else {
+            int header = keyLen;
+            keyLen = ((keyLen & 0x3f) << 8) | p_ubyteGet(page, loc++);
+            if ((header & ENTRY_FRAGMENTED) != 0) {
+                return getDatabase().reconstructKey(page, loc, keyLen);
+            }
+        }
+        byte[] key = new byte[plen + keyLen];
+        p_copyToArray(page, TN_HEADER_SIZE + 1, key, 0, plen);
+        p_copyToArray(page, loc, key, plen, keyLen);
+        return key;
     }
 
     /**
@@ -1602,22 +1989,32 @@ final class _Node extends Latch implements _DatabaseAccess {
             keyLen = ((keyLen & 0x3f) << 8) | p_ubyteGet(page, loc++);
 
             if ((header & ENTRY_FRAGMENTED) != 0) {
-                byte[] key = getDatabase().reconstructKey(page, loc, keyLen);
-                int cmp = compareUnsigned(key, limitKey);
+                _LocalDatabase db = getDatabase();
+                int cmp = db.compareFragmentedKey(page, loc, keyLen, limitKey, 0);
                 if (cmp == 0) {
                     return limitKey;
                 } else {
-                    return (cmp ^ limitMode) < 0 ? key : null;
+                    // Only reconstruct the key if it's within the limit.
+                    return (cmp ^ limitMode) < 0 ? db.reconstructKey(page, loc, keyLen) : null;
                 }
             }
         }
 
-        int cmp = p_compareKeysPageToArray(page, loc, keyLen, limitKey, 0, limitKey.length);
+        int plen = keyPrefixLength();
+        int cmp;
+        if (plen == 0) {
+            cmp = p_compareKeysPageToArray(page, loc, keyLen, limitKey, 0, limitKey.length);
+        } else if ((cmp = compareKeyPrefix(page, plen, limitKey)) == 0) {
+            cmp = p_compareKeysPageToArray(page, loc, keyLen,
+                                           limitKey, plen, limitKey.length - plen);
+        }
+
         if (cmp == 0) {
             return limitKey;
         } else if ((cmp ^ limitMode) < 0) {
-            byte[] key = new byte[keyLen];
-            p_copyToArray(page, loc, key, 0, keyLen);
+            byte[] key = new byte[plen + keyLen];
+            p_copyToArray(page, TN_HEADER_SIZE + 1, key, 0, plen);
+            p_copyToArray(page, loc, key, plen, keyLen);
             return key;
         } else {
             return null;
@@ -1651,7 +2048,7 @@ final class _Node extends Latch implements _DatabaseAccess {
             p_copyToArray(page, loc, key, 0, keyLen);
         }
 
-        return new byte[][] {key, retrieveLeafValueAtLoc(null, page, loc + keyLen)};
+        return new byte[][] {key, retrieveLeafValueAtLoc(dbAccess, page, loc + keyLen)};
     }
 
     /**
@@ -1663,7 +2060,7 @@ final class _Node extends Latch implements _DatabaseAccess {
         final long lowPage = mPage;
         int lowLoc = p_ushortGetLE(lowPage, searchVecStart() + lowPos);
         int lowKeyLen = p_byteGet(lowPage, lowLoc);
-        if (lowKeyLen < 0) {
+        if (lowKeyLen < 0 || isPrefixLeaf()) {
             // Note: An optimized version wouldn't need to copy the whole key.
             return Utils.midKey(retrieveKeyAtLoc(lowPage, lowLoc), highKey);
         } else {
@@ -1680,7 +2077,7 @@ final class _Node extends Latch implements _DatabaseAccess {
         final long highPage = mPage;
         int highLoc = p_ushortGetLE(highPage, searchVecStart() + highPos);
         int highKeyLen = p_byteGet(highPage, highLoc);
-        if (highKeyLen < 0) {
+        if (highKeyLen < 0 || isPrefixLeaf()) {
             // Note: An optimized version wouldn't need to copy the whole key.
             return Utils.midKey(lowKey, retrieveKeyAtLoc(highPage, highLoc));
         } else {
@@ -1697,7 +2094,7 @@ final class _Node extends Latch implements _DatabaseAccess {
         final long lowPage = mPage;
         int lowLoc = p_ushortGetLE(lowPage, searchVecStart() + lowPos);
         int lowKeyLen = p_byteGet(lowPage, lowLoc);
-        if (lowKeyLen < 0) {
+        if (lowKeyLen < 0 || isPrefixLeaf()) {
             // Note: An optimized version wouldn't need to copy the whole key.
             return highNode.midKey(retrieveKeyAtLoc(lowPage, lowLoc), highPos);
         }
@@ -1708,9 +2105,9 @@ final class _Node extends Latch implements _DatabaseAccess {
         final long highPage = highNode.mPage;
         int highLoc = p_ushortGetLE(highPage, highNode.searchVecStart() + highPos);
         int highKeyLen = p_byteGet(highPage, highLoc);
-        if (highKeyLen < 0) {
+        if (highKeyLen < 0 || highNode.isPrefixLeaf()) {
             // Note: An optimized version wouldn't need to copy the whole key.
-            byte[] highKey = retrieveKeyAtLoc(highPage, highLoc);
+            byte[] highKey = highNode.retrieveKeyAtLoc(highPage, highLoc);
             return p_midKeyLowPage(lowPage, lowLoc, lowKeyLen, highKey, 0);
         }
 
@@ -1758,6 +2155,12 @@ final class _Node extends Latch implements _DatabaseAccess {
                 getDatabase().reconstruct(page, loc, len, stats);
                 return;
             }
+            if ((header & 0x20) != 0 && (header & ENTRY_COMPRESSED) != 0) {
+                // Decode the length from the compressed value header.
+                byte[] prefix = new byte[Math.min(len, 10)];
+                p_copyToArray(page, loc, prefix, 0, prefix.length);
+                len = ValueCompressor.decompressedLength(prefix);
+            }
         }
 
         stats[0] = len;
@@ -1799,6 +2202,11 @@ final class _Node extends Latch implements _DatabaseAccess {
             if ((header & ENTRY_FRAGMENTED) != 0) {
                 return dbAccess.getDatabase().reconstruct(page, loc, len);
             }
+            if ((header & 0x20) != 0 && (header & ENTRY_COMPRESSED) != 0) {
+                byte[] compressed = new byte[len];
+                p_copyToArray(page, loc, compressed, 0, len);
+                return dbAccess.getDatabase().decompress(compressed);
+            }
         }
 
         byte[] value = new byte[len];
@@ -1830,8 +2238,10 @@ final class _Node extends Latch implements _DatabaseAccess {
                     break copyKey;
                 }
             }
-            key = new byte[keyLen];
-            p_copyToArray(page, loc, key, 0, keyLen);
+            int plen = keyPrefixLength();
+            key = new byte[plen + keyLen];
+            p_copyToArray(page, TN_HEADER_SIZE + 1, key, 0, plen);
+            p_copyToArray(page, loc, key, plen, keyLen);
         }
 
         loc += keyLen;
@@ -1905,16 +2315,14 @@ final class _Node extends Latch implements _DatabaseAccess {
 
                 if ((header & ENTRY_FRAGMENTED) != 0) {
                     int valueStartLoc = valueHeaderLoc + 2 + ((header & 0x20) >> 5);
-                    tree.mDatabase.fragmentedTrash().add
-                        (txn, tree.mId, page,
-                         entryLoc, valueHeaderLoc - entryLoc,  // keyStart, keyLen
-                         valueStartLoc, loc - valueStartLoc);  // valueStart, valueLen
+                    addFragmentedToTrash(txn, tree, page, entryLoc, valueHeaderLoc,
+                                         valueStartLoc, loc);
                     break doUndo;
                 }
             }
 
             // Copy whole entry into undo log.
-            txn.pushUndoStore(tree.mId, _UndoLog.OP_UNDELETE, page, entryLoc, loc - entryLoc);
+            pushUndoStore(txn, tree, _UndoLog.OP_UNDELETE, page, entryLoc);
         }
 
         frame.bind(this, pos);
@@ -1931,6 +2339,59 @@ final class _Node extends Latch implements _DatabaseAccess {
         }
     }
 
+    /**
+     * Non-transactionally delete a leaf entry, replacing the value with a ghost. Used by
+     * auto-commit deletes when a snapshot might still need to find the entry. The ghost is
+     * deleted later, when the lock is released or when the snapshot no longer needs it.
+     *
+     * <p>Caller must hold commit lock, exclusive key lock, and exclusive latch on node.
+     *
+     * @param pos position as provided by binarySearch; must be positive
+     */
+    void ghostLeafEntry(_Tree tree, byte[] key, int keyHash, int pos) throws IOException {
+        // Allocate early, in case out of memory.
+        _CursorFrame.Ghost frame = new _CursorFrame.Ghost();
+
+        final long page = mPage;
+        int loc = p_ushortGetLE(page, searchVecStart() + pos);
+
+        // Skip the key.
+        loc += keyLengthAtLoc(page, loc);
+
+        // Read value header.
+        final int valueHeaderLoc = loc;
+        int header = p_byteGet(page, loc++);
+
+        // Note: Similar to doDeleteLeafEntry.
+        if (header >= 0) {
+            loc += header;
+        } else {
+            int len;
+            if ((header & 0x20) == 0) {
+                len = 1 + (((header & 0x1f) << 8) | p_ubyteGet(page, loc++));
+            } else if (header != -1) {
+                len = 1 + (((header & 0x0f) << 16)
+                           | (p_ubyteGet(page, loc++) << 8) | p_ubyteGet(page, loc++));
+            } else {
+                // Already a ghost.
+                return;
+            }
+            if ((header & ENTRY_FRAGMENTED) != 0) {
+                getDatabase().deleteFragments(page, loc, len);
+            }
+            loc += len;
+        }
+
+        frame.bind(this, pos);
+
+        // Ghost will be deleted later when locks are released.
+        tree.mLockManager.ghosted(tree.mId, key, keyHash, frame);
+
+        // Replace value with ghost.
+        p_bytePut(page, valueHeaderLoc, -1);
+        garbage(garbage() + loc - valueHeaderLoc - 1);
+    }
+
     /**
      * Copies existing entry to undo log prior to it being updated. Fragmented
      * values are added to the trash and the fragmented bit is cleared. Caller
@@ -1972,10 +2433,8 @@ final class _Node extends Latch implements _DatabaseAccess {
 
                 if ((header & ENTRY_FRAGMENTED) != 0) {
                     int valueStartLoc = valueHeaderLoc + 2 + ((header & 0x20) >> 5);
-                    tree.mDatabase.fragmentedTrash().add
-                        (txn, tree.mId, page,
-                         entryLoc, valueHeaderLoc - entryLoc,  // keyStart, keyLen
-                         valueStartLoc, loc - valueStartLoc);  // valueStart, valueLen
+                    addFragmentedToTrash(txn, tree, page, entryLoc, valueHeaderLoc,
+                                         valueStartLoc, loc);
                     // Clearing the fragmented bit prevents the update from
                     // double-deleting the fragments, and it also allows the
                     // old entry slot to be re-used.
@@ -1986,7 +2445,77 @@ final class _Node extends Latch implements _DatabaseAccess {
         }
 
         // Copy whole entry into undo log.
-        txn.pushUndoStore(tree.mId, _UndoLog.OP_UNUPDATE, page, entryLoc, loc - entryLoc);
+        pushUndoStore(txn, tree, _UndoLog.OP_UNUPDATE, page, entryLoc);
+    }
+
+    /**
+     * Copies a whole entry into the undo log. If the key prefix was elided, the undo log
+     * gets a copy of the entry with the full key.
+     *
+     * @param entryLoc location of non-ghost entry
+     */
+    private void pushUndoStore(_LocalTransaction txn, _Tree tree, byte op,
+                               long page, int entryLoc)
+        throws IOException
+    {
+        int plen = elidedKeyPrefixLength(page, entryLoc);
+        if (plen == 0) {
+            txn.pushUndoStore(tree.mId, op, page, entryLoc, leafEntryLengthAtLoc(page, entryLoc));
+            return;
+        }
+
+        int len = leafEntryLengthAtLoc(page, plen, entryLoc, 0);
+        long entry = p_transfer(new byte[len]);
+        try {
+            copyLeafEntry(page, plen, entryLoc, entry, 0, 0);
+            txn.pushUndoStore(tree.mId, op, entry, 0, len);
+        } finally {
+            p_delete(entry);
+        }
+    }
+
+    /**
+     * Adds a fragmented value to the trash. If the key prefix was elided, the undo log gets
+     * the full key.
+     *
+     * @param valueStartLoc location of fragmented value, after the header
+     * @param valueEndLoc location after the end of the value
+     */
+    private void addFragmentedToTrash(_LocalTransaction txn, _Tree tree, long page,
+                                      int entryLoc, int valueHeaderLoc,
+                                      int valueStartLoc, int valueEndLoc)
+        throws IOException
+    {
+        int plen = elidedKeyPrefixLength(page, entryLoc);
+        if (plen == 0) {
+            tree.mDatabase.fragmentedTrash().add
+                (txn, tree.mId, page,
+                 entryLoc, valueHeaderLoc - entryLoc,            // keyStart, keyLen
+                 valueStartLoc, valueEndLoc - valueStartLoc);   // valueStart, valueLen
+            return;
+        }
+
+        int len = leafEntryLengthAtLoc(page, plen, entryLoc, 0);
+        int growth = len - leafEntryLengthAtLoc(page, entryLoc);
+        long entry = p_transfer(new byte[len]);
+        try {
+            copyLeafEntry(page, plen, entryLoc, entry, 0, 0);
+            tree.mDatabase.fragmentedTrash().add
+                (txn, tree.mId, entry,
+                 0, valueHeaderLoc - entryLoc + growth,
+                 valueStartLoc - entryLoc + growth, valueEndLoc - valueStartLoc);
+        } finally {
+            p_delete(entry);
+        }
+    }
+
+    /**
+     * Returns the length of the key prefix which was elided from the entry's key, which is
+     * zero if not a prefix leaf or if the key is fragmented.
+     */
+    private int elidedKeyPrefixLength(long page, int entryLoc) {
+        int header = p_byteGet(page, entryLoc);
+        return (header >= 0 || (header & ENTRY_FRAGMENTED) == 0) ? keyPrefixLength() : 0;
     }
 
     /**
@@ -2056,11 +2585,25 @@ final class _Node extends Latch implements _DatabaseAccess {
      */
     void insertLeafEntry(_CursorFrame frame, _Tree tree, int pos, byte[] okey, byte[] value)
         throws IOException
+    {
+        insertLeafEntry(frame, tree, pos, okey, value, 0);
+    }
+
+    /**
+     * @param frame optional frame which is bound to this node; only used for rebalancing
+     * @param pos complement of position as provided by binarySearch; must be positive
+     * @param okey original key
+     * @param reserve amount of bytes to leave available when inserting at the high end of
+     * a non-empty node; the node is split instead of filling the reserve
+     */
+    void insertLeafEntry(_CursorFrame frame, _Tree tree, int pos, byte[] okey, byte[] value,
+                         int reserve)
+        throws IOException
     {
         final _LocalDatabase db = tree.mDatabase;
 
         byte[] akey = okey;
-        int encodedKeyLen = calculateAllowedKeyLength(db, okey);
+        int encodedKeyLen = calculateAllowedLeafKeyLength(db, okey);
 
         if (encodedKeyLen < 0) {
             // Key must be fragmented.
@@ -2069,14 +2612,20 @@ final class _Node extends Latch implements _DatabaseAccess {
         }
 
         try {
-            int encodedLen = encodedKeyLen + calculateLeafValueLength(value);
+            int vfrag = 0;
+            {
+                byte[] compressed = tree.compressValue(value);
+                if (compressed != null) {
+                    value = compressed;
+                    vfrag = ENTRY_COMPRESSED;
+                }
+            }
 
-            int vfrag;
-            if (encodedLen <= db.mMaxEntrySize) {
-                vfrag = 0;
-            } else {
-                value = db.fragment(value, value.length,
-                                    db.mMaxFragmentedEntrySize - encodedKeyLen);
+            int encodedLen = encodedKeyLen + calculateLeafValueLength(vfrag, value);
+
+            if (encodedLen > db.mMaxEntrySize) {
+                value = fragmentLeafValue(db, vfrag, value,
+                                          db.mMaxFragmentedEntrySize - encodedKeyLen);
                 if (value == null) {
                     throw new AssertionError();
                 }
@@ -2085,7 +2634,15 @@ final class _Node extends Latch implements _DatabaseAccess {
             }
 
             try {
-                int entryLoc = createLeafEntry(frame, tree, pos, encodedLen);
+                int entryLoc;
+                if (reserve > 0 && pos == highestLeafPos() + 2 && hasKeys()
+                    && availableLeafBytes() - (encodedLen + 2) < reserve)
+                {
+                    // _Split such that only the new entry moves into a new right node.
+                    entryLoc = -1;
+                } else {
+                    entryLoc = createLeafEntry(frame, tree, pos, encodedLen);
+                }
 
                 if (entryLoc < 0) {
                     splitLeafAndCreateEntry(tree, okey, akey, vfrag, value, encodedLen, pos, true);
@@ -2117,7 +2674,7 @@ final class _Node extends Latch implements _DatabaseAccess {
         final _LocalDatabase db = tree.mDatabase;
 
         byte[] akey = okey;
-        int encodedKeyLen = calculateAllowedKeyLength(db, okey);
+        int encodedKeyLen = calculateAllowedLeafKeyLength(db, okey);
 
         if (encodedKeyLen < 0) {
             // Key must be fragmented.
@@ -2178,7 +2735,7 @@ final class _Node extends Latch implements _DatabaseAccess {
         final _LocalDatabase db = tree.mDatabase;
 
         byte[] akey = okey;
-        int encodedKeyLen = calculateAllowedKeyLength(db, okey);
+        int encodedKeyLen = calculateAllowedLeafKeyLength(db, okey);
 
         if (encodedKeyLen < 0) {
             // Key must be fragmented.
@@ -2348,6 +2905,11 @@ final class _Node extends Latch implements _DatabaseAccess {
     private int tryRebalanceLeaf(_Tree tree, _CursorFrame parentFrame,
                                  int pos, int insertLen, int minAmount)
     {
+        if (isPrefixLeaf()) {
+            // Moving entries would change the key range, and so the prefix might not apply.
+            return 0;
+        }
+
         int result;
         // "Randomly" choose left or right node first.
         if ((mId & 1) == 0) {
@@ -2452,7 +3014,7 @@ final class _Node extends Latch implements _DatabaseAccess {
         check: {
             try {
                 int leftAvail = left.availableLeafBytes();
-                if (leftAvail >= moveAmount) {
+                if (leftAvail >= moveAmount && !left.isPrefixLeaf()) {
                     // Parent search key will be updated, so verify that it has room.
                     int highPos = lastSearchVecLoc - searchVecStart();
                     newKey = midKey(highPos - 2, this, highPos);
@@ -2643,7 +3205,7 @@ final class _Node extends Latch implements _DatabaseAccess {
         check: {
             try {
                 int rightAvail = right.availableLeafBytes();
-                if (rightAvail >= moveAmount) {
+                if (rightAvail >= moveAmount && !right.isPrefixLeaf()) {
                     // Parent search key will be updated, so verify that it has room.
                     int highPos = firstSearchVecLoc - searchVecStart();
                     newKey = midKey(highPos - 2, this, highPos);
@@ -2752,6 +3314,88 @@ final class _Node extends Latch implements _DatabaseAccess {
         return insertLoc;
     }
 
+    /**
+     * Called after inserting a split key, to extend the key prefixes of the two child leaf
+     * nodes. A key prefix is shared by the keys which bound the child node, and so all keys
+     * within the child node have the same prefix. Children at the edges of this node aren't
+     * fully bounded, and they're left as-is. All nodes must be latched exclusively.
+     *
+     * @param splitKey full split key, which was just inserted
+     */
+    private void extendKeyPrefixes(_LocalDatabase db, byte[] splitKey,
+                                   _Node leftChild, _Node rightChild)
+        throws IOException
+    {
+        // Search for the key again, since rebalancing might have moved it.
+        int keyPos = binarySearch(splitKey);
+        if (keyPos < 0
+            || retrieveChildRefId(keyPos) != leftChild.mId
+            || retrieveChildRefId(keyPos + 2) != rightChild.mId)
+        {
+            return;
+        }
+
+        if (keyPos > 0 && db.isMutable(leftChild)) {
+            leftChild.extendKeyPrefix(retrieveKey(keyPos - 2), splitKey, db.mMaxKeyPrefix);
+        }
+        if (keyPos < highestKeyPos() && db.isMutable(rightChild)) {
+            rightChild.extendKeyPrefix(splitKey, retrieveKey(keyPos + 2), db.mMaxKeyPrefix);
+        }
+    }
+
+    /**
+     * Extends the key prefix of this leaf node, if the keys which bound it share a longer
+     * prefix. Caller must hold exclusive latch and ensure that node is dirty.
+     *
+     * @param lowKey inclusive low bound
+     * @param highKey exclusive high bound
+     * @param max maximum prefix length
+     */
+    private void extendKeyPrefix(byte[] lowKey, byte[] highKey, int max) {
+        final int plen = keyPrefixLength();
+
+        int newPlen = 0;
+        int len = Math.min(max, Math.min(lowKey.length, highKey.length));
+        while (newPlen < len && lowKey[newPlen] == highKey[newPlen]) {
+            newPlen++;
+        }
+
+        if (newPlen <= plen) {
+            return;
+        }
+
+        // Verify that all normal keys start with the new prefix, although they always should.
+        final long page = mPage;
+        final int amount = newPlen - plen;
+        for (int i = searchVecStart(); i <= searchVecEnd(); i += 2) {
+            int loc = p_ushortGetLE(page, i);
+            int keyLen = p_byteGet(page, loc++);
+            if (keyLen >= 0) {
+                keyLen++;
+            } else {
+                int header = keyLen;
+                keyLen = ((keyLen & 0x3f) << 8) | p_ubyteGet(page, loc++);
+                if ((header & ENTRY_FRAGMENTED) != 0) {
+                    continue;
+                }
+            }
+            if (keyLen < amount
+                || p_compareKeysPageToArray(page, loc, amount, lowKey, plen, amount) != 0)
+            {
+                return;
+            }
+        }
+
+        // A node with few entries can grow, because the prefix occupies space too.
+        if (keyPrefixGrowth(newPlen) + keyPrefixArea(newPlen) - keyPrefixArea(plen)
+            > availableLeafBytes())
+        {
+            return;
+        }
+
+        rewriteKeyPrefix(lowKey, newPlen);
+    }
+
     /**
      * Insert into an internal node following a child node split. This parent node and child
      * node must have an exclusive latch held. Child latch is always released, and an exception
@@ -2823,6 +3467,11 @@ final class _Node extends Latch implements _DatabaseAccess {
             } else {
                 // Write key entry itself.
                 split.copySplitKeyToParent(result.mPage, entryLoc);
+
+                if (tree.mDatabase.mMaxKeyPrefix != 0 && splitChild.isLeaf()) {
+                    extendKeyPrefixes(tree.mDatabase, split.fullKey(),
+                                      split.mSplitRight ? splitChild : newChild, rightChild);
+                }
             }
         } catch (Throwable e) {
             splitChild.releaseExclusive();
@@ -3436,11 +4085,19 @@ final class _Node extends Latch implements _DatabaseAccess {
     /**
      * @param frame optional frame which is bound to this node; only used for rebalancing
      * @param pos position as provided by binarySearch; must be positive
-     * @param vfrag 0 or ENTRY_FRAGMENTED
+     * @param vfrag 0, ENTRY_FRAGMENTED or ENTRY_COMPRESSED; value is compressed if 0
      */
     void updateLeafValue(_CursorFrame frame, _Tree tree, int pos, int vfrag, byte[] value)
         throws IOException
     {
+        if (vfrag == 0) {
+            byte[] compressed = tree.compressValue(value);
+            if (compressed != null) {
+                value = compressed;
+                vfrag = ENTRY_COMPRESSED;
+            }
+        }
+
         long page = mPage;
         final int searchVecStart = searchVecStart();
 
@@ -3465,6 +4122,11 @@ final class _Node extends Latch implements _DatabaseAccess {
                     header = len;
                     len = 1 + (((len & 0x0f) << 16)
                                | (p_ubyteGet(page, loc++) << 8) | p_ubyteGet(page, loc++));
+                    if ((header & ENTRY_COMPRESSED) != 0) {
+                        // Clear compressed bit in case new value can be quick copied.
+                        header &= ~ENTRY_COMPRESSED;
+                        p_bytePut(page, valueHeaderLoc, header);
+                    }
                 } else {
                     // ghost
                     len = 0;
@@ -3482,13 +4144,22 @@ final class _Node extends Latch implements _DatabaseAccess {
             }
 
             final int valueLen = value.length;
-            if (valueLen > len) {
-                // Old entry is too small, and so it becomes garbage.
+            if (valueLen > len || (vfrag == ENTRY_COMPRESSED
+                                   && valueLen + 3 > loc + len - valueHeaderLoc))
+            {
+                // Old entry is too small, and so it becomes garbage. A compressed value
+                // always requires a 3-byte header, which might not fit.
                 keyLen = valueHeaderLoc - start;
                 garbage = garbage() + loc + len - start;
                 break quick;
             }
 
+            if (vfrag == ENTRY_COMPRESSED) {
+                garbage(garbage() + loc + len - copyToLeafValue
+                        (page, vfrag, value, valueHeaderLoc) - valueLen);
+                return;
+            }
+
             if (valueLen == len) {
                 // Quick copy with no garbage created.
                 if (valueLen == 0) {
@@ -3519,13 +4190,14 @@ final class _Node extends Latch implements _DatabaseAccess {
         final int vfragOriginal = vfrag;
 
         int encodedLen;
-        if (vfrag != 0) {
+        if (vfrag == ENTRY_FRAGMENTED) {
             encodedLen = keyLen + calculateFragmentedValueLength(value);
         } else {
             _LocalDatabase db = tree.mDatabase;
-            encodedLen = keyLen + calculateLeafValueLength(value);
+            encodedLen = keyLen + calculateLeafValueLength(vfrag, value);
             if (encodedLen > db.mMaxEntrySize) {
-                value = db.fragment(value, value.length, db.mMaxFragmentedEntrySize - keyLen);
+                value = fragmentLeafValue
+                    (db, vfrag, value, db.mMaxFragmentedEntrySize - keyLen);
                 if (value == null) {
                     throw new AssertionError();
                 }
@@ -3555,21 +4227,30 @@ final class _Node extends Latch implements _DatabaseAccess {
                     if (mSplit == null) {
                         // TODO: use frame for rebalancing
                         // _Node is full, so split it.
-                        byte[] okey = isOriginal ? akey : retrieveKeyAtLoc(this, page, start);
+                        byte[] okey;
+                        if (!isOriginal) {
+                            okey = retrieveKeyAtLoc(page, start);
+                        } else if (isPrefixLeaf()) {
+                            // _Split needs the full key, and it's encoded again without the
+                            // prefix.
+                            okey = akey = retrieveKeyAtLoc(page, start);
+                        } else {
+                            okey = akey;
+                        }
                         splitLeafAndCreateEntry
                             (tree, okey, akey, vfrag, value, encodedLen, pos, false);
                         return;
                     }
 
                     // _Node is already split, and so value is too large.
-                    if (vfrag != 0) {
+                    if (vfrag == ENTRY_FRAGMENTED) {
                         // TODO: Can this happen?
                         throw new DatabaseException("Fragmented entry doesn't fit");
                     }
                     _LocalDatabase db = tree.mDatabase;
                     int max = Math.min(db.mMaxFragmentedEntrySize,
                                        garbage + leftSpace + rightSpace);
-                    value = db.fragment(value, value.length, max - keyLen);
+                    value = fragmentLeafValue(db, vfrag, value, max - keyLen);
                     if (value == null) {
                         throw new AssertionError();
                     }
@@ -3874,18 +4555,32 @@ final class _Node extends Latch implements _DatabaseAccess {
     {
         tree.mDatabase.prepareToDelete(rightNode);
 
+        // Merged node can only elide the key prefix which is shared by both nodes.
+        final int plen = commonKeyPrefixLength(leftNode, rightNode);
+        if (plen != leftNode.keyPrefixLength()) {
+            leftNode.rewriteKeyPrefix(leftNode.keyPrefix(), plen);
+        }
+
         final long rightPage = rightNode.mPage;
+        final int rightPlen = rightNode.keyPrefixLength();
         final int searchVecEnd = rightNode.searchVecEnd();
         final int leftEndPos = leftNode.highestLeafPos() + 2;
 
         int searchVecStart = rightNode.searchVecStart();
         while (searchVecStart <= searchVecEnd) {
             int entryLoc = p_ushortGetLE(rightPage, searchVecStart);
-            int encodedLen = leafEntryLengthAtLoc(rightPage, entryLoc);
-            int leftEntryLoc = leftNode.createLeafEntry
-                (null, tree, leftNode.highestLeafPos() + 2, encodedLen);
-            // Note: Must access left page each time, since compaction can replace it.
-            p_copy(rightPage, entryLoc, leftNode.mPage, leftEntryLoc, encodedLen);
+            if (rightPlen == plen) {
+                int encodedLen = leafEntryLengthAtLoc(rightPage, entryLoc);
+                int leftEntryLoc = leftNode.createLeafEntry
+                    (null, tree, leftNode.highestLeafPos() + 2, encodedLen);
+                // Note: Must access left page each time, since compaction can replace it.
+                p_copy(rightPage, entryLoc, leftNode.mPage, leftEntryLoc, encodedLen);
+            } else {
+                int encodedLen = leafEntryLengthAtLoc(rightPage, rightPlen, entryLoc, plen);
+                int leftEntryLoc = leftNode.createLeafEntry
+                    (null, tree, leftNode.highestLeafPos() + 2, encodedLen);
+                copyLeafEntry(rightPage, rightPlen, entryLoc, leftNode.mPage, plen, leftEntryLoc);
+            }
             searchVecStart += 2;
         }
 
@@ -3904,6 +4599,205 @@ final class _Node extends Latch implements _DatabaseAccess {
         tree.mDatabase.deleteNode(rightNode);
     }
 
+    /**
+     * Returns the length of the key prefix which is shared by two leaf nodes. Caller must
+     * hold latches on both nodes.
+     */
+    private static int commonKeyPrefixLength(_Node leftNode, _Node rightNode) {
+        final long leftPage = leftNode.mPage;
+        final long rightPage = rightNode.mPage;
+        int plen = Math.min(leftNode.keyPrefixLength(), rightNode.keyPrefixLength());
+        for (int i=0; i<plen; i++) {
+            int loc = TN_HEADER_SIZE + 1 + i;
+            if (p_byteGet(leftPage, loc) != p_byteGet(rightPage, loc)) {
+                return i;
+            }
+        }
+        return plen;
+    }
+
+    /**
+     * Returns the amount of additional space needed when merging two adjacent leaf nodes,
+     * which can be negative. Keys must be encoded again when the nodes have different key
+     * prefixes. Caller must hold latches on both nodes.
+     */
+    static int leafMergeGrowth(_Node leftNode, _Node rightNode) {
+        int leftPlen = leftNode.keyPrefixLength();
+        int rightPlen = rightNode.keyPrefixLength();
+        if (leftPlen == 0 && rightPlen == 0) {
+            return 0;
+        }
+        int plen = commonKeyPrefixLength(leftNode, rightNode);
+        return leftNode.keyPrefixGrowth(plen) + rightNode.keyPrefixGrowth(plen)
+            + keyPrefixArea(plen) - keyPrefixArea(leftPlen) - keyPrefixArea(rightPlen);
+    }
+
+    /**
+     * @return amount of header space occupied by a key prefix of the given length, which is
+     * always even
+     */
+    private static int keyPrefixArea(int plen) {
+        return plen == 0 ? 0 : ((plen + 2) & ~1);
+    }
+
+    /**
+     * Returns the change in size of all the entries, if the keys were encoded for a
+     * different prefix length.
+     */
+    private int keyPrefixGrowth(int newPlen) {
+        final long page = mPage;
+        final int plen = keyPrefixLength();
+        int growth = 0;
+        if (plen != newPlen) {
+            for (int i = searchVecStart(); i <= searchVecEnd(); i += 2) {
+                int loc = p_ushortGetLE(page, i);
+                growth += leafEntryLengthAtLoc(page, plen, loc, newPlen)
+                    - leafEntryLengthAtLoc(page, loc);
+            }
+        }
+        return growth;
+    }
+
+    /**
+     * Returns the length of an encoded entry, if the key was encoded for a different key
+     * prefix length. Fragmented keys are always stored in full.
+     *
+     * @param plen key prefix length of the node which contains the entry
+     * @param newPlen key prefix length to encode the key for
+     */
+    private static int leafEntryLengthAtLoc(long page, int plen, int entryLoc,
+                                            int newPlen)
+    {
+        int len = leafEntryLengthAtLoc(page, entryLoc);
+        int header = p_byteGet(page, entryLoc);
+        if (plen != newPlen && (header >= 0 || (header & ENTRY_FRAGMENTED) == 0)) {
+            int keyLen = keyLengthAtLoc(page, entryLoc);
+            int newKeyLen = keyLen - (header >= 0 ? 1 : 2) + plen - newPlen;
+            len += newKeyLen + ((newKeyLen <= SMALL_KEY_LIMIT && newKeyLen > 0) ? 1 : 2)
+                - keyLen;
+        }
+        return len;
+    }
+
+    /**
+     * Copies an encoded entry, encoding the key again for a different key prefix. The full
+     * key must start with both prefixes. Fragmented keys are always stored in full.
+     *
+     * @param srcPlen key prefix length of the source node
+     * @param destPlen key prefix length of the destination node
+     * @return updated destLoc
+     */
+    private static int copyLeafEntry(long srcPage, int srcPlen, int srcLoc,
+                                     long destPage, int destPlen, int destLoc)
+    {
+        final int len = leafEntryLengthAtLoc(srcPage, srcLoc);
+        int header = p_byteGet(srcPage, srcLoc);
+        if (srcPlen == destPlen || (header < 0 && (header & ENTRY_FRAGMENTED) != 0)) {
+            p_copy(srcPage, srcLoc, destPage, destLoc, len);
+            return destLoc + len;
+        }
+
+        int loc = srcLoc + 1;
+        int keyLen = header >= 0 ? (header + 1)
+            : (((header & 0x3f) << 8) | p_ubyteGet(srcPage, loc++));
+        final int valueLoc = loc + keyLen;
+
+        int newKeyLen = keyLen + srcPlen - destPlen;
+        if (newKeyLen <= SMALL_KEY_LIMIT && newKeyLen > 0) {
+            p_bytePut(destPage, destLoc++, newKeyLen - 1);
+        } else {
+            p_bytePut(destPage, destLoc++, 0x80 | (newKeyLen >> 8));
+            p_bytePut(destPage, destLoc++, newKeyLen);
+        }
+
+        if (destPlen < srcPlen) {
+            // Move the end of the source prefix into the key.
+            int amount = srcPlen - destPlen;
+            p_copy(srcPage, TN_HEADER_SIZE + 1 + destPlen, destPage, destLoc, amount);
+            p_copy(srcPage, loc, destPage, destLoc + amount, keyLen);
+        } else {
+            // Skip the start of the key, which is now part of the destination prefix.
+            p_copy(srcPage, loc + destPlen - srcPlen, destPage, destLoc, newKeyLen);
+        }
+        destLoc += newKeyLen;
+
+        int valueLen = srcLoc + len - valueLoc;
+        p_copy(srcPage, valueLoc, destPage, destLoc, valueLen);
+        return destLoc + valueLen;
+    }
+
+    /**
+     * Rebuilds this leaf node with a different key prefix, reclaiming all garbage. Keys are
+     * encoded again for the new prefix, and the node type changes if the prefix becomes
+     * empty. Caller must hold exclusive latch and ensure that node is dirty. Caller is also
+     * responsible for ensuring that all keys start with the new prefix and that all entries
+     * fit.
+     *
+     * @param prefix source of new prefix
+     * @param plen new prefix length; 0..MAX_KEY_PREFIX
+     */
+    void rewriteKeyPrefix(byte[] prefix, int plen) {
+        long page = mPage;
+        final int oldPlen = keyPrefixLength();
+        final int searchVecStart = searchVecStart();
+        final int searchVecEnd = searchVecEnd();
+        final int vecLen = searchVecEnd - searchVecStart + 2;
+
+        int destLoc = TN_HEADER_SIZE + keyPrefixArea(plen);
+
+        // Center the new search vector in the free space, like the compactLeaf method.
+        int entriesLen = 0;
+        for (int i = searchVecStart; i <= searchVecEnd; i += 2) {
+            entriesLen += leafEntryLengthAtLoc(page, oldPlen, p_ushortGetLE(page, i), plen);
+        }
+        int searchVecCap = pageSize(page) - destLoc - entriesLen;
+        int newSearchVecStart = pageSize(page) - (((searchVecCap + vecLen) >> 1) & ~1);
+
+        byte newType = (byte) ((plen == 0 ? TYPE_TN_LEAF : TYPE_TN_PLEAF)
+                               | (type() & (LOW_EXTREMITY | HIGH_EXTREMITY)));
+
+        _LocalDatabase db = getDatabase();
+        long dest = db.removeSparePage();
+
+        /*P*/ // [|
+        p_intPutLE(dest, 0, newType & 0xff); // set type, reserved byte, and garbage
+        /*P*/ // ]
+
+        if (plen != 0) {
+            p_bytePut(dest, TN_HEADER_SIZE, plen);
+            p_copyFromArray(prefix, 0, dest, TN_HEADER_SIZE + 1, plen);
+        }
+
+        int newSearchVecLoc = newSearchVecStart;
+        for (int i = searchVecStart; i <= searchVecEnd; i += 2, newSearchVecLoc += 2) {
+            p_shortPutLE(dest, newSearchVecLoc, destLoc);
+            destLoc = copyLeafEntry(page, oldPlen, p_ushortGetLE(page, i), dest, plen, destLoc);
+        }
+
+        /*P*/ // [
+        // // Recycle old page buffer and swap in rebuilt page.
+        // db.addSparePage(page);
+        // mPage = dest;
+        // type(newType);
+        // garbage(0);
+        /*P*/ // |
+        if (db.mFullyMapped) {
+            // Copy rebuilt page to original page and recycle spare page buffer.
+            p_copy(dest, 0, page, 0, pageSize(page));
+            db.addSparePage(dest);
+        } else {
+            // Recycle old page buffer and swap in rebuilt page.
+            db.addSparePage(page);
+            mPage = dest;
+        }
+        /*P*/ // ]
+
+        leftSegTail(destLoc);
+        rightSegTail(pageSize(dest) - 1);
+        searchVecStart(newSearchVecStart);
+        searchVecEnd(newSearchVecStart + vecLen - 2);
+    }
+
     /**
      * Moves all the entries from the right node into the tail of the given
      * left node, and then deletes the right node node. Caller must ensure that
@@ -4197,6 +5091,23 @@ final class _Node extends Latch implements _DatabaseAccess {
         }
     }
 
+    /**
+     * Calculate encoded key length for this leaf node, including header, and excluding the
+     * key prefix. Returns -1 if key is too large and must be fragmented.
+     */
+    private int calculateAllowedLeafKeyLength(_LocalDatabase db, byte[] key) {
+        int plen = keyPrefixLength();
+        if (plen == 0) {
+            return calculateAllowedKeyLength(db, key);
+        }
+        int len = key.length - plen;
+        if (((len - 1) & ~(SMALL_KEY_LIMIT - 1)) == 0) {
+            return len + 1;
+        } else {
+            return len > db.mMaxKeySize ? -1 : (len + 2);
+        }
+    }
+
     /**
      * Calculate encoded key length, including header. Key must fit in the node and hasn't been
      * fragmented. Fragmented keys always lead with a 2-byte header.
@@ -4215,6 +5126,16 @@ final class _Node extends Latch implements _DatabaseAccess {
         return len + ((len <= 127) ? 1 : ((len <= 8192) ? 2 : 3));
     }
 
+    /**
+     * Calculate encoded value length for leaf, including header. Value must fit in the node
+     * and hasn't been fragmented.
+     *
+     * @param vfrag 0 or ENTRY_COMPRESSED
+     */
+    private static int calculateLeafValueLength(int vfrag, byte[] value) {
+        return vfrag == 0 ? calculateLeafValueLength(value) : (value.length + 3);
+    }
+
     /**
      * Calculate encoded value length for leaf, including header. Value must fit in the node
      * and hasn't been fragmented.
@@ -4239,13 +5160,36 @@ final class _Node extends Latch implements _DatabaseAccess {
         return vlength + ((vlength <= 8192) ? 2 : 3);
     }
 
+    /**
+     * Breakup a large leaf value into separate pages, which might be compressed.
+     *
+     * @param vfrag 0 or ENTRY_COMPRESSED
+     * @return null if max is too small
+     */
+    private static byte[] fragmentLeafValue(_LocalDatabase db, int vfrag, byte[] value, int max)
+        throws IOException
+    {
+        return vfrag == 0 ? db.fragment(value, value.length, max)
+            : db.fragmentCompressed(value, max);
+    }
+
     /**
      * @param key unencoded key
      * @param page destination for encoded key, with room for key header
      * @return updated pageLoc
      */
     static int encodeNormalKey(final byte[] key, final long page, int pageLoc) {
-        final int keyLen = key.length;
+        return encodeNormalKey(key, 0, page, pageLoc);
+    }
+
+    /**
+     * @param key unencoded key
+     * @param off offset into key, to skip a key prefix
+     * @param page destination for encoded key, with room for key header
+     * @return updated pageLoc
+     */
+    static int encodeNormalKey(final byte[] key, int off, final long page, int pageLoc) {
+        final int keyLen = key.length - off;
 
         if (keyLen <= SMALL_KEY_LIMIT && keyLen > 0) {
             p_bytePut(page, pageLoc++, keyLen - 1);
@@ -4253,7 +5197,7 @@ final class _Node extends Latch implements _DatabaseAccess {
             p_bytePut(page, pageLoc++, 0x80 | (keyLen >> 8));
             p_bytePut(page, pageLoc++, keyLen);
         }
-        p_copyFromArray(key, 0, page, pageLoc, keyLen);
+        p_copyFromArray(key, off, page, pageLoc, keyLen);
 
         return pageLoc + keyLen;
     }
@@ -4294,17 +5238,17 @@ final class _Node extends Latch implements _DatabaseAccess {
     /**
      * @param okey original key
      * @param akey key to actually store
-     * @param vfrag 0 or ENTRY_FRAGMENTED
+     * @param vfrag 0, ENTRY_FRAGMENTED or ENTRY_COMPRESSED
      */
     private void copyToLeafEntry(byte[] okey, byte[] akey, int vfrag, byte[] value, int entryLoc) {
         final long page = mPage;
-        int vloc = okey == akey ? encodeNormalKey(akey, page, entryLoc)
+        int vloc = okey == akey ? encodeNormalKey(akey, keyPrefixLength(), page, entryLoc)
             : encodeFragmentedKey(akey, page, entryLoc);
         copyToLeafValue(page, vfrag, value, vloc);
     }
 
     /**
-     * @param vfrag 0 or ENTRY_FRAGMENTED
+     * @param vfrag 0, ENTRY_FRAGMENTED or ENTRY_COMPRESSED
      * @return page location for first byte of value (first location after header)
      */
     private static int copyToLeafValue(long page, int vfrag, byte[] value, int vloc) {
@@ -4315,7 +5259,7 @@ final class _Node extends Latch implements _DatabaseAccess {
     }
 
     /**
-     * @param vfrag 0 or ENTRY_FRAGMENTED
+     * @param vfrag 0, ENTRY_FRAGMENTED or ENTRY_COMPRESSED
      * @return page location for first byte of value (first location after header)
      */
     static int encodeLeafValueHeader(long page, int vfrag, int vlen, int vloc) {
@@ -4323,7 +5267,7 @@ final class _Node extends Latch implements _DatabaseAccess {
             p_bytePut(page, vloc++, vlen);
         } else {
             vlen--;
-            if (vlen <= 8192) {
+            if (vlen <= 8192 && vfrag != ENTRY_COMPRESSED) {
                 p_bytePut(page, vloc++, 0x80 | vfrag | (vlen >> 8));
                 p_bytePut(page, vloc++, vlen);
             } else {
@@ -4364,7 +5308,7 @@ final class _Node extends Latch implements _DatabaseAccess {
 
         // Copy into a fresh buffer.
 
-        int destLoc = TN_HEADER_SIZE;
+        int destLoc = leafSegmentStart();
         int newSearchVecLoc = newSearchVecStart;
         int newLoc = 0;
         final int searchVecEnd = searchVecEnd();
@@ -4376,6 +5320,9 @@ final class _Node extends Latch implements _DatabaseAccess {
         p_intPutLE(dest, 0, type() & 0xff); // set type, reserved byte, and garbage
         /*P*/ // ]
 
+        // Copy the key prefix, if any.
+        p_copy(page, TN_HEADER_SIZE, dest, TN_HEADER_SIZE, destLoc - TN_HEADER_SIZE);
+
         for (; searchVecLoc <= searchVecEnd; searchVecLoc += 2, newSearchVecLoc += 2) {
             if (searchVecLoc == pos) {
                 newLoc = newSearchVecLoc;
@@ -4437,7 +5384,7 @@ final class _Node extends Latch implements _DatabaseAccess {
     /**
      * @param okey original key
      * @param akey key to actually store
-     * @param vfrag 0 or ENTRY_FRAGMENTED
+     * @param vfrag 0, ENTRY_FRAGMENTED or ENTRY_COMPRESSED
      * @param encodedLen length of new entry to allocate
      * @param pos normalized search vector position of entry to insert/update
      */
@@ -4476,6 +5423,10 @@ final class _Node extends Latch implements _DatabaseAccess {
         p_intPutLE(newPage, 0, 0); // set type (fixed later), reserved byte, and garbage
         /*P*/ // ]
 
+        // New node has the same key prefix, if any.
+        final int segStart = leafSegmentStart();
+        p_copy(page, TN_HEADER_SIZE, newPage, TN_HEADER_SIZE, segStart - TN_HEADER_SIZE);
+
         if (forInsert && pos == 0) {
             // Inserting into left edge of node, possibly because inserts are
             // descending. _Split into new left node, but only the new entry
@@ -4495,13 +5446,13 @@ final class _Node extends Latch implements _DatabaseAccess {
 
             // Position search vector at extreme left, allowing new entries to
             // be placed in a natural descending order.
-            newNode.leftSegTail(TN_HEADER_SIZE);
-            newNode.searchVecStart(TN_HEADER_SIZE);
-            newNode.searchVecEnd(TN_HEADER_SIZE);
+            newNode.leftSegTail(segStart);
+            newNode.searchVecStart(segStart);
+            newNode.searchVecEnd(segStart);
 
             int destLoc = pageSize(newPage) - encodedLen;
             newNode.copyToLeafEntry(okey, akey, vfrag, value, destLoc);
-            p_shortPutLE(newPage, TN_HEADER_SIZE, destLoc);
+            p_shortPutLE(newPage, segStart, destLoc);
 
             newNode.rightSegTail(destLoc - 1);
             newNode.releaseExclusive();
@@ -4538,10 +5489,10 @@ final class _Node extends Latch implements _DatabaseAccess {
             newNode.searchVecStart(newSearchVecStart);
             newNode.searchVecEnd(newSearchVecStart);
 
-            newNode.copyToLeafEntry(okey, akey, vfrag, value, TN_HEADER_SIZE);
-            p_shortPutLE(newPage, pageSize(newPage) - 2, TN_HEADER_SIZE);
+            newNode.copyToLeafEntry(okey, akey, vfrag, value, segStart);
+            p_shortPutLE(newPage, pageSize(newPage) - 2, segStart);
 
-            newNode.leftSegTail(TN_HEADER_SIZE + encodedLen);
+            newNode.leftSegTail(segStart + encodedLen);
             newNode.releaseExclusive();
 
             return;
@@ -4552,7 +5503,7 @@ final class _Node extends Latch implements _DatabaseAccess {
 
         int garbageAccum = 0;
         int newLoc = 0;
-        int newAvail = pageSize(newPage) - TN_HEADER_SIZE;
+        int newAvail = pageSize(newPage) - segStart;
 
         // Guess which way to split by examining search position. This doesn't take into
         // consideration the variable size of the entries. If the guess is wrong, the new
@@ -4562,7 +5513,7 @@ final class _Node extends Latch implements _DatabaseAccess {
             // _Split into new left node.
 
             int destLoc = pageSize(newPage);
-            int newSearchVecLoc = TN_HEADER_SIZE;
+            int newSearchVecLoc = segStart;
 
             // Is assigned if value needed to be fragmented. Used by exception handler below.
             byte[] fv = null;
@@ -4576,13 +5527,14 @@ final class _Node extends Latch implements _DatabaseAccess {
                     if ((newAvail -= encodedLen + 2) < 0) {
                         // Entry doesn't fit into new node. If value hasn't been fragmented
                         // yet, then fragment the value to make it fit.
-                        if (vfrag != 0) {
+                        if (vfrag == ENTRY_FRAGMENTED) {
                             break;
                         }
 
                         newAvail += encodedLen + 2; // undo
 
                         FragParams params = new FragParams();
+                        params.vfrag = vfrag;
                         params.value = value;
                         params.encodedLen = encodedLen;
                         params.available = newAvail;
@@ -4636,8 +5588,8 @@ final class _Node extends Latch implements _DatabaseAccess {
                 avail += entryLen + 2;
             }
 
-            newNode.leftSegTail(TN_HEADER_SIZE);
-            newNode.searchVecStart(TN_HEADER_SIZE);
+            newNode.leftSegTail(segStart);
+            newNode.searchVecStart(segStart);
             newNode.searchVecEnd(newSearchVecLoc - 2);
 
             // Prune off the left end of this node.
@@ -4678,7 +5630,7 @@ final class _Node extends Latch implements _DatabaseAccess {
         } else {
             // _Split into new right node.
 
-            int destLoc = TN_HEADER_SIZE;
+            int destLoc = segStart;
             int newSearchVecLoc = pageSize(newPage) - 2;
 
             // Is assigned if value needed to be fragmented. Used by exception handler below.
@@ -4694,13 +5646,14 @@ final class _Node extends Latch implements _DatabaseAccess {
                         if ((newAvail -= encodedLen + 2) < 0) {
                             // Inserted entry doesn't fit into new node. If value hasn't been
                             // fragmented yet, then fragment the value to make it fit.
-                            if (vfrag != 0) {
+                            if (vfrag == ENTRY_FRAGMENTED) {
                                 break;
                             }
 
                             newAvail += encodedLen + 2; // undo
 
                             FragParams params = new FragParams();
+                            params.vfrag = vfrag;
                             params.value = value;
                             params.encodedLen = encodedLen;
                             params.available = newAvail;
@@ -4731,13 +5684,14 @@ final class _Node extends Latch implements _DatabaseAccess {
                         if ((newAvail -= encodedLen + 2) < 0) {
                             // Updated entry doesn't fit into new node. If value hasn't been
                             // fragmented yet, then fragment the value to make it fit.
-                            if (vfrag != 0) {
+                            if (vfrag == ENTRY_FRAGMENTED) {
                                 break;
                             }
 
                             newAvail += encodedLen + 2; // undo
 
                             FragParams params = new FragParams();
+                            params.vfrag = vfrag;
                             params.value = value;
                             params.encodedLen = encodedLen;
                             params.available = newAvail;
@@ -4828,6 +5782,7 @@ final class _Node extends Latch implements _DatabaseAccess {
      * In/out parameters passed to the fragmentValue method.
      */
     private static final class FragParams {
+        int vfrag;      // in: 0 or ENTRY_COMPRESSED
         byte[] value;   // in: unfragmented value;  out: fragmented value
         int encodedLen; // in: entry encoded length;  out: updated entry encoded length
         int available;  // in: available bytes in the target leaf node;  out: updated
@@ -4841,7 +5796,7 @@ final class _Node extends Latch implements _DatabaseAccess {
 
         // Compute the encoded key length by subtracting off the value length. This properly
         // handles the case where the key has been fragmented.
-        int encodedKeyLen = params.encodedLen - calculateLeafValueLength(value);
+        int encodedKeyLen = params.encodedLen - calculateLeafValueLength(params.vfrag, value);
 
         _LocalDatabase db = tree.mDatabase;
 
@@ -4850,7 +5805,7 @@ final class _Node extends Latch implements _DatabaseAccess {
         // the space occupied by the key.
         int max = Math.min(params.available - 2, db.mMaxFragmentedEntrySize) - encodedKeyLen;
 
-        value = db.fragment(value, value.length, max);
+        value = fragmentLeafValue(db, params.vfrag, value, max);
 
         if (value == null) {
             // This shouldn't happen with a properly defined maximum key size.
@@ -4874,7 +5829,7 @@ final class _Node extends Latch implements _DatabaseAccess {
      *
      * @param okey original key
      * @param akey key to actually store
-     * @param vfrag 0 or ENTRY_FRAGMENTED
+     * @param vfrag 0, ENTRY_FRAGMENTED or ENTRY_COMPRESSED
      * @return non-null if value got fragmented
      */
     private byte[] storeIntoSplitLeaf(_Tree tree, byte[] okey, byte[] akey,
@@ -4899,12 +5854,13 @@ final class _Node extends Latch implements _DatabaseAccess {
         byte[] result = null;
 
         while (entryLoc < 0) {
-            if (vfrag != 0) {
+            if (vfrag == ENTRY_FRAGMENTED) {
                 // TODO: Can this happen?
                 throw new DatabaseException("Fragmented entry doesn't fit");
             }
 
             FragParams params = new FragParams();
+            params.vfrag = vfrag;
             params.value = value;
             params.encodedLen = encodedLen;
             params.available = ~entryLoc;
@@ -5442,6 +6398,7 @@ final class _Node extends Latch implements _DatabaseAccess {
 
     private _Split newSplitLeft(_Node newNode) {
         _Split split = new _Split(false, newNode);
+        newNode.mCachePriority = mCachePriority;
         // New left node cannot be a high extremity, and this node cannot be a low extremity.
         newNode.type((byte) (type() & ~HIGH_EXTREMITY));
         type((byte) (type() & ~LOW_EXTREMITY));
@@ -5450,6 +6407,7 @@ final class _Node extends Latch implements _DatabaseAccess {
 
     private _Split newSplitRight(_Node newNode) {
         _Split split = new _Split(true, newNode);
+        newNode.mCachePriority = mCachePriority;
         // New right node cannot be a low extremity, and this node cannot be a high extremity.
         newNode.type((byte) (type() & ~LOW_EXTREMITY));
         type((byte) (type() & ~HIGH_EXTREMITY));
@@ -5596,7 +6554,15 @@ final class _Node extends Latch implements _DatabaseAccess {
 
         final long page = mPage;
 
-        if (leftSegTail() < TN_HEADER_SIZE) {
+        if (isPrefixLeaf() && (keyPrefixLength() == 0
+                               || (type() & (LOW_EXTREMITY | HIGH_EXTREMITY)) != 0))
+        {
+            return verifyFailed(level, observer, "Key prefix length: " + keyPrefixLength());
+        }
+
+        final int segStart = leafSegmentStart();
+
+        if (leftSegTail() < segStart) {
             return verifyFailed(level, observer, "Left segment tail: " + leftSegTail());
         }
 
@@ -5634,7 +6600,7 @@ final class _Node extends Latch implements _DatabaseAccess {
             }
         }
 
-        int used = TN_HEADER_SIZE + rightSegTail() + 1 - leftSegTail();
+        int used = segStart + rightSegTail() + 1 - leftSegTail();
 
         int largeValueCount = 0;
 
@@ -5644,7 +6610,7 @@ final class _Node extends Latch implements _DatabaseAccess {
             final int keyLoc = p_ushortGetLE(page, i);
             int loc = keyLoc;
 
-            if (loc < TN_HEADER_SIZE || loc >= pageSize(page) ||
+            if (loc < segStart || loc >= pageSize(page) ||
                 (loc >= leftSegTail() && loc <= rightSegTail()))
             {
                 return verifyFailed(level, observer, "Entry location: " + loc);
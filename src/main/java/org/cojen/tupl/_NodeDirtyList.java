@@ -18,8 +18,21 @@ package org.cojen.tupl;
 
 import java.io.IOException;
 
+import java.util.Arrays;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.cojen.tupl.util.Latch;
 
+import static org.cojen.tupl.DirectPageOps.*;
+
 /**
  * List of dirty nodes.
  *
@@ -28,6 +41,9 @@ import org.cojen.tupl.util.Latch;
 /*P*/
 @SuppressWarnings("serial")
 final class _NodeDirtyList extends Latch {
+    // Maximum number of nodes with consecutive ids which are written together.
+    private static final int MAX_RUN_PAGES = 32;
+
     // Linked list of dirty nodes.
     private _Node mFirstDirty;
     private _Node mLastDirty;
@@ -35,7 +51,39 @@ final class _NodeDirtyList extends Latch {
     // Iterator over dirty nodes.
     private _Node mFlushNext;
 
+    // Checkpoint flush parallelism. When more than one thread is used, nodes are written in
+    // page id order, in batches claimed by each thread.
+    private final int mFlushThreads;
+    private final int mFlushBatchSize;
+    private final ThreadPoolExecutor mFlushService;
+
     _NodeDirtyList() {
+        this(1, 1);
+    }
+
+    /**
+     * @param flushThreads number of threads to use for flushing
+     * @param flushBatchSize number of nodes claimed by a flushing thread at a time
+     */
+    _NodeDirtyList(int flushThreads, int flushBatchSize) {
+        mFlushThreads = flushThreads;
+        mFlushBatchSize = Math.max(1, flushBatchSize);
+
+        if (flushThreads <= 1) {
+            mFlushService = null;
+        } else {
+            // Current thread participates too, and so one less thread is required. Idle
+            // threads exit between checkpoints.
+            int max = flushThreads - 1;
+            AtomicInteger counter = new AtomicInteger();
+            mFlushService = new ThreadPoolExecutor
+                (max, max, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                    Thread t = new Thread(r, "CheckpointFlusher-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            mFlushService.allowCoreThreadTimeOut(true);
+        }
     }
 
     /**
@@ -119,6 +167,11 @@ final class _NodeDirtyList extends Latch {
      * Flush all nodes matching the given state. Only one flush at a time is allowed.
      */
     void flush(final _PageDb pageDb, final int dirtyState) throws IOException {
+        if (mFlushThreads > 1) {
+            flushParallel(pageDb, dirtyState);
+            return;
+        }
+
         acquireExclusive();
         mFlushNext = mFirstDirty;
         releaseExclusive();
@@ -152,48 +205,287 @@ final class _NodeDirtyList extends Latch {
                 }
             }
 
-            // Remove from list. Because allocPage requires nodes to be latched,
-            // there's no need to update mFlushNext. The removed node will never be
-            // the same as mFlushNext.
+            removeAndWrite(pageDb, node);
+        }
+    }
+
+    /**
+     * Flush all nodes matching the given state, using several threads and writing nodes in
+     * page id order. Only one flush at a time is allowed.
+     */
+    private void flushParallel(final _PageDb pageDb, final int dirtyState) throws IOException {
+        _Node[] nodes = new _Node[100];
+        long[] ids = new long[nodes.length];
+        int count = 0;
+
+        acquireExclusive();
+        mFlushNext = mFirstDirty;
+        releaseExclusive();
+
+        // Gather the nodes to flush in small chunks, to avoid holding the list latch for too
+        // long. Concurrent calls to the add method update mFlushNext as necessary.
+        collect: while (true) {
             acquireExclusive();
             try {
-                _Node next = node.mNextDirty;
-                _Node prev = node.mPrevDirty;
-                if (next != null) {
-                    next.mPrevDirty = prev;
-                    node.mNextDirty = null;
-                } else if (mLastDirty == node) {
-                    mLastDirty = prev;
-                }
-                if (prev != null) {
-                    prev.mNextDirty = next;
-                    node.mPrevDirty = null;
-                } else if (mFirstDirty == node) {
-                    mFirstDirty = next;
+                for (int i=0; i<1000; i++) {
+                    _Node node = mFlushNext;
+                    if (node == null) {
+                        break collect;
+                    }
+                    int state = node.mCachedState;
+                    mFlushNext = node.mNextDirty;
+                    if (state == dirtyState) {
+                        if (count >= nodes.length) {
+                            nodes = Arrays.copyOf(nodes, count << 1);
+                            ids = Arrays.copyOf(ids, count << 1);
+                        }
+                        nodes[count] = node;
+                        // Id can change concurrently, which only affects the write order.
+                        ids[count] = node.mId;
+                        count++;
+                    } else if (state != _Node.CACHED_CLEAN) {
+                        // Now seeing nodes with new dirty state, so all done collecting.
+                        mFlushNext = null;
+                        break collect;
+                    }
                 }
             } finally {
                 releaseExclusive();
             }
+        }
+
+        if (count == 0) {
+            return;
+        }
+
+        // Sort by the captured ids, since the node ids can change concurrently. Each node is
+        // then placed at the position of its id in the sorted copy.
+        long[] sorted = Arrays.copyOf(ids, count);
+        Arrays.sort(sorted);
+
+        final _Node[] fnodes = new _Node[count];
+        for (int i=0; i<count; i++) {
+            long id = ids[i];
+            int pos = Arrays.binarySearch(sorted, id);
+            // Ids can be duplicated when they change concurrently, so find a free slot.
+            while (pos > 0 && sorted[pos - 1] == id) {
+                pos--;
+            }
+            while (fnodes[pos] != null) {
+                pos++;
+            }
+            fnodes[pos] = nodes[i];
+        }
 
-            node.downgrade();
+        nodes = null;
+        ids = null;
+        sorted = null;
+
+        final int fcount = count;
+        final int batchSize = mFlushBatchSize;
+        final AtomicInteger nextBatch = new AtomicInteger();
+        final Throwable[] failure = new Throwable[1];
+
+        final int maxRun = Math.min(batchSize, MAX_RUN_PAGES);
+
+        Runnable task = () -> {
+            _Node[] run = new _Node[maxRun];
+            long buffer = p_null();
             try {
-                node.write(pageDb);
-                // Clean state must be set after write completes. Although latch has been
-                // downgraded to shared, modifying the state is safe because no other thread
-                // could have changed it. This is because the exclusive latch was acquired
-                // first.  Releasing the shared latch performs a volatile write, and so the
-                // state change gets propagated correctly.
-                node.mCachedState = _Node.CACHED_CLEAN;
+                if (maxRun > 1) {
+                    buffer = p_alloc(maxRun * pageDb.pageSize());
+                }
+                while (true) {
+                    int start = nextBatch.getAndAdd(batchSize);
+                    if (start >= fcount) {
+                        return;
+                    }
+                    int end = Math.min(start + batchSize, fcount);
+                    for (int i=start; i<end; ) {
+                        _Node node = fnodes[i];
+                        fnodes[i++] = null;
+                        node.acquireExclusive();
+                        if (node.mCachedState != dirtyState) {
+                            // Was written by another thread, or it was evicted.
+                            node.releaseExclusive();
+                            continue;
+                        }
+
+                        // Extend the run with nodes which have consecutive ids. Latches are
+                        // only tried, since waiting while holding other node latches can
+                        // deadlock.
+                        run[0] = node;
+                        int runCount = 1;
+                        while (i < end && runCount < maxRun) {
+                            _Node next = fnodes[i];
+                            if (next.mId != node.mId + 1 || !next.tryAcquireExclusive()) {
+                                break;
+                            }
+                            if (next.mCachedState != dirtyState || next.mId != node.mId + 1) {
+                                next.releaseExclusive();
+                                break;
+                            }
+                            fnodes[i++] = null;
+                            run[runCount++] = next;
+                            node = next;
+                        }
+
+                        if (runCount == 1) {
+                            removeAndWrite(pageDb, node);
+                        } else {
+                            removeAndWrite(pageDb, run, runCount, buffer);
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                synchronized (failure) {
+                    if (failure[0] == null) {
+                        failure[0] = e;
+                    }
+                }
+                // Stop all the other threads too.
+                nextBatch.set(fcount);
             } finally {
-                node.releaseShared();
+                p_delete(buffer);
+            }
+        };
+
+        int threadCount = Math.min(mFlushThreads, (count + batchSize - 1) / batchSize);
+
+        Future<?>[] futures = new Future[threadCount - 1];
+        for (int i=0; i<futures.length; i++) {
+            try {
+                futures[i] = mFlushService.submit(task);
+            } catch (RejectedExecutionException e) {
+                // Database is closing, so use fewer threads.
+                break;
+            }
+        }
+
+        // Current thread participates too.
+        task.run();
+
+        boolean interrupted = false;
+        for (Future<?> f : futures) {
+            if (f == null) {
+                break;
+            }
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // Must wait for all writes to finish.
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // Task catches all exceptions itself.
+                    break;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        Throwable e = failure[0];
+        if (e != null) {
+            throw Utils.rethrow(e);
+        }
+    }
+
+    /**
+     * Remove the node from the dirty list and write it. Caller must hold exclusive latch on
+     * the node, which is released by this method.
+     */
+    private void removeAndWrite(_PageDb pageDb, _Node node) throws IOException {
+        acquireExclusive();
+        try {
+            remove(node);
+        } finally {
+            releaseExclusive();
+        }
+
+        node.downgrade();
+        try {
+            node.write(pageDb);
+            // Clean state must be set after write completes. Although latch has been
+            // downgraded to shared, modifying the state is safe because no other thread
+            // could have changed it. This is because the exclusive latch was acquired
+            // first.  Releasing the shared latch performs a volatile write, and so the
+            // state change gets propagated correctly.
+            node.mCachedState = _Node.CACHED_CLEAN;
+        } finally {
+            node.releaseShared();
+        }
+    }
+
+    /**
+     * Remove the nodes from the dirty list and write them together. Caller must hold
+     * exclusive latches on the nodes, which have consecutive ids, and the latches are
+     * released by this method.
+     *
+     * @param buffer temporary buffer which is at least count pages long
+     */
+    private void removeAndWrite(_PageDb pageDb, _Node[] run, int count, long buffer)
+        throws IOException
+    {
+        acquireExclusive();
+        try {
+            for (int i=0; i<count; i++) {
+                remove(run[i]);
+            }
+        } finally {
+            releaseExclusive();
+        }
+
+        for (int i=0; i<count; i++) {
+            run[i].downgrade();
+        }
+
+        try {
+            _Node.write(pageDb, run, count, buffer);
+            // See comments in the single node variant regarding the clean state.
+            for (int i=0; i<count; i++) {
+                run[i].mCachedState = _Node.CACHED_CLEAN;
+            }
+        } finally {
+            for (int i=0; i<count; i++) {
+                run[i].releaseShared();
+                run[i] = null;
             }
         }
     }
 
+    /**
+     * Remove the node from the dirty list. Caller must hold exclusive latches on the list
+     * and the node. Because allocPage requires nodes to be latched, there's no need to update
+     * mFlushNext. The removed node will never be the same as mFlushNext.
+     */
+    private void remove(_Node node) {
+        _Node next = node.mNextDirty;
+        _Node prev = node.mPrevDirty;
+        if (next != null) {
+            next.mPrevDirty = prev;
+            node.mNextDirty = null;
+        } else if (mLastDirty == node) {
+            mLastDirty = prev;
+        }
+        if (prev != null) {
+            prev.mNextDirty = next;
+            node.mPrevDirty = null;
+        } else if (mFirstDirty == node) {
+            mFirstDirty = next;
+        }
+    }
+
     /**
      * Remove and delete nodes from dirty list, as part of close sequence.
      */
     void delete(_LocalDatabase db) {
+        if (mFlushService != null) {
+            mFlushService.shutdown();
+        }
         acquireExclusive();
         try {
             _Node node = mFirstDirty;
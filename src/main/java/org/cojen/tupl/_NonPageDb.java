@@ -144,6 +144,17 @@ final class _NonPageDb extends _PageDb {
         }
     }
 
+    @Override
+    public void writePages(long id, long pages, int count) throws IOException {
+        int pageSize = pageSize();
+        for (int i=0; i<count; i++) {
+            PageCache cache = mCache;
+            if (cache == null || !cache.add(id + i, pages, i * pageSize, false)) {
+                fail(true);
+            }
+        }
+    }
+
     @Override
     public long evictPage(long id, long page) throws IOException {
         writePage(id, page);
@@ -105,6 +105,16 @@ abstract class _PageDb implements CauseCloseable {
      */
     public abstract void writePage(long id, long page) throws IOException;
 
+    /**
+     * Same as calling writePage for each of the given consecutive pages, but they might be
+     * written together.
+     *
+     * @param id first previously allocated page id
+     * @param pages data to write, which is a page size multiple of the count
+     * @param count number of pages to write
+     */
+    public abstract void writePages(long id, long pages, int count) throws IOException;
+
     /**
      * Same as writePage, except that the given buffer might be altered and a replacement might
      * be returned. Caller must not alter the original buffer if a replacement was provided,
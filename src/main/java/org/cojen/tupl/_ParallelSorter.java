@@ -0,0 +1,527 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.cojen.tupl.util.Latch;
+import org.cojen.tupl.util.LatchCondition;
+
+import static org.cojen.tupl.Utils.*;
+
+/**
+ * Sorter which sorts runs of entries in memory, possibly in parallel, and then spills each
+ * run into a temporary tree. Runs are arranged in levels, and whenever enough completed runs
+ * accumulate in a level, the oldest ones are merged into a single run in the next level.
+ * Within a level, runs are ordered from oldest to newest, and the runs of a higher level are
+ * always older than the runs of a lower level. When merging, the newest entry wins.
+ *
+ * @author Generated by PageAccessTransformer from ParallelSorter.java
+ */
+/*P*/
+final class _ParallelSorter implements Sorter {
+    // Maximum amount of entries and bytes to buffer in memory before sorting a run.
+    private static final int MAX_BUFFER_ENTRIES = 100_000;
+    private static final long MAX_BUFFER_BYTES = 8L << 20;
+
+    // Approximate memory overhead of each buffered entry, excluding the key and value.
+    private static final int ENTRY_OVERHEAD = 64;
+
+    // Number of runs in a level which are merged into a single run in the next level.
+    private static final int MERGE_FACTOR = 8;
+
+    private final _LocalDatabase mDatabase;
+    private final Executor mExecutor;
+
+    // Maximum number of tasks allowed to be in progress before add must wait.
+    private final int mMaxPending;
+
+    private Entry[] mBuffer;
+    private int mBufferSize;
+    private long mBufferBytes;
+
+    // Guards all fields which follow.
+    private final Latch mLatch;
+    private final LatchCondition mCondition;
+
+    private List<List<Run>> mLevels;
+    private int mPending;
+    private Throwable mFailure;
+
+    /**
+     * @param executor optional; runs are sorted by the calling thread if null
+     */
+    _ParallelSorter(_LocalDatabase db, Executor executor) {
+        mDatabase = db;
+        mExecutor = executor;
+        mMaxPending = executor == null ? 1
+            : Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        mLatch = new Latch();
+        mCondition = new LatchCondition();
+    }
+
+    @Override
+    public void add(byte[] key, byte[] value) throws IOException {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+
+        Entry[] buffer = mBuffer;
+        int size = mBufferSize;
+
+        if (buffer == null) {
+            mBuffer = buffer = new Entry[1000];
+        } else if (size >= buffer.length) {
+            mBuffer = buffer = Arrays.copyOf(buffer, Math.min(MAX_BUFFER_ENTRIES, size << 1));
+        }
+
+        buffer[size++] = new Entry(key, value);
+        mBufferSize = size;
+
+        long bytes = mBufferBytes + key.length + value.length + ENTRY_OVERHEAD;
+        mBufferBytes = bytes;
+
+        if (size >= MAX_BUFFER_ENTRIES || bytes >= MAX_BUFFER_BYTES) {
+            flushBuffer();
+        }
+    }
+
+    @Override
+    public Index finish() throws IOException {
+        try {
+            return doFinish();
+        } catch (Throwable e) {
+            resetAfterFailure(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void finish(Index index) throws IOException {
+        _Tree target, tree;
+        try {
+            // Check the target before doing all the work.
+            target = mDatabase.bulkLoadTarget(index);
+            tree = doFinish();
+        } catch (Throwable e) {
+            resetAfterFailure(e);
+            throw e;
+        }
+
+        mDatabase.bulkLoad(target, tree);
+    }
+
+    @Override
+    public void reset() throws IOException {
+        mBuffer = null;
+        mBufferSize = 0;
+        mBufferBytes = 0;
+
+        List<_Tree> trees;
+
+        mLatch.acquireExclusive();
+        try {
+            awaitPending(0);
+            trees = collectTrees();
+            mFailure = null;
+        } finally {
+            mLatch.releaseExclusive();
+        }
+
+        Throwable failure = null;
+
+        for (_Tree tree : trees) {
+            try {
+                mDatabase.deleteIndex(tree).run();
+            } catch (Throwable e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw rethrow(failure);
+        }
+    }
+
+    private void resetAfterFailure(Throwable cause) {
+        try {
+            reset();
+        } catch (Throwable e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    /**
+     * @return temporary tree with all the sorted entries
+     */
+    private _Tree doFinish() throws IOException {
+        if (mBufferSize > 0) {
+            flushBuffer();
+        }
+
+        List<_Tree> trees;
+
+        mLatch.acquireExclusive();
+        try {
+            awaitPending(0);
+            checkFailure();
+            trees = collectTrees();
+        } finally {
+            mLatch.releaseExclusive();
+        }
+
+        switch (trees.size()) {
+        case 0:
+            return mDatabase.newTemporaryIndex();
+        case 1:
+            return trees.get(0);
+        default:
+            return mergeRuns(trees.toArray(new _Tree[trees.size()]));
+        }
+    }
+
+    /**
+     * Sorts the buffered entries in a new run.
+     */
+    private void flushBuffer() throws IOException {
+        final Entry[] buffer = mBuffer;
+        final int size = mBufferSize;
+
+        mBuffer = null;
+        mBufferSize = 0;
+        mBufferBytes = 0;
+
+        final Run run = new Run();
+
+        mLatch.acquireExclusive();
+        try {
+            awaitPending(mMaxPending - 1);
+            checkFailure();
+            level(0).add(run);
+            mPending++;
+        } finally {
+            mLatch.releaseExclusive();
+        }
+
+        execute(run, () -> sortRun(buffer, size));
+    }
+
+    /**
+     * Caller must hold exclusive latch.
+     *
+     * @param max wait until the number of pending tasks is at most this amount
+     */
+    private void awaitPending(int max) {
+        boolean interrupted = false;
+        while (mPending > max) {
+            if (mCondition.await(mLatch, -1, 0) < 0) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Caller must hold exclusive latch.
+     */
+    private void checkFailure() throws IOException {
+        Throwable e = mFailure;
+        if (e != null) {
+            throw new DatabaseException("Sort failed", e);
+        }
+    }
+
+    /**
+     * Caller must hold exclusive latch, and no tasks can be pending.
+     *
+     * @return all run trees, ordered from oldest to newest
+     */
+    private List<_Tree> collectTrees() {
+        List<_Tree> trees = new ArrayList<>();
+        List<List<Run>> levels = mLevels;
+        if (levels != null) {
+            for (int i = levels.size(); --i >= 0; ) {
+                for (Run run : levels.get(i)) {
+                    if (run.mTree != null) {
+                        trees.add(run.mTree);
+                    }
+                }
+            }
+            mLevels = null;
+        }
+        return trees;
+    }
+
+    /**
+     * Caller must hold exclusive latch.
+     */
+    private List<Run> level(int i) {
+        List<List<Run>> levels = mLevels;
+        if (levels == null) {
+            mLevels = levels = new ArrayList<>();
+        }
+        while (i >= levels.size()) {
+            levels.add(new ArrayList<>());
+        }
+        return levels.get(i);
+    }
+
+    private void execute(Run run, Task task) {
+        Runnable r = () -> {
+            _Tree tree = null;
+            Throwable failure = null;
+            try {
+                tree = task.run();
+            } catch (Throwable e) {
+                failure = e;
+            }
+            completed(run, tree, failure);
+        };
+
+        if (mExecutor != null) {
+            try {
+                mExecutor.execute(r);
+                return;
+            } catch (RejectedExecutionException e) {
+                // Run it in this thread instead.
+            }
+        }
+
+        r.run();
+    }
+
+    private void completed(Run run, _Tree tree, Throwable failure) {
+        List<Run> targets = null;
+        List<_Tree[]> sources = null;
+
+        mLatch.acquireExclusive();
+        try {
+            mPending--;
+
+            if (failure != null && mFailure == null) {
+                mFailure = failure;
+            }
+
+            run.mTree = tree;
+
+            if (mFailure == null) {
+                // Find runs which can be merged, always choosing the oldest ones first.
+                List<List<Run>> levels = mLevels;
+                for (int i=0; i<levels.size(); i++) {
+                    List<Run> level = levels.get(i);
+                    if (level.size() < MERGE_FACTOR) {
+                        continue;
+                    }
+
+                    _Tree[] merge = new _Tree[MERGE_FACTOR];
+                    for (int j=0; j<MERGE_FACTOR; j++) {
+                        if ((merge[j] = level.get(j).mTree) == null) {
+                            // Still in progress.
+                            merge = null;
+                            break;
+                        }
+                    }
+
+                    if (merge != null) {
+                        level.subList(0, MERGE_FACTOR).clear();
+                        Run target = new Run();
+                        level(i + 1).add(target);
+                        mPending++;
+                        if (targets == null) {
+                            targets = new ArrayList<>();
+                            sources = new ArrayList<>();
+                        }
+                        targets.add(target);
+                        sources.add(merge);
+                    }
+                }
+            }
+
+            mCondition.signalAll();
+        } finally {
+            mLatch.releaseExclusive();
+        }
+
+        if (targets != null) {
+            for (int i=0; i<targets.size(); i++) {
+                _Tree[] merge = sources.get(i);
+                execute(targets.get(i), () -> mergeRuns(merge));
+            }
+        }
+    }
+
+    private _Tree sortRun(Entry[] buffer, int size) throws IOException {
+        // Sort is stable, and so the last duplicate entry replaces the others when appended.
+        Arrays.sort(buffer, 0, size, (a, b) -> compareUnsigned(a.mKey, b.mKey));
+
+        _Tree tree = mDatabase.newTemporaryIndex();
+        try {
+            _TreeCursor c = tree.newCursor(Transaction.BOGUS);
+            try {
+                c.autoload(false);
+                for (int i=0; i<size; i++) {
+                    Entry e = buffer[i];
+                    c.appendEntry(e.mKey, e.mValue, 0);
+                }
+            } finally {
+                c.reset();
+            }
+        } catch (Throwable e) {
+            mDatabase.deleteQuietly(e, tree);
+            throw e;
+        }
+
+        return tree;
+    }
+
+    /**
+     * Merges the given runs into a new run, and then deletes them. Runs are deleted even if
+     * an exception is thrown.
+     *
+     * @param trees runs ordered from oldest to newest
+     */
+    private _Tree mergeRuns(_Tree[] trees) throws IOException {
+        _Tree dest;
+        try {
+            dest = mDatabase.newTemporaryIndex();
+            try {
+                merge(trees, dest);
+            } catch (Throwable e) {
+                mDatabase.deleteQuietly(e, dest);
+                throw e;
+            }
+        } catch (Throwable e) {
+            for (_Tree tree : trees) {
+                mDatabase.deleteQuietly(e, tree);
+            }
+            throw e;
+        }
+
+        for (_Tree tree : trees) {
+            mDatabase.deleteIndex(tree).run();
+        }
+
+        return dest;
+    }
+
+    private static void merge(_Tree[] trees, _Tree dest) throws IOException {
+        PriorityQueue<Source> queue = new PriorityQueue<>(trees.length);
+        Source[] sources = new Source[trees.length];
+        _TreeCursor out = null;
+
+        try {
+            for (int i=0; i<trees.length; i++) {
+                _TreeCursor c = trees[i].newCursor(Transaction.BOGUS);
+                sources[i] = new Source(c, i);
+                c.first();
+                if (c.key() != null) {
+                    queue.add(sources[i]);
+                }
+            }
+
+            out = dest.newCursor(Transaction.BOGUS);
+            out.autoload(false);
+
+            Source source;
+            while ((source = queue.poll()) != null) {
+                _TreeCursor c = source.mCursor;
+                byte[] key = c.key();
+                out.appendEntry(key, c.value(), 0);
+                source.advance(queue);
+
+                // Skip older entries with the same key.
+                while ((source = queue.peek()) != null
+                       && compareUnsigned(source.mCursor.key(), key) == 0)
+                {
+                    queue.poll();
+                    source.advance(queue);
+                }
+            }
+        } finally {
+            for (Source source : sources) {
+                if (source != null) {
+                    source.mCursor.reset();
+                }
+            }
+            if (out != null) {
+                out.reset();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    static interface Task {
+        /**
+         * @return completed run tree
+         */
+        _Tree run() throws IOException;
+    }
+
+    static final class Entry {
+        final byte[] mKey, mValue;
+
+        Entry(byte[] key, byte[] value) {
+            mKey = key;
+            mValue = value;
+        }
+    }
+
+    static final class Run {
+        // Is null until completed.
+        _Tree mTree;
+    }
+
+    static final class Source implements Comparable<Source> {
+        final _TreeCursor mCursor;
+
+        // Higher order is newer.
+        final int mOrder;
+
+        Source(_TreeCursor cursor, int order) {
+            mCursor = cursor;
+            mOrder = order;
+        }
+
+        void advance(PriorityQueue<Source> queue) throws IOException {
+            mCursor.next();
+            if (mCursor.key() != null) {
+                queue.add(this);
+            }
+        }
+
+        @Override
+        public int compareTo(Source other) {
+            int compare = compareUnsigned(mCursor.key(), other.mCursor.key());
+            // Newest entry is first.
+            return compare != 0 ? compare : Integer.compare(other.mOrder, mOrder);
+        }
+    }
+}
@@ -27,22 +27,53 @@ import java.io.IOException;
  */
 /*P*/
 final class _RedoLogDecoder extends RedoDecoder {
+    private static final long PROGRESS_INTERVAL_NANOS = 10L * 1000_000_000L;
+
     private final _RedoLog mLog;
     private final DataIn mIn;
+    private final long mStart;
+    private final long mLength;
     private final EventListener mListener;
 
-    _RedoLogDecoder(_RedoLog log, DataIn in, EventListener listener) {
+    private int mOpCount;
+    private long mLastProgressNanos;
+
+    /**
+     * @param length expected length of the input, for reporting progress
+     */
+    _RedoLogDecoder(_RedoLog log, DataIn in, long length, EventListener listener) {
         super(true, 0);
         mLog = log;
         mIn = in;
+        mStart = in.mPos;
+        mLength = length;
         mListener = listener;
+        if (listener != null) {
+            mLastProgressNanos = System.nanoTime();
+        }
     }
 
     @Override
     DataIn in() {
+        if (mListener != null && ((++mOpCount) & 0xfff) == 0) {
+            progress();
+        }
         return mIn;
     }
 
+    private void progress() {
+        long now = System.nanoTime();
+        if ((now - mLastProgressNanos) >= PROGRESS_INTERVAL_NANOS) {
+            mLastProgressNanos = now;
+            long length = mLength;
+            if (length > 0) {
+                long percent = Math.min(100, ((mIn.mPos - mStart) * 100) / length);
+                mListener.notify(EventType.RECOVERY_PROGRESS,
+                                 "Redo log applied: %1$d%%", percent);
+            }
+        }
+    }
+
     @Override
     boolean verifyTerminator(DataIn in) throws IOException {
         try {
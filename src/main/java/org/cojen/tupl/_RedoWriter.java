@@ -19,10 +19,14 @@ package org.cojen.tupl;
 import java.io.Flushable;
 import java.io.IOException;
 
+import java.util.Arrays;
+
 import java.util.concurrent.ThreadLocalRandom;
 
 import org.cojen.tupl.io.CauseCloseable;
 
+import org.cojen.tupl.util.Latch;
+
 import static org.cojen.tupl.RedoOps.*;
 import static org.cojen.tupl.Utils.*;
 
@@ -41,11 +45,34 @@ abstract class _RedoWriter implements CauseCloseable, ShutdownHook, Flushable {
 
     private boolean mAlwaysFlush;
 
+    // Optional stripes for encoding transactional operations without holding the writer
+    // lock. Length is a power of two.
+    private final Stripe[] mStripes;
+
     volatile Throwable mCause;
 
     _RedoWriter(int bufferSize, long initialTxnId) {
+        this(bufferSize, initialTxnId, 0);
+    }
+
+    /**
+     * @param stripes number of stripes for encoding transactional operations; zero if all
+     * operations are encoded directly into the shared buffer
+     */
+    _RedoWriter(int bufferSize, long initialTxnId, int stripes) {
         mBuffer = new byte[bufferSize];
         mLastTxnId = initialTxnId;
+
+        if (stripes <= 0) {
+            mStripes = null;
+        } else {
+            stripes = roundUpPower2(Math.min(stripes, 1 << 12));
+            int stripeSize = Math.min(bufferSize, 8192);
+            mStripes = new Stripe[stripes];
+            for (int i=0; i<stripes; i++) {
+                mStripes[i] = new Stripe(stripeSize);
+            }
+        }
     }
 
     /**
@@ -117,16 +144,28 @@ abstract class _RedoWriter implements CauseCloseable, ShutdownHook, Flushable {
      * @param newName non-null new index name
      * @return non-zero position if caller should call txnCommitSync
      */
-    public synchronized long renameIndex(long txnId, long indexId, byte[] newName,
-                                         DurabilityMode mode)
+    public long renameIndex(long txnId, long indexId, byte[] newName, DurabilityMode mode)
         throws IOException
     {
-        writeTxnOp(OP_RENAME_INDEX, txnId);
-        writeLongLE(indexId);
-        writeUnsignedVarInt(newName.length);
-        writeBytes(newName);
-        writeTerminator();
-        return commitFlush(mode);
+        Stripe stripe = selectStripe(txnId);
+        if (stripe != null) {
+            stripe.acquireExclusive();
+        }
+        try {
+            synchronized (this) {
+                drain(stripe);
+                writeTxnOp(OP_RENAME_INDEX, txnId);
+                writeLongLE(indexId);
+                writeUnsignedVarInt(newName.length);
+                writeBytes(newName);
+                writeTerminator();
+                return commitFlush(mode);
+            }
+        } finally {
+            if (stripe != null) {
+                stripe.releaseExclusive();
+            }
+        }
     }
 
     /**
@@ -135,13 +174,26 @@ abstract class _RedoWriter implements CauseCloseable, ShutdownHook, Flushable {
      * @param indexId non-zero index id
      * @return non-zero position if caller should call txnCommitSync
      */
-    public synchronized long deleteIndex(long txnId, long indexId, DurabilityMode mode)
+    public long deleteIndex(long txnId, long indexId, DurabilityMode mode)
         throws IOException
     {
-        writeTxnOp(OP_DELETE_INDEX, txnId);
-        writeLongLE(indexId);
-        writeTerminator();
-        return commitFlush(mode);
+        Stripe stripe = selectStripe(txnId);
+        if (stripe != null) {
+            stripe.acquireExclusive();
+        }
+        try {
+            synchronized (this) {
+                drain(stripe);
+                writeTxnOp(OP_DELETE_INDEX, txnId);
+                writeLongLE(indexId);
+                writeTerminator();
+                return commitFlush(mode);
+            }
+        } finally {
+            if (stripe != null) {
+                stripe.releaseExclusive();
+            }
+        }
     }
 
     public synchronized void reset() throws IOException {
@@ -156,35 +208,106 @@ abstract class _RedoWriter implements CauseCloseable, ShutdownHook, Flushable {
         writeTerminator();
     }
 
-    public synchronized void txnEnter(long txnId) throws IOException {
-        writeTxnOp(OP_TXN_ENTER, txnId);
-        writeTerminator();
+    public void txnEnter(long txnId) throws IOException {
+        Stripe stripe = selectStripe(txnId);
+        if (stripe != null) {
+            stripe.acquireExclusive();
+            try {
+                if (stripe.reserve(this, txnId, 1 + 9 + 4)) {
+                    stripe.writeTxnOp(OP_TXN_ENTER, txnId);
+                    stripe.writeTerminator();
+                    return;
+                }
+            } finally {
+                stripe.releaseExclusive();
+            }
+        }
+
+        synchronized (this) {
+            writeTxnOp(OP_TXN_ENTER, txnId);
+            writeTerminator();
+        }
     }
 
-    public synchronized void txnRollback(long txnId) throws IOException {
-        writeTxnOp(OP_TXN_ROLLBACK, txnId);
-        writeTerminator();
+    public void txnRollback(long txnId) throws IOException {
+        // Rollback releases locks, and so the stripe must be drained first.
+        Stripe stripe = selectStripe(txnId);
+        if (stripe != null) {
+            stripe.acquireExclusive();
+        }
+        try {
+            synchronized (this) {
+                drain(stripe);
+                writeTxnOp(OP_TXN_ROLLBACK, txnId);
+                writeTerminator();
+            }
+        } finally {
+            if (stripe != null) {
+                stripe.releaseExclusive();
+            }
+        }
     }
 
-    public synchronized void txnRollbackFinal(long txnId) throws IOException {
-        writeTxnOp(OP_TXN_ROLLBACK_FINAL, txnId);
-        writeTerminator();
+    public void txnRollbackFinal(long txnId) throws IOException {
+        // Rollback releases locks, and so the stripe must be drained first.
+        Stripe stripe = selectStripe(txnId);
+        if (stripe != null) {
+            stripe.acquireExclusive();
+        }
+        try {
+            synchronized (this) {
+                drain(stripe);
+                writeTxnOp(OP_TXN_ROLLBACK_FINAL, txnId);
+                writeTerminator();
+            }
+        } finally {
+            if (stripe != null) {
+                stripe.releaseExclusive();
+            }
+        }
     }
 
-    public synchronized void txnCommit(long txnId) throws IOException {
-        writeTxnOp(OP_TXN_COMMIT, txnId);
-        writeTerminator();
+    public void txnCommit(long txnId) throws IOException {
+        Stripe stripe = selectStripe(txnId);
+        if (stripe != null) {
+            stripe.acquireExclusive();
+            try {
+                if (stripe.reserve(this, txnId, 1 + 9 + 4)) {
+                    stripe.writeTxnOp(OP_TXN_COMMIT, txnId);
+                    stripe.writeTerminator();
+                    return;
+                }
+            } finally {
+                stripe.releaseExclusive();
+            }
+        }
+
+        synchronized (this) {
+            writeTxnOp(OP_TXN_COMMIT, txnId);
+            writeTerminator();
+        }
     }
 
     /**
      * @return non-zero position if caller should call txnCommitSync
      */
-    public synchronized long txnCommitFinal(long txnId, DurabilityMode mode)
-        throws IOException
-    {
-        writeTxnOp(OP_TXN_COMMIT_FINAL, txnId);
-        writeTerminator();
-        return commitFlush(mode);
+    public long txnCommitFinal(long txnId, DurabilityMode mode) throws IOException {
+        Stripe stripe = selectStripe(txnId);
+        if (stripe != null) {
+            stripe.acquireExclusive();
+        }
+        try {
+            synchronized (this) {
+                drain(stripe);
+                writeTxnOp(OP_TXN_COMMIT_FINAL, txnId);
+                writeTerminator();
+                return commitFlush(mode);
+            }
+        } finally {
+            if (stripe != null) {
+                stripe.releaseExclusive();
+            }
+        }
     }
 
     /**
@@ -206,10 +329,41 @@ abstract class _RedoWriter implements CauseCloseable, ShutdownHook, Flushable {
         throw new UnsupportedOperationException();
     }
 
-    public synchronized void txnStore(byte op, long txnId, long indexId, byte[] key, byte[] value)
+    public void txnStore(byte op, long txnId, long indexId, byte[] key, byte[] value)
         throws IOException
     {
         keyCheck(key);
+
+        Stripe stripe = selectStripe(txnId);
+        if (stripe != null) {
+            stripe.acquireExclusive();
+            try {
+                if (stripe.reserve(this, txnId,
+                                   1 + 9 + 8 + 5 + (long) key.length + 5 + value.length + 4))
+                {
+                    stripe.writeTxnOp(op, txnId);
+                    stripe.writeLongLE(indexId);
+                    stripe.writeUnsignedVarInt(key.length);
+                    stripe.writeBytes(key);
+                    stripe.writeUnsignedVarInt(value.length);
+                    stripe.writeBytes(value);
+                    stripe.writeTerminator();
+                    return;
+                }
+            } finally {
+                stripe.releaseExclusive();
+            }
+        }
+
+        synchronized (this) {
+            doTxnStore(op, txnId, indexId, key, value);
+        }
+    }
+
+    // Caller must be synchronized.
+    private void doTxnStore(byte op, long txnId, long indexId, byte[] key, byte[] value)
+        throws IOException
+    {
         writeTxnOp(op, txnId);
         writeLongLE(indexId);
         writeUnsignedVarInt(key.length);
@@ -222,18 +376,60 @@ abstract class _RedoWriter implements CauseCloseable, ShutdownHook, Flushable {
     /**
      * @return non-zero position if caller should call txnCommitSync
      */
-    public synchronized long txnStoreCommitFinal(long txnId, long indexId,
-                                                 byte[] key, byte[] value, DurabilityMode mode)
+    public long txnStoreCommitFinal(long txnId, long indexId,
+                                    byte[] key, byte[] value, DurabilityMode mode)
         throws IOException
     {
-        txnStore(OP_TXN_STORE_COMMIT_FINAL, txnId, indexId, key, value);
-        return commitFlush(mode);
+        keyCheck(key);
+
+        Stripe stripe = selectStripe(txnId);
+        if (stripe != null) {
+            stripe.acquireExclusive();
+        }
+        try {
+            synchronized (this) {
+                drain(stripe);
+                doTxnStore(OP_TXN_STORE_COMMIT_FINAL, txnId, indexId, key, value);
+                return commitFlush(mode);
+            }
+        } finally {
+            if (stripe != null) {
+                stripe.releaseExclusive();
+            }
+        }
     }
 
-    public synchronized void txnDelete(byte op, long txnId, long indexId, byte[] key)
+    public void txnDelete(byte op, long txnId, long indexId, byte[] key)
         throws IOException
     {
         keyCheck(key);
+
+        Stripe stripe = selectStripe(txnId);
+        if (stripe != null) {
+            stripe.acquireExclusive();
+            try {
+                if (stripe.reserve(this, txnId, 1 + 9 + 8 + 5 + (long) key.length + 4)) {
+                    stripe.writeTxnOp(op, txnId);
+                    stripe.writeLongLE(indexId);
+                    stripe.writeUnsignedVarInt(key.length);
+                    stripe.writeBytes(key);
+                    stripe.writeTerminator();
+                    return;
+                }
+            } finally {
+                stripe.releaseExclusive();
+            }
+        }
+
+        synchronized (this) {
+            doTxnDelete(op, txnId, indexId, key);
+        }
+    }
+
+    // Caller must be synchronized.
+    private void doTxnDelete(byte op, long txnId, long indexId, byte[] key)
+        throws IOException
+    {
         writeTxnOp(op, txnId);
         writeLongLE(indexId);
         writeUnsignedVarInt(key.length);
@@ -244,40 +440,98 @@ abstract class _RedoWriter implements CauseCloseable, ShutdownHook, Flushable {
     /**
      * @return non-zero position if caller should call txnCommitSync
      */
-    public synchronized long txnDeleteCommitFinal(long txnId, long indexId,
-                                                  byte[] key, DurabilityMode mode)
+    public long txnDeleteCommitFinal(long txnId, long indexId,
+                                     byte[] key, DurabilityMode mode)
         throws IOException
     {
-        txnDelete(OP_TXN_DELETE_COMMIT_FINAL, txnId, indexId, key);
-        return commitFlush(mode);
+        keyCheck(key);
+
+        Stripe stripe = selectStripe(txnId);
+        if (stripe != null) {
+            stripe.acquireExclusive();
+        }
+        try {
+            synchronized (this) {
+                drain(stripe);
+                doTxnDelete(OP_TXN_DELETE_COMMIT_FINAL, txnId, indexId, key);
+                return commitFlush(mode);
+            }
+        } finally {
+            if (stripe != null) {
+                stripe.releaseExclusive();
+            }
+        }
     }
 
-    public synchronized void txnCustom(long txnId, byte[] message)
+    public void txnCustom(long txnId, byte[] message)
         throws IOException
     {
         if (message == null) {
             throw new NullPointerException("Message is null");
         }
-        writeTxnOp(OP_TXN_CUSTOM, txnId);
-        writeUnsignedVarInt(message.length);
-        writeBytes(message);
-        writeTerminator();
+
+        Stripe stripe = selectStripe(txnId);
+        if (stripe != null) {
+            stripe.acquireExclusive();
+            try {
+                if (stripe.reserve(this, txnId, 1 + 9 + 5 + (long) message.length + 4)) {
+                    stripe.writeTxnOp(OP_TXN_CUSTOM, txnId);
+                    stripe.writeUnsignedVarInt(message.length);
+                    stripe.writeBytes(message);
+                    stripe.writeTerminator();
+                    return;
+                }
+            } finally {
+                stripe.releaseExclusive();
+            }
+        }
+
+        synchronized (this) {
+            writeTxnOp(OP_TXN_CUSTOM, txnId);
+            writeUnsignedVarInt(message.length);
+            writeBytes(message);
+            writeTerminator();
+        }
     }
 
-    public synchronized void txnCustomLock(long txnId, byte[] message, long indexId, byte[] key)
+    public void txnCustomLock(long txnId, byte[] message, long indexId, byte[] key)
         throws IOException
     {
         keyCheck(key);
         if (message == null) {
             throw new NullPointerException("Message is null");
         }
-        writeTxnOp(OP_TXN_CUSTOM_LOCK, txnId);
-        writeLongLE(indexId);
-        writeUnsignedVarInt(key.length);
-        writeBytes(key);
-        writeUnsignedVarInt(message.length);
-        writeBytes(message);
-        writeTerminator();
+
+        Stripe stripe = selectStripe(txnId);
+        if (stripe != null) {
+            stripe.acquireExclusive();
+            try {
+                if (stripe.reserve(this, txnId, 1 + 9 + 8 + 5 + (long) key.length
+                                   + 5 + message.length + 4))
+                {
+                    stripe.writeTxnOp(OP_TXN_CUSTOM_LOCK, txnId);
+                    stripe.writeLongLE(indexId);
+                    stripe.writeUnsignedVarInt(key.length);
+                    stripe.writeBytes(key);
+                    stripe.writeUnsignedVarInt(message.length);
+                    stripe.writeBytes(message);
+                    stripe.writeTerminator();
+                    return;
+                }
+            } finally {
+                stripe.releaseExclusive();
+            }
+        }
+
+        synchronized (this) {
+            writeTxnOp(OP_TXN_CUSTOM_LOCK, txnId);
+            writeLongLE(indexId);
+            writeUnsignedVarInt(key.length);
+            writeBytes(key);
+            writeUnsignedVarInt(message.length);
+            writeBytes(message);
+            writeTerminator();
+        }
     }
 
     public synchronized void timestamp() throws IOException {
@@ -298,8 +552,11 @@ abstract class _RedoWriter implements CauseCloseable, ShutdownHook, Flushable {
     }
 
     @Override
-    public synchronized void flush() throws IOException {
-        doFlush();
+    public void flush() throws IOException {
+        drainStripes();
+        synchronized (this) {
+            doFlush();
+        }
     }
 
     public void flushSync(boolean metadata) throws IOException {
@@ -316,14 +573,16 @@ abstract class _RedoWriter implements CauseCloseable, ShutdownHook, Flushable {
     }
 
     @Override
-    public final synchronized void close() throws IOException {
+    public final void close() throws IOException {
         close(null);
     }
 
     @Override
-    public synchronized void close(Throwable cause) throws IOException {
-        if (cause != null) {
-            mCause = cause;
+    public void close(Throwable cause) throws IOException {
+        synchronized (this) {
+            if (cause != null) {
+                mCause = cause;
+            }
         }
         shutdown(OP_CLOSE);
     }
@@ -338,6 +597,8 @@ abstract class _RedoWriter implements CauseCloseable, ShutdownHook, Flushable {
     }
 
     private void shutdown(byte op) throws IOException {
+        drainStripes();
+
         synchronized (this) {
             mAlwaysFlush = true;
 
@@ -370,6 +631,13 @@ abstract class _RedoWriter implements CauseCloseable, ShutdownHook, Flushable {
 
     public abstract long encoding();
 
+    /**
+     * Adds redo writer statistics to the given stats object. Default implementation does
+     * nothing.
+     */
+    void addStats(Database.Stats stats) {
+    }
+
     /**
      * Return a new or existing _RedoWriter for a new transaction.
      */
@@ -478,6 +746,78 @@ abstract class _RedoWriter implements CauseCloseable, ShutdownHook, Flushable {
         reset();
     }
 
+    /**
+     * Returns the stripe to use for the given transaction, or null if not striped.
+     */
+    private Stripe selectStripe(long txnId) {
+        Stripe[] stripes = mStripes;
+        return stripes == null ? null
+            : stripes[((int) scramble(txnId)) & (stripes.length - 1)];
+    }
+
+    /**
+     * Drain all stripes into the shared buffer, but doesn't flush it. Caller must not be
+     * synchronized, and it must not hold any stripe latches.
+     */
+    void drainStripes() throws IOException {
+        Stripe[] stripes = mStripes;
+        if (stripes != null) {
+            for (Stripe stripe : stripes) {
+                stripe.acquireExclusive();
+                try {
+                    if (stripe.mPos != 0) {
+                        synchronized (this) {
+                            drain(stripe);
+                        }
+                    }
+                } finally {
+                    stripe.releaseExclusive();
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies all the stripe operations into the shared buffer, but doesn't flush it. Caller
+     * must be synchronized and hold the exclusive stripe latch.
+     *
+     * @param stripe can be null
+     */
+    private void drain(Stripe stripe) throws IOException {
+        if (stripe == null || stripe.mPos == 0) {
+            return;
+        }
+
+        try {
+            // Transaction deltas in the stripe are relative to the first transaction.
+            long firstTxnId = stripe.mFirstTxnId;
+            if (firstTxnId != mLastTxnId) {
+                writeOp(OP_TXN_ID_RESET, firstTxnId);
+                mLastTxnId = firstTxnId;
+                writeTerminator();
+            } else {
+                opWriteCheck();
+            }
+
+            // Terminators must be generated in log order, and so they're written now.
+            byte[] buffer = stripe.mBuffer;
+            int[] terms = stripe.mTermPositions;
+            int start = 0;
+            for (int i=0; i<stripe.mTermCount; i++) {
+                int termPos = terms[i];
+                writeBytes(buffer, start, termPos - start);
+                writeTerminator();
+                start = termPos + 4;
+            }
+
+            mLastTxnId = stripe.mLastTxnId;
+        } finally {
+            // Discard even if the write fails. Caller is expected to rollback.
+            stripe.mPos = 0;
+            stripe.mTermCount = 0;
+        }
+    }
+
     // Caller must be synchronized.
     long lastTransactionId() {
         return mLastTxnId;
@@ -644,4 +984,89 @@ abstract class _RedoWriter implements CauseCloseable, ShutdownHook, Flushable {
         mBufferPos = 0;
         return writeCommit(mBuffer, len);
     }
+
+    /**
+     * Buffer for encoding transactional operations without holding the writer lock. A
+     * transaction always selects the same stripe, and so its own operations are kept in
+     * order. Operations are copied into the shared buffer before any locks are released by
+     * the transaction, preserving the order of conflicting operations.
+     */
+    @SuppressWarnings("serial")
+    static final class Stripe extends Latch {
+        final byte[] mBuffer;
+        int mPos;
+
+        // Transaction delta of the first operation is relative to this id.
+        long mFirstTxnId;
+        long mLastTxnId;
+
+        // Terminator positions, which are filled in when the stripe is drained.
+        int[] mTermPositions;
+        int mTermCount;
+
+        Stripe(int bufferSize) {
+            mBuffer = new byte[bufferSize];
+            mTermPositions = new int[16];
+        }
+
+        /**
+         * Reserve space for an operation, draining the stripe if necessary. Caller must
+         * hold exclusive latch.
+         *
+         * @param maxLength maximum encoded length of the operation, including terminator
+         * @return false if operation is too large for the stripe and it was drained
+         */
+        boolean reserve(_RedoWriter redo, long txnId, long maxLength) throws IOException {
+            byte[] buffer = mBuffer;
+            if (mPos > buffer.length - maxLength) {
+                if (mPos != 0) {
+                    synchronized (redo) {
+                        redo.drain(this);
+                    }
+                }
+                if (maxLength > buffer.length) {
+                    return false;
+                }
+            }
+            if (mPos == 0) {
+                mFirstTxnId = txnId;
+                mLastTxnId = txnId;
+            }
+            return true;
+        }
+
+        void writeTxnOp(byte op, long txnId) {
+            byte[] buffer = mBuffer;
+            int pos = mPos;
+            buffer[pos] = op;
+            mPos = Utils.encodeSignedVarLong(buffer, pos + 1, txnId - mLastTxnId);
+            mLastTxnId = txnId;
+        }
+
+        void writeLongLE(long v) {
+            Utils.encodeLongLE(mBuffer, mPos, v);
+            mPos += 8;
+        }
+
+        void writeUnsignedVarInt(int v) {
+            mPos = Utils.encodeUnsignedVarInt(mBuffer, mPos, v);
+        }
+
+        void writeBytes(byte[] bytes) {
+            System.arraycopy(bytes, 0, mBuffer, mPos, bytes.length);
+            mPos += bytes.length;
+        }
+
+        void writeTerminator() {
+            int[] terms = mTermPositions;
+            int count = mTermCount;
+            if (count >= terms.length) {
+                mTermPositions = terms = Arrays.copyOf(terms, count << 1);
+            }
+            terms[count] = mPos;
+            mTermCount = count + 1;
+            // Reserve space for the terminator.
+            mPos += 4;
+        }
+    }
 }
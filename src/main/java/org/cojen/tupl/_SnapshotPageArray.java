@@ -115,6 +115,26 @@ final class _SnapshotPageArray extends PageArray {
         mSource.writePage(index, srcPtr, offset);
     }
 
+    @Override
+    public void writePages(long index, byte[] src, int offset, int count) throws IOException {
+        int pageSize = pageSize();
+        for (int i=0; i<count; i++) {
+            preWritePage(index + i);
+            cachePage(index + i, src, offset + i * pageSize);
+        }
+        mSource.writePages(index, src, offset, count);
+    }
+
+    @Override
+    public void writePages(long index, long srcPtr, int offset, int count) throws IOException {
+        int pageSize = pageSize();
+        for (int i=0; i<count; i++) {
+            preWritePage(index + i);
+            cachePage(index + i, srcPtr, offset + i * pageSize);
+        }
+        mSource.writePages(index, srcPtr, offset, count);
+    }
+
     @Override
     public byte[] evictPage(long index, byte[] buf) throws IOException {
         preWritePage(index);
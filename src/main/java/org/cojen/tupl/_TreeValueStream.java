@@ -100,6 +100,7 @@ final class _TreeValueStream extends AbstractStream {
             final CommitLock.Shared shared = mCursor.commitLock(leaf);
             try {
                 mCursor.notSplitDirty(leaf);
+                mCursor.recordStreamVersion(leaf);
                 action(leaf, OP_SET_LENGTH, length, EMPTY_BYTES, 0, 0);
                 leaf.mNode.releaseExclusive();
             } finally {
@@ -135,6 +136,10 @@ final class _TreeValueStream extends AbstractStream {
             final CommitLock.Shared shared = mCursor.commitLock(leaf);
             try {
                 mCursor.notSplitDirty(leaf);
+                if (buf != TOUCH_VALUE) {
+                    // Snapshots must still observe the value as it was before the write.
+                    mCursor.recordStreamVersion(leaf);
+                }
                 action(leaf, OP_WRITE, pos, buf, off, len);
                 leaf.mNode.releaseExclusive();
             } finally {
@@ -276,6 +281,64 @@ final class _TreeValueStream extends AbstractStream {
         }
     }
 
+    /**
+     * Operates against a compressed value, which is decompressed in its entirety. Write
+     * operations replace the value with an uncompressed copy, and then the operation is
+     * applied to it.
+     *
+     * @param frame latched shared for read op, exclusive for write op; released only if an
+     * exception is thrown
+     */
+    private long compressedAction(final _CursorFrame frame,
+                                  final int op, long pos, final byte[] b, int bOff, int bLen)
+        throws IOException
+    {
+        _Node node = frame.mNode;
+        int nodePos = frame.mNodePos;
+
+        byte[] value;
+        try {
+            value = node.retrieveLeafValue(nodePos);
+        } catch (Throwable e) {
+            if (op <= OP_READ) {
+                node.releaseShared();
+            } else {
+                node.releaseExclusive();
+            }
+            throw e;
+        }
+
+        switch (op) {
+        case OP_LENGTH: default:
+            return value.length;
+
+        case OP_READ:
+            if (bLen <= 0 || pos >= value.length) {
+                return 0;
+            }
+            bLen = (int) Math.min(value.length - pos, bLen);
+            System.arraycopy(value, (int) pos, b, bOff, bLen);
+            return bLen;
+
+        case OP_SET_LENGTH: case OP_WRITE:
+            break;
+        }
+
+        if (b == TOUCH_VALUE) {
+            return 0;
+        }
+
+        node.deleteLeafEntry(nodePos);
+        frame.mNodePos = ~nodePos;
+
+        // Method releases latch if an exception is thrown.
+        mCursor.insertBlank(frame, node, value.length);
+
+        action(frame, OP_WRITE, 0, value, 0, value.length);
+
+        return action(frame, op, pos, b, bOff, bLen);
+    }
+
     /**
      * Caller must hold shared commit lock when using OP_SET_LENGTH or OP_WRITE.
      *
@@ -358,6 +421,10 @@ final class _TreeValueStream extends AbstractStream {
                     break nf;
                 }
 
+                if ((header & 0x20) != 0 && (header & _Node.ENTRY_COMPRESSED) != 0) {
+                    return compressedAction(frame, op, pos, b, bOff, bLen);
+                }
+
                 vLen = len;
             }
 
@@ -488,6 +555,11 @@ final class _TreeValueStream extends AbstractStream {
         int fHeaderLoc = loc;
         header = p_byteGet(page, loc++);
 
+        if ((header & 0x10) != 0 && b != TOUCH_VALUE) {
+            // Value is compressed. Touching for compaction operates against the fragments.
+            return compressedAction(frame, op, pos, b, bOff, bLen);
+        }
+
         switch ((header >> 2) & 0x03) {
         default:
             vLen = p_ushortGetLE(page, loc);
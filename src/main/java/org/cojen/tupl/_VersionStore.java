@@ -0,0 +1,469 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Retains the prior values of modified entries, in support of {@link LockMode#SNAPSHOT
+ * snapshot} reads. Versions are only kept in memory, and they're discarded once no active
+ * snapshot can observe them.
+ *
+ * <p>Each modified key maps to a chain of versions, ordered newest to oldest. A version
+ * holds the value which the entry had before the modification, and it's assigned a commit
+ * number when the modification commits. A snapshot is identified by the last commit number
+ * at the time it began, and it reads the current value unless a newer version replaced it.
+ *
+ * @author Generated by PageAccessTransformer from VersionStore.java
+ */
+/*P*/
+final class _VersionStore {
+    // Commit number of versions which haven't committed yet.
+    static final long PENDING = Long.MAX_VALUE;
+
+    private final _LocalDatabase mDatabase;
+
+    // Maps keys to the newest version, which links to older versions.
+    private final ConcurrentHashMap<Key, Version> mChains;
+
+    // Keys which might refer to ghosts which must be deleted.
+    private final ConcurrentLinkedQueue<Key> mGhosts;
+
+    private volatile int mSnapshotCount;
+
+    // Remaining fields are guarded by this object's monitor.
+
+    private long mCommitNumber;
+
+    // Counts active snapshots by commit number.
+    private final TreeMap<Long, Integer> mSnapshots;
+
+    // Committed versions in commit order, which are discarded once no snapshot needs them.
+    private Version mFirst, mLast;
+
+    _VersionStore(_LocalDatabase db) {
+        mDatabase = db;
+        mChains = new ConcurrentHashMap<>();
+        mGhosts = new ConcurrentLinkedQueue<>();
+        mSnapshots = new TreeMap<>();
+        // Zero is reserved to indicate that no snapshot exists.
+        mCommitNumber = 1;
+    }
+
+    /**
+     * Begins a new snapshot, which must be closed later.
+     *
+     * @return non-zero snapshot number
+     */
+    synchronized long openSnapshot() {
+        long snapshot = mCommitNumber;
+        mSnapshots.merge(snapshot, 1, Integer::sum);
+        mSnapshotCount++;
+        return snapshot;
+    }
+
+    synchronized void closeSnapshot(long snapshot) {
+        mSnapshots.computeIfPresent(snapshot, (k, count) -> count == 1 ? null : count - 1);
+        mSnapshotCount--;
+    }
+
+    /**
+     * Returns the value which is visible to a snapshot.
+     *
+     * @param txn transaction which owns the snapshot; its own changes are visible
+     * @param value current value, which can be null or NOT_LOADED
+     */
+    byte[] read(_LocalTransaction txn, long snapshot, long indexId, byte[] key, byte[] value) {
+        if (mChains.isEmpty()) {
+            return value;
+        }
+        Version v = mChains.get(new Key(indexId, key));
+        for (; v != null; v = v.mOlder) {
+            long commit = v.mCommit;
+            if (commit == PENDING) {
+                if (v.mOwner == txn) {
+                    break;
+                }
+            } else if (commit <= snapshot) {
+                break;
+            }
+            value = v.mPrior;
+        }
+        return value;
+    }
+
+    /**
+     * Records the value of an entry before it's modified. Caller must hold an exclusive
+     * latch on the node which contains the entry, and the entry must not be modified yet.
+     *
+     * @param txn modifying transaction, or null if auto-commit
+     * @param prior value being replaced, or null if none
+     * @return false if nothing was recorded because no snapshot can observe the change
+     */
+    boolean record(_LocalTransaction txn, long indexId, byte[] key, byte[] prior) {
+        final Key k = new Key(indexId, key);
+
+        if (txn != null) {
+            mChains.compute(k, (kk, head) -> {
+                if (head != null && head.mCommit == PENDING && head.mOwner == txn) {
+                    // Already recorded the value which existed before the transaction.
+                    return head;
+                }
+                Version v = new Version(kk, prior, txn);
+                v.mOlder = head;
+                v.mTxnNext = txn.mVersion;
+                txn.mVersion = v;
+                return v;
+            });
+            return true;
+        }
+
+        // Auto-commit changes are committed immediately. Readers cannot observe the entry
+        // until the caller releases the node latch, by which time the change is complete.
+
+        synchronized (this) {
+            if (mSnapshots.isEmpty()) {
+                // Any snapshot which begins now observes the change.
+                return false;
+            }
+            Version v = new Version(k, prior, null);
+            mChains.compute(k, (kk, head) -> {
+                v.mOlder = head;
+                return v;
+            });
+            v.mCommit = ++mCommitNumber;
+            enqueue(v);
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if the given transaction has already recorded the value of an entry
+     * which existed before it was modified.
+     */
+    boolean isRecorded(_LocalTransaction txn, long indexId, byte[] key) {
+        Version head = mChains.get(new Key(indexId, key));
+        return head != null && head.mCommit == PENDING && head.mOwner == txn;
+    }
+
+    /**
+     * Returns true if any snapshots are active.
+     */
+    boolean hasSnapshots() {
+        return mSnapshotCount != 0;
+    }
+
+    /**
+     * Commits all the versions recorded by a transaction, making the changes visible to new
+     * snapshots. Caller must still hold the exclusive locks for the modified entries.
+     *
+     * @param v newest version recorded by the transaction
+     */
+    void commit(Version v) {
+        synchronized (this) {
+            long commit = ++mCommitNumber;
+            do {
+                Version next = v.mTxnNext;
+                v.mTxnNext = null;
+                v.mOwner = null;
+                v.mCommit = commit;
+                enqueue(v);
+                v = next;
+            } while (v != null);
+        }
+
+        prune();
+    }
+
+    /**
+     * Discards uncommitted versions recorded by a transaction, after the changes have been
+     * rolled back. Caller must still hold the exclusive locks for the modified entries.
+     *
+     * @param v newest version recorded by the transaction
+     * @param stop version to stop at; pass null to discard all
+     */
+    void rollback(Version v, Version stop) {
+        while (v != stop) {
+            Version next = v.mTxnNext;
+            v.mTxnNext = null;
+            unlink(v);
+            v = next;
+        }
+    }
+
+    /**
+     * Called when a lock is released which refers to a ghost. If the key has versions, then
+     * deletion of the ghost is deferred until the versions are discarded.
+     *
+     * @return true if ghost must not be deleted now
+     */
+    boolean deferGhost(long indexId, byte[] key) {
+        return mChains.computeIfPresent(new Key(indexId, key), (k, head) -> {
+            head.mGhost = true;
+            return head;
+        }) != null;
+    }
+
+    /**
+     * Discards versions which no snapshot can observe, and deletes the ghosts which were
+     * retained for them. Caller must not hold any latches or locks.
+     */
+    void collect() {
+        prune();
+
+        Key k = mGhosts.poll();
+        if (k == null) {
+            return;
+        }
+
+        Key retry = null;
+        do {
+            try {
+                if (!deleteGhost(k)) {
+                    if (retry == null) {
+                        retry = k;
+                    }
+                    // Try again later.
+                    mGhosts.add(k);
+                }
+            } catch (Throwable e) {
+                // Database is borked, and the ghost is cleaned up when re-opened.
+                Utils.closeQuietly(null, mDatabase, e);
+                return;
+            }
+        } while ((k = mGhosts.poll()) != null && k != retry);
+
+        if (k != null) {
+            mGhosts.add(k);
+        }
+    }
+
+    /**
+     * @return false if lock isn't available
+     */
+    private boolean deleteGhost(Key k) throws IOException {
+        _Locker locker = new _Locker(mDatabase.mLockManager);
+        try {
+            if (!locker.tryLockExclusive(k.mIndexId, k.mKey, k.mHash, 0).isHeld()) {
+                return false;
+            }
+        } catch (DeadlockException e) {
+            // Not expected with timeout of zero anyhow.
+            return false;
+        }
+
+        try {
+            if (mChains.containsKey(k)) {
+                // Key was modified again, and newer versions are responsible for the ghost.
+                return true;
+            }
+            while (true) {
+                Index ix = mDatabase.anyIndexById(k.mIndexId);
+                if (!(ix instanceof _Tree)) {
+                    // Assume index was deleted.
+                    break;
+                }
+                _TreeCursor c = new _TreeCursor((_Tree) ix);
+                c.mKeyOnly = true;
+                if (c.deleteGhost(k.mKey)) {
+                    break;
+                }
+                // Reopen a closed index.
+            }
+        } finally {
+            locker.scopeUnlockAll();
+        }
+
+        return true;
+    }
+
+    private void enqueue(Version v) {
+        Version last = mLast;
+        if (last == null) {
+            mFirst = v;
+        } else {
+            last.mQueueNext = v;
+        }
+        mLast = v;
+    }
+
+    private void prune() {
+        Version v;
+        synchronized (this) {
+            v = mFirst;
+            if (v == null) {
+                return;
+            }
+
+            long horizon = mSnapshots.isEmpty() ? mCommitNumber : mSnapshots.firstKey();
+            if (v.mCommit > horizon) {
+                return;
+            }
+
+            Version last = v;
+            Version next;
+            while ((next = last.mQueueNext) != null && next.mCommit <= horizon) {
+                last = next;
+            }
+
+            last.mQueueNext = null;
+            if ((mFirst = next) == null) {
+                mLast = null;
+            }
+        }
+
+        do {
+            Version next = v.mQueueNext;
+            v.mQueueNext = null;
+            unlinkOlder(v);
+            v = next;
+        } while (v != null);
+    }
+
+    /**
+     * Removes the given version and all older ones from the chain.
+     */
+    private void unlinkOlder(Version v) {
+        mChains.computeIfPresent(v.mKey, (k, head) -> {
+            if (head == v) {
+                if (hasGhost(v)) {
+                    mGhosts.add(k);
+                }
+                return null;
+            }
+            for (Version newer = head; ; ) {
+                Version older = newer.mOlder;
+                if (older == null) {
+                    // Already removed.
+                    return head;
+                }
+                if (older == v) {
+                    if (hasGhost(v)) {
+                        newer.mGhost = true;
+                    }
+                    newer.mOlder = null;
+                    return head;
+                }
+                newer = older;
+            }
+        });
+    }
+
+    /**
+     * Removes only the given version from the chain.
+     */
+    private void unlink(Version v) {
+        mChains.computeIfPresent(v.mKey, (k, head) -> {
+            Version older = v.mOlder;
+            if (head == v) {
+                if (v.mGhost) {
+                    if (older == null) {
+                        mGhosts.add(k);
+                    } else {
+                        older.mGhost = true;
+                    }
+                }
+                return older;
+            }
+            for (Version newer = head; ; ) {
+                Version next = newer.mOlder;
+                if (next == null) {
+                    return head;
+                }
+                if (next == v) {
+                    if (v.mGhost) {
+                        newer.mGhost = true;
+                    }
+                    newer.mOlder = older;
+                    return head;
+                }
+                newer = next;
+            }
+        });
+    }
+
+    private static boolean hasGhost(Version v) {
+        do {
+            if (v.mGhost) {
+                return true;
+            }
+        } while ((v = v.mOlder) != null);
+        return false;
+    }
+
+    static final class Key {
+        final long mIndexId;
+        final byte[] mKey;
+        final int mHash;
+
+        Key(long indexId, byte[] key) {
+            mIndexId = indexId;
+            mKey = key;
+            mHash = _LockManager.hash(indexId, key);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                Key other = (Key) obj;
+                return mIndexId == other.mIndexId && Arrays.equals(mKey, other.mKey);
+            }
+            return false;
+        }
+    }
+
+    static final class Version {
+        final Key mKey;
+        final byte[] mPrior;
+
+        // Is null once committed, or if auto-commit.
+        volatile _LocalTransaction mOwner;
+
+        volatile long mCommit = PENDING;
+
+        // Next older version of the same key.
+        volatile Version mOlder;
+
+        // Set when a ghost was left behind, which must be deleted once the versions are
+        // discarded. Is guarded by the chain mapping.
+        boolean mGhost;
+
+        // Next older version recorded by the same transaction.
+        Version mTxnNext;
+
+        // Next committed version in the discard queue.
+        Version mQueueNext;
+
+        Version(Key key, byte[] prior, _LocalTransaction owner) {
+            mKey = key;
+            mPrior = prior;
+            mOwner = owner;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.io.IOException;
+
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Spliterator;
+
+import java.util.function.Consumer;
+
+import static org.cojen.tupl.Utils.*;
+
+/**
+ * Spliterator over the entries of a view. When backed by a tree, the key range is divided
+ * along internal node boundaries. Each split scans with its own cursor and transaction, and
+ * so no cursor or lock is retained between calls to tryAdvance.
+ *
+ * @author Generated by PageAccessTransformer from ViewSpliterator.java
+ * @see View#newSpliterator View.newSpliterator
+ */
+/*P*/
+final class _ViewSpliterator implements Spliterator<Map.Entry<byte[], byte[]>> {
+    // Maximum amount of entries fetched at a time by tryAdvance.
+    private static final int BATCH_SIZE = 100;
+
+    private final View mView;
+    private final _Tree mTree;
+    private final LockMode mLockMode;
+
+    // Approximate bounds of the view, used only for selecting split keys.
+    private final byte[] mLowHint, mHighHint;
+
+    // Bounds applied by splitting: inclusive low, exclusive high, and null if open.
+    private byte[] mLowKey, mHighKey;
+
+    // Estimated entry count, or negative if not computed yet.
+    private long mEstimate;
+
+    private Map.Entry<byte[], byte[]>[] mBuffer;
+    private int mBufferPos, mBufferSize;
+    private byte[] mLastKey;
+    private boolean mStarted, mFinished;
+
+    /**
+     * @param view view to scan, which must have ascending order if backed by a tree
+     * @param tree optional tree which backs the view, enabling splits
+     * @param lowHint approximate lowest key of the view, or null if open
+     * @param highHint approximate highest key of the view, or null if open
+     * @param lockMode lock mode for each split; null for READ_COMMITTED
+     * @throws IllegalArgumentException if lock mode is repeatable or SNAPSHOT
+     */
+    _ViewSpliterator(View view, _Tree tree, byte[] lowHint, byte[] highHint, LockMode lockMode) {
+        if (lockMode == null) {
+            lockMode = LockMode.READ_COMMITTED;
+        } else if (lockMode.isRepeatable() || lockMode == LockMode.SNAPSHOT) {
+            // Locks and snapshots aren't retained between batches, and so the requested
+            // isolation cannot be provided.
+            throw new IllegalArgumentException("Unsupported lock mode: " + lockMode);
+        }
+        mView = view;
+        mTree = tree;
+        mLowHint = lowHint;
+        mHighHint = highHint;
+        mLockMode = lockMode;
+        mEstimate = -1;
+    }
+
+    private _ViewSpliterator(_ViewSpliterator from, byte[] lowKey, byte[] highKey, long estimate) {
+        mView = from.mView;
+        mTree = from.mTree;
+        mLowHint = from.mLowHint;
+        mHighHint = from.mHighHint;
+        mLockMode = from.mLockMode;
+        mLowKey = lowKey;
+        mHighKey = highKey;
+        mEstimate = estimate;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Map.Entry<byte[], byte[]>> action) {
+        if (mBufferPos >= mBufferSize) {
+            if (mFinished) {
+                return false;
+            }
+            try {
+                fill();
+            } catch (IOException e) {
+                throw rethrow(e);
+            }
+            if (mBufferSize == 0) {
+                return false;
+            }
+        }
+
+        Map.Entry<byte[], byte[]> entry = mBuffer[mBufferPos];
+        mBuffer[mBufferPos++] = null;
+        action.accept(entry);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Map.Entry<byte[], byte[]>> action) {
+        while (mBufferPos < mBufferSize) {
+            Map.Entry<byte[], byte[]> entry = mBuffer[mBufferPos];
+            mBuffer[mBufferPos++] = null;
+            action.accept(entry);
+        }
+
+        if (mFinished) {
+            return;
+        }
+
+        mStarted = true;
+        mFinished = true;
+
+        try {
+            Transaction txn = newTransaction();
+            try {
+                Cursor c = openCursor(txn);
+                try {
+                    for (; c.key() != null; c.next()) {
+                        action.accept(new AbstractMap.SimpleImmutableEntry<>(c.key(), c.value()));
+                    }
+                } finally {
+                    c.reset();
+                }
+            } finally {
+                if (txn != null) {
+                    txn.reset();
+                }
+            }
+        } catch (IOException e) {
+            throw rethrow(e);
+        }
+    }
+
+    @Override
+    public Spliterator<Map.Entry<byte[], byte[]>> trySplit() {
+        if (mTree == null || mStarted) {
+            return null;
+        }
+
+        byte[] low = mLowKey == null ? mLowHint : mLowKey;
+        byte[] high = mHighKey == null ? mHighHint : mHighKey;
+
+        double[] fraction = new double[1];
+        byte[] splitKey;
+        try {
+            splitKey = mTree.splitKey(low, high, fraction);
+        } catch (IOException e) {
+            throw rethrow(e);
+        }
+
+        if (splitKey == null) {
+            return null;
+        }
+
+        long estimate = estimateSize();
+        long lowEstimate = estimate == Long.MAX_VALUE ? estimate
+            : (long) Math.ceil(estimate * fraction[0]);
+
+        _ViewSpliterator prefix = new _ViewSpliterator(this, mLowKey, splitKey, lowEstimate);
+
+        mLowKey = splitKey;
+        if (estimate != Long.MAX_VALUE) {
+            mEstimate = Math.max(0, estimate - lowEstimate);
+        }
+
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        long estimate = mEstimate;
+        if (estimate < 0) {
+            estimate = Long.MAX_VALUE;
+            if (mTree != null) {
+                try {
+                    estimate = (long) Math.ceil(mTree.analyze(mLowHint, mHighHint).entryCount);
+                } catch (IOException e) {
+                    // Size is unknown.
+                }
+            }
+            mEstimate = estimate;
+        }
+        return estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        int ch = ORDERED | DISTINCT | NONNULL;
+        if (mView.getOrdering() != Ordering.UNSPECIFIED) {
+            ch |= SORTED;
+        }
+        return ch;
+    }
+
+    @Override
+    public Comparator<? super Map.Entry<byte[], byte[]>> getComparator() {
+        switch (mView.getOrdering()) {
+        case ASCENDING:
+            return (a, b) -> compareUnsigned(a.getKey(), b.getKey());
+        case DESCENDING:
+            return (a, b) -> compareUnsigned(b.getKey(), a.getKey());
+        default:
+            throw new IllegalStateException();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void fill() throws IOException {
+        mStarted = true;
+
+        if (mBuffer == null) {
+            mBuffer = new Map.Entry[BATCH_SIZE];
+        }
+
+        int size = 0;
+
+        Transaction txn = newTransaction();
+        try {
+            Cursor c = openCursor(txn);
+            try {
+                for (; c.key() != null; c.next()) {
+                    if (size >= BATCH_SIZE) {
+                        break;
+                    }
+                    mBuffer[size++] = new AbstractMap.SimpleImmutableEntry<>(c.key(), c.value());
+                }
+                if (c.key() == null) {
+                    mFinished = true;
+                }
+            } finally {
+                c.reset();
+            }
+        } finally {
+            if (txn != null) {
+                txn.reset();
+            }
+        }
+
+        if (size > 0) {
+            mLastKey = mBuffer[size - 1].getKey();
+        }
+
+        mBufferPos = 0;
+        mBufferSize = size;
+    }
+
+    /**
+     * Returns a cursor positioned at the first remaining entry.
+     */
+    private Cursor openCursor(Transaction txn) throws IOException {
+        View view = mView;
+        if (mLowKey != null) {
+            view = view.viewGe(mLowKey);
+        }
+        if (mHighKey != null) {
+            view = view.viewLt(mHighKey);
+        }
+
+        Cursor c = view.newCursor(txn);
+        try {
+            if (mLastKey == null) {
+                c.first();
+            } else {
+                c.findGt(mLastKey);
+            }
+        } catch (Throwable e) {
+            c.reset();
+            throw e;
+        }
+
+        return c;
+    }
+
+    /**
+     * Returns a transaction which applies the lock mode, or null for auto-commit mode.
+     */
+    private Transaction newTransaction() {
+        switch (mLockMode) {
+        case READ_COMMITTED:
+            return null;
+        case UNSAFE:
+            return Transaction.BOGUS;
+        default:
+            Transaction txn;
+            try {
+                txn = mView.newTransaction(null);
+            } catch (UnsupportedOperationException e) {
+                return null;
+            }
+            txn.lockMode(mLockMode);
+            return txn;
+        }
+    }
+}
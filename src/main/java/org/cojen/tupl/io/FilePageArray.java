@@ -105,6 +105,18 @@ public class FilePageArray extends PageArray {
         mFio.write(index * pageSize, srcPtr, offset, pageSize);
     }
 
+    @Override
+    public void writePages(long index, byte[] src, int offset, int count) throws IOException {
+        int pageSize = mPageSize;
+        mFio.write(index * pageSize, src, offset, pageSize * count);
+    }
+
+    @Override
+    public void writePages(long index, long srcPtr, int offset, int count) throws IOException {
+        int pageSize = mPageSize;
+        mFio.write(index * pageSize, srcPtr, offset, pageSize * count);
+    }
+
     @Override
     public void sync(boolean metadata) throws IOException {
         mFio.sync(metadata);
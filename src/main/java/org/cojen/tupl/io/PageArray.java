@@ -161,6 +161,40 @@ public abstract class PageArray implements CauseCloseable {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Writes consecutive pages, which are lazily flushed. Default implementation writes each
+     * page separately.
+     *
+     * @param index zero-based index of the first page to write
+     * @param src data to write
+     * @param offset offset into data buffer
+     * @param count number of pages to write
+     * @throws IndexOutOfBoundsException if index is negative
+     */
+    public void writePages(long index, byte[] src, int offset, int count) throws IOException {
+        int pageSize = pageSize();
+        for (int i=0; i<count; i++) {
+            writePage(index + i, src, offset + i * pageSize);
+        }
+    }
+
+    /**
+     * Writes consecutive pages, which are lazily flushed. Default implementation writes each
+     * page separately.
+     *
+     * @param index zero-based index of the first page to write
+     * @param srcPtr data to write
+     * @param offset offset into data buffer
+     * @param count number of pages to write
+     * @throws IndexOutOfBoundsException if index is negative
+     */
+    public void writePages(long index, long srcPtr, int offset, int count) throws IOException {
+        int pageSize = pageSize();
+        for (int i=0; i<count; i++) {
+            writePage(index + i, srcPtr, offset + i * pageSize);
+        }
+    }
+
     /**
      * Same as writePage, except that the given buffer might be altered and a replacement might
      * be returned. Caller must not alter the original buffer if a replacement was provided,
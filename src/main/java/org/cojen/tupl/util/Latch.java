@@ -16,13 +16,25 @@
 
 package org.cojen.tupl.util;
 
+import java.lang.reflect.Field;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 import java.util.concurrent.locks.AbstractQueuedSynchronizer;
 
+import sun.misc.Unsafe;
+
 /**
  * Non-reentrant read/write latch, using unfair acquisition. Implementation
  * also does not track thread ownership or check for illegal usage. As a
  * result, it typically outperforms ReentrantLock and Java synchronization.
  *
+ * <p>Optimistic reads are also supported, which don't acquire the latch at all. Instead, the
+ * reader obtains a stamp before reading, and it validates the stamp afterwards. Validation
+ * fails if the exclusive latch was held at any time in between, in which case the reader
+ * must discard what it read. The reader must also be prepared for reading inconsistent
+ * state before validating, and so any exception should be treated as a validation failure.
+ *
  * @author Brian S O'Neill
  * @see LatchCondition
  */
@@ -33,6 +45,27 @@ public class Latch extends AbstractQueuedSynchronizer {
 
     public static final int UNLATCHED = 0, EXCLUSIVE = 0x80000000, SHARED = 1;
 
+    private static final AtomicIntegerFieldUpdater<Latch> cVersionUpdater =
+        AtomicIntegerFieldUpdater.newUpdater(Latch.class, "mVersion");
+
+    // Is null if optimistic reads aren't supported.
+    private static final Unsafe UNSAFE;
+
+    static {
+        Unsafe unsafe;
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = (Unsafe) theUnsafe.get(null);
+        } catch (Throwable e) {
+            unsafe = null;
+        }
+        UNSAFE = unsafe;
+    }
+
+    // Incremented whenever the exclusive latch is released, for validating optimistic reads.
+    private volatile int mVersion;
+
     public Latch() {
     }
 
@@ -174,6 +207,34 @@ public class Latch extends AbstractQueuedSynchronizer {
         releaseShared(0);
     }
 
+    /**
+     * Returns a stamp for an optimistic read, which must later be {@link #validate
+     * validated}. Zero is returned if the exclusive latch is held or if optimistic reads
+     * aren't supported, in which case validation always fails.
+     */
+    public final int tryOptimisticRead() {
+        if (getState() < 0 || UNSAFE == null) {
+            return 0;
+        }
+        // Low bit is set to ensure the stamp is never zero.
+        return (mVersion << 1) | 1;
+    }
+
+    /**
+     * Returns true if the exclusive latch hasn't been held since the given stamp was
+     * obtained. Everything read before validating is then consistent.
+     *
+     * @param stamp stamp obtained from tryOptimisticRead
+     */
+    public final boolean validate(int stamp) {
+        if (stamp == 0) {
+            return false;
+        }
+        // Ensure that all the prior reads have completed.
+        UNSAFE.loadFence();
+        return getState() >= 0 && ((mVersion << 1) | 1) == stamp;
+    }
+
     @Override
     protected final boolean tryAcquire(int x) {
         return getState() == 0 ? compareAndSetState(0, EXCLUSIVE) : false;
@@ -205,6 +266,9 @@ public class Latch extends AbstractQueuedSynchronizer {
 
     @Override
     protected final boolean tryRelease(int newState) {
+        // Version must change before the exclusive latch is released. An ordered write is
+        // sufficient, because the state write which follows is volatile.
+        cVersionUpdater.lazySet(this, mVersion + 1);
         setState(newState);
         return true;
     }
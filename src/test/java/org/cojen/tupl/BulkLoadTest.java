@@ -0,0 +1,248 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.Random;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ *
+ *
+ * @author Brian S O'Neill
+ */
+public class BulkLoadTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(BulkLoadTest.class.getName());
+    }
+
+    @Before
+    public void createTempDb() throws Exception {
+        mConfig = new DatabaseConfig()
+            .directPageAccess(false)
+            .checkpointRate(-1, null);
+        mDb = newTempDatabase(mConfig);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases();
+        mDb = null;
+        mConfig = null;
+    }
+
+    protected DatabaseConfig mConfig;
+    protected Database mDb;
+
+    @Test
+    public void basic() throws Exception {
+        Index source = fill(mDb.openIndex("source"), 100_000, 1234);
+        Index target = mDb.openIndex("target");
+
+        Cursor c = source.newCursor(null);
+        c.first();
+        mDb.bulkLoad(target, c);
+        c.reset();
+
+        assertEquals(100_000, target.count(null, null));
+        assertTrue(target.verify(null));
+        verifyEquals(source, target);
+
+        // Loaded index supports normal operations.
+        target.store(null, "hello".getBytes(), "world".getBytes());
+        fastAssertArrayEquals("world".getBytes(), target.load(null, "hello".getBytes()));
+
+        // Entries are durable without a redo log, because a checkpoint was performed.
+        mDb = reopenTempDatabase(mDb, mConfig, true);
+        source = mDb.openIndex("source");
+        target = mDb.openIndex("target");
+        target.delete(null, "hello".getBytes());
+        assertTrue(target.verify(null));
+        verifyEquals(source, target);
+    }
+
+    @Test
+    public void fillFactor() throws Exception {
+        Index source = fill(mDb.openIndex("source"), 50_000, 5678);
+
+        Index full = mDb.openIndex("full");
+        Cursor c = source.newCursor(null);
+        c.first();
+        mDb.bulkLoad(full, c, 1.0);
+        c.reset();
+
+        Index half = mDb.openIndex("half");
+        c = source.newCursor(null);
+        c.first();
+        mDb.bulkLoad(half, c, 0.5);
+        c.reset();
+
+        assertTrue(full.verify(null));
+        assertTrue(half.verify(null));
+        verifyEquals(source, full);
+        verifyEquals(source, half);
+
+        // Fuller leaves require fewer pages.
+        long fullPages = pageCount(full);
+        long halfPages = pageCount(half);
+        assertTrue(fullPages + ", " + halfPages, halfPages > fullPages * 1.7);
+
+        try {
+            mDb.bulkLoad(mDb.openIndex("bogus"), source.newCursor(null), 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void largeEntries() throws Exception {
+        Index source = mDb.openIndex("source");
+        Random rnd = new Random(8675309);
+        for (int i=0; i<1000; i++) {
+            source.store(null, randomStr(rnd, 10, 5000), randomStr(rnd, 0, 20000));
+        }
+
+        Index target = mDb.openIndex("target");
+        Cursor c = source.newCursor(null);
+        c.autoload(false);
+        c.first();
+        mDb.bulkLoad(target, c, 0.8);
+        c.reset();
+
+        assertTrue(target.verify(null));
+        verifyEquals(source, target);
+    }
+
+    @Test
+    public void unordered() throws Exception {
+        Index source = fill(mDb.openIndex("source"), 10_000, 999);
+        Index target = mDb.openIndex("target");
+
+        Cursor c = source.viewReverse().newCursor(null);
+        c.first();
+        mDb.bulkLoad(target, c);
+        c.reset();
+
+        assertTrue(target.verify(null));
+        verifyEquals(source, target);
+    }
+
+    @Test
+    public void notEmpty() throws Exception {
+        Index source = fill(mDb.openIndex("source"), 1000, 1);
+        Index target = mDb.openIndex("target");
+        target.store(null, "key".getBytes(), "value".getBytes());
+
+        Cursor c = source.newCursor(null);
+        c.first();
+        try {
+            mDb.bulkLoad(target, c);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        c.reset();
+
+        assertEquals(1, target.count(null, null));
+
+        target.delete(null, "key".getBytes());
+        Cursor tc = target.newCursor(null);
+        tc.find("key".getBytes());
+        c = source.newCursor(null);
+        c.first();
+        try {
+            mDb.bulkLoad(target, c);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        tc.reset();
+
+        mDb.bulkLoad(target, c);
+        c.reset();
+        verifyEquals(source, target);
+
+        try {
+            c = source.newCursor(null);
+            c.first();
+            mDb.bulkLoad(target, c);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        c.reset();
+    }
+
+    @Test
+    public void temporaryTrees() throws Exception {
+        Index source = fill(mDb.openIndex("source"), 10_000, 2);
+        Index target = mDb.openIndex("target");
+
+        long before = mDb.stats().freePages;
+
+        Cursor c = source.newCursor(null);
+        c.first();
+        mDb.bulkLoad(target, c);
+        c.reset();
+
+        // Temporary tree used for loading is gone, leaving only the target.
+        int count = 0;
+        Cursor reg = mDb.indexRegistryById().newCursor(null);
+        for (reg.first(); reg.key() != null; reg.next()) {
+            count++;
+        }
+        assertEquals(2, count);
+
+        mDb.deleteIndex(target).run();
+        mDb.checkpoint();
+        assertTrue(mDb.stats().freePages >= before);
+    }
+
+    private static Index fill(Index ix, int count, long seed) throws Exception {
+        Random rnd = new Random(seed);
+        for (int i=0; i<count; i++) {
+            ix.store(null, randomStr(rnd, 4, 40), randomStr(rnd, 0, 100));
+        }
+        return ix;
+    }
+
+    private static void verifyEquals(Index expect, Index actual) throws Exception {
+        Cursor c1 = expect.newCursor(null);
+        Cursor c2 = actual.newCursor(null);
+        for (c1.first(), c2.first(); c1.key() != null; c1.next(), c2.next()) {
+            fastAssertArrayEquals(c1.key(), c2.key());
+            fastAssertArrayEquals(c1.value(), c2.value());
+        }
+        assertNull(c2.key());
+        c1.reset();
+        c2.reset();
+    }
+
+    private static long pageCount(Index ix) throws Exception {
+        long[] count = new long[1];
+        ix.verify(new VerificationObserver() {
+            @Override
+            public boolean indexNodePassed(long id, int level,
+                                           int entryCount, int freeBytes, int largeValueCount)
+            {
+                count[0]++;
+                return true;
+            }
+        });
+        return count[0];
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import org.cojen.tupl.io.PageArray;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * Tests the cache replacement policies and per-index cache priorities. Run the main method
+ * with any argument to benchmark cache hit rates under a mixed scan and point read workload.
+ *
+ * @author Brian S O'Neill
+ */
+public class CacheReplacementTest {
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            org.junit.runner.JUnitCore.main(CacheReplacementTest.class.getName());
+            return;
+        }
+
+        for (CacheReplacementPolicy policy : CacheReplacementPolicy.values()) {
+            CacheReplacementTest test = new CacheReplacementTest();
+            try {
+                test.open(policy);
+                test.fill();
+                for (int round = 1; round <= 5; round++) {
+                    long misses = test.mPages.mReads;
+                    int probes = test.readHot(2);
+                    misses = test.mPages.mReads - misses;
+                    long scanned = test.scanCold();
+                    long misses2 = test.mPages.mReads;
+                    probes += test.readHot(2);
+                    misses += test.mPages.mReads - misses2;
+                    System.out.println
+                        (policy + " round " + round + ": scanned " + scanned + " entries, " +
+                         probes + " point reads, " + misses + " page misses, hit rate " +
+                         String.format("%1.2f%%", 100.0 * (probes - misses) / probes));
+                }
+            } finally {
+                test.teardown();
+            }
+        }
+    }
+
+    private static final int PAGE_SIZE = 4096;
+    private static final int CACHE_PAGES = 1000;
+    private static final int HOT_COUNT = 5_000;
+    private static final int COLD_COUNT = 150_000;
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases();
+        mDb = null;
+    }
+
+    private Database mDb;
+    private CountingPageArray mPages;
+    private Index mHot, mCold;
+
+    @Test
+    public void scanResistance() throws Exception {
+        long lruMisses = hotMissesAfterScan(CacheReplacementPolicy.LRU);
+        long segmentedMisses = hotMissesAfterScan(CacheReplacementPolicy.SEGMENTED_LRU);
+
+        // Scan evicts most of the hot set with plain LRU.
+        assertTrue("LRU misses: " + lruMisses, lruMisses > HOT_COUNT / 100);
+        assertTrue("LRU misses: " + lruMisses + ", segmented misses: " + segmentedMisses,
+                   segmentedMisses * 4 < lruMisses);
+    }
+
+    @Test
+    public void verify() throws Exception {
+        open(CacheReplacementPolicy.SEGMENTED_LRU);
+        fill();
+        readHot(2);
+        scanCold();
+
+        // Unused nodes are recycled first, and deleting everything doesn't corrupt the lists.
+        mDb.deleteIndex(mCold);
+        assertTrue(mDb.verify(null));
+        assertTrue(mDb.stats().cachedPages > 0);
+
+        for (int i=0; i<HOT_COUNT; i++) {
+            fastAssertArrayEquals(value(i), mHot.load(null, key(i)));
+        }
+    }
+
+    @Test
+    public void highPriority() throws Exception {
+        long normalMisses = hotMissesAfterScan(CacheReplacementPolicy.LRU);
+        long highMisses = hotMissesAfterScan
+            (CacheReplacementPolicy.LRU, CachePriority.HIGH, null);
+
+        // Plain LRU policy isn't scan resistant, but high priority nodes are passed over.
+        assertTrue("normal misses: " + normalMisses, normalMisses > HOT_COUNT / 100);
+        assertTrue("normal misses: " + normalMisses + ", high misses: " + highMisses,
+                   highMisses * 4 < normalMisses);
+    }
+
+    @Test
+    public void lowPriority() throws Exception {
+        long normalMisses = hotMissesAfterScan(CacheReplacementPolicy.LRU);
+        long lowMisses = hotMissesAfterScan
+            (CacheReplacementPolicy.LRU, null, CachePriority.LOW);
+
+        // Low priority scan only recycles its own leaf nodes.
+        assertTrue("normal misses: " + normalMisses + ", low misses: " + lowMisses,
+                   lowMisses * 4 < normalMisses);
+    }
+
+    @Test
+    public void cacheStats() throws Exception {
+        open(CacheReplacementPolicy.LRU);
+        fill();
+
+        assertEquals(CachePriority.NORMAL, mHot.cachePriority());
+        mHot.cachePriority(CachePriority.HIGH);
+        assertEquals(CachePriority.HIGH, mHot.cachePriority());
+        try {
+            mHot.cachePriority(null);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(CachePriority.HIGH, mHot.cachePriority());
+
+        readHot(2);
+        Index.CacheStats hotStats = mHot.cacheStats();
+        assertTrue(hotStats.internalPages() > 0);
+        assertTrue(hotStats.leafPages() > 0);
+        assertEquals(hotStats.internalPages() + hotStats.leafPages(), hotStats.totalPages());
+
+        scanCold();
+        Index.CacheStats coldStats = mCold.cacheStats();
+        assertTrue(coldStats.totalPages() < CACHE_PAGES);
+        long hotPages = mHot.cacheStats().totalPages();
+        assertTrue(hotPages >= hotStats.totalPages() - hotStats.totalPages() / 10);
+        assertTrue(coldStats.totalPages() + hotStats.totalPages()
+                   <= mDb.stats().cachedPages);
+
+        assertEquals(hotStats, hotStats.clone());
+        assertEquals(hotStats.hashCode(), hotStats.clone().hashCode());
+        assertTrue(hotStats.toString().startsWith("Index.CacheStats {"));
+
+        Index empty = mDb.openIndex("empty");
+        assertEquals(new Index.CacheStats(0, 1), empty.cacheStats());
+
+        // Priority applies to all loaded nodes, and cold index can still be fully read.
+        mCold.cachePriority(CachePriority.HIGH);
+        mHot.cachePriority(CachePriority.LOW);
+        assertEquals(COLD_COUNT, scanCold());
+        for (int i=0; i<HOT_COUNT; i++) {
+            fastAssertArrayEquals(value(i), mHot.load(null, key(i)));
+        }
+        assertTrue(mDb.verify(null));
+
+        View view = mHot.viewUnmodifiable();
+        assertTrue(view instanceof Index);
+        Index ix = (Index) view;
+        assertEquals(CachePriority.LOW, ix.cachePriority());
+        assertNotNull(ix.cacheStats());
+        try {
+            ix.cachePriority(CachePriority.NORMAL);
+            fail();
+        } catch (UnmodifiableViewException e) {
+        }
+
+        mHot.close();
+        try {
+            mHot.cacheStats();
+            fail();
+        } catch (ClosedIndexException e) {
+        }
+        try {
+            mHot.cachePriority(CachePriority.NORMAL);
+            fail();
+        } catch (ClosedIndexException e) {
+        }
+    }
+
+    private long hotMissesAfterScan(CacheReplacementPolicy policy) throws Exception {
+        return hotMissesAfterScan(policy, null, null);
+    }
+
+    /**
+     * @param hot optional priority for the hot index
+     * @param cold optional priority for the cold index
+     */
+    private long hotMissesAfterScan(CacheReplacementPolicy policy,
+                                    CachePriority hot, CachePriority cold)
+        throws Exception
+    {
+        try {
+            open(policy);
+            fill();
+            if (hot != null) {
+                mHot.cachePriority(hot);
+            }
+            if (cold != null) {
+                mCold.cachePriority(cold);
+            }
+            readHot(3);
+            scanCold();
+            long reads = mPages.mReads;
+            readHot(1);
+            return mPages.mReads - reads;
+        } finally {
+            teardown();
+        }
+    }
+
+    private void open(CacheReplacementPolicy policy) throws Exception {
+        mPages = new CountingPageArray(PAGE_SIZE);
+        DatabaseConfig config = new DatabaseConfig()
+            .dataPageArray(mPages)
+            .directPageAccess(false)
+            .pageSize(PAGE_SIZE)
+            .minCacheSize(CACHE_PAGES * PAGE_SIZE)
+            .maxCacheSize(CACHE_PAGES * PAGE_SIZE)
+            .durabilityMode(DurabilityMode.NO_FLUSH)
+            .checkpointRate(-1, null)
+            .cacheReplacementPolicy(policy);
+        mDb = newTempDatabase(config);
+    }
+
+    private void fill() throws Exception {
+        mCold = mDb.openIndex("cold");
+        for (int i=0; i<COLD_COUNT; i++) {
+            mCold.store(Transaction.BOGUS, key(i), value(i));
+        }
+        mHot = mDb.openIndex("hot");
+        for (int i=0; i<HOT_COUNT; i++) {
+            mHot.store(Transaction.BOGUS, key(i), value(i));
+        }
+        mDb.checkpoint();
+    }
+
+    /**
+     * @return amount of point reads performed
+     */
+    private int readHot(int passes) throws Exception {
+        Random rnd = new Random(passes);
+        int count = passes * HOT_COUNT;
+        for (int i=0; i<count; i++) {
+            mHot.load(null, key(rnd.nextInt(HOT_COUNT)));
+        }
+        return count;
+    }
+
+    /**
+     * @return amount of entries scanned
+     */
+    private long scanCold() throws Exception {
+        long count = 0;
+        Cursor c = mCold.newCursor(null);
+        for (c.first(); c.key() != null; c.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    private static byte[] key(int n) {
+        return String.format("key-%08d", n).getBytes();
+    }
+
+    private static byte[] value(int n) {
+        byte[] value = new byte[100];
+        new Random(n).nextBytes(value);
+        return value;
+    }
+
+    /**
+     * In-memory page array which counts page reads, multi-page writes, and page writes by a
+     * watched thread.
+     */
+    static class CountingPageArray extends PageArray {
+        private final List<byte[]> mPages = new ArrayList<>();
+        volatile long mReads;
+        volatile long mMultiPageWrites;
+        volatile Thread mWatched;
+        volatile long mWatchedWrites;
+
+        CountingPageArray(int pageSize) {
+            super(pageSize);
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return false;
+        }
+
+        @Override
+        public synchronized boolean isEmpty() {
+            return mPages.isEmpty();
+        }
+
+        @Override
+        public synchronized long getPageCount() {
+            return mPages.size();
+        }
+
+        @Override
+        public synchronized void setPageCount(long count) {
+            while (mPages.size() > count) {
+                mPages.remove(mPages.size() - 1);
+            }
+            while (mPages.size() < count) {
+                mPages.add(new byte[pageSize()]);
+            }
+        }
+
+        @Override
+        public synchronized void readPage(long index, byte[] dst, int offset, int length)
+            throws IOException
+        {
+            mReads++;
+            if (index < mPages.size()) {
+                System.arraycopy(mPages.get((int) index), 0, dst, offset, length);
+            } else {
+                java.util.Arrays.fill(dst, offset, offset + length, (byte) 0);
+            }
+        }
+
+        @Override
+        public synchronized void writePage(long index, byte[] src, int offset) {
+            if (Thread.currentThread() == mWatched) {
+                mWatchedWrites++;
+            }
+            if (index >= mPages.size()) {
+                setPageCount(index + 1);
+            }
+            System.arraycopy(src, offset, mPages.get((int) index), 0, pageSize());
+        }
+
+        @Override
+        public synchronized void writePages(long index, byte[] src, int offset, int count)
+            throws IOException
+        {
+            if (count > 1) {
+                mMultiPageWrites++;
+            }
+            super.writePages(index, src, offset, count);
+        }
+
+        @Override
+        public void sync(boolean metadata) {
+        }
+
+        @Override
+        public void close(Throwable cause) {
+        }
+    }
+}
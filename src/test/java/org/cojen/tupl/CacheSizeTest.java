@@ -0,0 +1,207 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.Random;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * Tests changing the cache size while the database is open.
+ *
+ * @author Brian S O'Neill
+ */
+public class CacheSizeTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(CacheSizeTest.class.getName());
+    }
+
+    private static final long CACHE_SIZE = 1_000_000;
+    private static final int COUNT = 100_000;
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases();
+        mDb = null;
+    }
+
+    protected Database mDb;
+
+    @Test
+    public void growAndShrink() throws Exception {
+        mDb = newTempDatabase(CACHE_SIZE);
+
+        long size = mDb.cacheSize();
+        assertTrue(size >= CACHE_SIZE);
+        long pages = mDb.stats().cachedPages;
+
+        // Doesn't fit in the cache.
+        Index ix = fill(COUNT);
+        assertEquals(pages, mDb.stats().cachedPages);
+
+        mDb.cacheSize(size * 10);
+        assertTrue(mDb.cacheSize() >= size * 10);
+
+        // Everything fits now.
+        verify(ix, COUNT);
+        verify(ix, COUNT);
+        long grownPages = mDb.stats().cachedPages;
+        assertTrue(grownPages > pages * 2);
+
+        // Shrink with dirty nodes.
+        for (int i=0; i<COUNT; i+=2) {
+            ix.store(Transaction.BOGUS, key(i), value(i + 1));
+        }
+        mDb.cacheSize(size / 2);
+        assertTrue(mDb.cacheSize() < size);
+        assertTrue(mDb.stats().cachedPages <= pages / 2 + 1);
+
+        for (int i=0; i<COUNT; i++) {
+            fastAssertArrayEquals(value(i + ((i & 1) ^ 1)), ix.load(Transaction.BOGUS, key(i)));
+        }
+        assertTrue(mDb.stats().cachedPages <= pages / 2 + 1);
+        assertTrue(mDb.verify(null));
+
+        // Tiny size is rounded up to a minimum.
+        mDb.cacheSize(0);
+        assertTrue(mDb.cacheSize() > 0);
+        assertEquals(COUNT, ix.count(null, null));
+        mDb.cacheSize(size);
+        assertEquals(COUNT, ix.count(null, null));
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        mDb = newTempDatabase(CACHE_SIZE);
+        Index ix = fill(COUNT);
+        mDb.cacheSize(CACHE_SIZE * 4);
+        verify(ix, COUNT);
+        mDb.cacheSize(CACHE_SIZE / 4);
+        mDb.checkpoint();
+
+        // Configured size applies again.
+        DatabaseConfig config = new DatabaseConfig()
+            .minCacheSize(CACHE_SIZE)
+            .durabilityMode(DurabilityMode.NO_FLUSH)
+            .directPageAccess(false);
+        mDb = reopenTempDatabase(mDb, config);
+        assertTrue(mDb.cacheSize() >= CACHE_SIZE);
+        verify(mDb.openIndex("test"), COUNT);
+    }
+
+    @Test
+    public void nonDurable() throws Exception {
+        mDb = Database.open(new DatabaseConfig().maxCacheSize(CACHE_SIZE * 4));
+        long pages = mDb.stats().cachedPages;
+        Index ix = fill(20_000);
+        long filledPages = mDb.stats().cachedPages;
+        assertTrue(filledPages > pages);
+
+        // Dirty nodes are the only copy, and so they cannot be evicted.
+        mDb.cacheSize(CACHE_SIZE / 4);
+        assertTrue(mDb.stats().cachedPages > filledPages / 2);
+        verify(ix, 20_000);
+
+        // Deleted nodes can be evicted.
+        for (int i=0; i<20_000; i++) {
+            ix.store(Transaction.BOGUS, key(i), null);
+        }
+        mDb.cacheSize(CACHE_SIZE / 4);
+        assertTrue(mDb.stats().cachedPages < filledPages / 2);
+
+        fill(1000);
+        verify(ix, 1000);
+        mDb.close();
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        mDb = newTempDatabase(CACHE_SIZE);
+        final Index ix = fill(COUNT);
+        final long size = mDb.cacheSize();
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final long end = System.currentTimeMillis() + 2000;
+
+        Thread[] threads = new Thread[4];
+        for (int t=0; t<threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    Random rnd = new Random(seed);
+                    while (System.currentTimeMillis() < end) {
+                        int k = rnd.nextInt(COUNT);
+                        if ((k & 7) == 0) {
+                            ix.store(Transaction.BOGUS, key(k), value(k));
+                        } else {
+                            fastAssertArrayEquals(value(k), ix.load(null, key(k)));
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads[t].start();
+        }
+
+        Random rnd = new Random(1);
+        while (System.currentTimeMillis() < end) {
+            mDb.cacheSize(size / 4 + (long) (rnd.nextDouble() * size * 8));
+            Thread.sleep(10);
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        Throwable e = failure.get();
+        if (e != null) {
+            throw new AssertionError(e);
+        }
+
+        mDb.checkpoint();
+        assertTrue(mDb.verify(null));
+        verify(ix, COUNT);
+    }
+
+    private Index fill(int count) throws Exception {
+        Index ix = mDb.openIndex("test");
+        for (int i=0; i<count; i++) {
+            ix.store(Transaction.BOGUS, key(i), value(i));
+        }
+        return ix;
+    }
+
+    private static void verify(Index ix, int count) throws Exception {
+        for (int i=0; i<count; i++) {
+            fastAssertArrayEquals(value(i), ix.load(Transaction.BOGUS, key(i)));
+        }
+    }
+
+    private static byte[] key(int n) {
+        return String.format("key-%08d", n).getBytes();
+    }
+
+    private static byte[] value(int n) {
+        return ("value-" + n).getBytes();
+    }
+}
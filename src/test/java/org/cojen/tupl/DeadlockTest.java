@@ -427,6 +427,74 @@ public class DeadlockTest {
         }
     }
 
+    @Test
+    public void eagerOtherVictim() throws Throwable {
+        eagerDetection(false);
+    }
+
+    @Test
+    public void eagerSelfVictim() throws Throwable {
+        eagerDetection(true);
+    }
+
+    private void eagerDetection(final boolean selfVictim) throws Throwable {
+        // Deadlock is detected shortly after both threads start waiting, instead of after
+        // the timeout elapses. The locker which holds the fewest locks is the victim.
+
+        mManager = new LockManager(null, null, -1, 0, TimeUnit.MILLISECONDS.toNanos(1));
+
+        final long timeout = 60L * 1000 * 1000 * 1000;
+        final byte[][] keys = {"k0".getBytes(), "k1".getBytes(), "k2".getBytes()};
+
+        Locker locker = new Locker(mManager);
+        locker.lockExclusive(1, keys[0], timeout);
+        if (!selfVictim) {
+            locker.lockExclusive(1, keys[1], timeout);
+        }
+
+        mTasks.add(new Task() {
+                void doRun() throws Throwable {
+                    Locker locker = new Locker(mManager);
+                    try {
+                        locker.lockExclusive(1, keys[2], timeout);
+                        if (selfVictim) {
+                            locker.lockExclusive(1, keys[1], timeout);
+                        }
+                        sleep(500);
+                        try {
+                            locker.lockExclusive(1, keys[0], timeout);
+                            assertTrue(selfVictim);
+                        } catch (DeadlockException e) {
+                            assertFalse(selfVictim);
+                            assertTrue(e.isGuilty());
+                        }
+                    } finally {
+                        locker.scopeUnlockAll();
+                    }
+                }
+            });
+
+        startTasks();
+
+        sleep(250);
+
+        long start = System.nanoTime();
+        try {
+            locker.lockExclusive(1, keys[2], timeout);
+            assertFalse(selfVictim);
+        } catch (DeadlockException e) {
+            assertTrue(selfVictim);
+            assertTrue(e.isGuilty());
+        } finally {
+            locker.scopeUnlockAll();
+        }
+
+        joinTasks();
+
+        long duration = System.nanoTime() - start;
+        assertTrue(duration < timeout / 4);
+    }
+
     private void startTasks() {
         for (Task t : mTasks) {
             t.start();
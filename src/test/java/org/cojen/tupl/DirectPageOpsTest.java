@@ -113,6 +113,53 @@ public class DirectPageOpsTest {
         }
     }
 
+    @Test
+    public void compareKeys() throws Exception {
+        final int size = 64;
+        long apage = DirectPageOps.p_calloc(size);
+        long bpage = DirectPageOps.p_calloc(size);
+
+        try {
+            java.util.Random rnd = new java.util.Random(8675309);
+
+            for (int len = 0; len <= 40; len++) {
+                for (int diff = 0; diff <= len; diff++) {
+                    byte[] a = new byte[len];
+                    rnd.nextBytes(a);
+                    byte[] b = a.clone();
+                    if (diff < len) {
+                        // Also covers signed vs unsigned byte comparison.
+                        b[diff] = (byte) (a[diff] ^ (1 << rnd.nextInt(8)));
+                    }
+
+                    int aoff = rnd.nextInt(size - len + 1);
+                    int boff = rnd.nextInt(size - len + 1);
+                    DirectPageOps.p_copyFromArray(a, 0, apage, aoff, len);
+                    DirectPageOps.p_copyFromArray(b, 0, bpage, boff, len);
+
+                    assertEquals(diff, DirectPageOps.p_mismatch(apage, aoff, b, 0, len));
+                    assertEquals(diff, DirectPageOps.p_mismatch(apage, aoff, bpage, boff, len));
+                    assertEquals(diff, PageOps.p_mismatch(a, 0, b, 0, len));
+
+                    int expect = Integer.signum(Utils.compareUnsigned(a, b));
+
+                    assertEquals(expect, Integer.signum(DirectPageOps.p_compareKeysPageToArray
+                                                        (apage, aoff, len, b, 0, len)));
+                    assertEquals(expect, Integer.signum(DirectPageOps.p_compareKeysPageToPage
+                                                        (apage, aoff, len, bpage, boff, len)));
+
+                    // Shorter key is lower when the common prefix matches.
+                    int shorter = Math.min(len, diff);
+                    assertTrue(DirectPageOps.p_compareKeysPageToArray
+                               (apage, aoff, shorter, b, 0, len) <= 0);
+                }
+            }
+        } finally {
+            DirectPageOps.p_delete(apage);
+            DirectPageOps.p_delete(bpage);
+        }
+    }
+
     private void allocAll(Object arena, long[] pages, int size) {
         for (int i=0; i<pages.length; i++) {
             pages[i] = DirectPageOps.p_calloc(arena, size);
@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ *
+ *
+ * @author Brian S O'Neill
+ */
+public class EvictorTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(EvictorTest.class.getName());
+    }
+
+    private static final int PAGE_SIZE = 4096;
+    private static final int CACHE_PAGES = 1000;
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases();
+        mDb = null;
+    }
+
+    private Database mDb;
+    private CacheReplacementTest.CountingPageArray mPages;
+
+    @Test
+    public void noWritesWithReserve() throws Exception {
+        assertTrue(readWrites(0) > 0);
+        teardown();
+        assertEquals(0, readWrites(CACHE_PAGES / 2));
+    }
+
+    /**
+     * Fills the cache with dirty nodes, and then counts the amount of pages written by the
+     * current thread when reading a few uncached entries.
+     *
+     * @param reserve eviction reserve, in pages
+     */
+    private long readWrites(int reserve) throws Exception {
+        open(reserve);
+
+        Index cold = mDb.openIndex("cold");
+        int coldCount = 100_000;
+        for (int i=0; i<coldCount; i++) {
+            cold.store(Transaction.BOGUS, key(i), value(i));
+        }
+        mDb.checkpoint();
+
+        Index dirty = mDb.openIndex("dirty");
+        for (int i=0; i<40_000; i++) {
+            dirty.store(Transaction.BOGUS, key(i), value(i));
+        }
+
+        // Give the evictor a chance to run.
+        sleep(1000);
+
+        mPages.mWatched = Thread.currentThread();
+        Random rnd = new Random(1);
+        for (int i=0; i<50; i++) {
+            int k = rnd.nextInt(coldCount);
+            fastAssertArrayEquals(value(k), cold.load(null, key(k)));
+        }
+        mPages.mWatched = null;
+
+        assertTrue(mDb.verify(null));
+
+        return mPages.mWatchedWrites;
+    }
+
+    @Test
+    public void churn() throws Exception {
+        open(CACHE_PAGES / 4);
+
+        Index ix = mDb.openIndex("test");
+        Random rnd = new Random(5309);
+        int count = 50_000;
+        BitSet stored = new BitSet();
+        for (int round=0; round<4; round++) {
+            for (int i=0; i<count; i++) {
+                int k = rnd.nextInt(count);
+                ix.store(Transaction.BOGUS, key(k), value(k + round));
+                stored.set(k);
+            }
+            mDb.checkpoint();
+        }
+
+        assertTrue(mDb.verify(null));
+
+        mDb = reopenTempDatabase(mDb, config(CACHE_PAGES / 4));
+        assertTrue(mDb.verify(null));
+        assertEquals(stored.cardinality(), mDb.openIndex("test").count(null, null));
+    }
+
+    private void open(int reserve) throws Exception {
+        mPages = new CacheReplacementTest.CountingPageArray(PAGE_SIZE);
+        mDb = newTempDatabase(config(reserve));
+    }
+
+    private DatabaseConfig config(int reserve) {
+        return new DatabaseConfig()
+            .dataPageArray(mPages)
+            .directPageAccess(false)
+            .pageSize(PAGE_SIZE)
+            .minCacheSize(CACHE_PAGES * PAGE_SIZE)
+            .maxCacheSize(CACHE_PAGES * PAGE_SIZE)
+            .durabilityMode(DurabilityMode.NO_FLUSH)
+            .checkpointRate(-1, null)
+            .evictionReserve(reserve * (long) PAGE_SIZE);
+    }
+
+    private static byte[] key(int n) {
+        return String.format("key-%08d", n).getBytes();
+    }
+
+    private static byte[] value(int n) {
+        byte[] value = new byte[100];
+        new Random(n).nextBytes(value);
+        return value;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ *
+ *
+ * @author Brian S O'Neill
+ */
+public class GroupCommitTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(GroupCommitTest.class.getName());
+    }
+
+    @After
+    public void teardown() {
+        deleteTempDatabases();
+    }
+
+    @Test
+    public void concurrentCommits() throws Exception {
+        final Database db = newTempDatabase(new DatabaseConfig()
+                                      .directPageAccess(false)
+                                      .durabilityMode(DurabilityMode.SYNC)
+                                      .groupCommitDelay(1, TimeUnit.MILLISECONDS));
+
+        final Index ix = db.openIndex("test");
+        final int threadCount = 8;
+        final int count = 50;
+
+        Thread[] threads = new Thread[threadCount];
+        Throwable[] failure = new Throwable[1];
+
+        for (int i=0; i<threadCount; i++) {
+            final int id = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int j=0; j<count; j++) {
+                        Transaction txn = db.newTransaction();
+                        ix.store(txn, ("key-" + id + "-" + j).getBytes(), "value".getBytes());
+                        txn.commit();
+                    }
+                } catch (Throwable e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw new AssertionError(failure[0]);
+            }
+        }
+
+        Database.Stats stats = db.stats();
+        // Opening the index also commits.
+        assertTrue(stats.redoSyncCommitCount() >= threadCount * count);
+        assertTrue(stats.redoSyncCount() > 0);
+        assertTrue(stats.redoSyncCount() <= stats.redoSyncCommitCount());
+
+        assertEquals(threadCount * count, ix.count(null, null));
+
+        // Reopen and verify that all committed entries were recovered.
+        Database db2 = reopenTempDatabase(db, new DatabaseConfig()
+                                          .directPageAccess(false)
+                                          .durabilityMode(DurabilityMode.SYNC));
+        assertEquals(threadCount * count, db2.openIndex("test").count(null, null));
+    }
+}
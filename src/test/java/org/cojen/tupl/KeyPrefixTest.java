@@ -0,0 +1,316 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * Tests leaf nodes which elide key prefixes.
+ *
+ * @author Brian S O'Neill
+ */
+public class KeyPrefixTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(KeyPrefixTest.class.getName());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        mConfig = new DatabaseConfig()
+            .directPageAccess(false)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.NO_FLUSH)
+            .pageSize(4096)
+            .keyPrefixCompression(true);
+        mDb = newTempDatabase(mConfig);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases();
+        mDb = null;
+    }
+
+    protected DatabaseConfig mConfig;
+    protected Database mDb;
+
+    @Test
+    public void fewerNodes() throws Exception {
+        Index ix = mDb.openIndex("test");
+        fill(ix, 20000);
+        assertTrue(ix.verify(null));
+        assertTrue(countPrefixLeaves(ix) > 0);
+        mDb.checkpoint();
+        Database.Stats stats = mDb.stats();
+        long used = stats.totalPages() - stats.freePages();
+
+        Database plainDb = newTempDatabase(mConfig.clone().keyPrefixCompression(false));
+        Index plain = plainDb.openIndex("test");
+        fill(plain, 20000);
+        assertEquals(0, countPrefixLeaves(plain));
+        plainDb.checkpoint();
+        stats = plainDb.stats();
+        long plainUsed = stats.totalPages() - stats.freePages();
+
+        assertTrue(used + " >= " + plainUsed, used < plainUsed / 2);
+    }
+
+    @Test
+    public void randomOperations() throws Exception {
+        Index ix = mDb.openIndex("test");
+        TreeMap<byte[], byte[]> expect = new TreeMap<>(KeyComparator.THE);
+
+        Random rnd = new Random(8675309);
+        for (int round = 0; round < 6; round++) {
+            for (int i=0; i<20000; i++) {
+                byte[] key = key(rnd.nextInt(200), rnd.nextInt(5000));
+                if (rnd.nextInt(100) == 0) {
+                    // Occasionally use a key which must be fragmented.
+                    key = concat(key, randomStr(rnd, 2100));
+                }
+                int op = rnd.nextInt(10);
+                if (op < 6 || round == 0) {
+                    byte[] value = randomStr(rnd, rnd.nextInt(50) == 0 ? 5000 : 20);
+                    ix.store(Transaction.BOGUS, key, value);
+                    expect.put(key, value);
+                } else {
+                    ix.store(Transaction.BOGUS, key, null);
+                    expect.remove(key);
+                }
+            }
+
+            // Delete ranges, which causes merges of nodes with different prefixes.
+            int tenant = rnd.nextInt(200);
+            for (int i=0; i<5000; i++) {
+                byte[] key = key(tenant, i);
+                ix.store(Transaction.BOGUS, key, null);
+                expect.remove(key);
+            }
+
+            assertTrue(ix.verify(null));
+            verifyAll(ix, expect);
+
+            if (round == 3) {
+                mDb.checkpoint();
+                mDb = reopenTempDatabase(mDb, mConfig);
+                ix = mDb.openIndex("test");
+                verifyAll(ix, expect);
+            }
+        }
+
+        // Delete almost everything.
+        for (Map.Entry<byte[], byte[]> e : expect.entrySet()) {
+            if (rnd.nextInt(50) != 0) {
+                ix.store(Transaction.BOGUS, e.getKey(), null);
+                e.setValue(null);
+            }
+        }
+        expect.values().removeIf(v -> v == null);
+
+        assertTrue(ix.verify(null));
+        verifyAll(ix, expect);
+    }
+
+    @Test
+    public void rollback() throws Exception {
+        Index ix = mDb.openIndex("test");
+        fill(ix, 10000);
+
+        Random rnd = new Random(1);
+        Transaction txn = mDb.newTransaction();
+        for (int i=0; i<3000; i++) {
+            byte[] key = key(rnd.nextInt(100), rnd.nextInt(100));
+            switch (rnd.nextInt(3)) {
+            case 0:
+                ix.store(txn, key, null);
+                break;
+            case 1:
+                ix.store(txn, key, randomStr(rnd, 10000));
+                break;
+            default:
+                ix.store(txn, concat(key, "x".getBytes()), randomStr(rnd, 100));
+                break;
+            }
+        }
+        txn.exit();
+
+        assertTrue(ix.verify(null));
+        verifyFill(ix, 10000);
+
+        // Large values are stored in the trash when deleted.
+        fill(ix, 10000, 6000);
+        txn = mDb.newTransaction();
+        for (int i=0; i<10000; i += 7) {
+            ix.store(txn, key(i), null);
+        }
+        txn.exit();
+        verifyFill(ix, 10000, 6000);
+
+        // Recovery must replay the redo log.
+        txn = mDb.newTransaction();
+        for (int i=0; i<10000; i += 3) {
+            ix.store(txn, key(i), null);
+        }
+        txn.commit();
+        mDb = reopenTempDatabase(mDb, mConfig);
+        ix = mDb.openIndex("test");
+        assertTrue(ix.verify(null));
+        for (int i=0; i<10000; i++) {
+            byte[] value = ix.load(null, key(i));
+            if (i % 3 == 0) {
+                assertNull(value);
+            } else {
+                fastAssertArrayEquals(value(i, 6000), value);
+            }
+        }
+    }
+
+    @Test
+    public void disable() throws Exception {
+        Index ix = mDb.openIndex("test");
+        fill(ix, 10000);
+        assertTrue(countPrefixLeaves(ix) > 0);
+
+        mDb.checkpoint();
+        mConfig.keyPrefixCompression(false);
+        mDb = reopenTempDatabase(mDb, mConfig);
+        ix = mDb.openIndex("test");
+        verifyFill(ix, 10000);
+
+        // Existing prefix leaves still work.
+        fill(ix, 20000);
+        assertTrue(ix.verify(null));
+        verifyFill(ix, 20000);
+        for (int i=0; i<20000; i += 2) {
+            ix.store(null, key(i), null);
+        }
+        assertTrue(ix.verify(null));
+        for (int i=0; i<20000; i++) {
+            byte[] value = ix.load(null, key(i));
+            if ((i & 1) == 0) {
+                assertNull(value);
+            } else {
+                fastAssertArrayEquals(value(i, 10), value);
+            }
+        }
+    }
+
+    private static byte[] key(int i) {
+        return key(i / 1000, i % 1000);
+    }
+
+    private static byte[] key(int tenant, int id) {
+        return String.format("tenant-%05d/table-orders/created/2016-08-%08d", tenant, id)
+            .getBytes();
+    }
+
+    private static byte[] value(int i, int len) {
+        byte[] value = new byte[len];
+        for (int j=0; j<len; j++) {
+            value[j] = (byte) (i + j);
+        }
+        return value;
+    }
+
+    private static void fill(Index ix, int count) throws Exception {
+        fill(ix, count, 10);
+    }
+
+    private static void fill(Index ix, int count, int valueLen) throws Exception {
+        Random rnd = new Random(count);
+        int[] order = new int[count];
+        for (int i=0; i<count; i++) {
+            order[i] = i;
+        }
+        for (int i=count; --i>0; ) {
+            int j = rnd.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        for (int i : order) {
+            ix.store(null, key(i), value(i, valueLen));
+        }
+    }
+
+    private static void verifyFill(Index ix, int count) throws Exception {
+        verifyFill(ix, count, 10);
+    }
+
+    private static void verifyFill(Index ix, int count, int valueLen) throws Exception {
+        Cursor c = ix.newCursor(null);
+        int i = 0;
+        for (c.first(); c.key() != null; c.next()) {
+            fastAssertArrayEquals(key(i), c.key());
+            fastAssertArrayEquals(value(i, valueLen), c.value());
+            i++;
+        }
+        assertEquals(count, i);
+
+        for (i=0; i<count; i++) {
+            fastAssertArrayEquals(value(i, valueLen), ix.load(null, key(i)));
+        }
+    }
+
+    private static void verifyAll(Index ix, TreeMap<byte[], byte[]> expect) throws Exception {
+        Cursor c = ix.newCursor(null);
+        c.first();
+        for (Map.Entry<byte[], byte[]> e : expect.entrySet()) {
+            fastAssertArrayEquals(e.getKey(), c.key());
+            fastAssertArrayEquals(e.getValue(), c.value());
+            c.next();
+        }
+        assertNull(c.key());
+
+        for (Map.Entry<byte[], byte[]> e : expect.entrySet()) {
+            fastAssertArrayEquals(e.getValue(), ix.load(null, e.getKey()));
+            c.findNearby(e.getKey());
+            fastAssertArrayEquals(e.getValue(), c.value());
+        }
+        c.reset();
+    }
+
+    private static int countPrefixLeaves(Index ix) throws Exception {
+        TreeCursor c = (TreeCursor) ix.newCursor(null);
+        c.autoload(false);
+        int count = 0;
+        Node last = null;
+        for (c.first(); c.key() != null; c.next()) {
+            Node node = c.leafSharedNotSplit().mNode;
+            if (node != last && node.isPrefixLeaf()) {
+                count++;
+            }
+            node.releaseShared();
+            last = node;
+        }
+        return count;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+}
@@ -234,4 +234,79 @@ public class LargeKeyTest {
             fastAssertArrayEquals(value, found);
         }
     }
+
+    @Test
+    public void fragmentedKeySearch() throws Exception {
+        fragmentedKeySearch(4096);
+        // Small pages force the largest keys to use indirect pointers.
+        fragmentedKeySearch(512);
+    }
+
+    private void fragmentedKeySearch(int pageSize) throws Exception {
+        Database db = newTempDatabase(decorate(new DatabaseConfig().pageSize(pageSize)));
+        Index ix = db.openIndex("test");
+
+        // Keys share a long common prefix, and so comparisons must examine several fragment
+        // pages.
+        Random rnd = new Random(98765);
+        byte[] common = randomStr(rnd, 9000);
+        TreeMap<byte[], byte[]> expect = new TreeMap<>(KeyComparator.THE);
+
+        for (int i=0; i<500; i++) {
+            int len = i < 10 ? (30000 + rnd.nextInt(30000)) : (2000 + rnd.nextInt(6000));
+            byte[] key = new byte[len];
+            int split = rnd.nextInt(Math.min(len, common.length));
+            System.arraycopy(common, 0, key, 0, split);
+            for (int j=split; j<len; j++) {
+                key[j] = (byte) rnd.nextInt(4);
+            }
+            byte[] value = ("value-" + i).getBytes();
+            ix.store(Transaction.BOGUS, key, value);
+            expect.put(key, value);
+        }
+
+        assertTrue(ix.verify(null));
+
+        Cursor c = ix.newCursor(Transaction.BOGUS);
+        for (Map.Entry<byte[], byte[]> e : expect.entrySet()) {
+            byte[] key = e.getKey();
+            fastAssertArrayEquals(e.getValue(), ix.load(Transaction.BOGUS, key));
+
+            c.find(key);
+            fastAssertArrayEquals(e.getValue(), c.value());
+
+            // Missing keys which differ in the last byte, or in length.
+            byte[] lower = key.clone();
+            lower[lower.length - 1]--;
+            if (!expect.containsKey(lower)) {
+                assertNull(ix.load(Transaction.BOGUS, lower));
+                c.findGt(lower);
+                fastAssertArrayEquals(expect.higherKey(lower), c.key());
+            }
+            byte[] shorter = Arrays.copyOf(key, key.length - 1);
+            if (!expect.containsKey(shorter)) {
+                assertNull(ix.load(Transaction.BOGUS, shorter));
+                c.findLt(shorter);
+                fastAssertArrayEquals(expect.lowerKey(shorter), c.key());
+            }
+        }
+
+        // Iterate with limits, which compares against the limit key.
+        byte[] limit = expect.keySet().toArray(new byte[0][])[250];
+        c.first();
+        int count = 0;
+        for (; c.key() != null; c.nextLe(limit)) {
+            count++;
+        }
+        assertEquals(251, count);
+
+        c.last();
+        count = 0;
+        for (; c.key() != null; c.previousGt(limit)) {
+            count++;
+        }
+        assertEquals(249, count);
+
+        c.reset();
+    }
 }
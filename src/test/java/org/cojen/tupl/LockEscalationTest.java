@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * Tests escalation of shared key locks into index-level locks.
+ *
+ * @author Brian S O'Neill
+ */
+public class LockEscalationTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(LockEscalationTest.class.getName());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        mConfig = new DatabaseConfig()
+            .directPageAccess(false)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.NO_FLUSH)
+            .lockEscalationThreshold(100);
+        mDb = newTempDatabase(mConfig);
+        mIx = fill(mDb.openIndex("test"));
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases();
+        mDb = null;
+    }
+
+    protected DatabaseConfig mConfig;
+    protected Database mDb;
+    protected Index mIx;
+
+    @Test
+    public void disabled() throws Exception {
+        Database db = newTempDatabase(mConfig.clone().lockEscalationThreshold(0));
+        Index ix = fill(db.openIndex("test"));
+
+        Transaction txn = db.newTransaction();
+        txn.lockMode(LockMode.REPEATABLE_READ);
+        assertEquals(1000, scan(ix, txn));
+        assertEquals(1000, db.stats().lockCount());
+        txn.reset();
+    }
+
+    @Test
+    public void scan() throws Exception {
+        Transaction txn = mDb.newTransaction();
+        txn.lockMode(LockMode.REPEATABLE_READ);
+        assertEquals(1000, scan(mIx, txn));
+
+        // Only the index lock remains.
+        assertEquals(1, mDb.stats().lockCount());
+        assertEquals(LockResult.OWNED_SHARED, txn.lockCheck(mIx.getId(), key(0)));
+        assertEquals(LockResult.OWNED_SHARED, txn.lockCheck(mIx.getId(), key(999)));
+
+        // Other transactions can read but not write.
+        Transaction txn2 = mDb.newTransaction();
+        txn2.lockTimeout(10, TimeUnit.MILLISECONDS);
+        fastAssertArrayEquals(value(5), mIx.load(txn2, key(5)));
+        try {
+            mIx.store(txn2, key(1000), value(1000));
+            fail();
+        } catch (LockTimeoutException e) {
+        }
+        txn2.reset();
+
+        txn.commit();
+        assertEquals(0, mDb.stats().lockCount());
+
+        mIx.store(null, key(1000), value(1000));
+    }
+
+    @Test
+    public void mixed() throws Exception {
+        Transaction txn = mDb.newTransaction();
+        txn.lockMode(LockMode.REPEATABLE_READ);
+
+        for (int i=0; i<1000; i++) {
+            if (i % 10 == 0) {
+                // Upgrade to exclusive is pushed separately.
+                txn.lockUpgradable(mIx.getId(), key(i));
+                mIx.store(txn, key(i), "updated".getBytes());
+            } else if (i % 10 == 5) {
+                mIx.store(txn, key(i), "updated".getBytes());
+            } else {
+                txn.lockShared(mIx.getId(), key(i));
+            }
+        }
+
+        // Exclusive locks are retained, and everything else was converted.
+        assertEquals(201, mDb.stats().lockCount());
+        for (int i=0; i<1000; i++) {
+            LockResult expect = (i % 5 == 0)
+                ? LockResult.OWNED_EXCLUSIVE : LockResult.OWNED_SHARED;
+            assertEquals(expect, txn.lockCheck(mIx.getId(), key(i)));
+        }
+
+        txn.exit();
+        assertEquals(0, mDb.stats().lockCount());
+
+        for (int i=0; i<1000; i++) {
+            fastAssertArrayEquals(value(i), mIx.load(null, key(i)));
+        }
+    }
+
+    @Test
+    public void nestedScope() throws Exception {
+        Transaction txn = mDb.newTransaction();
+        txn.lockMode(LockMode.REPEATABLE_READ);
+
+        for (int i=0; i<50; i++) {
+            mIx.load(txn, key(i));
+        }
+
+        txn.enter();
+        assertEquals(1000, scan(mIx, txn));
+        assertEquals(51, mDb.stats().lockCount());
+        txn.exit();
+
+        // Parent scope locks are retained.
+        assertEquals(50, mDb.stats().lockCount());
+        assertEquals(LockResult.OWNED_SHARED, txn.lockCheck(mIx.getId(), key(0)));
+        assertEquals(LockResult.UNOWNED, txn.lockCheck(mIx.getId(), key(500)));
+
+        txn.exit();
+        assertEquals(0, mDb.stats().lockCount());
+    }
+
+    @Test
+    public void multipleIndexes() throws Exception {
+        Index ix2 = fill(mDb.openIndex("test2"));
+
+        Transaction txn = mDb.newTransaction();
+        txn.lockMode(LockMode.REPEATABLE_READ);
+
+        for (int i=0; i<1000; i++) {
+            mIx.load(txn, key(i));
+            ix2.load(txn, key(i));
+        }
+
+        assertEquals(2, mDb.stats().lockCount());
+        txn.reset();
+        assertEquals(0, mDb.stats().lockCount());
+    }
+
+    private static Index fill(Index ix) throws Exception {
+        for (int i=0; i<1000; i++) {
+            ix.store(null, key(i), value(i));
+        }
+        return ix;
+    }
+
+    private static int scan(Index ix, Transaction txn) throws Exception {
+        Cursor c = ix.newCursor(txn);
+        int count = 0;
+        for (c.first(); c.key() != null; c.next()) {
+            fastAssertArrayEquals(value(count), c.value());
+            count++;
+        }
+        return count;
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key-%08d", i).getBytes();
+    }
+
+    private static byte[] value(int i) {
+        return ("value-" + i).getBytes();
+    }
+}
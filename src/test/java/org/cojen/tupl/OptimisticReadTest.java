@@ -0,0 +1,230 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import org.cojen.tupl.util.Latch;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * Tests loads which don't latch nodes, while nodes are concurrently modified and evicted.
+ *
+ * @author Brian S O'Neill
+ */
+public class OptimisticReadTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(OptimisticReadTest.class.getName());
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases();
+        mDb = null;
+    }
+
+    protected Database mDb;
+
+    @Test
+    public void latchStamps() {
+        Latch latch = new Latch();
+
+        int stamp = latch.tryOptimisticRead();
+        assertTrue(stamp != 0);
+        assertTrue(latch.validate(stamp));
+
+        // Shared latches don't interfere.
+        latch.acquireShared();
+        assertTrue(latch.validate(stamp));
+        assertEquals(stamp, latch.tryOptimisticRead());
+        latch.releaseShared();
+
+        latch.acquireExclusive();
+        assertEquals(0, latch.tryOptimisticRead());
+        assertFalse(latch.validate(stamp));
+        latch.releaseExclusive();
+        assertFalse(latch.validate(stamp));
+        assertFalse(latch.validate(0));
+
+        stamp = latch.tryOptimisticRead();
+        assertTrue(latch.validate(stamp));
+        latch.acquireExclusive();
+        latch.downgrade();
+        assertFalse(latch.validate(stamp));
+        stamp = latch.tryOptimisticRead();
+        assertTrue(stamp != 0);
+        latch.releaseShared();
+        assertTrue(latch.validate(stamp));
+
+        assertTrue(latch.tryAcquireShared());
+        assertTrue(latch.tryUpgrade());
+        assertFalse(latch.validate(stamp));
+        latch.releaseExclusive();
+        assertFalse(latch.validate(stamp));
+    }
+
+    @Test
+    public void concurrentLoads() throws Exception {
+        mDb = newTempDatabase(new DatabaseConfig()
+                              .directPageAccess(false)
+                              .pageSize(512)
+                              .minCacheSize(200_000)
+                              .maxCacheSize(200_000)
+                              .durabilityMode(DurabilityMode.NO_FLUSH));
+
+        final Index ix = mDb.openIndex("test");
+        final int count = 10_000;
+
+        for (int i=0; i<count; i++) {
+            ix.store(Transaction.BOGUS, key(i), value(i, 0, 10));
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final long end = System.currentTimeMillis() + 2000;
+
+        Thread[] threads = new Thread[6];
+        for (int t=0; t<threads.length; t++) {
+            final boolean writer = t < 2;
+            final int seed = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    Random rnd = new Random(seed);
+                    int version = 0;
+                    while (System.currentTimeMillis() < end) {
+                        int k = rnd.nextInt(count);
+                        if (writer) {
+                            // Varying value sizes cause splits and merges. Deletes leave the
+                            // node empty sometimes, and large values are fragmented.
+                            byte[] value;
+                            switch (rnd.nextInt(10)) {
+                            case 0:
+                                value = null;
+                                break;
+                            case 1:
+                                value = value(k, ++version, 1000);
+                                break;
+                            default:
+                                value = value(k, ++version, rnd.nextInt(100));
+                                break;
+                            }
+                            ix.store(Transaction.BOGUS, key(k), value);
+                        } else {
+                            byte[] value = ix.load(null, key(k));
+                            if (value != null) {
+                                check(k, value);
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        Throwable e = failure.get();
+        if (e != null) {
+            throw new AssertionError(e);
+        }
+
+        assertTrue(mDb.verify(null));
+
+        for (int i=0; i<count; i++) {
+            byte[] value = ix.load(null, key(i));
+            if (value != null) {
+                check(i, value);
+            }
+        }
+    }
+
+    @Test
+    public void lockedKey() throws Exception {
+        mDb = newTempDatabase(new DatabaseConfig().directPageAccess(false)
+                              .lockTimeout(100, TimeUnit.MILLISECONDS));
+        Index ix = mDb.openIndex("test");
+        ix.store(Transaction.BOGUS, key(1), value(1, 0, 10));
+
+        Transaction txn = mDb.newTransaction();
+        ix.store(txn, key(1), value(1, 1, 10));
+        ix.store(txn, key(2), value(2, 1, 10));
+
+        // Loads must wait for uncommitted changes, even when found without latching.
+        try {
+            ix.load(null, key(1));
+            fail();
+        } catch (LockTimeoutException e) {
+        }
+        try {
+            ix.load(null, key(2));
+            fail();
+        } catch (LockTimeoutException e) {
+        }
+
+        fastAssertArrayEquals(value(1, 1, 10), ix.load(Transaction.BOGUS, key(1)));
+
+        txn.commit();
+
+        fastAssertArrayEquals(value(1, 1, 10), ix.load(null, key(1)));
+        fastAssertArrayEquals(value(2, 1, 10), ix.load(null, key(2)));
+        assertNull(ix.load(null, key(3)));
+    }
+
+    private static byte[] key(int n) {
+        return String.format("key-%08d", n).getBytes();
+    }
+
+    /**
+     * Value consists of the key number and version, repeated.
+     */
+    private static byte[] value(int n, int version, int repeat) {
+        byte[] unit = String.format("%08d:%08d;", n, version).getBytes();
+        byte[] value = new byte[unit.length * (repeat + 1)];
+        for (int i=0; i<value.length; i+=unit.length) {
+            System.arraycopy(unit, 0, value, i, unit.length);
+        }
+        return value;
+    }
+
+    private static void check(int n, byte[] value) {
+        int unitLen = 18;
+        if (value.length == 0 || value.length % unitLen != 0) {
+            fail("Malformed value: " + new String(value));
+        }
+        byte[] unit = Arrays.copyOfRange(value, 0, unitLen);
+        if (!new String(unit).startsWith(String.format("%08d:", n))) {
+            fail("Wrong key: " + n + ", " + new String(unit));
+        }
+        for (int i=unitLen; i<value.length; i+=unitLen) {
+            if (!Arrays.equals(unit, Arrays.copyOfRange(value, i, i + unitLen))) {
+                fail("Inconsistent value: " + new String(value));
+            }
+        }
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * Tests range locks acquired by cursors.
+ *
+ * @author Brian S O'Neill
+ */
+public class RangeLockTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(RangeLockTest.class.getName());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        mDb = newTempDatabase(new DatabaseConfig()
+                              .directPageAccess(false)
+                              .checkpointRate(-1, null)
+                              .durabilityMode(DurabilityMode.NO_FLUSH)
+                              .lockTimeout(10, TimeUnit.SECONDS));
+        mIx = mDb.openIndex("test");
+        for (int i=0; i<1000; i++) {
+            mIx.store(null, key(i), value(i));
+        }
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases();
+        mDb = null;
+    }
+
+    protected Database mDb;
+    protected Index mIx;
+
+    @Test
+    public void scanWithoutKeyLocks() throws Exception {
+        Transaction txn = mDb.newTransaction();
+        txn.lockMode(LockMode.REPEATABLE_READ);
+
+        Cursor c = mIx.newCursor(txn);
+        assertEquals(LockResult.ACQUIRED, c.lockRange());
+        assertEquals(LockResult.OWNED_SHARED, c.lockRange());
+
+        int count = 0;
+        for (c.first(); c.key() != null; c.next()) {
+            fastAssertArrayEquals(value(count), c.value());
+            count++;
+        }
+        assertEquals(1000, count);
+
+        fastAssertArrayEquals(value(5), mIx.load(txn, key(5)));
+
+        // Only the range lock is held.
+        assertEquals(1, mDb.stats().lockCount());
+        assertEquals(LockResult.OWNED_SHARED, txn.lockCheck(mIx.getId(), key(5)));
+        assertEquals(LockResult.OWNED_SHARED, txn.lockCheck(mIx.getId(), key(5000)));
+
+        // Upgradable and exclusive locks are still acquired by the owner.
+        assertEquals(LockResult.ACQUIRED, txn.lockUpgradable(mIx.getId(), key(6)));
+        mIx.store(txn, key(7), "updated".getBytes());
+        assertEquals(LockResult.OWNED_EXCLUSIVE, txn.lockCheck(mIx.getId(), key(7)));
+
+        txn.commit();
+        assertEquals(0, mDb.stats().lockCount());
+        fastAssertArrayEquals("updated".getBytes(), mIx.load(null, key(7)));
+
+        // Without a range lock, every key is locked.
+        txn = mDb.newTransaction();
+        txn.lockMode(LockMode.REPEATABLE_READ);
+        c = mIx.newCursor(txn);
+        for (c.first(); c.key() != null; c.next());
+        assertEquals(1000, mDb.stats().lockCount());
+        txn.reset();
+    }
+
+    @Test
+    public void noTransaction() throws Exception {
+        Cursor c = mIx.newCursor(null);
+        assertEquals(LockResult.UNOWNED, c.lockRange());
+        c.reset();
+
+        c = mIx.newCursor(Transaction.BOGUS);
+        assertEquals(LockResult.UNOWNED, c.lockRange());
+        c.reset();
+
+        assertEquals(0, mDb.stats().lockCount());
+    }
+
+    @Test
+    public void phantomProtection() throws Exception {
+        View view = mIx.viewGe(key(100)).viewLt(key(200));
+
+        Transaction txn = mDb.newTransaction();
+        txn.lockMode(LockMode.REPEATABLE_READ);
+        Cursor c = view.newCursor(txn);
+        assertEquals(LockResult.ACQUIRED, c.lockRange());
+        c.reset();
+
+        Transaction txn2 = mDb.newTransaction();
+        txn2.lockTimeout(10, TimeUnit.MILLISECONDS);
+
+        // Writes within the range are blocked.
+        for (int i : new int[] {100, 150, 199}) {
+            try {
+                mIx.store(txn2, key(i), "blocked".getBytes());
+                fail();
+            } catch (LockTimeoutException e) {
+            }
+            try {
+                mIx.delete(txn2, key(i));
+                fail();
+            } catch (LockTimeoutException e) {
+            }
+        }
+
+        try {
+            mIx.insert(txn2, "key-00000150-x".getBytes(), "phantom".getBytes());
+            fail();
+        } catch (LockTimeoutException e) {
+        }
+
+        // Reads within the range aren't blocked.
+        fastAssertArrayEquals(value(150), mIx.load(txn2, key(150)));
+
+        // Writes outside the range aren't blocked.
+        mIx.store(txn2, key(99), "allowed".getBytes());
+        mIx.store(txn2, key(200), "allowed".getBytes());
+        mIx.store(txn2, "key-00000200-x".getBytes(), "allowed".getBytes());
+
+        // No key locks were retained by the failed attempts.
+        assertEquals(LockResult.UNOWNED, txn2.lockCheck(mIx.getId(), key(100)));
+
+        txn.exit();
+
+        mIx.store(txn2, key(150), "allowed".getBytes());
+        txn2.commit();
+
+        fastAssertArrayEquals("allowed".getBytes(), mIx.load(null, key(150)));
+        assertEquals(0, mDb.stats().lockCount());
+    }
+
+    @Test
+    public void exclusiveBounds() throws Exception {
+        View view = mIx.viewGt(key(10)).viewLe(key(20));
+
+        Transaction txn = mDb.newTransaction();
+        Cursor c = view.newCursor(txn);
+        assertEquals(LockResult.ACQUIRED, c.lockRange());
+        c.reset();
+
+        Transaction txn2 = mDb.newTransaction();
+        txn2.lockTimeout(10, TimeUnit.MILLISECONDS);
+
+        mIx.store(txn2, key(10), "allowed".getBytes());
+        mIx.store(txn2, key(21), "allowed".getBytes());
+
+        for (int i : new int[] {11, 20}) {
+            try {
+                mIx.store(txn2, key(i), "blocked".getBytes());
+                fail();
+            } catch (LockTimeoutException e) {
+            }
+        }
+
+        txn2.reset();
+        txn.reset();
+
+        // Reverse and trimmed views lock the underlying range.
+        txn = mDb.newTransaction();
+        c = view.viewReverse().newCursor(txn);
+        assertEquals(LockResult.ACQUIRED, c.lockRange());
+        c.reset();
+        c = mIx.viewPrefix("key-0000001".getBytes(), 4).newCursor(txn);
+        assertEquals(LockResult.ACQUIRED, c.lockRange());
+        c.reset();
+
+        try {
+            mIx.store(txn2, key(15), "blocked".getBytes());
+            fail();
+        } catch (LockTimeoutException e) {
+        }
+        try {
+            mIx.store(txn2, key(10), "blocked".getBytes());
+            fail();
+        } catch (LockTimeoutException e) {
+        }
+        mIx.store(txn2, key(21), "allowed".getBytes());
+        mIx.store(txn2, key(9), "allowed".getBytes());
+
+        txn2.reset();
+        txn.reset();
+    }
+
+    @Test
+    public void autoCommitBlocked() throws Exception {
+        Transaction txn = mDb.newTransaction();
+        Cursor c = mIx.newCursor(txn);
+        c.lockRange();
+        c.reset();
+
+        Thread t = startAndWaitUntilBlocked(new Thread(() -> {
+            try {
+                mIx.store(null, key(1), "auto".getBytes());
+            } catch (Exception e) {
+                throw Utils.rethrow(e);
+            }
+        }));
+
+        // Reads aren't blocked by the waiting writer.
+        fastAssertArrayEquals(value(1), mIx.load(txn, key(1)));
+        txn.commit();
+        t.join();
+
+        fastAssertArrayEquals("auto".getBytes(), mIx.load(null, key(1)));
+    }
+
+    @Test
+    public void readWaitsForWriter() throws Exception {
+        Transaction txn2 = mDb.newTransaction();
+        mIx.store(txn2, key(5), "uncommitted".getBytes());
+
+        Transaction txn = mDb.newTransaction();
+        txn.lockMode(LockMode.REPEATABLE_READ);
+        txn.lockTimeout(10, TimeUnit.MILLISECONDS);
+        Cursor c = mIx.newCursor(txn);
+        c.lockRange();
+
+        try {
+            mIx.load(txn, key(5));
+            fail();
+        } catch (LockTimeoutException e) {
+        }
+
+        // Writer which acquired its key lock before the range lock can proceed.
+        mIx.store(txn2, key(5), "committed".getBytes());
+        txn2.commit();
+
+        fastAssertArrayEquals("committed".getBytes(), mIx.load(txn, key(5)));
+        c.find(key(5));
+        fastAssertArrayEquals("committed".getBytes(), c.value());
+        c.reset();
+        txn.reset();
+    }
+
+    @Test
+    public void scopes() throws Exception {
+        Transaction txn = mDb.newTransaction();
+        txn.enter();
+        Cursor c = mIx.newCursor(txn);
+        assertEquals(LockResult.ACQUIRED, c.lockRange());
+        c.reset();
+        txn.exit();
+
+        // Released by scope exit.
+        mIx.store(null, key(1), "allowed".getBytes());
+
+        txn.enter();
+        c = mIx.newCursor(txn);
+        c.lockRange();
+        c.reset();
+        txn.commit();
+        txn.exit();
+
+        // Promoted to the parent scope.
+        assertEquals(1, mDb.stats().lockCount());
+        assertEquals(LockResult.OWNED_SHARED, txn.lockCheck(mIx.getId(), key(1)));
+
+        txn.commit();
+        assertEquals(0, mDb.stats().lockCount());
+    }
+
+    @Test
+    public void sharedRange() throws Exception {
+        Transaction txn1 = mDb.newTransaction();
+        txn1.lockTimeout(10, TimeUnit.MILLISECONDS);
+        Transaction txn2 = mDb.newTransaction();
+
+        Cursor c1 = mIx.newCursor(txn1);
+        c1.lockRange();
+        Cursor c2 = mIx.newCursor(txn2);
+        c2.lockRange();
+
+        // Range lock shared with another transaction cannot be upgraded.
+        try {
+            mIx.store(txn1, key(1), "illegal".getBytes());
+            fail();
+        } catch (IllegalUpgradeException e) {
+        }
+
+        txn2.reset();
+
+        // Now it's the sole owner.
+        mIx.store(txn1, key(1), "allowed".getBytes());
+        txn1.commit();
+
+        fastAssertArrayEquals("allowed".getBytes(), mIx.load(null, key(1)));
+    }
+
+    @Test
+    public void deadlock() throws Exception {
+        Transaction txn1 = mDb.newTransaction();
+        txn1.lockTimeout(1, TimeUnit.SECONDS);
+        mIx.store(txn1, key(1), "txn1".getBytes());
+
+        Transaction txn2 = mDb.newTransaction();
+        txn2.lockMode(LockMode.REPEATABLE_READ);
+        txn2.lockTimeout(2, TimeUnit.SECONDS);
+        Cursor c = mIx.newCursor(txn2);
+        c.lockRange();
+
+        Throwable[] failure = new Throwable[1];
+
+        // Is blocked by the range lock, and then txn2 waits for the txn1 key lock.
+        Thread t = startAndWaitUntilBlocked(new Thread(() -> {
+            try {
+                mIx.store(txn1, key(2), "txn1".getBytes());
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }));
+
+        try {
+            c.find(key(1));
+            fail();
+        } catch (LockTimeoutException e) {
+        }
+
+        t.join();
+        assertTrue(failure[0] instanceof DeadlockException);
+
+        c.reset();
+        txn2.reset();
+        txn1.reset();
+    }
+
+    @Test
+    public void timeoutCoversBothWaits() throws Exception {
+        Transaction txn2 = mDb.newTransaction();
+        mIx.store(txn2, key(5), "txn2".getBytes());
+
+        Transaction txn1 = mDb.newTransaction();
+        txn1.lockMode(LockMode.REPEATABLE_READ);
+        Cursor c = mIx.newCursor(txn1);
+        c.lockRange();
+        c.reset();
+
+        Transaction txn3 = mDb.newTransaction();
+        txn3.lockTimeout(2, TimeUnit.SECONDS);
+
+        Throwable[] failure = new Throwable[1];
+
+        // Range lock is released while waiting, and then the key lock is still held.
+        Thread t = new Thread(() -> {
+            try {
+                Thread.sleep(1500);
+                txn1.reset();
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        });
+        t.start();
+
+        long start = System.nanoTime();
+        try {
+            mIx.store(txn3, key(5), "txn3".getBytes());
+            fail();
+        } catch (LockTimeoutException e) {
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        t.join();
+        assertNull(failure[0]);
+        assertTrue("elapsed: " + elapsed, elapsed < 3000);
+
+        txn3.reset();
+        txn2.reset();
+    }
+
+    private static Thread startAndWaitUntilBlocked(Thread t) throws InterruptedException {
+        t.start();
+        while (t.getState() != Thread.State.WAITING
+               && t.getState() != Thread.State.TIMED_WAITING)
+        {
+            Thread.sleep(1);
+        }
+        return t;
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key-%08d", i).getBytes();
+    }
+
+    private static byte[] value(int i) {
+        return ("value-" + i).getBytes();
+    }
+}
@@ -101,6 +101,63 @@ public class RecoverTest {
         }
     }
 
+    @Test
+    public void parallelCheckpointFlush() throws Exception {
+        mConfig.checkpointFlushThreads(4).checkpointFlushBatchSize(10);
+        mDb = reopenTempDatabase(mDb, mConfig);
+
+        Index ix = mDb.openIndex("test");
+        for (int i=0; i<10000; i++) {
+            ix.store(Transaction.BOGUS, ("key-" + i).getBytes(), ("value-" + i).getBytes());
+        }
+        mDb.checkpoint();
+
+        // Dirty a subset of the nodes again.
+        for (int i=0; i<10000; i+=7) {
+            ix.store(Transaction.BOGUS, ("key-" + i).getBytes(), ("update-" + i).getBytes());
+        }
+        mDb.checkpoint();
+
+        mDb = reopenTempDatabase(mDb, mConfig);
+        ix = mDb.openIndex("test");
+        for (int i=0; i<10000; i++) {
+            String expect = ((i % 7) == 0 ? "update-" : "value-") + i;
+            assertArrayEquals(expect.getBytes(),
+                              ix.load(Transaction.BOGUS, ("key-" + i).getBytes()));
+        }
+    }
+
+    @Test
+    public void coalescedCheckpointFlush() throws Exception {
+        CacheReplacementTest.CountingPageArray pages =
+            new CacheReplacementTest.CountingPageArray(4096);
+        DatabaseConfig config = new DatabaseConfig()
+            .dataPageArray(pages)
+            .directPageAccess(false)
+            .pageSize(4096)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.NO_FLUSH)
+            .checkpointFlushThreads(2)
+            .checkpointFlushBatchSize(100);
+        mDb = newTempDatabase(config);
+
+        // Sequential inserts allocate pages with mostly consecutive ids.
+        Index ix = mDb.openIndex("test");
+        for (int i=0; i<10000; i++) {
+            ix.store(Transaction.BOGUS, key(i), ("value-" + i).getBytes());
+        }
+        mDb.checkpoint();
+
+        assertTrue(pages.mMultiPageWrites > 0);
+
+        mDb = reopenTempDatabase(mDb, config);
+        ix = mDb.openIndex("test");
+        for (int i=0; i<10000; i++) {
+            assertArrayEquals(("value-" + i).getBytes(), ix.load(Transaction.BOGUS, key(i)));
+        }
+        assertTrue(mDb.verify(null));
+    }
+
     @Test
     public void txnBogus() throws Exception {
         byte[] key = "hello".getBytes();
@@ -307,6 +364,164 @@ public class RecoverTest {
         }
     }
 
+    @Test
+    public void stripedRedo() throws Exception {
+        mConfig.redoStripes(4);
+        mDb = reopenTempDatabase(mDb, mConfig);
+
+        for (int chkpnt = 0; chkpnt <= 4; chkpnt++) {
+            testRecover(1000, true, false, chkpnt);
+        }
+    }
+
+    @Test
+    public void stripedRedoConcurrent() throws Exception {
+        mConfig.redoStripes(4);
+        mDb = reopenTempDatabase(mDb, mConfig);
+
+        final Index ix = mDb.openIndex("test");
+        final int threadCount = 8;
+        final int count = 1000;
+
+        Thread[] threads = new Thread[threadCount];
+        Throwable[] failure = new Throwable[1];
+
+        for (int i=0; i<threadCount; i++) {
+            final int id = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int j=0; j<count; j++) {
+                        Transaction txn = mDb.newTransaction();
+                        ix.store(txn, ("key-" + id + "-" + j).getBytes(),
+                                 ("value-" + j).getBytes());
+                        ix.store(txn, ("aux-" + id + "-" + j).getBytes(),
+                                 ("value-" + j).getBytes());
+                        if ((j % 10) == 0) {
+                            txn.exit();
+                        } else {
+                            txn.commit();
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw new AssertionError(failure[0]);
+            }
+        }
+
+        mDb = reopenTempDatabase(mDb, mConfig);
+        Index ix2 = mDb.openIndex("test");
+
+        for (int i=0; i<threadCount; i++) {
+            for (int j=0; j<count; j++) {
+                byte[] expect = (j % 10) == 0 ? null : ("value-" + j).getBytes();
+                assertArrayEquals(expect, ix2.load(null, ("key-" + i + "-" + j).getBytes()));
+                assertArrayEquals(expect, ix2.load(null, ("aux-" + i + "-" + j).getBytes()));
+            }
+        }
+    }
+
+    @Test
+    public void parallelRecovery() throws Exception {
+        mConfig.recoveryThreads(4);
+        mDb = reopenTempDatabase(mDb, mConfig);
+
+        for (int chkpnt = 0; chkpnt <= 4; chkpnt++) {
+            testRecover(1000, true, false, chkpnt);
+            testRecover(1000, true, true, chkpnt);
+        }
+    }
+
+    @Test
+    public void parallelRecoveryOrdering() throws Exception {
+        mConfig.recoveryThreads(4);
+        mDb = reopenTempDatabase(mDb, mConfig);
+
+        Index ix = mDb.openIndex("test");
+
+        // Transactions repeatedly update a small set of keys, and so the recovered values
+        // depend on the order in which the operations are applied.
+        for (int i=0; i<5000; i++) {
+            byte[] key = ("key-" + (i % 10)).getBytes();
+            byte[] value = ("value-" + i).getBytes();
+            switch (i % 4) {
+            case 0:
+                ix.store(null, key, value);
+                break;
+            case 1:
+                Transaction txn = mDb.newTransaction();
+                ix.store(txn, key, value);
+                ix.store(txn, ("other-" + i).getBytes(), value);
+                txn.commit();
+                break;
+            case 2:
+                txn = mDb.newTransaction();
+                ix.store(txn, key, value);
+                txn.enter();
+                ix.store(txn, key, "discard".getBytes());
+                txn.exit();
+                txn.commit();
+                break;
+            default:
+                txn = mDb.newTransaction();
+                ix.store(txn, key, "discard".getBytes());
+                txn.exit();
+                ix.store(null, key, value);
+                break;
+            }
+        }
+
+        mDb = reopenTempDatabase(mDb, mConfig);
+        ix = mDb.openIndex("test");
+
+        for (int i=4990; i<5000; i++) {
+            byte[] key = ("key-" + (i % 10)).getBytes();
+            assertArrayEquals(("value-" + i).getBytes(), ix.load(null, key));
+        }
+
+        assertEquals(10 + 1250, ix.count(null, null));
+    }
+
+    @Test
+    public void parallelRecoveryUnsafe() throws Exception {
+        mConfig.recoveryThreads(4);
+        mDb = reopenTempDatabase(mDb, mConfig);
+
+        Index ix = mDb.openIndex("test");
+        byte[] key = "key".getBytes();
+        byte[] key2 = "key2".getBytes();
+        ix.store(null, key, "original".getBytes());
+
+        Transaction txn = mDb.newTransaction();
+        ix.store(txn, key, "txn".getBytes());
+
+        // Unsafe stores ignore the lock held by the open transaction.
+        Transaction unsafe = mDb.newTransaction();
+        unsafe.lockMode(LockMode.UNSAFE);
+        ix.store(unsafe, key, "unsafe".getBytes());
+        ix.store(unsafe, key2, "unsafe".getBytes());
+
+        // Transaction is still open when the database is closed.
+        mDb = reopenTempDatabase(mDb, mConfig);
+        ix = mDb.openIndex("test");
+
+        // Rolling back the open transaction restores the original value.
+        assertArrayEquals("original".getBytes(), ix.load(null, key));
+        assertArrayEquals("unsafe".getBytes(), ix.load(null, key2));
+    }
+
     private void testRecover(int count, boolean commit, boolean exit, int chkpnt)
         throws Exception
     {
@@ -693,4 +908,8 @@ public class RecoverTest {
         mDb = reopenTempDatabase(mDb, mConfig);
         assertNull(mDb.findIndex(ixname));
     }
+
+    private static byte[] key(int i) {
+        return String.format("key-%08d", i).getBytes();
+    }
 }
@@ -0,0 +1,425 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.Random;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * Tests transactions which use the SNAPSHOT lock mode.
+ *
+ * @author Brian S O'Neill
+ */
+public class SnapshotReadTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(SnapshotReadTest.class.getName());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        mConfig = new DatabaseConfig()
+            .directPageAccess(false)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.NO_FLUSH)
+            .lockTimeout(5, java.util.concurrent.TimeUnit.SECONDS)
+            .snapshotReads(true);
+        mDb = newTempDatabase(mConfig);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases();
+        mDb = null;
+    }
+
+    protected DatabaseConfig mConfig;
+    protected Database mDb;
+
+    @Test
+    public void disabled() throws Exception {
+        Database db = newTempDatabase(mConfig.clone().snapshotReads(false));
+        Transaction txn = db.newTransaction();
+        try {
+            txn.lockMode(LockMode.SNAPSHOT);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        assertEquals(LockMode.UPGRADABLE_READ, txn.lockMode());
+    }
+
+    @Test
+    public void committedChanges() throws Exception {
+        Index ix = mDb.openIndex("test");
+        fill(ix, 100);
+
+        Transaction snap = mDb.newTransaction();
+        snap.lockMode(LockMode.SNAPSHOT);
+        fastAssertArrayEquals(value(0), ix.load(snap, key(0)));
+
+        Transaction txn = mDb.newTransaction();
+        ix.store(txn, key(1), "updated".getBytes());
+        ix.delete(txn, key(2));
+        ix.store(txn, key(1000), "inserted".getBytes());
+        txn.commit();
+
+        ix.store(null, key(3), "updated".getBytes());
+        ix.delete(null, key(4));
+        ix.store(null, key(1001), "inserted".getBytes());
+
+        // Changes are visible outside the snapshot.
+        fastAssertArrayEquals("updated".getBytes(), ix.load(null, key(1)));
+        assertNull(ix.load(null, key(2)));
+        assertNull(ix.load(null, key(4)));
+        assertEquals(100, ix.count(null, null));
+
+        for (int round=0; round<2; round++) {
+            for (int i=0; i<100; i++) {
+                fastAssertArrayEquals(value(i), ix.load(snap, key(i)));
+            }
+            assertNull(ix.load(snap, key(1000)));
+            assertNull(ix.load(snap, key(1001)));
+            verifyFill(ix, snap, 100);
+        }
+
+        Cursor c = ix.newCursor(snap);
+        c.autoload(false);
+        int count = 0;
+        for (c.first(); c.key() != null; c.next()) {
+            assertEquals(Cursor.NOT_LOADED, c.value());
+            count++;
+        }
+        assertEquals(100, count);
+
+        c.findNearby(key(4));
+        assertEquals(Cursor.NOT_LOADED, c.value());
+        c.load();
+        fastAssertArrayEquals(value(4), c.value());
+        c.reset();
+
+        snap.commit();
+
+        // New snapshot observes everything.
+        assertNull(ix.load(snap, key(2)));
+        fastAssertArrayEquals("inserted".getBytes(), ix.load(snap, key(1001)));
+        snap.reset();
+
+        // Ghosts which were retained for the snapshot have been deleted.
+        assertEquals(100, ((Tree) ix).mRoot.numKeys());
+        assertTrue(ix.verify(null));
+    }
+
+    @Test
+    public void uncommittedChanges() throws Exception {
+        Index ix = mDb.openIndex("test");
+        fill(ix, 100);
+
+        Transaction txn = mDb.newTransaction();
+        ix.store(txn, key(5), "uncommitted".getBytes());
+        ix.delete(txn, key(6));
+        ix.insert(txn, key(1000), "uncommitted".getBytes());
+
+        Transaction snap = mDb.newTransaction();
+        snap.lockMode(LockMode.SNAPSHOT);
+        verifyFill(ix, snap, 100);
+        fastAssertArrayEquals(value(5), ix.load(snap, key(5)));
+        fastAssertArrayEquals(value(6), ix.load(snap, key(6)));
+        assertNull(ix.load(snap, key(1000)));
+
+        // Own changes are visible.
+        ix.store(snap, key(7), "mine".getBytes());
+        fastAssertArrayEquals("mine".getBytes(), ix.load(snap, key(7)));
+        Cursor c = ix.newCursor(snap);
+        c.find(key(7));
+        fastAssertArrayEquals("mine".getBytes(), c.value());
+        c.reset();
+
+        // Nested scope rollback discards own change.
+        snap.enter();
+        ix.store(snap, key(8), "nested".getBytes());
+        fastAssertArrayEquals("nested".getBytes(), ix.load(snap, key(8)));
+        snap.exit();
+        fastAssertArrayEquals(value(8), ix.load(snap, key(8)));
+
+        txn.commit();
+
+        // Commit after snapshot began isn't visible.
+        fastAssertArrayEquals(value(5), ix.load(snap, key(5)));
+        fastAssertArrayEquals(value(6), ix.load(snap, key(6)));
+        assertNull(ix.load(snap, key(1000)));
+
+        snap.exit();
+
+        // Rolled back.
+        fastAssertArrayEquals(value(7), ix.load(null, key(7)));
+
+        txn = mDb.newTransaction();
+        ix.store(txn, key(9), "rollback".getBytes());
+        ix.delete(txn, key(10));
+        snap.lockMode(LockMode.SNAPSHOT);
+        fastAssertArrayEquals(value(9), ix.load(snap, key(9)));
+        txn.exit();
+        fastAssertArrayEquals(value(9), ix.load(snap, key(9)));
+        fastAssertArrayEquals(value(10), ix.load(snap, key(10)));
+        snap.exit();
+
+        assertEquals(100, ix.count(null, null));
+        assertEquals(100, ((Tree) ix).mRoot.numKeys());
+        assertTrue(ix.verify(null));
+    }
+
+    @Test
+    public void noLocks() throws Exception {
+        Index ix = mDb.openIndex("test");
+        fill(ix, 10);
+
+        Transaction txn = mDb.newTransaction();
+        ix.store(txn, key(1), "locked".getBytes());
+
+        Transaction snap = mDb.newTransaction();
+        snap.lockMode(LockMode.SNAPSHOT);
+        fastAssertArrayEquals(value(1), ix.load(snap, key(1)));
+        assertEquals(LockResult.UNOWNED, snap.lockCheck(ix.getId(), key(2)));
+
+        // Snapshot reader doesn't block writers.
+        ix.store(null, key(2), "updated".getBytes());
+        fastAssertArrayEquals(value(2), ix.load(snap, key(2)));
+
+        txn.commit();
+        snap.commit();
+    }
+
+    @Test
+    public void largeValues() throws Exception {
+        Index ix = mDb.openIndex("test");
+
+        byte[] large = randomStr(new Random(1), 100_000);
+        ix.store(null, key(1), large);
+
+        Transaction snap = mDb.newTransaction();
+        snap.lockMode(LockMode.SNAPSHOT);
+        assertNull(ix.load(snap, key(0)));
+
+        ix.store(null, key(1), "small".getBytes());
+        ix.store(null, key(2), large);
+        fastAssertArrayEquals(large, ix.load(snap, key(1)));
+        ix.delete(null, key(2));
+        assertNull(ix.load(snap, key(2)));
+
+        Transaction txn = mDb.newTransaction();
+        ix.store(txn, key(1), null);
+        txn.commit();
+        fastAssertArrayEquals(large, ix.load(snap, key(1)));
+
+        snap.exit();
+
+        assertNull(ix.load(snap, key(1)));
+        snap.exit();
+        assertTrue(ix.verify(null));
+    }
+
+    @Test
+    public void streamWrites() throws Exception {
+        Index ix = mDb.openIndex("test");
+        fill(ix, 10);
+
+        Transaction snap = mDb.newTransaction();
+        snap.lockMode(LockMode.SNAPSHOT);
+        fastAssertArrayEquals(value(0), ix.load(snap, key(0)));
+
+        Transaction txn = mDb.newTransaction();
+        TreeCursor c = (TreeCursor) ix.newCursor(txn);
+        c.autoload(false);
+        Stream s = new TreeValueStream(c);
+
+        // Partially written value isn't visible.
+        s.open(txn, key(1));
+        s.write(0, "partial".getBytes(), 0, 7);
+        fastAssertArrayEquals(value(1), ix.load(snap, key(1)));
+        s.write(100, "more".getBytes(), 0, 4);
+        s.setLength(50);
+        fastAssertArrayEquals(value(1), ix.load(snap, key(1)));
+        txn.commit();
+        fastAssertArrayEquals(value(1), ix.load(snap, key(1)));
+
+        // Auto-commit writes aren't visible either.
+        s.open(null, key(2));
+        s.setLength(3);
+        s.open(null, key(1000));
+        s.write(0, "inserted".getBytes(), 0, 8);
+        s.close();
+        fastAssertArrayEquals(value(2), ix.load(snap, key(2)));
+        assertNull(ix.load(snap, key(1000)));
+
+        snap.exit();
+
+        // New snapshot observes everything.
+        assertEquals(50, ix.load(snap, key(1)).length);
+        assertEquals(3, ix.load(snap, key(2)).length);
+        fastAssertArrayEquals("inserted".getBytes(), ix.load(snap, key(1000)));
+        snap.exit();
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        Index ix = mDb.openIndex("test");
+        fill(ix, 1000);
+
+        Transaction snap = mDb.newTransaction();
+        snap.lockMode(LockMode.SNAPSHOT);
+        assertNotNull(ix.load(snap, key(0)));
+
+        for (int i=0; i<1000; i += 2) {
+            ix.delete(null, key(i));
+        }
+
+        // Ghosts remain, and they're persisted by the checkpoint.
+        mDb.checkpoint();
+        mDb = reopenTempDatabase(mDb, mConfig);
+        ix = mDb.openIndex("test");
+
+        assertEquals(500, ix.count(null, null));
+        assertTrue(ix.verify(null));
+        for (int i=0; i<1000; i++) {
+            byte[] value = ix.load(null, key(i));
+            if ((i & 1) == 0) {
+                assertNull(value);
+            } else {
+                fastAssertArrayEquals(value(i), value);
+            }
+        }
+    }
+
+    @Test
+    public void consistentSum() throws Exception {
+        final Index ix = mDb.openIndex("accounts");
+        final int accounts = 50;
+        final long total = 1_000_000;
+
+        for (int i=0; i<accounts; i++) {
+            ix.store(null, key(i), encode(total / accounts));
+        }
+
+        final int transfers = 10_000;
+
+        class Transferrer extends Thread {
+            volatile Throwable mFailure;
+
+            @Override
+            public void run() {
+                try {
+                    Random rnd = new Random(42);
+                    for (int i=0; i<transfers; i++) {
+                        byte[] from = key(rnd.nextInt(accounts));
+                        byte[] to = key(rnd.nextInt(accounts));
+                        long amount = rnd.nextInt(100);
+                        Transaction txn = mDb.newTransaction();
+                        try {
+                            ix.store(txn, from, encode(decode(ix.load(txn, from)) - amount));
+                            ix.store(txn, to, encode(decode(ix.load(txn, to)) + amount));
+                            if (rnd.nextInt(10) == 0) {
+                                txn.exit();
+                            } else {
+                                txn.commit();
+                            }
+                        } finally {
+                            txn.reset();
+                        }
+                    }
+                } catch (Throwable e) {
+                    mFailure = e;
+                }
+            }
+        }
+
+        Transferrer t = new Transferrer();
+        t.start();
+
+        Transaction snap = mDb.newTransaction();
+        snap.lockMode(LockMode.SNAPSHOT);
+
+        int scans = 0;
+        while (t.isAlive() || scans == 0) {
+            long sum = 0;
+            Cursor c = ix.newCursor(snap);
+            for (c.first(); c.key() != null; c.next()) {
+                sum += decode(c.value());
+                Thread.yield();
+            }
+            assertEquals(total, sum);
+
+            sum = 0;
+            for (int i=0; i<accounts; i++) {
+                sum += decode(ix.load(snap, key(i)));
+            }
+            assertEquals(total, sum);
+
+            snap.commit();
+            scans++;
+        }
+
+        t.join();
+        assertNull(t.mFailure);
+        snap.reset();
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key-%08d", i).getBytes();
+    }
+
+    private static byte[] value(int i) {
+        return ("value-" + i).getBytes();
+    }
+
+    private static byte[] encode(long v) {
+        byte[] b = new byte[8];
+        Utils.encodeLongBE(b, 0, v);
+        return b;
+    }
+
+    private static long decode(byte[] b) {
+        return Utils.decodeLongBE(b, 0);
+    }
+
+    private static void fill(Index ix, int count) throws Exception {
+        for (int i=0; i<count; i++) {
+            ix.store(null, key(i), value(i));
+        }
+    }
+
+    private static void verifyFill(Index ix, Transaction txn, int count) throws Exception {
+        Cursor c = ix.newCursor(txn);
+        int i = 0;
+        for (c.first(); c.key() != null; c.next()) {
+            fastAssertArrayEquals(key(i), c.key());
+            fastAssertArrayEquals(value(i), c.value());
+            i++;
+        }
+        assertEquals(count, i);
+
+        i = count;
+        for (c.last(); c.key() != null; c.previous()) {
+            i--;
+            fastAssertArrayEquals(key(i), c.key());
+            fastAssertArrayEquals(value(i), c.value());
+        }
+        assertEquals(0, i);
+    }
+}
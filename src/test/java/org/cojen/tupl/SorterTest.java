@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ *
+ *
+ * @author Brian S O'Neill
+ */
+public class SorterTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(SorterTest.class.getName());
+    }
+
+    @Before
+    public void createTempDb() throws Exception {
+        mConfig = new DatabaseConfig()
+            .directPageAccess(false)
+            .minCacheSize(50_000_000)
+            .checkpointRate(-1, null);
+        mDb = newTempDatabase(mConfig);
+        mExecutor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        mExecutor.shutdown();
+        deleteTempDatabases();
+        mDb = null;
+        mConfig = null;
+    }
+
+    protected DatabaseConfig mConfig;
+    protected Database mDb;
+    protected ExecutorService mExecutor;
+
+    @Test
+    public void empty() throws Exception {
+        Sorter s = mDb.newSorter(null);
+        Index ix = s.finish();
+        assertEquals(0, ix.count(null, null));
+        assertNull(ix.getName());
+    }
+
+    @Test
+    public void small() throws Exception {
+        sort(null, 1000, 100);
+    }
+
+    @Test
+    public void serialMerge() throws Exception {
+        sort(null, 400_000, 200);
+    }
+
+    @Test
+    public void parallelMerge() throws Exception {
+        sort(mExecutor, 400_000, 200);
+    }
+
+    private void sort(ExecutorService executor, int count, int range) throws Exception {
+        Sorter s = mDb.newSorter(executor);
+        TreeMap<byte[], byte[]> expect = new TreeMap<>(KeyComparator.THE);
+
+        Random rnd = new Random(count);
+        for (int i=0; i<count; i++) {
+            // Use a small key space to produce duplicates.
+            byte[] key = ("key-" + rnd.nextInt(count / 2)).getBytes();
+            byte[] value = randomStr(rnd, 0, range);
+            s.add(key, value);
+            expect.put(key, value);
+        }
+
+        Index ix = s.finish();
+        assertNull(ix.getName());
+        verify(expect, ix);
+
+        // Sorter can be used again.
+        s.add("hello".getBytes(), "world".getBytes());
+        ix = s.finish();
+        assertEquals(1, ix.count(null, null));
+    }
+
+    @Test
+    public void loadIndex() throws Exception {
+        Sorter s = mDb.newSorter(mExecutor);
+        TreeMap<byte[], byte[]> expect = new TreeMap<>(KeyComparator.THE);
+
+        Random rnd = new Random(5309);
+        for (int i=0; i<300_000; i++) {
+            byte[] key = randomStr(rnd, 4, 20);
+            byte[] value = randomStr(rnd, 0, 200);
+            s.add(key, value);
+            expect.put(key, value);
+        }
+
+        Index target = mDb.openIndex("target");
+        s.finish(target);
+        assertTrue(target.verify(null));
+        verify(expect, target);
+
+        // Only the target index remains.
+        int count = 0;
+        Cursor reg = mDb.indexRegistryById().newCursor(null);
+        for (reg.first(); reg.key() != null; reg.next()) {
+            count++;
+        }
+        assertEquals(1, count);
+
+        mDb = reopenTempDatabase(mDb, mConfig);
+        verify(expect, mDb.openIndex("target"));
+    }
+
+    @Test
+    public void notEmpty() throws Exception {
+        Index target = mDb.openIndex("target");
+        target.store(null, "a".getBytes(), "b".getBytes());
+
+        Sorter s = mDb.newSorter(null);
+        s.add("hello".getBytes(), "world".getBytes());
+
+        try {
+            s.finish(target);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+
+        // Sorter was reset.
+        assertEquals(0, s.finish().count(null, null));
+    }
+
+    @Test
+    public void reset() throws Exception {
+        Sorter s = mDb.newSorter(mExecutor);
+        Random rnd = new Random(1);
+        for (int i=0; i<200_000; i++) {
+            s.add(randomStr(rnd, 4, 20), randomStr(rnd, 0, 200));
+        }
+        s.reset();
+        s.add("hello".getBytes(), "world".getBytes());
+        Index ix = s.finish();
+        assertEquals(1, ix.count(null, null));
+        fastAssertArrayEquals("world".getBytes(), ix.load(null, "hello".getBytes()));
+    }
+
+    private static void verify(TreeMap<byte[], byte[]> expect, Index ix) throws Exception {
+        assertEquals(expect.size(), ix.count(null, null));
+        Cursor c = ix.newCursor(null);
+        c.first();
+        for (Map.Entry<byte[], byte[]> e : expect.entrySet()) {
+            fastAssertArrayEquals(e.getKey(), c.key());
+            fastAssertArrayEquals(e.getValue(), c.value());
+            c.next();
+        }
+        assertNull(c.key());
+    }
+}
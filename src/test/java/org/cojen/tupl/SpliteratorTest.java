@@ -0,0 +1,226 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ *
+ *
+ * @author Brian S O'Neill
+ */
+public class SpliteratorTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(SpliteratorTest.class.getName());
+    }
+
+    @Before
+    public void createTempDb() throws Exception {
+        mDb = newTempDatabase();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases();
+        mDb = null;
+    }
+
+    protected Database mDb;
+
+    @Test
+    public void empty() throws Exception {
+        Index ix = mDb.openIndex("test");
+        Spliterator<Map.Entry<byte[], byte[]>> split = ix.newSpliterator(null);
+        assertNull(split.trySplit());
+        assertFalse(split.tryAdvance(e -> fail()));
+        assertEquals(0, ix.newEntryStream(null, true).count());
+    }
+
+    @Test
+    public void sequential() throws Exception {
+        Index ix = fill(10_000);
+
+        Spliterator<Map.Entry<byte[], byte[]>> split = ix.newSpliterator(null);
+        assertTrue(split.hasCharacteristics(Spliterator.SORTED));
+
+        // Mix single steps, which fetch in batches, with bulk traversal.
+        List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>();
+        for (int i=0; i<250; i++) {
+            assertTrue(split.tryAdvance(entries::add));
+        }
+        split.forEachRemaining(entries::add);
+        assertFalse(split.tryAdvance(e -> fail()));
+
+        assertEquals(10_000, entries.size());
+        for (int i=0; i<entries.size(); i++) {
+            fastAssertArrayEquals(key(i), entries.get(i).getKey());
+            fastAssertArrayEquals(value(i), entries.get(i).getValue());
+        }
+    }
+
+    @Test
+    public void splits() throws Exception {
+        Index ix = fill(100_000);
+
+        List<Spliterator<Map.Entry<byte[], byte[]>>> splits = new ArrayList<>();
+        splitAll(ix.newSpliterator(null), splits, 3);
+        assertEquals(8, splits.size());
+
+        // Splits are in key order, and together they cover all entries once.
+        int expect = 0;
+        for (Spliterator<Map.Entry<byte[], byte[]>> split : splits) {
+            int start = expect;
+            List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>();
+            split.forEachRemaining(entries::add);
+            for (Map.Entry<byte[], byte[]> e : entries) {
+                fastAssertArrayEquals(key(expect), e.getKey());
+                expect++;
+            }
+            // Roughly balanced.
+            int size = expect - start;
+            assertTrue(size > 100_000 / 8 / 3);
+            assertTrue(size < 100_000 / 8 * 3);
+        }
+        assertEquals(100_000, expect);
+    }
+
+    @Test
+    public void parallel() throws Exception {
+        Index ix = fill(100_000);
+
+        long sum = ix.newEntryStream(LockMode.READ_COMMITTED, true)
+            .mapToLong(e -> Long.parseLong(new String(e.getValue()).substring(6)))
+            .sum();
+        assertEquals(100_000L * 99_999 / 2, sum);
+
+        assertEquals(100_000, ix.newEntryStream(LockMode.UNSAFE, true).count());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        Index ix = fill(100_000);
+
+        View view = ix.viewGe(key(20_000)).viewLt(key(70_000));
+        List<Spliterator<Map.Entry<byte[], byte[]>>> splits = new ArrayList<>();
+        splitAll(view.newSpliterator(null), splits, 2);
+        assertTrue(splits.size() > 1);
+
+        int expect = 20_000;
+        for (Spliterator<Map.Entry<byte[], byte[]>> split : splits) {
+            List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>();
+            split.forEachRemaining(entries::add);
+            for (Map.Entry<byte[], byte[]> e : entries) {
+                fastAssertArrayEquals(key(expect), e.getKey());
+                expect++;
+            }
+        }
+        assertEquals(70_000, expect);
+
+        assertEquals(50_000, view.newEntryStream(null, true).count());
+        assertEquals(50_000, view.viewPrefix("key-".getBytes(), 4)
+                     .newEntryStream(null, true).count());
+    }
+
+    @Test
+    public void reverse() throws Exception {
+        Index ix = fill(10_000);
+
+        Spliterator<Map.Entry<byte[], byte[]>> split = ix.viewReverse().newSpliterator(null);
+        assertNull(split.trySplit());
+
+        List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>();
+        split.forEachRemaining(entries::add);
+        assertEquals(10_000, entries.size());
+        fastAssertArrayEquals(key(9_999), entries.get(0).getKey());
+    }
+
+    @Test
+    public void noLocksRetained() throws Exception {
+        Index ix = fill(10_000);
+
+        // Locks aren't retained between batches, and so repeatable modes are rejected.
+        for (LockMode mode : new LockMode[] {
+                LockMode.UPGRADABLE_READ, LockMode.REPEATABLE_READ, LockMode.SNAPSHOT})
+        {
+            try {
+                ix.newSpliterator(mode);
+                fail();
+            } catch (IllegalArgumentException e) {
+            }
+            try {
+                ix.viewGe(key(10)).newEntryStream(mode, true);
+                fail();
+            } catch (IllegalArgumentException e) {
+            }
+            try {
+                ix.viewReverse().newSpliterator(mode);
+                fail();
+            } catch (IllegalArgumentException e) {
+            }
+        }
+
+        Spliterator<Map.Entry<byte[], byte[]>> split =
+            ix.newSpliterator(LockMode.READ_COMMITTED);
+        assertTrue(split.tryAdvance(e -> {}));
+
+        // Entry was locked while fetched, but lock isn't held now.
+        Transaction txn = mDb.newTransaction();
+        assertEquals(LockResult.ACQUIRED, ix.tryLockExclusive(txn, key(0), 0));
+        txn.reset();
+
+        assertEquals(10_000, ix.newEntryStream(LockMode.READ_UNCOMMITTED, true).count());
+    }
+
+    private static void splitAll(Spliterator<Map.Entry<byte[], byte[]>> split,
+                                 List<Spliterator<Map.Entry<byte[], byte[]>>> splits,
+                                 int depth)
+    {
+        if (depth > 0) {
+            Spliterator<Map.Entry<byte[], byte[]>> prefix = split.trySplit();
+            if (prefix != null) {
+                splitAll(prefix, splits, depth - 1);
+                splitAll(split, splits, depth - 1);
+                return;
+            }
+        }
+        splits.add(split);
+    }
+
+    private Index fill(int count) throws Exception {
+        Index ix = mDb.openIndex("test");
+        for (int i=0; i<count; i++) {
+            ix.store(null, key(i), value(i));
+        }
+        return ix;
+    }
+
+    private static byte[] key(int n) {
+        return String.format("key-%08d", n).getBytes();
+    }
+
+    private static byte[] value(int n) {
+        return ("value-" + n).getBytes();
+    }
+}
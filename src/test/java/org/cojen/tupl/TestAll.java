@@ -104,6 +104,19 @@ public class TestAll {
             DirectPageOpsTest.class,
             UnreplicatedTest.class,
             TempIndexTest.class,
+            GroupCommitTest.class,
+            BulkLoadTest.class,
+            SorterTest.class,
+            SpliteratorTest.class,
+            CacheReplacementTest.class,
+            EvictorTest.class,
+            CacheSizeTest.class,
+            OptimisticReadTest.class,
+            ValueCompressionTest.class,
+            KeyPrefixTest.class,
+            SnapshotReadTest.class,
+            RangeLockTest.class,
+            LockEscalationTest.class,
         };
 
         String[] names = new String[classes.length];
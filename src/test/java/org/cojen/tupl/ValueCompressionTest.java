@@ -0,0 +1,306 @@
+/*
+ *  Copyright 2016 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.tupl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * Tests index value compression.
+ *
+ * @author Brian S O'Neill
+ */
+public class ValueCompressionTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(ValueCompressionTest.class.getName());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        mConfig = new DatabaseConfig()
+            .directPageAccess(false)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.NO_FLUSH)
+            .pageSize(4096);
+        mDb = newTempDatabase(mConfig);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases();
+        mDb = null;
+    }
+
+    protected DatabaseConfig mConfig;
+    protected Database mDb;
+
+    @Test
+    public void codec() throws Exception {
+        Random rnd = new Random(8675309);
+
+        for (int len : new int[] {0, 1, 5, 12, 13, 100, 1000, 70000, 200000}) {
+            for (int mode = 0; mode < 3; mode++) {
+                byte[] src = mode == 0 ? randomStr(rnd, len) : record(rnd, len);
+                byte[] dict = mode == 2 ? record(rnd, 1000) : null;
+
+                byte[] dst = new byte[3 + LZCodec.maxCompressedLength(len)];
+                int clen = LZCodec.compress(dict, src, 0, len, dst, 3);
+                assertTrue(clen <= LZCodec.maxCompressedLength(len));
+                if (mode != 0 && len >= 1000) {
+                    assertTrue(clen < len * 2 / 3);
+                }
+
+                byte[] out = new byte[len + 2];
+                LZCodec.decompress(dict, dst, 3, clen, out, 1, len);
+                assertTrue(Arrays.equals(src, Arrays.copyOfRange(out, 1, 1 + len)));
+            }
+        }
+
+        byte[] src = record(rnd, 1000);
+        byte[] dst = new byte[LZCodec.maxCompressedLength(src.length)];
+        int clen = LZCodec.compress(null, src, 0, src.length, dst, 0);
+        try {
+            LZCodec.decompress(null, dst, 0, clen - 10, new byte[1000], 0, 1000);
+            fail();
+        } catch (CorruptDatabaseException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void storeAndLoad() throws Exception {
+        Index ix = mDb.openIndex("test");
+        assertNull(ix.valueCompression());
+        ix.valueCompression(ValueCompression.lz());
+        assertEquals(ValueCompression.lz(), ix.valueCompression());
+
+        Random rnd = new Random(5309);
+        byte[][] values = new byte[500][];
+        for (int i=0; i<values.length; i++) {
+            values[i] = record(rnd, 10 + rnd.nextInt(i < 450 ? 1000 : 20000));
+            ix.store(Transaction.BOGUS, key(i), values[i]);
+        }
+
+        verifyAll(ix, values);
+
+        // Update in place, with values of varying compressibility.
+        for (int i=0; i<values.length; i += 3) {
+            values[i] = (i & 1) == 0 ? randomStr(rnd, 50 + rnd.nextInt(500))
+                : record(rnd, 50 + rnd.nextInt(8000));
+            ix.store(Transaction.BOGUS, key(i), values[i]);
+        }
+
+        verifyAll(ix, values);
+        assertTrue(ix.verify(null));
+
+        Database.Stats stats = mDb.stats();
+        assertTrue(stats.compressionRatio() > 1.5);
+
+        // Compressed values are still readable after compression is disabled.
+        ix.valueCompression(null);
+        assertNull(ix.valueCompression());
+        verifyAll(ix, values);
+        ix.store(Transaction.BOGUS, key(1), values[1] = record(rnd, 1000));
+        verifyAll(ix, values);
+
+        mDb.checkpoint();
+        mDb = reopenTempDatabase(mDb, mConfig);
+        ix = mDb.openIndex("test");
+        assertNull(ix.valueCompression());
+        verifyAll(ix, values);
+    }
+
+    @Test
+    public void rollback() throws Exception {
+        Index ix = mDb.openIndex("test");
+        ix.valueCompression(ValueCompression.lz());
+
+        Random rnd = new Random(1);
+        byte[] small = record(rnd, 500);
+        byte[] large = record(rnd, 50000);
+        ix.store(null, key(1), small);
+        ix.store(null, key(2), large);
+
+        Transaction txn = mDb.newTransaction();
+        ix.store(txn, key(1), record(rnd, 600));
+        ix.store(txn, key(2), record(rnd, 70000));
+        ix.store(txn, key(3), record(rnd, 30000));
+        ix.delete(txn, key(2));
+        txn.exit();
+
+        fastAssertArrayEquals(small, ix.load(null, key(1)));
+        fastAssertArrayEquals(large, ix.load(null, key(2)));
+        assertNull(ix.load(null, key(3)));
+        assertTrue(ix.verify(null));
+
+        // Recovery replays the redo log.
+        txn = mDb.newTransaction();
+        byte[] value = record(rnd, 40000);
+        ix.store(txn, key(4), value);
+        txn.commit();
+        mDb = reopenTempDatabase(mDb, mConfig);
+        ix = mDb.openIndex("test");
+        assertEquals(ValueCompression.lz(), ix.valueCompression());
+        fastAssertArrayEquals(small, ix.load(null, key(1)));
+        fastAssertArrayEquals(large, ix.load(null, key(2)));
+        fastAssertArrayEquals(value, ix.load(null, key(4)));
+    }
+
+    @Test
+    public void dictionary() throws Exception {
+        Random rnd = new Random(42);
+
+        List<byte[]> samples = new ArrayList<>();
+        for (int i=0; i<200; i++) {
+            samples.add(record(rnd, 100 + rnd.nextInt(100)));
+        }
+
+        byte[] dict = ValueCompression.trainDictionary(samples, 4000);
+        assertTrue(dict.length > 0 && dict.length <= 4000);
+        assertEquals(0, ValueCompression.trainDictionary(new ArrayList<>(), 1000).length);
+
+        Index plain = mDb.openIndex("plain");
+        plain.valueCompression(ValueCompression.lz());
+        Index withDict = mDb.openIndex("dict");
+        withDict.valueCompression(ValueCompression.lz(dict));
+        assertEquals(ValueCompression.lz(dict), withDict.valueCompression());
+
+        // Same dictionary is shared.
+        Index other = mDb.openIndex("other");
+        other.valueCompression(ValueCompression.lz(dict));
+
+        byte[][] values = new byte[300][];
+        long before = mDb.stats().compressionOutputBytes();
+        for (int i=0; i<values.length; i++) {
+            values[i] = record(rnd, 100 + rnd.nextInt(100));
+            plain.store(null, key(i), values[i]);
+        }
+        long plainBytes = mDb.stats().compressionOutputBytes() - before;
+
+        before = mDb.stats().compressionOutputBytes();
+        for (int i=0; i<values.length; i++) {
+            withDict.store(null, key(i), values[i]);
+            other.store(null, key(i), values[i]);
+        }
+        long dictBytes = (mDb.stats().compressionOutputBytes() - before) / 2;
+
+        assertTrue(dictBytes < plainBytes);
+
+        verifyAll(withDict, values);
+
+        mDb.checkpoint();
+        mDb = reopenTempDatabase(mDb, mConfig);
+        withDict = mDb.openIndex("dict");
+        assertEquals(ValueCompression.lz(dict), withDict.valueCompression());
+        verifyAll(withDict, values);
+        verifyAll(mDb.openIndex("other"), values);
+        verifyAll(mDb.openIndex("plain"), values);
+    }
+
+    @Test
+    public void stream() throws Exception {
+        Index ix = mDb.openIndex("test");
+        ix.valueCompression(ValueCompression.lz());
+
+        Random rnd = new Random(99);
+        for (int len : new int[] {200, 3000, 50000}) {
+            byte[] value = record(rnd, len);
+            byte[] key = key(len);
+            ix.store(null, key, value);
+
+            // Streams aren't public yet, so construct one directly.
+            TreeCursor cursor = new TreeCursor((Tree) ix);
+            cursor.autoload(false);
+            Stream s = new TreeValueStream(cursor);
+            s.open(null, key);
+            assertEquals(len, s.length());
+            byte[] buf = new byte[100];
+            assertEquals(100, s.read(len - 150, buf, 0, 100));
+            fastAssertArrayEquals(Arrays.copyOfRange(value, len - 150, len - 50), buf);
+            assertEquals(50, s.read(len - 50, buf, 0, 100));
+            assertEquals(0, s.read(len, buf, 0, 100));
+
+            // Writing replaces the value with an uncompressed copy.
+            byte[] patch = "patch".getBytes();
+            s.write(10, patch, 0, patch.length);
+            System.arraycopy(patch, 0, value, 10, patch.length);
+            s.close();
+
+            fastAssertArrayEquals(value, ix.load(null, key));
+
+            // Compress it again, and then extend it. Extending a fragmented value which has
+            // been moved within the node isn't supported by streams yet.
+            ix.store(null, key, value);
+            s.open(null, key);
+            assertEquals(len, s.length());
+            if (len < 1000) {
+                s.setLength(len + 10);
+                value = Arrays.copyOf(value, len + 10);
+            }
+            s.close();
+
+            fastAssertArrayEquals(value, ix.load(null, key));
+        }
+
+        assertTrue(ix.verify(null));
+    }
+
+    private static void verifyAll(Index ix, byte[][] values) throws Exception {
+        for (int i=0; i<values.length; i++) {
+            fastAssertArrayEquals(values[i], ix.load(null, key(i)));
+        }
+
+        Cursor c = ix.newCursor(null);
+        int i = 0;
+        for (c.first(); c.key() != null; c.next()) {
+            fastAssertArrayEquals(key(i), c.key());
+            fastAssertArrayEquals(values[i], c.value());
+            i++;
+        }
+        assertEquals(values.length, i);
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key-%08d", i).getBytes();
+    }
+
+    private static final String[] WORDS = {
+        "name", "address", "city", "country", "status", "active", "pending", "amount",
+        "currency", "USD", "EUR", "timestamp", "description", "customer", "order", "items"
+    };
+
+    /**
+     * Returns a compressible JSON-like record.
+     */
+    private static byte[] record(Random rnd, int len) {
+        StringBuilder b = new StringBuilder(len + 40);
+        b.append('{');
+        while (b.length() < len) {
+            b.append('"').append(WORDS[rnd.nextInt(WORDS.length)]).append("\": \"")
+                .append(WORDS[rnd.nextInt(WORDS.length)]).append(rnd.nextInt(100))
+                .append("\", ");
+        }
+        return Arrays.copyOf(b.toString().getBytes(), len);
+    }
+}
@@ -1053,6 +1053,122 @@ public class ViewTest {
         }
     }
 
+    @Test
+    public void loadAll() throws Exception {
+        Index ix = fill();
+
+        // Keys are out of order, with duplicates and missing entries.
+        byte[][] keys = {key(50), key(20), key(55), key(90), key(50), key(10), key(30)};
+
+        loadAll(ix, keys);
+        loadAll(ix.viewReverse(), keys);
+        loadAll(ix.viewGe(key(30)), keys);
+        loadAll(ix.viewLt(key(60)).viewReverse(), keys);
+        loadAll(ix.viewUnmodifiable(), keys);
+        loadAll(ix.viewTransformed(new TransformerTest.KeyFlipper()), keys);
+
+        View prefix = ix.viewPrefix("key-".getBytes(), 4);
+        byte[][] trimmed = {"50".getBytes(), "2".getBytes(), "20".getBytes(), "90".getBytes()};
+        loadAll(prefix, trimmed);
+        loadAll(prefix.viewGe("3".getBytes()), trimmed);
+
+        Transaction txn = mDb.newTransaction();
+        loadAll(ix, txn, keys);
+        loadAll(ix.viewGe(key(30)), txn, keys);
+        txn.reset();
+
+        txn = mDb.newTransaction();
+        txn.lockMode(LockMode.REPEATABLE_READ);
+        loadAll(ix.viewTransformed(new TransformerTest.KeyFlipper()), txn, keys);
+        txn.reset();
+
+        assertEquals(0, ix.loadAll(null, new byte[0][]).length);
+
+        try {
+            ix.loadAll(null, new byte[][] {key(20), null});
+            fail();
+        } catch (NullPointerException e) {
+        }
+    }
+
+    private static void loadAll(View view, byte[][] keys) throws Exception {
+        loadAll(view, null, keys);
+    }
+
+    private static void loadAll(View view, Transaction txn, byte[][] keys) throws Exception {
+        byte[][] values = view.loadAll(txn, keys);
+        assertEquals(keys.length, values.length);
+        for (int i=0; i<keys.length; i++) {
+            fastAssertArrayEquals(view.load(txn, keys[i]), values[i]);
+        }
+    }
+
+    @Test
+    public void storeAll() throws Exception {
+        Index ix = fill();
+
+        // Keys are out of order, with duplicates and deletes.
+        byte[][] keys = {key(50), key(25), key(90), key(50), key(15), key(30)};
+        byte[][] values = {"a".getBytes(), "b".getBytes(), null, "c".getBytes(),
+                           "d".getBytes(), "e".getBytes()};
+
+        ix.storeAll(null, keys, values);
+
+        fastAssertArrayEquals("c".getBytes(), ix.load(null, key(50)));
+        fastAssertArrayEquals("b".getBytes(), ix.load(null, key(25)));
+        assertNull(ix.load(null, key(90)));
+        fastAssertArrayEquals("d".getBytes(), ix.load(null, key(15)));
+        fastAssertArrayEquals("e".getBytes(), ix.load(null, key(30)));
+        fastAssertArrayEquals(key(40), ix.load(null, key(40)));
+
+        // Reverse view stores in reverse order, with the same outcome.
+        ix.viewReverse().storeAll(null, keys, values);
+        fastAssertArrayEquals("c".getBytes(), ix.load(null, key(50)));
+
+        // All entries are rolled back together.
+        Transaction txn = mDb.newTransaction();
+        ix.storeAll(txn, new byte[][] {key(1), key(2)}, new byte[][] {key(1), key(2)});
+        fastAssertArrayEquals(key(2), ix.load(txn, key(2)));
+        txn.reset();
+        assertNull(ix.load(null, key(1)));
+        assertNull(ix.load(null, key(2)));
+
+        View prefix = ix.viewPrefix("key-".getBytes(), 4);
+        prefix.storeAll(null, new byte[][] {"7".getBytes()}, new byte[][] {"f".getBytes()});
+        fastAssertArrayEquals("f".getBytes(), ix.load(null, key(7)));
+
+        View transformed = ix.viewTransformed(new TransformerTest.KeyFlipper());
+        Cursor c = transformed.newCursor(null);
+        c.first();
+        byte[] tkey = c.key();
+        c.reset();
+        transformed.storeAll(null, new byte[][] {tkey}, new byte[][] {"g".getBytes()});
+        fastAssertArrayEquals("g".getBytes(), transformed.load(null, tkey));
+
+        // Nothing is stored if any key is out of range.
+        try {
+            ix.viewGe(key(30)).storeAll(null, new byte[][] {key(35), key(10)},
+                                        new byte[][] {key(35), key(10)});
+            fail();
+        } catch (ViewConstraintException e) {
+        }
+        assertNull(ix.load(null, key(35)));
+
+        try {
+            ix.viewUnmodifiable().storeAll(null, keys, values);
+            fail();
+        } catch (UnmodifiableViewException e) {
+        }
+
+        try {
+            ix.storeAll(null, keys, new byte[1][]);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+
+        ix.storeAll(null, new byte[0][], new byte[0][]);
+    }
+
     private Index fill() throws Exception {
         Index ix = mDb.openIndex("views");
         for (int i=20; i<=90; i+=10) {